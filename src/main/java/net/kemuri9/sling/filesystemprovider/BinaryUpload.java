@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An in-progress upload of {@link Binary} data that is received in chunks.
+ * Chunks may be written at any offset and in any order, including concurrently from multiple threads.
+ *
+ * <p>Closing the upload only releases the resources held for writing, the upload itself remains
+ * available to be resumed through {@link PropertyFactory#resumeBinaryUpload(String)} until it is
+ * either {@link #complete() completed} or {@link #abort() aborted}, including after a restart.</p>
+ * This interface should not be implemented outside of this bundle.
+ */
+public interface BinaryUpload extends AutoCloseable {
+
+    /** Expected length indicating that the length of the upload is not known ahead of time */
+    public static final long LENGTH_UNKNOWN = -1;
+
+    /**
+     * Discard the upload and all of the data written into it.
+     * The upload can not be used nor resumed afterwards.
+     */
+    public void abort();
+
+    /**
+     * Release the resources held for writing into the upload. The upload can be resumed later.
+     */
+    @Override
+    public void close();
+
+    /**
+     * Finish the upload, producing the {@link Binary} of the written data.
+     * The upload can not be used nor resumed afterwards.
+     * @return the {@link Binary} representing all of the written data.
+     * @throws IOException <ul>
+     * <li>If the written data does not contiguously cover the expected length, or when the length is unknown,
+     * if there are gaps in the written data.</li>
+     * <li>If an error occurs finalizing the written data.</li>
+     * </ul>
+     */
+    public Binary complete() throws IOException;
+
+    /**
+     * Retrieve the number of bytes that have been contiguously written from the start of the upload.
+     * This is the offset that an interrupted upload should be resumed from.
+     * @return number of contiguously written bytes from the start of the upload.
+     */
+    public long getContiguousLength();
+
+    /**
+     * Retrieve the length the upload is expected to be.
+     * @return the expected length in bytes, or {@link #LENGTH_UNKNOWN} if it is not known.
+     */
+    public long getExpectedLength();
+
+    /**
+     * Retrieve the identifier of the upload, for use in resuming the upload.
+     * @return identifier of the upload
+     */
+    public String getId();
+
+    /**
+     * Write a chunk of data at the specified offset of the upload.
+     * The remaining bytes of {@code data} are written, and its position is advanced accordingly.
+     * @param offset the offset within the upload to write the chunk at
+     * @param data the chunk of data to write
+     * @throws IOException <ul>
+     * <li>If the offset is negative or the chunk would exceed the expected length.</li>
+     * <li>If the upload has been completed or aborted.</li>
+     * <li>If an error occurs writing the chunk.</li>
+     * </ul>
+     */
+    public void write(long offset, ByteBuffer data) throws IOException;
+
+    /**
+     * Write a chunk of data at the specified offset of the upload.
+     * All of the remaining data of the {@link InputStream} is written, the stream is not closed.
+     * @param offset the offset within the upload to write the chunk at
+     * @param input the chunk of data to write
+     * @return the number of bytes that were written
+     * @throws IOException <ul>
+     * <li>If the offset is negative or the chunk would exceed the expected length.</li>
+     * <li>If the upload has been completed or aborted.</li>
+     * <li>If an error occurs reading the chunk or writing it.</li>
+     * </ul>
+     */
+    public long write(long offset, InputStream input) throws IOException;
+}
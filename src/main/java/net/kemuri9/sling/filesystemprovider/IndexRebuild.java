@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Administrative service that rebuilds the indexes of the repository, such as when an index is suspected to be corrupt.
+ *
+ * <p>The rebuild runs in the background while the provider stays online. Queries keep using the current index until
+ * the rebuilt one takes its place, which includes the changes committed during the rebuild.</p>
+ * This interface should not be implemented outside of this bundle.
+ */
+public interface IndexRebuild {
+
+    /**
+     * Retrieve the names of the configured indexes, such as {@code property/status}, {@code range/published},
+     * {@code fulltext/title} and {@code type}
+     * @return the index names
+     */
+    public List<String> getIndexes();
+
+    /**
+     * Retrieve the progress of the current or last build of indexes, including the builds of missing indexes at startup.
+     * Statistics are {@code indexes}, {@code running}, {@code resources}, {@code estimatedResources},
+     * {@code elapsedMillis}, {@code resourcesPerSecond} and {@code remainingMillis}, where estimates are -1 when unknown.
+     * The resources are estimated from the last completed build.
+     * @return the statistics, empty when there has been no build
+     */
+    public Map<String, Long> getStatistics();
+
+    /**
+     * Retrieve the state of a build of indexes running
+     * @return state of a build running
+     */
+    public boolean isRunning();
+
+    /**
+     * Start rebuilding indexes in the background
+     * @param indexes names of the indexes to rebuild, per {@link #getIndexes()}. every index when none are given.
+     * @return {@code true} if the rebuild was started, {@code false} if a build is already running or there are no indexes.
+     * @throws IllegalArgumentException if there is no index with one of the names
+     * @throws IllegalStateException if the file system provider is not active
+     */
+    public boolean start(String... indexes);
+
+    /**
+     * Stop the running build. The indexes being rebuilt keep being used as they were.
+     */
+    public void stop();
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Renders a resource and its descendants as JSON, in the form of Sling's default JSON rendering
+ * ({@code .infinity.json}), straight from their persisted property records.
+ * Values are copied as they are stored, and only the types whose JSON form differs from their stored form are
+ * reformatted: dates are written in the ECMA date format, and binaries are written as their length
+ * under the property name prefixed with {@code :}.
+ * Unsaved modifications are not reflected, as only the persisted state is rendered.
+ * Retrieved by adapting a resource of this provider.
+ * This interface should not be implemented outside of this bundle.
+ */
+public interface JSONRenderer {
+
+    /** depth to render all descendants of the resource */
+    public static final int INFINITY = -1;
+
+    /**
+     * Write the resource as UTF-8 JSON into the stream
+     * @param output stream to write into. it is not closed.
+     * @param depth levels of descendants to include, 0 for only the resource, or {@link #INFINITY}
+     * @throws IOException if the JSON can not be written, or the persisted properties can not be read
+     */
+    public void render(OutputStream output, int depth) throws IOException;
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider;
+
+import java.util.Map;
+
+/**
+ * Administrative service exposing how JSON properties files have been compressed, so that the adaptive
+ * compression thresholds can be tuned from the observed data.
+ * This interface should not be implemented outside of this bundle.
+ */
+public interface PropertyCompressionStatistics {
+
+    /**
+     * Retrieve the statistics since they were last reset. Statistics are keyed by the compression name and the statistic
+     * name separated by a period, such as {@code GZIP.files}, {@code GZIP.bytes}, {@code GZIP.storedBytes},
+     * and the decisions of {@code NONE.belowMinSize}, {@code NONE.poorRatio} and {@code GZIP.goodRatio}.
+     * @return the statistics
+     */
+    public Map<String, Long> getStatistics();
+
+    /**
+     * Reset all of the statistics
+     */
+    public void reset();
+}
@@ -35,4 +35,33 @@ public interface PropertyFactory {
      * @throws IOException If an error occurs while reading the {@link InputStream} to create the {@link Binary}
      */
     public Binary createBinaryProperty(InputStream input) throws IOException;
+
+    /**
+     * Create a {@link Binary} representing the specified {@link InputStream}, with the declared content type of its data.
+     * The content type is a hint towards storing the data efficiently, such as not compressing already compressed formats.
+     * @param input the {@link InputStream} to create a {@link Binary} from
+     * @param contentType the content type of the data, or {@code null} if it is not known
+     * @return the binary representing the specified {@link InputStream}
+     * @throws IOException If an error occurs while reading the {@link InputStream} to create the {@link Binary}
+     * @see #createBinaryProperty(InputStream)
+     */
+    public Binary createBinaryProperty(InputStream input, String contentType) throws IOException;
+
+    /**
+     * Create a {@link BinaryUpload} that receives the data of a {@link Binary} in chunks.
+     * This allows for a {@link Binary} to be uploaded in parallel, rather than serially through a single {@link InputStream}.
+     * @param expectedLength the length the uploaded data is expected to be,
+     * or {@link BinaryUpload#LENGTH_UNKNOWN} if it is not known ahead of time.
+     * @return the new upload
+     * @throws IOException If an error occurs preparing the storage of the upload
+     */
+    public BinaryUpload createBinaryUpload(long expectedLength) throws IOException;
+
+    /**
+     * Resume a {@link BinaryUpload} that was previously created and is not yet completed nor aborted.
+     * @param id the {@link BinaryUpload#getId() identifier} of the upload to resume
+     * @return the resumed upload
+     * @throws IOException If the upload does not exist, or an error occurs preparing the storage of the upload
+     */
+    public BinaryUpload resumeBinaryUpload(String id) throws IOException;
 }
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider;
+
+/**
+ * Administrative service that migrates the property files of the repository into the currently configured
+ * format and compression. Changing that configuration otherwise only affects newly written property files.
+ *
+ * <p>The migration runs in the background, and checkpoints its progress so that it resumes where it left off
+ * when it is started again, such as after a restart.</p>
+ * This interface should not be implemented outside of this bundle.
+ */
+public interface PropertyMigration {
+
+    /**
+     * Retrieve the number of property files that failed to be migrated by the current or last run
+     * @return number of property files that failed to be migrated
+     */
+    public long getFailedCount();
+
+    /**
+     * Retrieve the number of property files that were migrated by the current or last run
+     * @return number of property files that were migrated
+     */
+    public long getMigratedCount();
+
+    /**
+     * Retrieve the number of property files that were already in the configured format in the current or last run
+     * @return number of property files that did not need migrating
+     */
+    public long getSkippedCount();
+
+    /**
+     * Retrieve the state of the migration running
+     * @return state of the migration running
+     */
+    public boolean isRunning();
+
+    /**
+     * Start the migration in the background, resuming from the last checkpoint if there is one.
+     * @return {@code true} if the migration was started, {@code false} if it is already running.
+     * @throws IllegalStateException if the file system provider is not active
+     */
+    public boolean start();
+
+    /**
+     * Stop the migration. Its progress is kept so that starting it again resumes it.
+     */
+    public void stop();
+}
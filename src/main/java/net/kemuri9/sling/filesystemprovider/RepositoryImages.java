@@ -0,0 +1,47 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Administrative service that deploys read only subtrees as repository images.
+ * A repository image is a single immutable file holding all of the resources of a subtree, which is served
+ * from a memory mapping, without accessing the file system per resource. Images are only served for the subtrees
+ * configured as image mounts, and their resources can not be modified.
+ * This interface should not be implemented outside of this bundle.
+ */
+public interface RepositoryImages {
+
+    /**
+     * Compile the resources of the source directory into the image of the mount, and atomically swap it in
+     * @param path resource path of the mount
+     * @param source directory of the root resource of the subtree to compile, in the layout of the repository
+     * @return number of resources in the image
+     * @throws IOException if the image can not be compiled, such as when the source holds a packed subtree
+     * @throws IllegalArgumentException if the path is not a configured image mount
+     */
+    public int deploy(String path, Path source) throws IOException;
+
+    /**
+     * Map the image of the mount again, such as after its image file was replaced outside of this service
+     * @param path resource path of the mount
+     * @return {@code true} if the mount is served from an image, {@code false} if it is served from its directories
+     * @throws IllegalArgumentException if the path is not a configured image mount
+     */
+    public boolean reload(String path);
+}
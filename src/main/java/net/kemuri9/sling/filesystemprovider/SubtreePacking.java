@@ -0,0 +1,51 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider;
+
+import java.io.IOException;
+
+/**
+ * Administrative service that packs the resources of subtrees into a single segment file.
+ * Resources of a packed subtree do not have their own directory and properties file, which saves on inodes
+ * and on opening files for subtrees of many small resources. Only subtrees without binary files can be packed.
+ * This interface should not be implemented outside of this bundle.
+ */
+public interface SubtreePacking {
+
+    /**
+     * Rewrite the segment of the packed subtree with only its current data
+     * @param path resource path of the root of the packed subtree
+     * @return {@code true} if the subtree was compacted, {@code false} if it is not packed
+     * @throws IOException if the segment can not be rewritten
+     */
+    public boolean compact(String path) throws IOException;
+
+    /**
+     * Pack the descendants of the resource into a segment. The resource itself remains as-is.
+     * @param path resource path of the root of the subtree to pack
+     * @return number of resources packed
+     * @throws IOException if the subtree can not be packed, such as when it holds binary properties stored in files
+     */
+    public int pack(String path) throws IOException;
+
+    /**
+     * Unpack the packed subtree back into directories and properties files
+     * @param path resource path of the root of the packed subtree
+     * @return number of resources unpacked
+     * @throws IOException if the subtree can not be unpacked
+     */
+    public int unpack(String path) throws IOException;
+}
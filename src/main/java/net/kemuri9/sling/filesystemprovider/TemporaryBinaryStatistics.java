@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider;
+
+/**
+ * Administrative service exposing the temporary files that back the binaries which are not yet persisted,
+ * so that their disk usage can be monitored against the configured quota.
+ * This interface should not be implemented outside of this bundle.
+ */
+public interface TemporaryBinaryStatistics {
+
+    /**
+     * Retrieve the number of tracked temporary files, including the files of uploads in progress
+     * @return number of tracked temporary files
+     */
+    public int getOutstandingCount();
+
+    /**
+     * Retrieve the total size of the tracked temporary files
+     * @return size of the tracked temporary files, in bytes
+     */
+    public long getOutstandingBytes();
+
+    /**
+     * Retrieve the maximum total size of the tracked temporary files
+     * @return the quota, in bytes. 0 when unlimited
+     */
+    public long getQuota();
+
+    /**
+     * Retrieve the number of binaries that were detected as leaked, being unreachable without being disposed
+     * @return number of leaked binaries
+     */
+    public long getLeakedCount();
+
+    /**
+     * Retrieve the number of files that the background reaper has deleted
+     * @return number of files reaped
+     */
+    public long getReapedCount();
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression formats supported for the at-rest storage of binaries.
+ * Compressed binaries end with a trailer holding the uncompressed length, so that the length
+ * can be retrieved without decompressing, and the compression format is identified by the file extension.
+ * GZIP files stay valid GZIP, as their trailer is an empty final member whose extra field holds the length.
+ * ZLIB data can not be followed by anything, so its files are in a format of their own, of the ZLIB data and then the length.
+ */
+enum BinaryCompression {
+
+    /** None */
+    NONE(FSPConstants.FILENAME_EXTENSION_BINARY),
+
+    /** GZIP */
+    GZIP(FSPConstants.FILENAME_EXTENSION_BINARY + ".gz"),
+
+    /** ZLIB, a.k.a. "Deflate", followed by the length. Not named as ZLIB, as the length makes it invalid ZLIB */
+    ZLIB(FSPConstants.FILENAME_EXTENSION_BINARY + ".fspz");
+
+    /** {@link OutputStream} that counts the uncompressed data and writes the trailer when closed */
+    private static final class TrailerOutputStream extends FilterOutputStream {
+
+        /** the compression format, which determines the trailer */
+        private final BinaryCompression compression;
+
+        /** the underlying stream that the trailer is written into */
+        private final OutputStream raw;
+
+        /** number of uncompressed bytes written */
+        private long length = 0;
+
+        /** state of the stream being closed, so that the trailer is only written once */
+        private boolean closed = false;
+
+        TrailerOutputStream(BinaryCompression compression, DeflaterOutputStream compressed, OutputStream raw) {
+            super(compressed);
+            this.compression = compression;
+            this.raw = raw;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++length;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            length += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                ((DeflaterOutputStream) out).finish();
+                raw.write(compression.trailer(length));
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /** {@link InputStream} that reads up to a limit, to exclude the trailer */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        /** remaining bytes that may be read */
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(remaining, super.available());
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read();
+            if (read >= 0) {
+                --remaining;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * start of the GZIP member holding the uncompressed length: the header with only FEXTRA set and unknown OS,
+     * the length of the extra field, and the header of its "FL" subfield of the little endian length
+     */
+    private static final byte[] GZIP_LENGTH_HEADER = {0x1F, (byte) 0x8B, 8, 4, 0, 0, 0, 0, 0, (byte) 0xFF,
+        4 + Long.BYTES, 0, 'F', 'L', Long.BYTES, 0};
+
+    /** end of the GZIP member holding the uncompressed length: an empty final deflate block, its CRC32 and its size */
+    private static final byte[] GZIP_LENGTH_FOOTER = {3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    /** File extension for the format */
+    final String extension;
+
+    /**
+     * Construct new enumeration value.
+     * @param extension preferred extension for the format.
+     */
+    private BinaryCompression(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Retrieve the compression format of the binary file from its name
+     * @param file the binary file
+     * @return the compression format. {@link #NONE} if the name does not indicate any compression.
+     */
+    public static BinaryCompression fromFile(Path file) {
+        String fileName = file.getFileName().toString();
+        for (BinaryCompression val : values()) {
+            if (val != NONE && fileName.endsWith(val.extension)) {
+                return val;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Retrieve the uncompressed length of the binary file
+     * @param file the binary file in this format
+     * @return the uncompressed length
+     * @throws IOException if the length can not be read
+     */
+    public long getLength(Path file) throws IOException {
+        if (this == NONE) {
+            return Files.size(file);
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(trailerLength());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < trailer.capacity()) {
+                throw new IOException("compressed binary " + file + " is missing its trailer");
+            }
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, size - trailer.capacity() + trailer.position()) < 0) {
+                    throw new IOException("compressed binary " + file + " is missing its trailer");
+                }
+            }
+        }
+        switch (this) {
+        case GZIP:
+            byte[] bytes = trailer.array();
+            int footer = GZIP_LENGTH_HEADER.length + Long.BYTES;
+            if (!Arrays.equals(Arrays.copyOf(bytes, GZIP_LENGTH_HEADER.length), GZIP_LENGTH_HEADER)
+                    || !Arrays.equals(Arrays.copyOfRange(bytes, footer, bytes.length), GZIP_LENGTH_FOOTER)) {
+                throw new IOException("compressed binary " + file + " is missing its trailer");
+            }
+            return trailer.order(ByteOrder.LITTLE_ENDIAN).getLong(GZIP_LENGTH_HEADER.length);
+        case ZLIB:
+            return trailer.getLong(0);
+        default:
+            throw new RuntimeException("A type was missed, fix this now");
+        }
+    }
+
+    /**
+     * Retrieve the length of the trailer holding the uncompressed length
+     * @return number of bytes of the trailer
+     */
+    private int trailerLength() {
+        switch (this) {
+        case GZIP:
+            return GZIP_LENGTH_HEADER.length + Long.BYTES + GZIP_LENGTH_FOOTER.length;
+        case ZLIB:
+            return Long.BYTES;
+        default:
+            throw new RuntimeException("A type was missed, fix this now");
+        }
+    }
+
+    /**
+     * Create the trailer holding the uncompressed length
+     * @param length the uncompressed length
+     * @return bytes of the trailer
+     */
+    private byte[] trailer(long length) {
+        ByteBuffer trailer = ByteBuffer.allocate(trailerLength());
+        switch (this) {
+        case GZIP:
+            trailer.put(GZIP_LENGTH_HEADER);
+            trailer.order(ByteOrder.LITTLE_ENDIAN).putLong(length);
+            trailer.put(GZIP_LENGTH_FOOTER);
+            break;
+        case ZLIB:
+            trailer.putLong(length);
+            break;
+        default:
+            throw new RuntimeException("A type was missed, fix this now");
+        }
+        return trailer.array();
+    }
+
+    /**
+     * Open the binary file for reading its decompressed data
+     * @param file the binary file in this format
+     * @return {@link InputStream} of the decompressed data
+     * @throws IOException if the file can not be opened
+     */
+    public InputStream openInput(Path file) throws IOException {
+        if (this == NONE) {
+            return Files.newInputStream(file);
+        }
+        switch (this) {
+        case GZIP:
+            // the trailer is an empty member, so it decompresses to nothing
+            return new GZIPInputStream(Files.newInputStream(file), FSPConstants.BUFFER_SIZE);
+        case ZLIB:
+            return new InflaterInputStream(new LimitedInputStream(Files.newInputStream(file), Files.size(file) - Long.BYTES));
+        default:
+            throw new RuntimeException("A type was missed, fix this now");
+        }
+    }
+
+    /**
+     * Open the binary file for writing data into it, compressing it per the format
+     * @param file the binary file in this format
+     * @return {@link OutputStream} to write the uncompressed data into
+     * @throws IOException if the file can not be opened
+     */
+    public OutputStream openOutput(Path file) throws IOException {
+        return compress(Files.newOutputStream(file, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+    }
+
+    /**
+     * Compress the data written into the stream per the format
+     * @param raw the stream to write the compressed data into
+     * @return {@link OutputStream} to write the uncompressed data into
+     * @throws IOException if the compressor can not be created
+     */
+    OutputStream compress(OutputStream raw) throws IOException {
+        if (this == NONE) {
+            return raw;
+        }
+        // the compressors write in small pieces, so buffer them
+        raw = new BufferedOutputStream(raw, FSPConstants.BUFFER_SIZE);
+        switch (this) {
+        case GZIP:
+            return new TrailerOutputStream(this, new GZIPOutputStream(raw, FSPConstants.BUFFER_SIZE), raw);
+        case ZLIB:
+            return new TrailerOutputStream(this, new DeflaterOutputStream(raw), raw);
+        default:
+            throw new RuntimeException("A type was missed, fix this now");
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides on the {@link BinaryCompression} to store a binary with, by its size and content type.
+ * When the content type is not declared, the content is checked for the signatures of already compressed formats,
+ * and otherwise a sample of the content is compressed to measure how well it compresses.
+ */
+final class BinaryCompressionPolicy {
+
+    /** number of bytes sampled from the start of the binary to make the decision with */
+    static final int SAMPLE_SIZE = 16 * 1024;
+
+    /** signatures of formats that are already compressed, and so do not benefit from compression */
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+        {(byte) 0x1F, (byte) 0x8B}, // gzip
+        {'P', 'K', 3, 4}, // zip, jar, docx, xlsx, odt, epub...
+        {'B', 'Z', 'h'}, // bzip2
+        {(byte) 0xFD, '7', 'z', 'X', 'Z', 0}, // xz
+        {'7', 'z', (byte) 0xBC, (byte) 0xAF, (byte) 0x27, (byte) 0x1C}, // 7z
+        {(byte) 0x28, (byte) 0xB5, (byte) 0x2F, (byte) 0xFD}, // zstd
+        {'R', 'a', 'r', '!'}, // rar
+        {(byte) 0x89, 'P', 'N', 'G'}, // png
+        {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, // jpeg
+        {'G', 'I', 'F', '8'}, // gif
+        {'R', 'I', 'F', 'F'}, // webp, avi, wav
+        {'O', 'g', 'g', 'S'}, // ogg
+        {'I', 'D', '3'}, // mp3
+        {'f', 'L', 'a', 'C'}, // flac
+        {(byte) 0x1A, (byte) 0x45, (byte) 0xDF, (byte) 0xA3}, // webm, mkv
+        {'w', 'O', 'F', 'F'}, // woff
+        {'w', 'O', 'F', '2'}, // woff2
+    };
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(BinaryCompressionPolicy.class);
+
+    private BinaryCompressionPolicy() {
+    }
+
+    /**
+     * Choose the compression to store a binary with.
+     * @param config configuration of the compression. {@code null} to not compress.
+     * @param sample the start of the binary's content
+     * @param sampleLength the number of bytes of the sample
+     * @param isComplete state of the sample being the complete content of the binary
+     * @param contentType the declared content type of the binary, {@code null} if not known
+     * @return the compression to store the binary with
+     */
+    static BinaryCompression choose(FileSystemProviderConfig config, byte[] sample, int sampleLength,
+            boolean isComplete, String contentType) {
+        BinaryCompression compression = (config == null) ? null : config.binary_compression();
+        if (compression == null || compression == BinaryCompression.NONE) {
+            return BinaryCompression.NONE;
+        }
+        // small binaries cost more to compress than they save
+        if (isComplete && sampleLength < config.binary_compression_min_size()) {
+            return BinaryCompression.NONE;
+        }
+        Boolean compressible = isCompressibleType(contentType);
+        if (compressible != null) {
+            return compressible ? compression : BinaryCompression.NONE;
+        }
+        if (hasCompressedSignature(sample, sampleLength)) {
+            return BinaryCompression.NONE;
+        }
+        double ratio = sampleRatio(sample, sampleLength);
+        log.trace("sampled compression ratio of {}", ratio);
+        return (ratio <= config.binary_compression_max_ratio()) ? compression : BinaryCompression.NONE;
+    }
+
+    /**
+     * Determine if the declared content type is compressible
+     * @param contentType the declared content type
+     * @return state of the content type being compressible, {@code null} when it can not be determined.
+     */
+    static Boolean isCompressibleType(String contentType) {
+        if (contentType == null || contentType.isEmpty()) {
+            return null;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int paramIdx = type.indexOf(';');
+        if (paramIdx >= 0) {
+            type = type.substring(0, paramIdx);
+        }
+        type = type.trim();
+        if (type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json")) {
+            return Boolean.TRUE;
+        }
+        switch (type) {
+        case "application/json":
+        case "application/xml":
+        case "application/javascript":
+        case "application/x-javascript":
+        case "application/ecmascript":
+        case "application/x-sh":
+        case "application/sql":
+        case "application/x-yaml":
+        case "application/yaml":
+        case "application/x-tar":
+        case "application/wasm":
+            return Boolean.TRUE;
+        case "application/gzip":
+        case "application/x-gzip":
+        case "application/zip":
+        case "application/x-7z-compressed":
+        case "application/x-bzip2":
+        case "application/x-xz":
+        case "application/x-rar-compressed":
+        case "application/zstd":
+        case "application/java-archive":
+        case "application/pdf":
+            return Boolean.FALSE;
+        }
+        // uncompressed images compress well, but most media formats are already compressed
+        if (type.equals("image/bmp") || type.equals("image/x-icon")) {
+            return Boolean.TRUE;
+        }
+        if (type.startsWith("image/") || type.startsWith("audio/") || type.startsWith("video/")
+                || type.startsWith("font/woff")) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    /**
+     * Check if the sample starts with the signature of an already compressed format
+     * @param sample the sample to check
+     * @param sampleLength the number of bytes of the sample
+     * @return state of the sample being of a compressed format
+     */
+    static boolean hasCompressedSignature(byte[] sample, int sampleLength) {
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (sampleLength < signature.length) {
+                continue;
+            }
+            boolean matches = true;
+            for (int idx = 0; matches && idx < signature.length; ++idx) {
+                matches = sample[idx] == signature[idx];
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compress the sample to measure how well it compresses
+     * @param sample the sample to compress
+     * @param sampleLength the number of bytes of the sample
+     * @return the ratio of compressed size to uncompressed size
+     */
+    static double sampleRatio(byte[] sample, int sampleLength) {
+        if (sampleLength <= 0) {
+            return 1.0;
+        }
+        // fastest level, as this is only estimating
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, sampleLength);
+            deflater.finish();
+            byte[] buf = new byte[FSPConstants.BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buf);
+            }
+            return (double) compressed / sampleLength;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Binary encoding of the property storage of a resource.
+ * This encodes the same model as the JSON property storage, so the two convert to each other without loss,
+ * but without text tokenization, and with the well known keys and numbers in their binary forms.
+ *
+ * <p>The layout is:</p>
+ * <pre>
+ * magic "FSPB" | version (1 byte) | property count (int) | index length (int)
+ * index: per property, key (string) | record offset (int) | record length (int)
+ * records: per property, the encoded property object
+ * </pre>
+ * <p>The record offsets are relative to the end of the index, so that a single property can be read
+ * by reading the index and then skipping straight to its record, see {@link #scan(ByteBuffer)}.</p>
+ */
+final class BinaryPropertyFormat {
+
+    /** magic bytes identifying the format */
+    private static final byte[] MAGIC = {'F', 'S', 'P', 'B'};
+
+    /** current version of the format */
+    static final byte VERSION = 1;
+
+    /* value tags */
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_FALSE = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_STRING = 6;
+    private static final byte TAG_ARRAY = 7;
+    private static final byte TAG_OBJECT = 8;
+    private static final byte TAG_FLOAT = 9;
+    private static final byte TAG_SHORT = 10;
+    private static final byte TAG_BYTE = 11;
+    private static final byte TAG_BIG_DECIMAL = 12;
+    private static final byte TAG_BIG_INTEGER = 13;
+
+    /** the well known keys of a property object, encoded by their index. index 0 indicates a key that follows as a string */
+    private static final String[] KNOWN_KEYS = {null, FSPConstants.JSON_KEY_TYPE, FSPConstants.JSON_KEY_VALUE,
+        FSPConstants.JSON_KEY_VALUES, FSPConstants.JSON_KEY_BINARY, FSPConstants.JSON_KEY_INLINE};
+
+    private BinaryPropertyFormat() {
+    }
+
+    /**
+     * Write the properties in the binary format
+     * @param properties the JSON properties to write, keyed by property name
+     * @param output the stream to write into. it is not closed.
+     * @throws IOException if the properties can not be encoded or written
+     */
+    static void write(JSONObject properties, OutputStream output) throws IOException {
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordBytes);
+        int count = 0;
+        for (Iterator<String> keyIter = properties.keys(); keyIter.hasNext(); ++count) {
+            String key = keyIter.next();
+            int offset = records.size();
+            writeValue(records, properties.opt(key));
+            writeString(index, key);
+            index.writeInt(offset);
+            index.writeInt(records.size() - offset);
+        }
+
+        DataOutputStream out = new DataOutputStream(output);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(count);
+        out.writeInt(index.size());
+        indexBytes.writeTo(out);
+        recordBytes.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Read all of the properties in the binary format
+     * @param data the binary properties, from its position to its limit. its position is not changed.
+     * @return the JSON properties, keyed by property name
+     * @throws IOException if the properties can not be read or decoded
+     */
+    static JSONObject read(ByteBuffer data) throws IOException {
+        ByteBuffer in = data.duplicate();
+        try {
+            int count = readHeader(in);
+            in.getInt(); // index length, not needed when reading sequentially
+            List<String> keys = new ArrayList<>(Math.min(count, in.remaining()));
+            for (int idx = 0; idx < count; ++idx) {
+                keys.add(readString(in));
+                in.getInt(); // offset
+                in.getInt(); // length
+            }
+            JSONObject properties = new JSONObject();
+            for (String key : keys) {
+                properties.put(key, readValue(in));
+            }
+            return properties;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("binary property data is truncated");
+        } catch (JSONException e) {
+            throw new IOException("invalid property content", e);
+        }
+    }
+
+    /**
+     * Read the index of the properties in the binary format, without decoding the properties
+     * @param data the binary properties, from its position to its limit. its position is not changed.
+     * @return start and end positions of each property's record within {@code data}, keyed by property name
+     * @throws IOException if the index can not be read
+     */
+    static Map<String, int[]> scan(ByteBuffer data) throws IOException {
+        ByteBuffer in = data.duplicate();
+        try {
+            int count = readHeader(in);
+            int indexLength = in.getInt();
+            if (indexLength < 0 || indexLength > in.remaining()) {
+                throw new IOException("invalid index length " + indexLength);
+            }
+            int records = in.position() + indexLength;
+            Map<String, int[]> spans = new HashMap<>();
+            for (int idx = 0; idx < count; ++idx) {
+                String key = readString(in);
+                int offset = in.getInt();
+                int length = in.getInt();
+                if (offset < 0 || length < 0 || (long) records + offset + length > in.limit()) {
+                    throw new IOException("invalid record of property " + key);
+                }
+                spans.put(key, new int[] {records + offset, records + offset + length});
+            }
+            return spans;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("binary property data is truncated");
+        }
+    }
+
+    /**
+     * Read a single property in the binary format, skipping straight to its record
+     * @param data the binary properties
+     * @param span start and end positions of the property's record, as retrieved by {@link #scan(ByteBuffer)}
+     * @return the JSON property
+     * @throws IOException if the property can not be decoded
+     */
+    static Object readProperty(ByteBuffer data, int[] span) throws IOException {
+        ByteBuffer in = data.duplicate();
+        in.limit(span[1]).position(span[0]);
+        try {
+            return readValue(in);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("binary property record is truncated");
+        }
+    }
+
+    /**
+     * Check if the data is in the binary format
+     * @param data the start of the data
+     * @param length number of bytes of the data
+     * @return state of the data being in the binary format
+     */
+    static boolean isBinaryFormat(byte[] data, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int idx = 0; idx < MAGIC.length; ++idx) {
+            if (data[idx] != MAGIC[idx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read and validate the header up to the property count
+     * @param in the data to read from
+     * @return the property count
+     * @throws IOException if the header is not valid
+     */
+    private static int readHeader(ByteBuffer in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        if (!isBinaryFormat(magic, magic.length)) {
+            throw new IOException("not a binary property file");
+        }
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IOException("unsupported binary property file version " + version);
+        }
+        int count = in.getInt();
+        if (count < 0) {
+            throw new IOException("invalid property count " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        // not writeUTF, as that is limited to 64KB
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        // validated before allocating, so that a corrupt length can not exhaust the heap
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return SymbolTable.intern(bytes);
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TAG_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(TAG_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(TAG_BIG_DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(TAG_BIG_INTEGER);
+            writeString(out, value.toString());
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray arr = (JSONArray) value;
+            out.writeByte(TAG_ARRAY);
+            out.writeInt(arr.length());
+            for (int idx = 0; idx < arr.length(); ++idx) {
+                writeValue(out, arr.opt(idx));
+            }
+        } else if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject) value;
+            out.writeByte(TAG_OBJECT);
+            out.writeInt(obj.length());
+            for (Iterator<String> keyIter = obj.keys(); keyIter.hasNext();) {
+                String key = keyIter.next();
+                writeKey(out, key);
+                writeValue(out, obj.opt(key));
+            }
+        } else {
+            throw new IOException("unsupported JSON value type " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+        case TAG_NULL:
+            return JSONObject.NULL;
+        case TAG_FALSE:
+            return Boolean.FALSE;
+        case TAG_TRUE:
+            return Boolean.TRUE;
+        case TAG_INT:
+            return in.getInt();
+        case TAG_LONG:
+            return in.getLong();
+        case TAG_DOUBLE:
+            return in.getDouble();
+        case TAG_FLOAT:
+            return in.getFloat();
+        case TAG_SHORT:
+            return in.getShort();
+        case TAG_BYTE:
+            return in.get();
+        case TAG_BIG_DECIMAL:
+            return new BigDecimal(readString(in));
+        case TAG_BIG_INTEGER:
+            return new BigInteger(readString(in));
+        case TAG_STRING:
+            return readString(in);
+        case TAG_ARRAY:
+            int length = in.getInt();
+            JSONArray arr = new JSONArray();
+            for (int idx = 0; idx < length; ++idx) {
+                arr.put(readValue(in));
+            }
+            return arr;
+        case TAG_OBJECT:
+            int count = in.getInt();
+            JSONObject obj = new JSONObject();
+            try {
+                for (int idx = 0; idx < count; ++idx) {
+                    obj.put(readKey(in), readValue(in));
+                }
+            } catch (JSONException e) {
+                throw new IOException("invalid property content", e);
+            }
+            return obj;
+        default:
+            throw new IOException("unknown value tag " + tag);
+        }
+    }
+
+    private static void writeKey(DataOutputStream out, String key) throws IOException {
+        for (int idx = 1; idx < KNOWN_KEYS.length; ++idx) {
+            if (KNOWN_KEYS[idx].equals(key)) {
+                out.writeByte(idx);
+                return;
+            }
+        }
+        out.writeByte(0);
+        writeString(out, key);
+    }
+
+    private static String readKey(ByteBuffer in) throws IOException {
+        int idx = in.get() & 0xFF;
+        if (idx == 0) {
+            return readString(in);
+        }
+        if (idx >= KNOWN_KEYS.length) {
+            throw new IOException("unknown key index " + idx);
+        }
+        return KNOWN_KEYS[idx];
+    }
+}
@@ -34,6 +34,27 @@ final class FSPConstants {
     /** Filename fragment indicating the properties of a resource */
     public static final String FILENAME_FRAGMENT_PROPERTIES_FILE = "properties";
 
+    /** Folder name of the uploads in progress, in the sling home */
+    public static final String FILENAME_UPLOADS = "_sling_fsp_uploads";
+
+    /** Folder name of the indexes at the repository root */
+    public static final String FILENAME_INDEXES = "_sling_fsp_indexes";
+
+    /** Filename of the property migration checkpoint at the repository root */
+    public static final String FILENAME_MIGRATION_CHECKPOINT = "_sling_fsp_migration.txt";
+
+    /** Filename of the record of the property files that the property migration kept uncompressed, at the repository root */
+    public static final String FILENAME_MIGRATION_KEPT = "_sling_fsp_migration_kept.txt";
+
+    /** Filename of the repository image of a mounted subtree, in the subtree's root directory */
+    public static final String FILENAME_REPOSITORY_IMAGE = "_sling_fsp_image.img";
+
+    /** Filename of the segment holding the properties of a packed subtree, in the subtree's root directory */
+    public static final String FILENAME_SEGMENT_PACK = "_sling_fsp_pack.seg";
+
+    /** Filename of the type dictionary at the repository root */
+    public static final String FILENAME_TYPE_DICTIONARY = "_sling_fsp_types.txt";
+
     /** Folder name for the repository folder from the root location */
     public static final String FILENAME_REPOSITORY_FOLDER = "filerepository";
 
@@ -43,9 +64,18 @@ final class FSPConstants {
      */
     public static final String FILENAME_PREFIX_FSP = "_sling_fsp_";
 
+    /** Prefix of the files of temporary binaries, in the temporary directory */
+    public static final String FILENAME_PREFIX_TEMPORARY_BINARY = FILENAME_PREFIX_FSP + "binary_";
+
+    /** Prefix of the files of uploads in progress, in the uploads folder */
+    public static final String FILENAME_PREFIX_UPLOAD = FILENAME_PREFIX_FSP + "upload_";
+
     /** JSON Property key indicating the property is binary content */
     public static final String JSON_KEY_BINARY = "binary";
 
+    /** JSON Property key indicating the binary content is stored inline as Base64 */
+    public static final String JSON_KEY_INLINE = "inline";
+
     /** JSON Property key indicating the type of property */
     public static final String JSON_KEY_TYPE = "type";
 
@@ -20,7 +20,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,13 +40,18 @@ final class FileBinary implements Binary {
     /** state of the file being temporary */
     private boolean isTemporary;
 
+    /** compression of the stored data */
+    private BinaryCompression compression = BinaryCompression.NONE;
+
     /**
      * Create a new temporary file for storage that is yet to be written in.
      * @throws IOException when an IO Error occurs trying to create the temporary file.
      */
     FileBinary() throws IOException {
-        file = Files.createTempFile(Util.getTemporaryDirectory(), FSPConstants.FILENAME_PREFIX_FSP, FSPConstants.FILENAME_EXTENSION_BINARY);
-        isTemporary = true;
+        TemporaryBinaryManager.checkQuota(0);
+        file = Files.createTempFile(Util.getTemporaryDirectory(), FSPConstants.FILENAME_PREFIX_TEMPORARY_BINARY,
+                FSPConstants.FILENAME_EXTENSION_BINARY);
+        setTemporary(true);
     }
 
     /**
@@ -63,6 +67,8 @@ final class FileBinary implements Binary {
             throw new IOException("Unable to create File binary from non file");
         }
         this.file = file;
+        compression = BinaryCompression.fromFile(file);
+        // not tracked, as the file belongs to whoever created it rather than to this binary
         isTemporary = file.getFileName().toString().contains(FSPConstants.FILENAME_FRAGMENT_TEMPORARY);
     }
 
@@ -72,12 +78,41 @@ final class FileBinary implements Binary {
      * @throws IOException When an IO Error occurs trying to read the input stream or write the data to the temporary storage
      */
     FileBinary(InputStream input) throws IOException {
-        file = Files.createTempFile(Util.getTemporaryDirectory(), FSPConstants.FILENAME_PREFIX_FSP, FSPConstants.FILENAME_EXTENSION_BINARY);
-        try (OutputStream fileOutput = Files.newOutputStream(file)) {
+        this(input, null);
+    }
+
+    /**
+     * Create a representation of an {@link InputStream}. This will be considered temporary storage.
+     * The data is compressed when configured to, it is large enough, and it compresses well enough.
+     * @param input the {@link InputStream} to create a representation from
+     * @param contentType the declared content type of the data, {@code null} if not known
+     * @throws IOException When an IO Error occurs trying to read the input stream or write the data to the temporary storage
+     */
+    FileBinary(InputStream input, String contentType) throws IOException {
+        if (input == null) {
+            throw new IOException("can not read from null InputStream");
+        }
+        TemporaryBinaryManager.checkQuota(0);
+        // sample the start of the data to decide on compressing it
+        byte[] sample = new byte[BinaryCompressionPolicy.SAMPLE_SIZE];
+        int sampleLength = 0;
+        int read = 0;
+        while (sampleLength < sample.length && (read = input.read(sample, sampleLength, sample.length - sampleLength)) >= 0) {
+            sampleLength += read;
+        }
+        compression = BinaryCompressionPolicy.choose(Util.getConfig(), sample, sampleLength, read < 0, contentType);
+
+        file = Files.createTempFile(Util.getTemporaryDirectory(), FSPConstants.FILENAME_PREFIX_TEMPORARY_BINARY, compression.extension);
+        setTemporary(true);
+        try (OutputStream fileOutput = compression.compress(TemporaryBinaryManager.openOutput(file))) {
+            fileOutput.write(sample, 0, sampleLength);
             Util.copy(input, fileOutput);
+        } catch (IOException e) {
+            dispose();
+            throw e;
         }
         input.close();
-        isTemporary = true;
+        TemporaryBinaryManager.updateSize(file, Files.size(file));
     }
 
     @Override
@@ -87,19 +122,9 @@ final class FileBinary implements Binary {
 
     @Override
     public void dispose() {
-        // if the file is temporary then try to delete it from disk
-        if (isTemporary && Files.exists(file)) {
-            boolean deleted = false;
-            try {
-                deleted = Files.deleteIfExists(file);
-            } catch (IOException e) {
-                log.error("error occurred deleting {}", file, e);
-            }
-            if (!deleted) {
-                log.error("unable to delete {}, trying again on JVM shutdown", file);
-                // and if it can't be deleted now, then try again later
-                file.toFile().deleteOnExit();
-            }
+        // if the file is temporary then try to delete it from disk, retrying in the background if it fails
+        if (isTemporary) {
+            TemporaryBinaryManager.release(file);
         }
     }
 
@@ -118,15 +143,31 @@ final class FileBinary implements Binary {
         }
     }
 
+    /**
+     * Retrieve the compression of the stored data
+     * @return compression of the stored data
+     */
+    BinaryCompression getCompression() {
+        return compression;
+    }
+
     @Override
     public long getLength() {
         try {
-            return Files.size(file);
+            return compression.getLength(file);
         } catch (IOException e) {
             return 0;
         }
     }
 
+    /**
+     * Retrieve the file on disk that holds the binary data
+     * @return file holding the binary data
+     */
+    Path getFile() {
+        return file;
+    }
+
     @Override
     public String getName() {
         return file.getFileName().toString();
@@ -135,17 +176,17 @@ final class FileBinary implements Binary {
     /**
      * Retrieve an {@link OutputStream} for writing into the binary content. this should be used
      * <strong>VERY CAREFULLY</strong> as it will overwrite the existing data.
+     * The data of temporary binaries is limited by the temporary binary quota as it is written.
      * @return OutputStream for writing to the file
      * @throws IOException
      */
     public OutputStream getOutputStream() throws IOException {
-        return Files.newOutputStream(file, StandardOpenOption.TRUNCATE_EXISTING,
-                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        return isTemporary ? compression.compress(TemporaryBinaryManager.openOutput(file)) : compression.openOutput(file);
     }
 
     @Override
     public InputStream getStream() throws IOException {
-        return Files.newInputStream(file);
+        return compression.openInput(file);
     }
 
     @Override
@@ -168,6 +209,11 @@ final class FileBinary implements Binary {
      */
     public void move(Path newLocation) throws IOException {
         Files.move(file, newLocation);
+        if (isTemporary) {
+            TemporaryBinaryManager.untrack(file);
+            TemporaryBinaryManager.track(this, newLocation);
+        }
+        file = newLocation;
     }
 
     /**
@@ -175,6 +221,11 @@ final class FileBinary implements Binary {
      * @param isTemporary newState of being temporary
      */
     public void setTemporary(boolean isTemporary) {
+        if (isTemporary) {
+            TemporaryBinaryManager.track(this, file);
+        } else if (this.isTemporary) {
+            TemporaryBinaryManager.untrack(file);
+        }
         this.isTemporary = isTemporary;
     }
 
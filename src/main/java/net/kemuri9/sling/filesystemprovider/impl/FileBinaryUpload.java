@@ -0,0 +1,426 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.kemuri9.sling.filesystemprovider.Binary;
+import net.kemuri9.sling.filesystemprovider.BinaryUpload;
+
+/**
+ * {@link BinaryUpload} that writes chunks into a temporary file through positional {@link FileChannel} writes.
+ * The written ranges are recorded in a file next to the data, so that uploads can be resumed after a restart.
+ * Uploads are kept in an internal folder of the sling home, outside of the repository,
+ * or of the temporary directory when no repository is configured.
+ */
+final class FileBinaryUpload implements BinaryUpload {
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(FileBinaryUpload.class);
+
+    /** Extension of the file recording the written ranges of an upload, appended to the name of its data file */
+    static final String FILENAME_EXTENSION_RANGES = ".ranges";
+
+    /** uploads that are in progress, by their identifier */
+    private static final Map<String, FileBinaryUpload> UPLOADS = new ConcurrentHashMap<>();
+
+    /** File the upload is written into */
+    private final Path file;
+
+    /** File recording the expected length and the written ranges of the upload */
+    private final Path rangesFile;
+
+    /** expected length of the upload */
+    private final long expectedLength;
+
+    /** ranges of written data, start offset to end offset (exclusive). guarded by itself */
+    private final TreeMap<Long, Long> written;
+
+    /** number of changes to the written ranges. guarded by {@link #written} */
+    private long changes;
+
+    /** number of changes to the written ranges that are recorded in the ranges file. guarded by {@link #rangesLock} */
+    private long recorded = -1;
+
+    /** lock held while recording the ranges, so that one writer records the changes of the others along with its own */
+    private final Object rangesLock = new Object();
+
+    /** channel for writing into the file, {@code null} when the upload is closed */
+    private volatile FileChannel channel;
+
+    /** state of the upload being finished, either by completion or aborting. changed holding the instance lock */
+    private volatile boolean isFinished;
+
+    /**
+     * Create a new upload.
+     * @param expectedLength the expected length of the upload, or {@link BinaryUpload#LENGTH_UNKNOWN}
+     * @return the new upload
+     * @throws IOException when an IO Error occurs trying to create the temporary file.
+     */
+    static FileBinaryUpload create(long expectedLength) throws IOException {
+        if (expectedLength < 0 && expectedLength != LENGTH_UNKNOWN) {
+            throw new IOException("invalid expected length " + expectedLength);
+        }
+        TemporaryBinaryManager.checkQuota(Math.max(0, expectedLength));
+        Path directory = Files.createDirectories(getDirectory());
+        Path file = Files.createTempFile(directory, FSPConstants.FILENAME_PREFIX_UPLOAD, FSPConstants.FILENAME_EXTENSION_BINARY);
+        TemporaryBinaryManager.trackUpload(file);
+        FileBinaryUpload upload = new FileBinaryUpload(file, expectedLength, new TreeMap<>());
+        upload.saveRanges();
+        UPLOADS.put(upload.getId(), upload);
+        return upload;
+    }
+
+    /**
+     * Retrieve the directory holding the uploads
+     * @return the uploads directory
+     */
+    static Path getDirectory() {
+        return Util.isConfigured() ? Util.getInternalPath(FSPConstants.FILENAME_UPLOADS)
+                : Util.getTemporaryDirectory().resolve(FSPConstants.FILENAME_UPLOADS);
+    }
+
+    /**
+     * Retrieve the identifier of the upload that the file belongs to
+     * @param name name of a file in the uploads directory
+     * @return identifier of the upload
+     */
+    static String idOf(String name) {
+        return name.endsWith(FILENAME_EXTENSION_RANGES)
+                ? name.substring(0, name.length() - FILENAME_EXTENSION_RANGES.length()) : name;
+    }
+
+    /**
+     * Resume the indicated upload.
+     * @param id identifier of the upload to resume
+     * @return the resumed upload
+     * @throws IOException when the upload does not exist
+     */
+    static FileBinaryUpload resume(String id) throws IOException {
+        FileBinaryUpload upload = (id == null) ? null : UPLOADS.get(id);
+        if (upload == null && id != null) {
+            // uploads that were in progress before a restart are loaded from their recorded ranges
+            upload = load(id);
+        }
+        if (upload == null) {
+            throw new IOException("upload " + id + " does not exist");
+        }
+        return upload;
+    }
+
+    /**
+     * Load the upload from its files in the uploads directory
+     * @param id identifier of the upload
+     * @return the upload, {@code null} if it does not exist
+     */
+    private static FileBinaryUpload load(String id) {
+        if (!id.startsWith(FSPConstants.FILENAME_PREFIX_UPLOAD) || !id.endsWith(FSPConstants.FILENAME_EXTENSION_BINARY)
+                || id.contains("/") || id.contains("\\")) {
+            return null;
+        }
+        Path file = getDirectory().resolve(id);
+        Path rangesFile = file.resolveSibling(id + FILENAME_EXTENSION_RANGES);
+        synchronized (UPLOADS) {
+            FileBinaryUpload upload = UPLOADS.get(id);
+            if (upload != null || !Files.isRegularFile(file) || !Files.isRegularFile(rangesFile)) {
+                return upload;
+            }
+            try {
+                List<String> lines = Files.readAllLines(rangesFile, StandardCharsets.UTF_8);
+                long expectedLength = Long.parseLong(lines.get(0));
+                TreeMap<Long, Long> written = new TreeMap<>();
+                for (String line : lines.subList(1, lines.size())) {
+                    int separator = line.indexOf(' ');
+                    written.put(Long.parseLong(line.substring(0, separator)), Long.parseLong(line.substring(separator + 1)));
+                }
+                TemporaryBinaryManager.trackUpload(file);
+                upload = new FileBinaryUpload(file, expectedLength, written);
+            } catch (IOException | RuntimeException e) {
+                log.error("unable to read the ranges of upload {} from {}", id, rangesFile, e);
+                return null;
+            }
+            UPLOADS.put(id, upload);
+            return upload;
+        }
+    }
+
+    /**
+     * Retrieve the state of the indicated upload being in progress
+     * @param id identifier of the upload
+     * @return state of the upload being in progress
+     */
+    static boolean isInProgress(String id) {
+        return UPLOADS.containsKey(id);
+    }
+
+    /**
+     * Close all uploads that are in progress, keeping their files so that they can be resumed after a restart
+     */
+    static void closeAll() {
+        for (FileBinaryUpload upload : new ArrayList<>(UPLOADS.values())) {
+            upload.close();
+        }
+        UPLOADS.clear();
+    }
+
+    private FileBinaryUpload(Path file, long expectedLength, TreeMap<Long, Long> written) {
+        this.file = file;
+        this.expectedLength = expectedLength;
+        this.written = written;
+        rangesFile = file.resolveSibling(file.getFileName().toString() + FILENAME_EXTENSION_RANGES);
+    }
+
+    @Override
+    public synchronized void abort() {
+        isFinished = true;
+        UPLOADS.remove(getId());
+        close();
+        deleteRanges();
+        TemporaryBinaryManager.release(file);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("error occurred closing upload {}", file, e);
+        }
+        channel = null;
+    }
+
+    @Override
+    public synchronized Binary complete() throws IOException {
+        // holding the instance lock, so that concurrent completions and aborts see the upload finished
+        checkNotFinished();
+        long length = getContiguousLength();
+        synchronized (written) {
+            if (written.size() > 1 || (length == 0 && !written.isEmpty())) {
+                throw new IOException("upload " + getId() + " has gaps after offset " + length);
+            }
+        }
+        if (expectedLength != LENGTH_UNKNOWN && length != expectedLength) {
+            throw new IOException("upload " + getId() + " has " + length + " of " + expectedLength + " bytes");
+        }
+        if (channel != null) {
+            // make sure that nothing beyond the written data exists
+            channel.truncate(length);
+        }
+        close();
+        isFinished = true;
+        UPLOADS.remove(getId());
+        deleteRanges();
+        FileBinary binary = new FileBinary(file);
+        binary.setTemporary(true);
+        return binary;
+    }
+
+    @Override
+    public long getContiguousLength() {
+        synchronized (written) {
+            Long end = written.get(0L);
+            return (end == null) ? 0 : end;
+        }
+    }
+
+    @Override
+    public long getExpectedLength() {
+        return expectedLength;
+    }
+
+    @Override
+    public String getId() {
+        return file.getFileName().toString();
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer data) throws IOException {
+        checkChunk(offset, data.remaining());
+        TemporaryBinaryManager.reserve(file, offset + data.remaining());
+        FileChannel writeChannel = getChannel();
+        long position = offset;
+        while (data.hasRemaining()) {
+            position += writeChannel.write(data, position);
+        }
+        markWritten(offset, position);
+    }
+
+    @Override
+    public long write(long offset, InputStream input) throws IOException {
+        if (input == null) {
+            throw new IOException("can not write from null InputStream");
+        }
+        checkChunk(offset, 0);
+        FileChannel writeChannel = getChannel();
+        ByteBuffer buf = ByteBuffer.allocate(FSPConstants.BUFFER_SIZE);
+        long position = offset;
+        int read = 0;
+        try {
+            while ((read = input.read(buf.array(), 0, buf.capacity())) > 0) {
+                checkChunk(position, read);
+                TemporaryBinaryManager.reserve(file, position + read);
+                buf.limit(read);
+                while (buf.hasRemaining()) {
+                    position += writeChannel.write(buf, position);
+                }
+                buf.clear();
+            }
+        } finally {
+            // whatever made it to disk is usable for resuming
+            markWritten(offset, position);
+        }
+        return position - offset;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append(getClass().getName())
+                .append(" id=").append(getId()).toString();
+    }
+
+    /**
+     * Validate that a chunk is writable
+     * @param offset the offset of the chunk
+     * @param length the length of the chunk
+     * @throws IOException if the chunk is not writable
+     */
+    private void checkChunk(long offset, long length) throws IOException {
+        checkNotFinished();
+        if (offset < 0) {
+            throw new IOException("invalid offset " + offset);
+        }
+        if (expectedLength != LENGTH_UNKNOWN && offset + length > expectedLength) {
+            throw new IOException("chunk at " + offset + " of " + length + " bytes exceeds the expected length " + expectedLength);
+        }
+    }
+
+    private void checkNotFinished() throws IOException {
+        if (isFinished) {
+            throw new IOException("upload " + getId() + " is already finished");
+        }
+    }
+
+    /**
+     * Retrieve the channel for writing, (re)opening it if necessary
+     * @return channel to write with
+     * @throws IOException if the channel can not be opened
+     */
+    private FileChannel getChannel() throws IOException {
+        FileChannel current = channel;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            checkNotFinished();
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Record that the specified range has been written, merging it with any overlapping or adjacent ranges
+     * @param start start offset of the range
+     * @param end end offset of the range, exclusive
+     */
+    private void markWritten(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        synchronized (written) {
+            Map.Entry<Long, Long> before = written.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> after = written.ceilingEntry(start);
+            while (after != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                written.remove(after.getKey());
+                after = written.ceilingEntry(start);
+            }
+            written.put(start, end);
+            ++changes;
+        }
+        // recorded outside of the lock of the ranges, so that the other chunks are not held up by the file system
+        saveRanges();
+    }
+
+    /**
+     * Record the expected length and the written ranges next to the data, replacing the previous record.
+     * Chunks written while the ranges are being recorded are recorded together by the next writer,
+     * and writers whose chunks were already recorded by another skip recording them again.
+     * Failing to do so only prevents resuming the upload after a restart, so it is not propagated.
+     */
+    private void saveRanges() {
+        synchronized (rangesLock) {
+            if (isFinished) {
+                return;
+            }
+            List<String> lines = new ArrayList<>();
+            lines.add(Long.toString(expectedLength));
+            long snapshot;
+            synchronized (written) {
+                snapshot = changes;
+                for (Map.Entry<Long, Long> range : written.entrySet()) {
+                    lines.add(range.getKey() + " " + range.getValue());
+                }
+            }
+            if (snapshot == recorded) {
+                return;
+            }
+            try {
+                Path tempFile = rangesFile.resolveSibling(rangesFile.getFileName() + FSPConstants.FILENAME_FRAGMENT_TEMPORARY);
+                Files.write(tempFile, lines, StandardCharsets.UTF_8);
+                Files.move(tempFile, rangesFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                recorded = snapshot;
+            } catch (IOException e) {
+                log.error("unable to record the ranges of upload {} into {}", getId(), rangesFile, e);
+            }
+        }
+    }
+
+    private void deleteRanges() {
+        // holding the lock of the record, so that a writer still recording it does not leave it behind
+        synchronized (rangesLock) {
+            try {
+                Files.deleteIfExists(rangesFile);
+            } catch (IOException e) {
+                log.error("unable to delete the ranges of upload {} from {}", getId(), rangesFile, e);
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@ import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.commons.classloader.DynamicClassLoaderManager;
 import org.apache.sling.settings.SlingSettingsService;
 import org.apache.sling.spi.resource.provider.ProviderContext;
@@ -162,6 +163,8 @@ public final class FileSystemProvider extends ResourceProvider<FileSystemProvide
     @Override
     public void commit(ResolveContext<FileSystemProviderState> ctx) throws PersistenceException {
         log.debug("commit");
+        checkState(ctx);
+        ctx.getProviderState().commit();
     }
 
     @Override
@@ -176,12 +179,33 @@ public final class FileSystemProvider extends ResourceProvider<FileSystemProvide
     public Resource create(ResolveContext<FileSystemProviderState> ctx, String path, Map<String, Object> properties)
             throws PersistenceException {
         log.trace("create({}, {})", path, properties);
-        return null;
+        checkState(ctx);
+        checkWritable(path);
+        if (getResource(ctx, path, ResourceContext.EMPTY_CONTEXT, null) != null) {
+            throw new PersistenceException("resource " + path + " already exists", null, path, null);
+        }
+        String parentPath = ResourceUtil.getParent(path);
+        if (parentPath != null && getResource(ctx, parentPath, ResourceContext.EMPTY_CONTEXT, null) == null) {
+            throw new PersistenceException("parent of resource " + path + " does not exist", null, path, null);
+        }
+        ctx.getProviderState().create(path, (properties == null) ? Collections.emptyMap() : properties);
+        return getResource(ctx, path, ResourceContext.EMPTY_CONTEXT, null);
     }
 
     @Override
     public void delete(ResolveContext<FileSystemProviderState> ctx, Resource resource) throws PersistenceException {
         log.debug("delete resource at path {}", resource.getPath());
+        checkState(ctx);
+        checkWritable(resource.getPath());
+        FileSystemProviderState state = ctx.getProviderState();
+        state.delete(resource.getPath(), !state.createdPaths.contains(resource.getPath()));
+    }
+
+    private void checkWritable(String path) throws PersistenceException {
+        if (ImageManager.imageOf(path) != null) {
+            throw new PersistenceException("resource " + path + " is read only, as it is served from a repository image",
+                    null, path, null);
+        }
     }
 
     @Override
@@ -211,13 +235,34 @@ public final class FileSystemProvider extends ResourceProvider<FileSystemProvide
     public Resource getResource(ResolveContext<FileSystemProviderState> ctx, String path,
             ResourceContext resourceContext, Resource parent) {
         log.trace("getResource({})", path);
-        String absPath = Util.getAbsPath(path);
+        FileSystemProviderState state = ctx.getProviderState();
+        if (state.createdPaths.contains(path)) {
+            return new FileSystemProviderResource(parent, this, ctx, resourceContext, Paths.get(Util.getAbsPath(path)), path,
+                    FileSystemProviderState.CREATED);
+        }
+        // pending deletions hide resources, and pending moves show them elsewhere
+        String persistedPath = state.persistedPath(path);
+        if (persistedPath == null) {
+            return null;
+        }
+        String absPath = Util.getAbsPath(persistedPath);
         log.trace("looking for resource data at '{}'", absPath);
         Path resourceFile = Paths.get(absPath);
+        // mounted subtrees with an image are served from the image alone
+        RepositoryImage image = ImageManager.imageOf(persistedPath);
+        if (image != null) {
+            RepositoryImage.Node node = image.find(persistedPath);
+            return (node == null) ? null : new FileSystemProviderResource(parent, this, ctx, resourceContext, resourceFile, path, node);
+        }
         if (Files.exists(resourceFile) && Files.isDirectory(resourceFile)) {
             // found a hit for it, return it
             return new FileSystemProviderResource(parent, this, ctx, resourceContext, resourceFile, path);
         }
+        // resources within packed subtrees do not have directories
+        PackManager.Located packed = PackManager.locate(resourceFile);
+        if (packed != null) {
+            return new FileSystemProviderResource(parent, this, ctx, resourceContext, resourceFile, path, packed);
+        }
 
         // otherwise there is no valid hit
         return null;
@@ -249,6 +294,31 @@ public final class FileSystemProvider extends ResourceProvider<FileSystemProvide
     public boolean move(ResolveContext<FileSystemProviderState> ctx, String srcAbsPath, String destAbsPath)
             throws PersistenceException {
         log.debug("move from '{}' to '{}'", srcAbsPath, destAbsPath);
+        checkState(ctx);
+        // the destination is the parent to move the resource into
+        String destination = SubtreeIterator.childPath(destAbsPath, ResourceUtil.getName(srcAbsPath));
+        checkWritable(srcAbsPath);
+        checkWritable(destination);
+        Resource source = getResource(ctx, srcAbsPath, ResourceContext.EMPTY_CONTEXT, null);
+        if (source == null) {
+            throw new PersistenceException("resource " + srcAbsPath + " does not exist", null, srcAbsPath, null);
+        }
+        if (Util.isWithin(srcAbsPath, destination)) {
+            throw new PersistenceException("resource " + srcAbsPath + " can not be moved within itself", null, srcAbsPath, null);
+        }
+        if (getResource(ctx, destAbsPath, ResourceContext.EMPTY_CONTEXT, null) == null) {
+            throw new PersistenceException("destination " + destAbsPath + " does not exist", null, destAbsPath, null);
+        }
+        if (getResource(ctx, destination, ResourceContext.EMPTY_CONTEXT, null) != null) {
+            throw new PersistenceException("resource " + destination + " already exists", null, destination, null);
+        }
+        FileSystemProviderState state = ctx.getProviderState();
+        boolean isPersisted = !state.createdPaths.contains(srcAbsPath);
+        PropertySource storage = ((FileSystemProviderResource) source).getPropertySource();
+        if (isPersisted && storage != null) {
+            throw new PersistenceException("resource " + srcAbsPath + " can not be moved, as it is packed", null, srcAbsPath, null);
+        }
+        state.move(srcAbsPath, destination, isPersisted);
         return true;
     }
 
@@ -269,7 +339,7 @@ public final class FileSystemProvider extends ResourceProvider<FileSystemProvide
     public void start(ProviderContext ctx) {
         super.start(ctx);
         log.debug("start");
-        queryProvider = new FileSystemProviderQueryLanguageProvider();
+        queryProvider = new FileSystemProviderQueryLanguageProvider(this);
         // create the root of the storage, if it doesn't exist
         createRootIfNecessary();
     }
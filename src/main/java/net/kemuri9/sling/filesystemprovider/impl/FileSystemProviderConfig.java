@@ -30,11 +30,131 @@ public @interface FileSystemProviderConfig {
             description = "Root path under the sling home directory that stores the contents of the file repository")
     String repository_root() default "filerepository";
 
+    @AttributeDefinition(name = "Property storage format",
+            description = "Format of the file that manages properties of Resources. JSON, or the more compact BINARY encoding")
+    PropertyFormat property_format() default PropertyFormat.JSON;
+
     @AttributeDefinition(name = "Compress JSON Property storage",
             description = "State of Compressing the JSON file that manages properties of Resources")
     JSONCompression json_property_compression() default JSONCompression.NONE;
 
+    @AttributeDefinition(name = "Adaptive JSON Property compression",
+            description = "State of choosing the compression per JSON file, leaving small files and files that compress poorly uncompressed")
+    boolean json_property_compression_adaptive() default false;
+
+    @AttributeDefinition(name = "Adaptive JSON Property compression minimum size",
+            description = "Minimum size, in bytes, of JSON files to compress when compression is adaptive")
+    int json_property_compression_min_size() default 1024;
+
+    @AttributeDefinition(name = "Adaptive JSON Property compression maximum ratio",
+            description = "Maximum ratio of compressed to uncompressed size of a sample of the JSON file for it to be compressed when compression is adaptive")
+    double json_property_compression_max_ratio() default 0.8;
+
     @AttributeDefinition(name = "Pretty print JSON Property storage",
             description = "State of pretty printing the JSON file that manages properties of Resources")
     boolean json_property_pretty_print() default false;
+
+    @AttributeDefinition(name = "JSON Property compression level",
+            description = "Compression level of the JSON Property storage, 0 (none) to 9 (best), or -1 for the default level")
+    int json_property_compression_level() default -1;
+
+    @AttributeDefinition(name = "JSON Property buffer size",
+            description = "Size, in bytes, of the buffers used reading and writing the JSON Property storage")
+    int json_property_buffer_size() default 8192;
+
+    @AttributeDefinition(name = "JSON Property compression dictionary",
+            description = "State of compressing the JSON Property storage with a preset dictionary of common keys and types. Only applies to ZLIB")
+    boolean json_property_compression_dictionary() default false;
+
+    @AttributeDefinition(name = "Property migration parallelism",
+            description = "Number of threads migrating property files into the configured format. 0 for the number of processors")
+    int migration_parallelism() default 0;
+
+    @AttributeDefinition(name = "Traversal parallelism",
+            description = "Number of threads walking subtrees, such as for queries. 0 for the number of processors")
+    int traversal_parallelism() default 0;
+
+    @AttributeDefinition(name = "Property migration I/O budget",
+            description = "Maximum number of bytes per second that migrating property files may read and write. 0 for unlimited")
+    long migration_io_budget() default 0;
+
+    @AttributeDefinition(name = "Pack compaction threshold",
+            description = "Fraction of a packed subtree's segment that is superseded data at which the segment is compacted. 0 to disable")
+    double pack_compaction_threshold() default 0.5;
+
+    @AttributeDefinition(name = "Repository image mounts",
+            description = "Resource paths of read only subtrees that are served from their repository image, rather than their directories")
+    String[] image_mounts() default {};
+
+    @AttributeDefinition(name = "Repository image inline threshold",
+            description = "Maximum size, in bytes, of binaries that are held inline of the properties when compiling a repository image")
+    int image_inline_threshold() default 4096;
+
+    @AttributeDefinition(name = "Property indexes",
+            description = "Names of the properties to maintain secondary indexes of their values for queries")
+    String[] property_indexes() default {};
+
+    @AttributeDefinition(name = "Range indexes",
+            description = "Names of the numeric and date properties to maintain indexes of their ordered values for range queries")
+    String[] range_indexes() default {};
+
+    @AttributeDefinition(name = "Resource type index",
+            description = "State of maintaining an index of the resource types, for finding the resources of a type")
+    boolean resource_type_index() default true;
+
+    @AttributeDefinition(name = "Full-text properties",
+            description = "Names of the String properties to maintain full-text indexes of their terms for queries")
+    String[] fulltext_properties() default {};
+
+    @AttributeDefinition(name = "Full-text maximum results",
+            description = "Maximum number of the most relevant matches of full-text queries that are returned. 0 for no limit")
+    int fulltext_max_results() default 1000;
+
+    @AttributeDefinition(name = "Type dictionary",
+            description = "State of storing property types as ids of a repository wide type dictionary, rather than their full names")
+    boolean type_dictionary() default false;
+
+    @AttributeDefinition(name = "Temporary binary quota",
+            description = "Maximum number of bytes that outstanding temporary binaries may use, 0 for unlimited")
+    long temporary_binary_quota() default 0;
+
+    @AttributeDefinition(name = "Temporary binary reap interval",
+            description = "Interval, in seconds, between background cleanups of leaked and orphaned temporary binaries. 0 to disable")
+    long temporary_binary_reap_interval() default 60;
+
+    @AttributeDefinition(name = "Temporary binary orphan TTL",
+            description = "Time, in seconds, that untracked temporary binary files may exist before being cleaned up")
+    long temporary_binary_ttl() default 3600;
+
+    @AttributeDefinition(name = "Compress binary storage",
+            description = "Compression to store binaries with, where they are large enough and compress well enough")
+    BinaryCompression binary_compression() default BinaryCompression.NONE;
+
+    @AttributeDefinition(name = "Binary compression minimum size",
+            description = "Minimum size, in bytes, of binaries to compress")
+    int binary_compression_min_size() default 4096;
+
+    @AttributeDefinition(name = "Binary compression maximum ratio",
+            description = "Maximum ratio of compressed to uncompressed size of a sample of the binary for it to be compressed")
+    double binary_compression_max_ratio() default 0.9;
+
+    @AttributeDefinition(name = "Serializable inline threshold",
+            description = "Maximum size, in bytes, of serialized data that is held in memory and stored inline of the JSON property storage")
+    int serializable_inline_threshold() default 4096;
+
+    @AttributeDefinition(name = "Serializable cache size",
+            description = "Maximum size, in bytes of serialized data, of the cache of deserialized Serializable property values. 0 to disable")
+    long serializable_cache_size() default 0;
+
+    @AttributeDefinition(name = "Serializable cache mode",
+            description = "How cached Serializable property values are handed out, protecting the cache from modification")
+    SerializableCacheMode serializable_cache_mode() default SerializableCacheMode.READ_ONLY;
+
+    @AttributeDefinition(name = "Query cache size",
+            description = "Maximum number of queries whose results are cached until a commit may change them. 0 to disable")
+    int query_cache_size() default 0;
+
+    @AttributeDefinition(name = "Query cache time to live",
+            description = "Maximum time, in seconds, that query results are cached, for changes that are not committed through the provider")
+    long query_cache_ttl() default 60;
 }
@@ -15,39 +15,430 @@
  */
 package net.kemuri9.sling.filesystemprovider.impl;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.resource.QuerySyntaxException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.spi.resource.provider.QueryLanguageProvider;
 import org.apache.sling.spi.resource.provider.ResolveContext;
+import org.apache.sling.spi.resource.provider.ResourceContext;
 
 /**
  * Query Languages supported by the file system provider.
- * Currently there are none.
- * XPATH may be a possible candidate in the future.
+ * The {@value #LANGUAGE_FSP} language matches resources by path globs, resource type and property comparisons,
+ * and the {@value #LANGUAGE_XPATH} language supports a subset of XPath that is parsed into the same conditions,
+ * both by {@link QueryParser}. Results are found lazily while they are iterated, unless they are ordered without a
+ * limit or a range index of the first ordering. They are found either from the {@link IndexManager indexes}
+ * or by walking the tree, as chosen by the {@link QueryPlan}.
+ * Queries selecting columns return {@link ProjectedValueMap}s holding only those columns, whose values are decoded
+ * as they are read, and which are answered from the resource type index alone when it covers the query.
+ * Explained queries return a single {@link ValueMap} describing the plan and the I/O it performed.
+ * The result paths of queries are cached by the {@link QueryCache} when it is enabled, once they are iterated to their end.
  */
 final class FileSystemProviderQueryLanguageProvider implements QueryLanguageProvider<FileSystemProviderState> {
 
+    /**
+     * iterator of the results of a stream, closing the stream once they are exhausted or the iterator is closed,
+     * as iterators of streams never close them, and so never stop the walks of the tree behind them
+     */
+    private static final class ClosingIterator<T> implements Iterator<T>, AutoCloseable {
+        private final Iterator<T> results;
+        private final Stream<?> stream;
+
+        ClosingIterator(Iterator<T> results, Stream<?> stream) {
+            this.results = results;
+            this.stream = stream;
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = results.hasNext();
+            if (!hasNext) {
+                close();
+            }
+            return hasNext;
+        }
+
+        @Override
+        public T next() {
+            return results.next();
+        }
+
+        @Override
+        public void close() {
+            stream.close();
+        }
+    }
+
+    /** name of the provider's own query language */
+    static final String LANGUAGE_FSP = "fsp";
+
+    /** name of the XPath query language */
+    static final String LANGUAGE_XPATH = "xpath";
+
+    /** columns of a result that is answered from the resource type index, without creating its resource */
+    private static final class IndexedColumns implements Function<String, Object> {
+        /** the resource path */
+        private final String path;
+        /** the resource type, as held by the index */
+        private final String resourceType;
+        /** counter of the resources read by the query */
+        private final LongAdder resourcesRead;
+        /** the persisted properties, read when a column other than the path or resource type is retrieved */
+        private PropertyRecord record;
+
+        IndexedColumns(String path, String resourceType, LongAdder resourcesRead) {
+            this.path = path;
+            this.resourceType = resourceType;
+            this.resourcesRead = resourcesRead;
+        }
+
+        @Override
+        public Object apply(String column) {
+            if (Query.COLUMN_PATH.equals(column)) {
+                return path;
+            }
+            if (FSPConstants.PROPERTY_RESOURCE_TYPE.equals(column)) {
+                return resourceType;
+            }
+            if (record == null) {
+                Path directory = Paths.get(Util.getAbsPath(path));
+                PropertySource source = Files.isDirectory(directory) ? null : PackManager.locate(directory);
+                if (source == null && !Files.isDirectory(directory)) {
+                    // removed since it was indexed
+                    return null;
+                }
+                resourcesRead.increment();
+                record = PropertyRecord.read(path, directory, source);
+            }
+            return record.get(column);
+        }
+    }
+
+    /**
+     * the matches of an ordered query in the order of the range index of its first ordering.
+     * Each matching resource is returned at the index entry of the value that it is ordered by,
+     * and resources with the same value are ordered by the rest of the ordering.
+     */
+    private final class IndexOrderedResults implements Iterator<FileSystemProviderResource> {
+        private final ResolveContext<FileSystemProviderState> ctx;
+        private final Query query;
+        private final QueryPlan plan;
+        /** the entries of the range index, in the order of the query */
+        private final Iterator<IndexSegment.Entry> entries;
+        /** the keys of the values that the read resources are ordered by, {@code null} for those that are not returned */
+        private final Map<String, String> orderingKeys = new HashMap<>();
+        /** matching resources that were read at an entry before that of the value they are ordered by */
+        private final Map<String, FileSystemProviderResource> deferred = new HashMap<>();
+        /** the next entry, read past the end of the previous group of resources */
+        private IndexSegment.Entry nextEntry;
+        /** the group of resources with the same value being returned */
+        private Iterator<FileSystemProviderResource> group = Collections.emptyIterator();
+
+        IndexOrderedResults(ResolveContext<FileSystemProviderState> ctx, Query query, QueryPlan plan,
+                Iterator<IndexSegment.Entry> entries) {
+            this.ctx = ctx;
+            this.query = query;
+            this.plan = plan;
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!group.hasNext()) {
+                List<FileSystemProviderResource> resources = new ArrayList<>();
+                String key = null;
+                while (nextEntry != null || entries.hasNext()) {
+                    IndexSegment.Entry entry = (nextEntry != null) ? nextEntry : entries.next();
+                    nextEntry = null;
+                    if (key != null && !key.equals(entry.key)) {
+                        nextEntry = entry;
+                        break;
+                    }
+                    FileSystemProviderResource resource = read(entry);
+                    if (resource != null) {
+                        key = entry.key;
+                        resources.add(resource);
+                    }
+                }
+                if (resources.isEmpty()) {
+                    return false;
+                }
+                resources.sort(query::compare);
+                group = resources.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public FileSystemProviderResource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return group.next();
+        }
+
+        /**
+         * Read the resource of the entry
+         * @param entry the index entry
+         * @return the resource when it matches the query and is ordered by the entry's value, otherwise {@code null}
+         */
+        private FileSystemProviderResource read(IndexSegment.Entry entry) {
+            String path = entry.path;
+            if (orderingKeys.containsKey(path)) {
+                return entry.key.equals(orderingKeys.get(path)) ? deferred.remove(path) : null;
+            }
+            if (!Util.isWithin(plan.scope, path)
+                    || (plan.candidates != null && Collections.binarySearch(plan.candidates, path) < 0)) {
+                return null;
+            }
+            Resource resource = provider.getResource(ctx, path, ResourceContext.EMPTY_CONTEXT, null);
+            if (!(resource instanceof FileSystemProviderResource)) {
+                orderingKeys.put(path, null);
+                return null;
+            }
+            FileSystemProviderResource fspResource = (FileSystemProviderResource) resource;
+            plan.resourcesRead.increment();
+            String orderingKey = query.condition.matches(fspResource) ? orderingKey(query, fspResource) : null;
+            orderingKeys.put(path, orderingKey);
+            if (orderingKey == null || orderingKey.equals(entry.key)) {
+                return (orderingKey == null) ? null : fspResource;
+            }
+            deferred.put(path, fspResource);
+            return null;
+        }
+    }
+
+    /** the provider that resources are retrieved from */
+    private final FileSystemProvider provider;
+
+    FileSystemProviderQueryLanguageProvider(FileSystemProvider provider) {
+        this.provider = provider;
+    }
+
     @Override
     public String[] getSupportedLanguages(ResolveContext<FileSystemProviderState> ctx) {
-        return new String[0];
+        return new String[] {LANGUAGE_FSP, LANGUAGE_XPATH};
     }
 
     @Override
     public Iterator<Resource> findResources(ResolveContext<FileSystemProviderState> ctx, String query,
             String language) throws QuerySyntaxException, SlingException, IllegalStateException {
         checkState(ctx);
-        throw new QuerySyntaxException("language " + language + " is unsupported", query, language);
+        Query parsed = parse(query, language);
+        if (parsed.explain) {
+            throw new QuerySyntaxException("explained queries are only supported by queryResources", query, language);
+        }
+        boolean cacheable = isCacheable(ctx.getProviderState());
+        List<String> cached = cacheable ? QueryCache.get(language, query) : null;
+        if (cached != null) {
+            return readCached(ctx, cached).<Resource>map(resource -> resource).iterator();
+        }
+        QueryPlan plan = QueryPlan.plan(parsed, ctx.getProviderState());
+        QueryCache.Recorder recorder = cacheable ? QueryCache.record(language, query, parsed, plan.scope) : null;
+        Stream<FileSystemProviderResource> results = find(ctx, parsed, plan);
+        if (recorder == null) {
+            return new ClosingIterator<>(results.<Resource>map(resource -> resource).iterator(), results);
+        }
+        return new ClosingIterator<>(recorder.wrap(results.peek(resource -> recorder.add(resource.getPath()))
+                .<Resource>map(resource -> resource).iterator()), results);
     }
 
     @Override
     public Iterator<ValueMap> queryResources(ResolveContext<FileSystemProviderState> ctx, String query,
             String language) throws QuerySyntaxException, SlingException, IllegalStateException {
         checkState(ctx);
-        throw new QuerySyntaxException("language " + language + " is unsupported", query, language);
+        Query parsed = parse(query, language);
+        // explained queries report the I/O of finding the results, so they are never answered from the cache
+        boolean cacheable = !parsed.explain && isCacheable(ctx.getProviderState());
+        List<String> cached = cacheable ? QueryCache.get(language, query) : null;
+        if (cached != null) {
+            return readCached(ctx, cached).map(resource -> valueMap(parsed, resource)).iterator();
+        }
+        long start = System.currentTimeMillis();
+        QueryPlan plan = QueryPlan.plan(parsed, ctx.getProviderState());
+        QueryCache.Recorder recorder = cacheable ? QueryCache.record(language, query, parsed, plan.scope) : null;
+        Stream<ValueMap> results;
+        if (plan.strategy == QueryPlan.Strategy.COVERING_INDEX) {
+            Stream<String> paths = plan.candidates.stream();
+            if (recorder != null) {
+                paths = paths.peek(recorder::add);
+            }
+            results = paths.<ValueMap>map(path -> new ProjectedValueMap(parsed.projection,
+                            new IndexedColumns(path, plan.resourceType, plan.resourcesRead)))
+                    .peek(result -> plan.results.increment());
+        } else {
+            Stream<FileSystemProviderResource> found = find(ctx, parsed, plan);
+            if (recorder != null) {
+                found = found.peek(resource -> recorder.add(resource.getPath()));
+            }
+            results = found.map(resource -> valueMap(parsed, resource));
+        }
+        if (!parsed.explain) {
+            return new ClosingIterator<>((recorder == null) ? results.iterator() : recorder.wrap(results.iterator()), results);
+        }
+        try (Stream<ValueMap> executed = results) {
+            // selected columns are read, so that the I/O of reading them is explained too
+            executed.forEach(ValueMap::entrySet);
+        }
+        ValueMap explanation = new ValueMapDecorator(plan.explain(parsed, System.currentTimeMillis() - start));
+        return Collections.singletonList(explanation).iterator();
+    }
+
+    /**
+     * Retrieve the value map of a result
+     * @param query the query
+     * @param resource the resulting resource
+     * @return the value map, holding only the selected columns when the query selects any
+     */
+    private static ValueMap valueMap(Query query, FileSystemProviderResource resource) {
+        if (query.projection == null) {
+            return resource.getValueMap();
+        }
+        return new ProjectedValueMap(query.projection,
+                column -> Query.COLUMN_PATH.equals(column) ? resource.getPath() : resource.getProperty(column));
+    }
+
+    /**
+     * Check if the results of queries made in the state can be cached, which are those made without pending changes
+     * @param state the provider state the query is made in
+     * @return state of the results being cacheable
+     */
+    private static boolean isCacheable(FileSystemProviderState state) {
+        return QueryCache.isEnabled() && !state.isModified() && state.createdPaths.isEmpty();
+    }
+
+    /**
+     * Read the resources of cached results
+     * @param ctx the resolve context to retrieve resources in
+     * @param paths the cached result paths
+     * @return lazy stream of the resources, skipping those that no longer exist
+     */
+    private Stream<FileSystemProviderResource> readCached(ResolveContext<FileSystemProviderState> ctx, List<String> paths) {
+        return paths.stream()
+                .map(path -> provider.getResource(ctx, path, ResourceContext.EMPTY_CONTEXT, null))
+                .filter(FileSystemProviderResource.class::isInstance).map(FileSystemProviderResource.class::cast);
+    }
+
+    private Query parse(String query, String language) throws QuerySyntaxException {
+        if (!LANGUAGE_FSP.equals(language) && !LANGUAGE_XPATH.equals(language)) {
+            throw new QuerySyntaxException("language " + language + " is unsupported", query, language);
+        }
+        return QueryParser.parse(query, language);
+    }
+
+    /**
+     * Find the resources matching the query as planned, either from the indexed candidates,
+     * or walking only the subtrees that may hold matches, in parallel
+     * @param ctx the resolve context to retrieve resources in
+     * @param query the query
+     * @param plan the plan of the query, counting the resources read
+     * @return lazy stream of the matching resources, unless they are ordered
+     */
+    private Stream<FileSystemProviderResource> find(ResolveContext<FileSystemProviderState> ctx, Query query, QueryPlan plan) {
+        Stream<FileSystemProviderResource> results;
+        switch (plan.strategy) {
+        case NONE:
+            return Stream.empty();
+        case INDEX:
+        case RANKED_INDEX:
+        case COVERING_INDEX:
+            results = readCandidates(ctx, query, plan);
+            break;
+        case ORDERED_INDEX:
+            Query.Ordering ordering = query.order.get(0);
+            Iterator<IndexSegment.Entry> entries = IndexManager.scanRange(ordering.name, ordering.descending);
+            Stream<FileSystemProviderResource> indexed = (entries == null) ? Stream.empty()
+                    : StreamSupport.stream(Spliterators.spliteratorUnknownSize(new IndexOrderedResults(ctx, query, plan, entries),
+                            Spliterator.ORDERED | Spliterator.NONNULL), false);
+            // resources without a number or date to order by are last, and are only found once the index is exhausted
+            Stream<FileSystemProviderResource> remaining = Stream.of(plan).flatMap(unused ->
+                    ((plan.candidates == null) ? walk(ctx, query, plan) : readCandidates(ctx, query, plan))
+                    .filter(resource -> entries == null || orderingKey(query, resource) == null)
+                    .sorted(query::compare));
+            results = Stream.concat(indexed, remaining);
+            break;
+        case TRAVERSAL:
+            results = walk(ctx, query, plan);
+            break;
+        default:
+            throw new RuntimeException("A type was missed, fix this now");
+        }
+        if (!query.order.isEmpty() && plan.strategy != QueryPlan.Strategy.ORDERED_INDEX) {
+            results = results.sorted(query::compare);
+        }
+        if (query.limit > 0) {
+            results = results.limit(query.limit);
+        }
+        return results.peek(resource -> plan.results.increment());
+    }
+
+    /**
+     * Read the index candidates of the plan that match the query
+     * @param ctx the resolve context to retrieve resources in
+     * @param query the query
+     * @param plan the plan of the query, counting the resources read
+     * @return lazy stream of the matching candidates
+     */
+    private Stream<FileSystemProviderResource> readCandidates(ResolveContext<FileSystemProviderState> ctx, Query query,
+            QueryPlan plan) {
+        return plan.candidates.stream()
+                .map(path -> provider.getResource(ctx, path, ResourceContext.EMPTY_CONTEXT, null))
+                .filter(FileSystemProviderResource.class::isInstance).map(FileSystemProviderResource.class::cast)
+                .peek(resource -> plan.resourcesRead.increment())
+                .filter(query.condition::matches);
+    }
+
+    /**
+     * Walk the subtree of the plan for the resources matching the query
+     * @param ctx the resolve context to retrieve resources in
+     * @param query the query
+     * @param plan the plan of the query, counting the resources read
+     * @return lazy stream of the matching resources, in depth first order
+     */
+    private Stream<FileSystemProviderResource> walk(ResolveContext<FileSystemProviderState> ctx, Query query, QueryPlan plan) {
+        Resource start = provider.getResource(ctx, plan.scope, ResourceContext.EMPTY_CONTEXT, null);
+        if (!(start instanceof FileSystemProviderResource)) {
+            return Stream.empty();
+        }
+        // the conditions are checked by the walk, so that the resources are read in parallel.
+        // unordered results are the first found, so the walk stops at the limit
+        int limit = query.order.isEmpty() ? (int) Math.min(query.limit, Integer.MAX_VALUE) : 0;
+        ParallelTraversal walk = new ParallelTraversal((FileSystemProviderResource) start, query.condition::mayMatchWithin,
+                resource -> {
+                    plan.resourcesRead.increment();
+                    return query.condition.matches(resource);
+                }, limit, true);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(walk,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(walk::close);
+    }
+
+    /**
+     * Retrieve the range index key of the value that the resource is ordered by first
+     * @param query the ordered query
+     * @param resource the resource
+     * @return the key, {@code null} if the resource has no number or date to order by
+     */
+    private static String orderingKey(Query query, FileSystemProviderResource resource) {
+        return IndexManager.orderingKeyOf(Query.orderingValue(resource.getProperty(query.order.get(0).name)));
     }
 
     private void checkState(ResolveContext<FileSystemProviderState> ctx) {
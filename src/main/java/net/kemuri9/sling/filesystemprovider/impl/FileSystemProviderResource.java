@@ -31,6 +31,8 @@ import org.apache.sling.spi.resource.provider.ResourceContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.kemuri9.sling.filesystemprovider.JSONRenderer;
+
 /**
  * Resource within the File system Provider system
  */
@@ -51,6 +53,9 @@ final class FileSystemProviderResource extends AbstractResource {
     /** the file on disk that this is providing */
     private Path file;
 
+    /** storage of the properties other than the directory, {@code null} when the resource is a directory */
+    private PropertySource source;
+
     /** the resource path being represented */
     private String path;
 
@@ -60,14 +65,30 @@ final class FileSystemProviderResource extends AbstractResource {
     /** properties for the resource */
     private Map<String, Object> properties;
 
+    /** persisted properties that are decoded as they are retrieved, until all of the properties are needed */
+    private PropertyRecord record;
+
     FileSystemProviderResource(Resource parent, FileSystemProvider provider, ResolveContext<FileSystemProviderState> resolveCtx,
             ResourceContext rsrcCtx, Path file, String path) {
-        if (!Files.exists(file)) {
-            throw new IllegalArgumentException("Resources can only be made from existing files");
-        }
-        if (!Files.isDirectory(file)) {
-            throw new IllegalArgumentException("Resources can only be made from folders");
+        this(parent, provider, resolveCtx, rsrcCtx, file, path, null);
+    }
+
+    /**
+     * Create a resource, which is either a folder or has its properties stored elsewhere, such as in a packed subtree
+     * @param source storage of the resource's properties, {@code null} when the resource is a folder.
+     * The file of such a resource is the location it would have on disk, which does not exist.
+     */
+    FileSystemProviderResource(Resource parent, FileSystemProvider provider, ResolveContext<FileSystemProviderState> resolveCtx,
+            ResourceContext rsrcCtx, Path file, String path, PropertySource source) {
+        if (source == null) {
+            if (!Files.exists(file)) {
+                throw new IllegalArgumentException("Resources can only be made from existing files");
+            }
+            if (!Files.isDirectory(file)) {
+                throw new IllegalArgumentException("Resources can only be made from folders");
+            }
         }
+        this.source = source;
         this.parent = parent;
         this.provider = provider;
         this.context = resolveCtx;
@@ -96,9 +117,9 @@ final class FileSystemProviderResource extends AbstractResource {
 
         // if the current state has (modified) properties for this resource, use those instead of the persisted ones.
         Map<String, Object> props = context.getProviderState().modifiedProperties.get(path);
-        // if there are none, then try and read from the persisted data
+        // if there are none, then try and read from the persisted data, reusing what was already read
         if (props == null) {
-            props = PersistenceHelper.getProperties(this);
+            props = (record == null) ? PersistenceHelper.getProperties(this) : record.toProperties();
         }
 
         // if nothing, then default to empty
@@ -107,9 +128,28 @@ final class FileSystemProviderResource extends AbstractResource {
         }
         // cache result
         properties = props;
+        record = null;
         return properties;
     }
 
+    /**
+     * Retrieve the value of a single property. Unlike {@link #getProperties()} only the requested property is decoded
+     * from the persisted data, so that checking a few properties of many resources stays cheap.
+     * @param name the property name
+     * @return the property value, {@code null} if the resource does not have it
+     */
+    Object getProperty(String name) {
+        if (properties == null) {
+            Map<String, Object> modified = context.getProviderState().modifiedProperties.get(path);
+            if (modified != null) {
+                properties = modified;
+            } else if (record == null) {
+                record = PropertyRecord.read(path, file, source);
+            }
+        }
+        return (properties == null) ? record.get(name) : properties.get(name);
+    }
+
     @Override
     public ValueMap getValueMap() {
         return new FileSystemProviderValueMap(this);
@@ -146,11 +186,17 @@ final class FileSystemProviderResource extends AbstractResource {
     @Override
     public <AdapterType> AdapterType adaptTo(Class<AdapterType> type) {
         if (type == ModifiableValueMap.class) {
+            if (source != null && source.isReadOnly()) {
+                return null;
+            }
             return (AdapterType) new FileSystemProviderModifiableValueMap(this);
         }
         if (type == ValueMap.class) {
             return (AdapterType) getValueMap();
         }
+        if (type == JSONRenderer.class) {
+            return (AdapterType) new RawJSONRenderer(this);
+        }
 
         return super.adaptTo(type);
     }
@@ -162,13 +208,13 @@ final class FileSystemProviderResource extends AbstractResource {
 
     @Override
     public String getResourceType() {
-        Object resourceType = getProperties().get(FSPConstants.PROPERTY_RESOURCE_TYPE);
+        Object resourceType = getProperty(FSPConstants.PROPERTY_RESOURCE_TYPE);
         return (resourceType instanceof String) ? (String) resourceType : null;
     }
 
     @Override
     public String getResourceSuperType() {
-        Object resourceType = getProperties().get(FSPConstants.PROPERTY_RESOURCE_SUPER_TYPE);
+        Object resourceType = getProperty(FSPConstants.PROPERTY_RESOURCE_SUPER_TYPE);
         return (resourceType instanceof String) ? (String) resourceType : null;
     }
 
@@ -189,4 +235,22 @@ final class FileSystemProviderResource extends AbstractResource {
     Path getFile() {
         return file;
     }
+
+    /**
+     * Retrieve the child resource of the name, resolved in the same context as this resource
+     * @param name the name of the child
+     * @return the child resource, {@code null} if it does not exist
+     */
+    FileSystemProviderResource getChildResource(String name) {
+        return (FileSystemProviderResource) provider.getResource(context, SubtreeIterator.childPath(path, name),
+                ResourceContext.EMPTY_CONTEXT, this);
+    }
+
+    /**
+     * Retrieve the storage of the resource's properties, when they are not stored in its folder
+     * @return storage of the properties, {@code null} when the resource is a folder
+     */
+    PropertySource getPropertySource() {
+        return source;
+    }
 }
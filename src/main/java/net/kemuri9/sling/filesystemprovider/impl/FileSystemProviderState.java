@@ -15,10 +15,19 @@
  */
 package net.kemuri9.sling.filesystemprovider.impl;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.sling.api.resource.PersistenceException;
+import org.json.JSONObject;
+
+import net.kemuri9.sling.filesystemprovider.Binary;
 
 /**
  * State management of the file system provider.
@@ -26,6 +35,42 @@ import org.apache.sling.api.resource.PersistenceException;
  */
 final class FileSystemProviderState implements AutoCloseable {
 
+    /** a pending deletion or move of a subtree */
+    static final class StructuralChange {
+        /** path of the subtree root */
+        final String source;
+        /** path the subtree is moved to, {@code null} when it is deleted */
+        final String destination;
+
+        StructuralChange(String source, String destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+
+    /** storage of the resources that are created and not yet committed, which have nothing stored */
+    static final PropertySource CREATED = new PropertySource() {
+        @Override
+        public List<String> getChildNames() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return false;
+        }
+
+        @Override
+        public Binary readBinary(String name) throws IOException {
+            throw new IOException("created resource does not yet hold the binary " + name);
+        }
+
+        @Override
+        public JSONObject readProperties() {
+            return new JSONObject();
+        }
+    };
+
     /**
      * Retrieve a time usable for tracking modifications.
      * @return time in milliseconds
@@ -46,18 +91,26 @@ final class FileSystemProviderState implements AutoCloseable {
     /** map of resource paths to their current (modified) properties */
     public TreeMap<String, Map<String, Object>> modifiedProperties;
 
+    /** paths of the resources created and not yet committed */
+    public TreeSet<String> createdPaths;
+
+    /** the pending deletions and moves of persisted subtrees, in the order they were made */
+    public List<StructuralChange> structuralChanges;
+
     public FileSystemProviderState() {
         this.isLive = true;
         // default to anonymous
         username = "anonymous";
         stateTime = getTime();
         modifiedProperties = new TreeMap<>();
+        createdPaths = new TreeSet<>();
+        structuralChanges = new ArrayList<>();
     }
 
     @Override
     public void close() {
         isLive = false;
-        modifiedProperties.clear();
+        revert();
     }
 
     /**
@@ -72,7 +125,7 @@ final class FileSystemProviderState implements AutoCloseable {
      * @return state of the provider being modified.
      */
     boolean isModified() {
-        return !modifiedProperties.isEmpty();
+        return !modifiedProperties.isEmpty() || !structuralChanges.isEmpty();
     }
 
     /**
@@ -80,6 +133,78 @@ final class FileSystemProviderState implements AutoCloseable {
      */
     void revert() {
         modifiedProperties.clear();
+        createdPaths.clear();
+        structuralChanges.clear();
+    }
+
+    /**
+     * Create a resource, pending the commit
+     * @param path path of the resource
+     * @param properties properties of the resource
+     */
+    void create(String path, Map<String, Object> properties) {
+        createdPaths.add(path);
+        modifiedProperties.put(path, new TreeMap<>(properties));
+    }
+
+    /**
+     * Delete a subtree, pending the commit
+     * @param path path of the subtree root
+     * @param isPersisted state of the subtree root being persisted, rather than only created
+     */
+    void delete(String path, boolean isPersisted) {
+        modifiedProperties.keySet().removeIf(modified -> Util.isWithin(path, modified));
+        createdPaths.removeIf(created -> Util.isWithin(path, created));
+        if (isPersisted) {
+            structuralChanges.add(new StructuralChange(path, null));
+        }
+    }
+
+    /**
+     * Move a subtree, pending the commit
+     * @param source path of the subtree root
+     * @param destination path to move the subtree root to
+     * @param isPersisted state of the subtree root being persisted, rather than only created
+     */
+    void move(String source, String destination, boolean isPersisted) {
+        TreeMap<String, Map<String, Object>> moved = new TreeMap<>();
+        for (Iterator<Map.Entry<String, Map<String, Object>>> iter = modifiedProperties.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<String, Map<String, Object>> modified = iter.next();
+            if (Util.isWithin(source, modified.getKey())) {
+                moved.put(destination + modified.getKey().substring(source.length()), modified.getValue());
+                iter.remove();
+            }
+        }
+        modifiedProperties.putAll(moved);
+        List<String> created = new ArrayList<>();
+        for (Iterator<String> iter = createdPaths.iterator(); iter.hasNext();) {
+            String path = iter.next();
+            if (Util.isWithin(source, path)) {
+                created.add(destination + path.substring(source.length()));
+                iter.remove();
+            }
+        }
+        createdPaths.addAll(created);
+        if (isPersisted) {
+            structuralChanges.add(new StructuralChange(source, destination));
+        }
+    }
+
+    /**
+     * Retrieve the path that a resource is persisted at, undoing the pending moves
+     * @param path path of the resource, as seen with the pending changes
+     * @return the persisted path, {@code null} if the pending changes remove the resource
+     */
+    String persistedPath(String path) {
+        for (int idx = structuralChanges.size() - 1; idx >= 0; --idx) {
+            StructuralChange change = structuralChanges.get(idx);
+            if (change.destination != null && Util.isWithin(change.destination, path)) {
+                path = change.source + path.substring(change.destination.length());
+            } else if (Util.isWithin(change.source, path)) {
+                return null;
+            }
+        }
+        return path;
     }
 
     /**
@@ -87,7 +212,31 @@ final class FileSystemProviderState implements AutoCloseable {
      * @throws PersistenceException
      */
     void commit() throws PersistenceException {
-        // TODO
-        throw new UnsupportedOperationException("not yet");
+        // structural changes come first, as the modified properties are at the paths after them
+        for (Iterator<StructuralChange> iter = structuralChanges.iterator(); iter.hasNext();) {
+            StructuralChange change = iter.next();
+            try {
+                if (change.destination == null) {
+                    PersistenceHelper.deleteResource(change.source);
+                } else {
+                    PersistenceHelper.moveResource(change.source, change.destination);
+                }
+            } catch (IOException e) {
+                throw new PersistenceException("unable to " + ((change.destination == null) ? "delete " : "move ")
+                        + change.source, e, change.source, null);
+            }
+            // applied changes are not to be applied again by a retried commit
+            iter.remove();
+        }
+        for (Map.Entry<String, Map<String, Object>> modified : modifiedProperties.entrySet()) {
+            try {
+                PersistenceHelper.commitProperties(modified.getKey(), modified.getValue());
+            } catch (IOException e) {
+                throw new PersistenceException("unable to commit the properties of " + modified.getKey(), e,
+                        modified.getKey(), null);
+            }
+        }
+        modifiedProperties.clear();
+        createdPaths.clear();
     }
 }
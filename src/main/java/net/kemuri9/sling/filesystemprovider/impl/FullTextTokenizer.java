@@ -0,0 +1,128 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tokenizer of {@link String} property values for the full-text indexes.
+ * Terms are the runs of letters and digits, lower cased, so that punctuation and case do not matter.
+ * The index keys of a value are each term with the number of times it occurs, as {@code term count},
+ * so that the entries of a term are a range of keys, and the {@link #DOCUMENT_KEY} counting the values that have terms.
+ */
+final class FullTextTokenizer {
+
+    /** key that every value with terms has, for counting the values */
+    static final String DOCUMENT_KEY = " ";
+
+    /** separator of the term and its count within keys, which terms never hold */
+    static final char COUNT_SEPARATOR = ' ';
+
+    /** maximum length of a term, as longer runs are not words, but data such as encoded binaries */
+    static final int MAX_TERM_LENGTH = 64;
+
+    private FullTextTokenizer() {
+    }
+
+    /**
+     * Split the text into its terms
+     * @param text the text to split
+     * @return the terms, in the order they occur
+     */
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int idx = 0; idx <= text.length();) {
+            int codePoint = (idx < text.length()) ? text.codePointAt(idx) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (start < 0) {
+                    start = idx;
+                }
+            } else if (start >= 0) {
+                if (idx - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, idx).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+            idx += (idx < text.length()) ? Character.charCount(codePoint) : 1;
+        }
+        return terms;
+    }
+
+    /**
+     * Count the terms of the property value
+     * @param value the property value, only {@link String}s and arrays of them have terms
+     * @return the number of times each term occurs, in the order they first occur
+     */
+    static Map<String, Integer> termCounts(Object value) {
+        if (value instanceof String) {
+            return termCounts(new String[] {(String) value});
+        }
+        if (!(value instanceof String[])) {
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (String text : (String[]) value) {
+            if (text != null) {
+                for (String term : tokenize(text)) {
+                    counts.merge(term, 1, Integer::sum);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Retrieve the full-text index keys of the property value
+     * @param value the property value
+     * @return the keys of the value, empty when it has no terms
+     */
+    static Set<String> keysOf(Object value) {
+        Map<String, Integer> counts = termCounts(value);
+        if (counts.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> keys = new HashSet<>();
+        keys.add(DOCUMENT_KEY);
+        counts.forEach((term, count) -> keys.add(term + COUNT_SEPARATOR + count));
+        return keys;
+    }
+
+    /**
+     * Retrieve the prefix of the keys of the term
+     * @param term the term
+     * @return prefix of the keys
+     */
+    static String keyPrefix(String term) {
+        return term + COUNT_SEPARATOR;
+    }
+
+    /**
+     * Retrieve the count of a term from its key
+     * @param key the key of the term
+     * @return the number of times the term occurs
+     */
+    static int countOf(String key) {
+        return Integer.parseInt(key.substring(key.lastIndexOf(COUNT_SEPARATOR) + 1));
+    }
+}
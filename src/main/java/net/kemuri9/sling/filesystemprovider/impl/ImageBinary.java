@@ -0,0 +1,145 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import net.kemuri9.sling.filesystemprovider.Binary;
+
+/**
+ * Binary representation of data held within a memory mapped {@link RepositoryImage}.
+ * The data is read straight out of the mapping, without being copied.
+ */
+final class ImageBinary implements Binary {
+
+    /** {@link InputStream} reading out of a {@link ByteBuffer} */
+    static final class ByteBufferInputStream extends InputStream {
+
+        /** the buffer to read, positioned at the next byte to read */
+        private final ByteBuffer buffer;
+
+        /** position of the mark */
+        private int mark;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+            mark = buffer.position();
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = buffer.position();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(len, buffer.remaining());
+            buffer.get(b, off, read);
+            return read;
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.position(mark);
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+    }
+
+    /** the binary data, which is not modified */
+    private final ByteBuffer data;
+
+    /** name of the binary */
+    private final String name;
+
+    /**
+     * Create a representation of the data
+     * @param name name of the binary
+     * @param data the binary data, from its position to its limit
+     */
+    ImageBinary(String name, ByteBuffer data) {
+        this.name = name;
+        this.data = data.slice();
+    }
+
+    @Override
+    public void close() {
+        dispose();
+    }
+
+    @Override
+    public void dispose() {
+        // nothing to release, the data belongs to the image
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return (obj instanceof ImageBinary) && data.equals(((ImageBinary) obj).data);
+    }
+
+    @Override
+    public long getLength() {
+        return data.remaining();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public InputStream getStream() {
+        return new ByteBufferInputStream(data.duplicate());
+    }
+
+    @Override
+    public int hashCode() {
+        return data.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append(getClass().getName())
+                .append(" name=").append(getName()).append(" length=").append(getLength()).toString();
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the {@link RepositoryImage}s of the mounted read only subtrees, keeping them mapped for serving lookups.
+ * A mounted subtree with an image is served from the image alone, and one without an image is served
+ * from its directories. Whether a mount has an image is only checked on its first use, on {@link #deploy}
+ * and on {@link #reload}, so that serving a mounted subtree does not touch the file system.
+ */
+final class ImageManager {
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(ImageManager.class);
+
+    /** the mapped images by their mount path, empty when the mount has no image */
+    private static final ConcurrentHashMap<String, Optional<RepositoryImage>> IMAGES = new ConcurrentHashMap<>();
+
+    /** resource paths of the mounts, deepest first so that nested mounts take precedence */
+    private static volatile List<String> mounts = Collections.emptyList();
+
+    /** maximum size, in bytes, of binaries to hold inline when compiling images */
+    private static volatile int inlineThreshold = 4096;
+
+    private ImageManager() {
+    }
+
+    /**
+     * Initialize from the configuration
+     * @param config the configuration to initialize with
+     */
+    static void init(FileSystemProviderConfig config) {
+        destroy();
+        List<String> paths = new ArrayList<>();
+        if (config.image_mounts() != null) {
+            for (String mount : config.image_mounts()) {
+                if (mount != null && !mount.trim().isEmpty()) {
+                    paths.add(normalize(mount.trim()));
+                }
+            }
+        }
+        paths.sort((a, b) -> b.length() - a.length());
+        mounts = Collections.unmodifiableList(paths);
+        inlineThreshold = config.image_inline_threshold();
+    }
+
+    /**
+     * Uninitialize, releasing all of the mapped images
+     */
+    static void destroy() {
+        mounts = Collections.emptyList();
+        IMAGES.clear();
+    }
+
+    /**
+     * Compile the source directory into the image of the mount, and swap it in for serving the mount
+     * @param mount resource path of the mount
+     * @param source directory of the root resource of the subtree to compile
+     * @return number of resources in the image
+     * @throws IOException if the image can not be compiled
+     */
+    static int deploy(String mount, Path source) throws IOException {
+        String mountPath = getMount(mount);
+        Path imageFile = imageFile(mountPath);
+        Files.createDirectories(imageFile.getParent());
+        int count = RepositoryImage.compile(source, imageFile, inlineThreshold);
+        // readers still using the previous image keep its mapping until they are done with it
+        IMAGES.put(mountPath, Optional.of(RepositoryImage.open(imageFile, mountPath)));
+        log.info("deployed repository image of {} resources from {} at {}", count, source, mountPath);
+        return count;
+    }
+
+    /**
+     * Retrieve the image serving the resource path
+     * @param path the resource path
+     * @return the image, {@code null} if the path is not within a mount that has an image
+     */
+    static RepositoryImage imageOf(String path) {
+        for (String mount : mounts) {
+            if (Util.isWithin(mount, path)) {
+                return IMAGES.computeIfAbsent(mount, ImageManager::openImage).orElse(null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Map the image of the mount again, such as after the image file was swapped in by another process
+     * @param mount resource path of the mount
+     * @return state of the mount having an image
+     */
+    static boolean reload(String mount) {
+        String mountPath = getMount(mount);
+        Optional<RepositoryImage> image = openImage(mountPath);
+        IMAGES.put(mountPath, image);
+        return image.isPresent();
+    }
+
+    private static String getMount(String path) {
+        String mountPath = normalize(path);
+        if (!mounts.contains(mountPath)) {
+            throw new IllegalArgumentException(path + " is not a configured repository image mount");
+        }
+        return mountPath;
+    }
+
+    private static Path imageFile(String mount) {
+        return Paths.get(Util.getAbsPath(mount)).resolve(FSPConstants.FILENAME_REPOSITORY_IMAGE);
+    }
+
+    private static String normalize(String path) {
+        if (!path.startsWith(FSPConstants.RESOURCE_PATH_SEPARATOR)) {
+            path = FSPConstants.RESOURCE_PATH_SEPARATOR + path;
+        }
+        while (path.length() > 1 && path.endsWith(FSPConstants.RESOURCE_PATH_SEPARATOR)) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Map the image of the mount
+     * @param mount resource path of the mount
+     * @return the image, empty if the mount has no image or it can not be mapped
+     */
+    private static Optional<RepositoryImage> openImage(String mount) {
+        Path imageFile = imageFile(mount);
+        if (!Files.exists(imageFile)) {
+            log.debug("no repository image at {}, serving {} from its directories", imageFile, mount);
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(RepositoryImage.open(imageFile, mount));
+        } catch (IOException e) {
+            log.error("unable to map repository image {}, serving {} from its directories", imageFile, mount, e);
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,1201 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.kemuri9.sling.filesystemprovider.Binary;
+
+/**
+ * Manages the persistent secondary indexes, which map the values of a property to the paths of the resources holding them.
+ * There are indexes of the configured properties, of the resource types, range indexes of the ordered numeric and
+ * temporal values of the configured properties, and full-text indexes of the terms of the configured {@link String}
+ * properties, which rank their matches by relevance.
+ * Indexes are kept in {@code _sling_fsp_indexes} under the repository root, built in parallel in the background when
+ * missing or rebuilt on request, and updated as resources are committed, deleted and moved.
+ * Queries only use an index once it is built, and it reflects the committed state of the repository.
+ */
+final class IndexManager {
+
+    /** an index, and how it keys the values of its property */
+    private static final class Index {
+        /** name of the index, its kind and the name of its property, such as {@code property/status} */
+        final String name;
+        /** name of the indexed property */
+        final String property;
+        /** retrieves the keys of a value of the property */
+        final Function<Object, Set<String>> keys;
+        final SegmentedIndex segments;
+
+        Index(String name, String property, Function<Object, Set<String>> keys, SegmentedIndex segments) {
+            this.name = name;
+            this.property = property;
+            this.keys = keys;
+            this.segments = segments;
+        }
+    }
+
+    /** progress of a build of indexes */
+    private static final class BuildProgress {
+        /** names of the indexes being built */
+        final List<String> indexes;
+        /** number of resources that the build is estimated to read, -1 when unknown */
+        final long estimated;
+        /** {@link System#nanoTime()} when the build started */
+        final long started = System.nanoTime();
+        /** number of resources read */
+        final LongAdder read = new LongAdder();
+        /** {@link System#nanoTime()} when the build ended, 0 while it is in progress */
+        volatile long ended;
+
+        BuildProgress(List<String> indexes, long estimated) {
+            this.indexes = indexes;
+            this.estimated = estimated;
+        }
+    }
+
+    /** a resource matching terms of a full-text search */
+    private static final class FullTextMatch {
+        final String path;
+        /** the relevance of the resource */
+        double score;
+        /** bits of the terms that the resource has */
+        long matched;
+
+        FullTextMatch(String path) {
+            this.path = path;
+        }
+    }
+
+    /** the index entries of a subtree, collected before it is deleted or moved */
+    static final class IndexedSubtree {
+        /** the live entries by index */
+        private final Map<Index, Queue<IndexSegment.Entry>> entries;
+
+        private IndexedSubtree(Map<Index, Queue<IndexSegment.Entry>> entries) {
+            this.entries = entries;
+        }
+    }
+
+    /** collects the index entries of the resources of a folder, and forks to collect those of its subfolders */
+    private static final class SubtreeCollector extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final String path;
+        private final Map<Index, ? extends Consumer<IndexSegment.Entry>> entries;
+        /** state of the collection having been cancelled, so that remaining folders are skipped */
+        private final AtomicBoolean cancelled;
+        /** number of resources read */
+        private final LongAdder read;
+
+        SubtreeCollector(Path directory, String path, Map<Index, ? extends Consumer<IndexSegment.Entry>> entries,
+                AtomicBoolean cancelled, LongAdder read) {
+            this.directory = directory;
+            this.path = path;
+            this.entries = entries;
+            this.cancelled = cancelled;
+            this.read = read;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled.get()) {
+                return;
+            }
+            Path propFile = PersistenceHelper.findPropertyFile(directory);
+            if (propFile != null) {
+                try {
+                    collect(entries, path, null, PersistenceHelper.readPropertyFile(propFile));
+                    read.increment();
+                } catch (IOException | JSONException e) {
+                    log.error("unable to index the properties of {}", path, e);
+                }
+            }
+            List<SubtreeCollector> children = new ArrayList<>();
+            try {
+                SegmentPack pack = PackManager.get(directory);
+                if (pack != null) {
+                    for (String packed : pack.list()) {
+                        PackManager.Located located = new PackManager.Located(pack, packed);
+                        collect(entries, SubtreeIterator.childPath(path, packed), located, located.readProperties());
+                        read.increment();
+                    }
+                }
+                try (DirectoryStream<Path> subdirectories = Files.newDirectoryStream(directory, Files::isDirectory)) {
+                    for (Path subdirectory : subdirectories) {
+                        String name = subdirectory.getFileName().toString();
+                        String childPath = SubtreeIterator.childPath(path, name);
+                        // repository images serve their subtrees in place of the folders
+                        if (!name.startsWith(FSPConstants.FILENAME_PREFIX_FSP) && ImageManager.imageOf(childPath) == null) {
+                            children.add(new SubtreeCollector(subdirectory, childPath, entries, cancelled, read));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.error("unable to index the subtree of {}", path, e);
+            }
+            invokeAll(children);
+        }
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(IndexManager.class);
+
+    /** prefix of the keys of numeric values */
+    private static final String KEY_PREFIX_NUMBER = "n:";
+
+    /** prefix of the keys of values by their string form */
+    private static final String KEY_PREFIX_STRING = "s:";
+
+    /** every index */
+    private static volatile List<Index> indexes = Collections.emptyList();
+
+    /** the property indexes by property name */
+    private static volatile Map<String, Index> propertyIndexes = Collections.emptyMap();
+
+    /** the range indexes by property name */
+    private static volatile Map<String, Index> rangeIndexes = Collections.emptyMap();
+
+    /** the resource type index, {@code null} when disabled */
+    private static volatile Index typeIndex;
+
+    /** the full-text indexes by property name, in the configured order */
+    private static volatile Map<String, Index> fullTextIndexes = Collections.emptyMap();
+
+    /** maximum number of ranked full-text matches, 0 for no limit */
+    private static volatile int fullTextMaxResults;
+
+    /** background merger of the segments of the full-text indexes */
+    private static ExecutorService merger;
+
+    /** term frequency saturation of the relevance of full-text matches, per BM25 */
+    private static final double FULLTEXT_SATURATION = 1.2;
+
+    /** name of the file holding the number of resources read by the last completed build, to estimate the next */
+    private static final String FILENAME_BUILD_RESOURCES = "resources";
+
+    /** background builder of missing and rebuilt indexes */
+    private static ExecutorService builder;
+
+    /** state of the build in progress being cancelled */
+    private static AtomicBoolean buildCancelled;
+
+    /** progress of the current or last build, {@code null} when there has been none */
+    private static volatile BuildProgress progress;
+
+    private IndexManager() {
+    }
+
+    /**
+     * Initialize from the configuration, opening the configured indexes and building the missing ones in the background
+     * @param config the configuration to initialize with
+     */
+    static synchronized void init(FileSystemProviderConfig config) {
+        destroy();
+        String[] names = (config.property_indexes() == null) ? new String[0] : config.property_indexes();
+        String[] rangeNames = (config.range_indexes() == null) ? new String[0] : config.range_indexes();
+        String[] fullTextNames = (config.fulltext_properties() == null) ? new String[0] : config.fulltext_properties();
+        if (names.length == 0 && rangeNames.length == 0 && fullTextNames.length == 0 && !config.resource_type_index()) {
+            return;
+        }
+        Path directory = getIndexesDirectory();
+        List<Index> opened = new ArrayList<>();
+        Map<String, Index> properties = new HashMap<>();
+        for (String name : names) {
+            name = name.trim();
+            if (name.isEmpty() || properties.containsKey(name)) {
+                continue;
+            }
+            Index index = open("property/" + name, name, IndexManager::keysOf,
+                    directory.resolve("property").resolve(encodeName(name)), null);
+            if (index != null) {
+                properties.put(name, index);
+                opened.add(index);
+            }
+        }
+        Map<String, Index> ranges = new HashMap<>();
+        for (String name : rangeNames) {
+            name = name.trim();
+            if (name.isEmpty() || ranges.containsKey(name)) {
+                continue;
+            }
+            Index index = open("range/" + name, name, IndexManager::rangeKeysOf,
+                    directory.resolve("range").resolve(encodeName(name)), null);
+            if (index != null) {
+                ranges.put(name, index);
+                opened.add(index);
+            }
+        }
+        Index types = null;
+        if (config.resource_type_index()) {
+            types = open("type", FSPConstants.PROPERTY_RESOURCE_TYPE, IndexManager::typeKeysOf, directory.resolve("type"), null);
+            if (types != null) {
+                opened.add(types);
+            }
+        }
+        Map<String, Index> fullText = new LinkedHashMap<>();
+        if (fullTextNames.length > 0) {
+            merger = Executors.newSingleThreadExecutor((Runnable r) -> {
+                Thread thread = new Thread(r, "sling-fsp-index-merger");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        for (String name : fullTextNames) {
+            name = name.trim();
+            if (name.isEmpty() || fullText.containsKey(name)) {
+                continue;
+            }
+            Index index = open("fulltext/" + name, name, FullTextTokenizer::keysOf,
+                    directory.resolve("fulltext").resolve(encodeName(name)), merger);
+            if (index != null) {
+                fullText.put(name, index);
+                opened.add(index);
+            }
+        }
+        indexes = Collections.unmodifiableList(opened);
+        propertyIndexes = Collections.unmodifiableMap(properties);
+        rangeIndexes = Collections.unmodifiableMap(ranges);
+        typeIndex = types;
+        fullTextIndexes = Collections.unmodifiableMap(fullText);
+        fullTextMaxResults = Math.max(0, config.fulltext_max_results());
+
+        List<Index> missing = new ArrayList<>();
+        for (Index index : opened) {
+            if (!index.segments.isBuilt()) {
+                missing.add(index);
+            }
+        }
+        if (!missing.isEmpty()) {
+            startBuild(missing);
+        }
+    }
+
+    private static Index open(String name, String property, Function<Object, Set<String>> keys, Path directory,
+            ExecutorService merger) {
+        try {
+            return new Index(name, property, keys, new SegmentedIndex(directory, merger));
+        } catch (IOException e) {
+            log.error("unable to open the index of property {}", property, e);
+            return null;
+        }
+    }
+
+    /**
+     * Uninitialize, stopping any builds in progress and closing the indexes
+     */
+    static synchronized void destroy() {
+        if (builder != null) {
+            buildCancelled.set(true);
+            builder.shutdownNow();
+            builder = null;
+            buildCancelled = null;
+        }
+        BuildProgress current = progress;
+        if (current != null && current.ended == 0) {
+            current.ended = System.nanoTime();
+        }
+        if (merger != null) {
+            // let a merge in progress finish, rather than leaving its merge file behind
+            merger.shutdown();
+            try {
+                merger.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            merger = null;
+        }
+        indexes = Collections.emptyList();
+        propertyIndexes = Collections.emptyMap();
+        rangeIndexes = Collections.emptyMap();
+        typeIndex = null;
+        fullTextIndexes = Collections.emptyMap();
+    }
+
+    /**
+     * Wait for the builds of missing indexes, and any rebuild in progress, to complete
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return state of every index being built
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static boolean awaitBuilt(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Index index : indexes) {
+            while (!index.segments.isBuilt()) {
+                if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+        }
+        while (isBuilding()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Retrieve the names of the indexes, such as {@code property/status}, {@code range/published}, {@code fulltext/title}
+     * and {@code type}
+     * @return the index names
+     */
+    static List<String> getIndexNames() {
+        List<String> names = new ArrayList<>();
+        indexes.forEach(index -> names.add(index.name));
+        return names;
+    }
+
+    /**
+     * Rebuild indexes in the background, while the queries keep using their current segments.
+     * The new base segments are built from a parallel walk of the repository, and the changes committed meanwhile are
+     * written after them, so they supersede the walk once the base segments take the place of the current segments.
+     * @param names names of the indexes to rebuild, per {@link #getIndexNames()}. every index when empty.
+     * @return {@code true} if the rebuild was started, {@code false} if a build is already in progress
+     * @throws IllegalArgumentException if there is no index with one of the names
+     */
+    static synchronized boolean rebuild(Collection<String> names) {
+        if (isBuilding()) {
+            return false;
+        }
+        List<Index> rebuilt = new ArrayList<>();
+        for (Index index : indexes) {
+            if (names.isEmpty() || names.contains(index.name)) {
+                rebuilt.add(index);
+            }
+        }
+        for (String name : names) {
+            if (rebuilt.stream().noneMatch(index -> index.name.equals(name))) {
+                throw new IllegalArgumentException("there is no index named " + name);
+            }
+        }
+        if (rebuilt.isEmpty()) {
+            return false;
+        }
+        startBuild(rebuilt);
+        return true;
+    }
+
+    /**
+     * Retrieve the state of a build of indexes being in progress
+     * @return state of a build being in progress
+     */
+    static boolean isBuilding() {
+        BuildProgress current = progress;
+        return current != null && current.ended == 0;
+    }
+
+    /**
+     * Cancel the build of indexes in progress. The indexes being rebuilt keep their current segments.
+     */
+    static synchronized void cancelBuild() {
+        if (buildCancelled != null) {
+            buildCancelled.set(true);
+        }
+    }
+
+    /**
+     * Retrieve the progress of the current or last build of indexes.
+     * {@code indexes} is the number of indexes being built, {@code resources} the number of resources read,
+     * {@code estimatedResources} the number that the build is estimated to read, from the last completed build,
+     * {@code elapsedMillis} the duration of the build, {@code resourcesPerSecond} the rate of reading them,
+     * and {@code remainingMillis} the estimated time until the resources are read.
+     * Estimates are -1 when unknown, and the statistics are empty when there has been no build.
+     * @return the statistics of the build
+     */
+    static Map<String, Long> getBuildStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        BuildProgress current = progress;
+        if (current == null) {
+            return statistics;
+        }
+        long ended = current.ended;
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(((ended == 0) ? System.nanoTime() : ended) - current.started);
+        long read = current.read.sum();
+        long rate = (elapsed > 0) ? read * 1000 / elapsed : -1;
+        long remaining = -1;
+        if (ended != 0) {
+            remaining = 0;
+        } else if (current.estimated >= 0 && read > 0) {
+            remaining = Math.max(0, current.estimated - read) * elapsed / read;
+        }
+        statistics.put("indexes", (long) current.indexes.size());
+        statistics.put("running", (ended == 0) ? 1L : 0L);
+        statistics.put("resources", read);
+        statistics.put("estimatedResources", current.estimated);
+        statistics.put("elapsedMillis", elapsed);
+        statistics.put("resourcesPerSecond", rate);
+        statistics.put("remainingMillis", remaining);
+        return statistics;
+    }
+
+    /**
+     * Start building the indexes in the background. must be called holding the class lock
+     * @param built the indexes to build
+     */
+    private static void startBuild(List<Index> built) {
+        if (builder == null) {
+            builder = Executors.newSingleThreadExecutor((Runnable r) -> {
+                Thread thread = new Thread(r, "sling-fsp-index-builder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        AtomicBoolean cancelled = new AtomicBoolean();
+        buildCancelled = cancelled;
+        List<String> names = new ArrayList<>();
+        built.forEach(index -> names.add(index.name));
+        BuildProgress started = new BuildProgress(Collections.unmodifiableList(names), readBuildResources());
+        progress = started;
+        builder.execute(() -> build(built, cancelled, started));
+    }
+
+    /**
+     * Read the number of resources read by the last completed build
+     * @return the number of resources, -1 when unknown
+     */
+    private static long readBuildResources() {
+        Path file = getIndexesDirectory().resolve(FILENAME_BUILD_RESOURCES);
+        try {
+            return Files.exists(file) ? Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim()) : -1;
+        } catch (IOException | NumberFormatException e) {
+            log.warn("unable to read the resources of the last index build from {}", file, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Retrieve the directory holding the indexes
+     * @return the indexes directory
+     */
+    static Path getIndexesDirectory() {
+        return Paths.get(Util.getAbsPath(FSPConstants.RESOURCE_PATH_SEPARATOR)).resolve(FSPConstants.FILENAME_INDEXES);
+    }
+
+    /**
+     * Check if the property is indexed and its index is usable
+     * @param name name of the property
+     * @return state of the property having a built index
+     */
+    static boolean isIndexed(String name) {
+        Index index = propertyIndexes.get(name);
+        return index != null && index.segments.isBuilt();
+    }
+
+    /**
+     * Check if the property has a range index and it is usable
+     * @param name name of the property
+     * @return state of the property having a built range index
+     */
+    static boolean isRangeIndexed(String name) {
+        Index index = rangeIndexes.get(name);
+        return index != null && index.segments.isBuilt();
+    }
+
+    /**
+     * Check if the resource types are indexed and the index is usable
+     * @return state of the resource type index being built
+     */
+    static boolean isTypeIndexed() {
+        Index index = typeIndex;
+        return index != null && index.segments.isBuilt();
+    }
+
+    /**
+     * Retrieve the names of the properties with full-text indexes
+     * @return the property names, in the configured order
+     */
+    static List<String> getFullTextProperties() {
+        return new ArrayList<>(fullTextIndexes.keySet());
+    }
+
+    /**
+     * Check if the full-text indexes searched for the property are usable
+     * @param name name of the property, {@code null} for every full-text indexed property
+     * @return state of the searched full-text indexes being built
+     */
+    static boolean isFullTextIndexed(String name) {
+        return searchedIndexes(name) != null;
+    }
+
+    private static List<Index> searchedIndexes(String name) {
+        Map<String, Index> current = fullTextIndexes;
+        List<Index> searched = new ArrayList<>((name == null) ? current.values()
+                : current.containsKey(name) ? Collections.singletonList(current.get(name)) : Collections.emptyList());
+        if (searched.isEmpty()) {
+            return null;
+        }
+        for (Index index : searched) {
+            if (!index.segments.isBuilt()) {
+                return null;
+            }
+        }
+        return searched;
+    }
+
+    /**
+     * Search the full-text indexes for the resources within a subtree having every term of the condition,
+     * ranked by their relevance per BM25, without the normalization by length.
+     * Only the entries of the rarest term are kept in memory, as every match has it, along with the top results.
+     * @param condition the full-text condition
+     * @param scope path of the subtree root
+     * @return the resource paths, most relevant first and limited to the configured maximum.
+     * {@code null} if the searched properties have no usable full-text indexes
+     */
+    static List<String> search(Query.FullTextCondition condition, String scope) {
+        return search(condition, scope, true);
+    }
+
+    /**
+     * Search the full-text indexes for the resources within a subtree having every term of the condition,
+     * ranked by their relevance.
+     * @param condition the full-text condition
+     * @param scope path of the subtree root
+     * @param limited state of limiting the results to the configured maximum. the results must not be limited
+     * when other conditions of the query remain to be evaluated on them, as the most relevant matches may not hold.
+     * @return the resource paths, most relevant first.
+     * {@code null} if the searched properties have no usable full-text indexes
+     */
+    static List<String> search(Query.FullTextCondition condition, String scope, boolean limited) {
+        List<Index> searched = searchedIndexes(condition.property);
+        if (searched == null) {
+            return null;
+        }
+        List<String> terms = condition.terms;
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // weigh the terms of each index by their rarity
+        double[][] weights = new double[searched.size()][terms.size()];
+        long[] frequencies = new long[terms.size()];
+        for (int idx = 0; idx < searched.size(); ++idx) {
+            SegmentedIndex segments = searched.get(idx).segments;
+            long documents = segments.count(FullTextTokenizer.DOCUMENT_KEY);
+            for (int termIdx = 0; termIdx < terms.size(); ++termIdx) {
+                long frequency = 0;
+                for (Iterator<IndexSegment.Entry> entries = segments.scan(FullTextTokenizer.keyPrefix(terms.get(termIdx)));
+                        entries.hasNext(); entries.next()) {
+                    ++frequency;
+                }
+                frequencies[termIdx] += frequency;
+                double total = Math.max(documents, frequency);
+                weights[idx][termIdx] = Math.log(1 + (total - frequency + 0.5) / (frequency + 0.5));
+            }
+        }
+        int rarest = 0;
+        for (int termIdx = 1; termIdx < terms.size(); ++termIdx) {
+            if (frequencies[termIdx] < frequencies[rarest]) {
+                rarest = termIdx;
+            }
+        }
+
+        // every match has the rarest term, so only its resources are scored
+        Map<String, FullTextMatch> matches = new HashMap<>();
+        scoreTerm(searched, terms, weights, rarest, scope, matches, true);
+        for (int termIdx = 0; termIdx < terms.size(); ++termIdx) {
+            if (termIdx != rarest) {
+                scoreTerm(searched, terms, weights, termIdx, scope, matches, false);
+            }
+        }
+
+        long allTerms = (terms.size() == Long.SIZE) ? -1L : (1L << terms.size()) - 1;
+        Comparator<FullTextMatch> relevance = Comparator.<FullTextMatch>comparingDouble(match -> match.score)
+                .thenComparing(Comparator.<FullTextMatch, String>comparing(match -> match.path).reversed());
+        int limit = limited ? fullTextMaxResults : 0;
+        // the least relevant of the top results is first, to be replaced by more relevant ones
+        PriorityQueue<FullTextMatch> top = new PriorityQueue<>(relevance);
+        for (FullTextMatch match : matches.values()) {
+            if (match.matched != allTerms) {
+                continue;
+            }
+            top.add(match);
+            if (limit > 0 && top.size() > limit) {
+                top.poll();
+            }
+        }
+        List<FullTextMatch> ranked = new ArrayList<>(top);
+        ranked.sort(relevance.reversed());
+        List<String> paths = new ArrayList<>(ranked.size());
+        for (FullTextMatch match : ranked) {
+            paths.add(match.path);
+        }
+        return paths;
+    }
+
+    /**
+     * Add the relevance of the term to the resources having it
+     * @param searched the searched full-text indexes
+     * @param terms the searched terms
+     * @param weights the weights of the terms of each index
+     * @param termIdx index of the term
+     * @param scope path of the subtree root
+     * @param matches the matches, by resource path
+     * @param isFirst state of the term being the first scored, which adds the matches rather than only scoring them
+     */
+    private static void scoreTerm(List<Index> searched, List<String> terms, double[][] weights, int termIdx,
+            String scope, Map<String, FullTextMatch> matches, boolean isFirst) {
+        for (int idx = 0; idx < searched.size(); ++idx) {
+            for (Iterator<IndexSegment.Entry> entries = searched.get(idx).segments.scan(FullTextTokenizer.keyPrefix(terms.get(termIdx)));
+                    entries.hasNext();) {
+                IndexSegment.Entry entry = entries.next();
+                if (!Util.isWithin(scope, entry.path)) {
+                    continue;
+                }
+                FullTextMatch match = isFirst ? matches.computeIfAbsent(entry.path, FullTextMatch::new) : matches.get(entry.path);
+                if (match == null) {
+                    continue;
+                }
+                int count = FullTextTokenizer.countOf(entry.key);
+                match.score += weights[idx][termIdx] * count * (FULLTEXT_SATURATION + 1) / (count + FULLTEXT_SATURATION);
+                match.matched |= 1L << termIdx;
+            }
+        }
+    }
+
+    /**
+     * Look up the resources whose property has the value
+     * @param name name of the property
+     * @param value the value of the property, as held by a query
+     * @return the resource paths, sorted. {@code null} if the property has no usable index
+     */
+    static List<String> lookup(String name, Object value) {
+        return lookup(name, value, FSPConstants.RESOURCE_PATH_SEPARATOR);
+    }
+
+    /**
+     * Look up the resources within a subtree whose property has the value
+     * @param name name of the property
+     * @param value the value of the property, as held by a query
+     * @param scope path of the subtree root
+     * @return the resource paths, sorted. {@code null} if the property has no usable index,
+     * or the index can not answer the value
+     */
+    static List<String> lookup(String name, Object value, String scope) {
+        Index index = propertyIndexes.get(name);
+        // dates compare by their instant, which the string keys of the stored values do not capture
+        if (index == null || !index.segments.isBuilt() || value instanceof Calendar) {
+            return null;
+        }
+        String key = (value instanceof Number) ? numberKey((Number) value) : KEY_PREFIX_STRING + value;
+        return (key == null) ? Collections.emptyList() : index.segments.lookup(key, scope);
+    }
+
+    /**
+     * Look up the resources within a subtree whose property has a value within the bounds of the conditions
+     * @param name name of the property
+     * @param bounds the conditions comparing the property to {@link Number}s or {@link Calendar}s, other than {@code !=}
+     * @param scope path of the subtree root
+     * @return the resource paths, sorted. {@code null} if the property has no usable range index
+     */
+    static List<String> lookupRange(String name, List<Query.PropertyCondition> bounds, String scope) {
+        Index index = rangeIndexes.get(name);
+        if (index == null || !index.segments.isBuilt()) {
+            return null;
+        }
+        String from = null;
+        String to = null;
+        for (Query.PropertyCondition bound : bounds) {
+            String key = rangeKeyOf(bound.value);
+            // the bounds are inclusive, as distinct longs may share a key. the candidates are checked regardless
+            if (bound.operator != Query.Operator.LT && bound.operator != Query.Operator.LE
+                    && (from == null || key.compareTo(from) > 0)) {
+                from = key;
+            }
+            // the smallest key that is greater than the key
+            String after = key + '\u0000';
+            if (bound.operator != Query.Operator.GT && bound.operator != Query.Operator.GE
+                    && (to == null || after.compareTo(to) < 0)) {
+                to = after;
+            }
+        }
+        if (from != null && to != null && from.compareTo(to) >= 0) {
+            return Collections.emptyList();
+        }
+        return index.segments.lookupRange(from, to, scope);
+    }
+
+    /**
+     * Iterate the entries of the range index of the property in order of the values
+     * @param name name of the property
+     * @param descending state of iterating from the largest value down
+     * @return iterator of the entries, ordered by key and then path, or the reverse when descending.
+     * {@code null} if the property has no usable range index
+     */
+    static Iterator<IndexSegment.Entry> scanRange(String name, boolean descending) {
+        Index index = rangeIndexes.get(name);
+        if (index == null || !index.segments.isBuilt()) {
+            return null;
+        }
+        return index.segments.scan(null, null, descending);
+    }
+
+    /**
+     * Check if the condition compares a range indexed property in a way that its index can answer
+     * @param condition the query condition
+     * @return state of the condition being a bound of a range index
+     */
+    private static boolean isRangeBound(Query.Condition condition) {
+        if (!(condition instanceof Query.PropertyCondition)) {
+            return false;
+        }
+        Query.PropertyCondition property = (Query.PropertyCondition) condition;
+        return property.operator != Query.Operator.NE && rangeIndexes.containsKey(property.name)
+                && (property.value instanceof Number || property.value instanceof Calendar);
+    }
+
+    /**
+     * Look up the resources within a subtree that have the resource type
+     * @param resourceType the resource type
+     * @param scope path of the subtree root
+     * @return the resource paths, sorted. {@code null} if the resource types have no usable index
+     */
+    static List<String> lookupType(String resourceType, String scope) {
+        Index index = typeIndex;
+        if (index == null || !index.segments.isBuilt()) {
+            return null;
+        }
+        return index.segments.lookup(resourceType, scope);
+    }
+
+    /**
+     * Retrieve the candidate resources of the condition within a subtree from the indexes
+     * @param condition the query condition
+     * @param scope path of the subtree root
+     * @return the sorted paths of a superset of the resources matching the condition,
+     * {@code null} if the indexes can not answer the condition. Full-text conditions are instead answered by
+     * their most relevant matches, in order of relevance.
+     */
+    static List<String> candidates(Query.Condition condition, String scope) {
+        if (isRangeBound(condition)) {
+            Query.PropertyCondition property = (Query.PropertyCondition) condition;
+            List<String> paths = lookupRange(property.name, Collections.singletonList(property), scope);
+            if (paths != null) {
+                return paths;
+            }
+        }
+        if (condition instanceof Query.PropertyCondition) {
+            Query.PropertyCondition property = (Query.PropertyCondition) condition;
+            // booleans and dates compare by conversion of the stored value, which the keys do not capture
+            return (property.operator == Query.Operator.EQ && !(property.value instanceof Boolean)
+                    && !(property.value instanceof Calendar))
+                    ? lookup(property.name, property.value, scope) : null;
+        }
+        if (condition instanceof Query.TypeCondition) {
+            return lookupType(((Query.TypeCondition) condition).resourceType, scope);
+        }
+        if (condition instanceof Query.FullTextCondition) {
+            return search((Query.FullTextCondition) condition, scope);
+        }
+        if (condition instanceof Query.And) {
+            // every condition must hold, so any indexed one narrows down the candidates
+            List<Query.Condition> children = ((Query.And) condition).conditions;
+            for (Query.Condition child : children) {
+                List<String> paths;
+                if (isRangeBound(child)) {
+                    // the bounds of the property narrow down a single range, such as @x >= 1 AND @x < 5
+                    String name = ((Query.PropertyCondition) child).name;
+                    List<Query.PropertyCondition> bounds = new ArrayList<>();
+                    for (Query.Condition sibling : children) {
+                        if (isRangeBound(sibling) && ((Query.PropertyCondition) sibling).name.equals(name)) {
+                            bounds.add((Query.PropertyCondition) sibling);
+                        }
+                    }
+                    paths = lookupRange(name, bounds, scope);
+                } else {
+                    paths = candidates(child, scope);
+                }
+                if (paths != null) {
+                    return paths;
+                }
+            }
+            return null;
+        }
+        if (condition instanceof Query.Or) {
+            // any condition may hold, so every one needs to be indexed
+            TreeSet<String> union = new TreeSet<>();
+            for (Query.Condition child : ((Query.Or) condition).conditions) {
+                List<String> paths = candidates(child, scope);
+                if (paths == null) {
+                    return null;
+                }
+                union.addAll(paths);
+            }
+            return new ArrayList<>(union);
+        }
+        return null;
+    }
+
+    /**
+     * Update the indexes for the committed properties of the resource
+     * @param path the resource path
+     * @param source storage of the previous properties, {@code null} when they are stored in the resource's folder
+     * @param previous the previous JSON properties, {@code null} if there were none
+     * @param properties the committed property values
+     */
+    static void update(String path, PropertySource source, JSONObject previous, Map<String, Object> properties) {
+        for (Index index : indexes) {
+            Set<String> oldKeys = index.keys.apply(storedValue(path, source, previous, index.property));
+            Set<String> newKeys = index.keys.apply(properties.get(index.property));
+            List<IndexSegment.Entry> changes = new ArrayList<>();
+            for (String key : oldKeys) {
+                if (!newKeys.contains(key)) {
+                    changes.add(new IndexSegment.Entry(key, path, true));
+                }
+            }
+            for (String key : newKeys) {
+                if (!oldKeys.contains(key)) {
+                    changes.add(new IndexSegment.Entry(key, path, false));
+                }
+            }
+            apply(index, changes);
+        }
+    }
+
+    /**
+     * Collect the index entries of the subtree, before it is deleted or moved
+     * @param path path of the subtree root
+     * @return the index entries of the subtree
+     */
+    static IndexedSubtree collect(String path) {
+        Map<Index, Queue<IndexSegment.Entry>> entries = newEntries(indexes);
+        if (entries.isEmpty()) {
+            return new IndexedSubtree(entries);
+        }
+        Map<Index, Consumer<IndexSegment.Entry>> sinks = sinksOf(entries);
+        Path directory = Paths.get(Util.getAbsPath(path));
+        if (Files.isDirectory(directory)) {
+            ForkJoinPool.commonPool().invoke(new SubtreeCollector(directory, path, sinks, new AtomicBoolean(), new LongAdder()));
+            return new IndexedSubtree(entries);
+        }
+        PackManager.Located located = PackManager.locate(directory);
+        if (located != null) {
+            for (String packed : located.pack.listSubtree(located.path)) {
+                String packedPath = path + packed.substring(located.path.length());
+                PackManager.Located descendant = new PackManager.Located(located.pack, packed);
+                try {
+                    collect(sinks, packedPath, descendant, descendant.readProperties());
+                } catch (IOException e) {
+                    log.error("unable to index the properties of {}", packedPath, e);
+                }
+            }
+        }
+        return new IndexedSubtree(entries);
+    }
+
+    /**
+     * Remove the entries of a deleted subtree from the indexes
+     * @param subtree the index entries of the subtree, collected before it was deleted
+     */
+    static void removed(IndexedSubtree subtree) {
+        subtree.entries.forEach((index, entries) -> {
+            List<IndexSegment.Entry> changes = new ArrayList<>(entries.size());
+            for (IndexSegment.Entry entry : entries) {
+                changes.add(new IndexSegment.Entry(entry.key, entry.path, true));
+            }
+            apply(index, changes);
+        });
+    }
+
+    /**
+     * Relocate the entries of a moved subtree in the indexes
+     * @param subtree the index entries of the subtree, collected before it was moved
+     * @param source the path the subtree was moved from
+     * @param destination the path the subtree was moved to
+     */
+    static void moved(IndexedSubtree subtree, String source, String destination) {
+        subtree.entries.forEach((index, entries) -> {
+            List<IndexSegment.Entry> changes = new ArrayList<>(entries.size() * 2);
+            for (IndexSegment.Entry entry : entries) {
+                changes.add(new IndexSegment.Entry(entry.key, entry.path, true));
+                changes.add(new IndexSegment.Entry(entry.key, destination + entry.path.substring(source.length()), false));
+            }
+            apply(index, changes);
+        });
+    }
+
+    private static void apply(Index index, List<IndexSegment.Entry> changes) {
+        try {
+            index.segments.apply(changes);
+        } catch (IOException e) {
+            log.error("unable to update the index of property {}", index.property, e);
+        }
+    }
+
+    private static Object storedValue(String path, PropertySource source, JSONObject properties, String name) {
+        JSONObject property = (properties == null) ? null : properties.optJSONObject(name);
+        // binaries are never indexed, and their files may be gone already
+        if (property == null || property.optBoolean(FSPConstants.JSON_KEY_BINARY, false)) {
+            return null;
+        }
+        return PersistenceHelper.readJSONPropertyValue(path, source, property);
+    }
+
+    /**
+     * Retrieve the index keys of the property value
+     * @param value the property value, single or multiple valued
+     * @return the keys of the value
+     */
+    static Set<String> keysOf(Object value) {
+        Set<String> keys = new LinkedHashSet<>();
+        if (value != null && value.getClass().isArray()) {
+            for (int idx = 0; idx < Array.getLength(value); ++idx) {
+                addKeys(keys, Array.get(value, idx));
+            }
+        } else {
+            addKeys(keys, value);
+        }
+        return keys;
+    }
+
+    /**
+     * Retrieve the resource type index keys of the property value
+     * @param value the value of the resource type property
+     * @return the keys of the value, which is only the resource type itself as only strings are resource types
+     */
+    static Set<String> typeKeysOf(Object value) {
+        return (value instanceof String) ? Collections.singleton((String) value) : Collections.emptySet();
+    }
+
+    /**
+     * Retrieve the range index keys of the property value
+     * @param value the property value, single or multiple valued
+     * @return the keys of the value
+     */
+    static Set<String> rangeKeysOf(Object value) {
+        Set<String> keys = new LinkedHashSet<>();
+        if (value != null && value.getClass().isArray()) {
+            for (int idx = 0; idx < Array.getLength(value); ++idx) {
+                addRangeKeys(keys, Array.get(value, idx));
+            }
+        } else {
+            addRangeKeys(keys, value);
+        }
+        return keys;
+    }
+
+    /**
+     * Retrieve the range index key that a single property value is ordered by, as a number if it is one,
+     * and otherwise as an instant
+     * @param value the single property value
+     * @return the key of the value, {@code null} if it is neither a number nor a date
+     */
+    static String orderingKeyOf(Object value) {
+        if (value == null || value instanceof Binary) {
+            return null;
+        }
+        Double number = (value instanceof Number || value instanceof CharSequence)
+                ? ValueConversion.convert(value, Double.class) : null;
+        if (number != null) {
+            return rangeKey(number);
+        }
+        Calendar date = ValueConversion.convert(value, Calendar.class);
+        return (date == null) ? null : rangeKey(date.getTimeInMillis());
+    }
+
+    private static void addRangeKeys(Set<String> keys, Object value) {
+        if (value == null || value instanceof Binary) {
+            return;
+        }
+        // values are keyed both as numbers and as instants when they convert to both,
+        // so that they are found by either kind of query value that matches them when walking
+        Double number = ValueConversion.convert(value, Double.class);
+        if (number != null) {
+            keys.add(rangeKey(number));
+        }
+        Calendar date = ValueConversion.convert(value, Calendar.class);
+        if (date != null) {
+            keys.add(rangeKey(date.getTimeInMillis()));
+        }
+    }
+
+    /**
+     * Retrieve the range index key of a query value
+     * @param value the query value, a {@link Number} or {@link Calendar}
+     * @return the key of the value
+     */
+    private static String rangeKeyOf(Object value) {
+        return (value instanceof Calendar) ? rangeKey(((Calendar) value).getTimeInMillis())
+                : rangeKey(((Number) value).doubleValue());
+    }
+
+    /**
+     * Encode the number as a key that sorts as the number does, by {@link Double#compare(double, double)}
+     * @param number the number to encode
+     * @return the key, the hex digits of the number's bits with the sign bit flipped, and the other bits of negatives
+     */
+    static String rangeKey(double number) {
+        long bits = Double.doubleToLongBits(number);
+        bits = (bits < 0) ? ~bits : (bits ^ Long.MIN_VALUE);
+        return String.format("%016x", bits);
+    }
+
+    private static void addKeys(Set<String> keys, Object value) {
+        if (value == null || value instanceof Binary) {
+            return;
+        }
+        // values are keyed by their string form, and numbers also by their numeric value,
+        // so that they are found by the same query values that match them when walking
+        String string = ValueConversion.convert(value, String.class);
+        if (string == null) {
+            return;
+        }
+        keys.add(KEY_PREFIX_STRING + string);
+        String number = (value instanceof Number) ? numberKey((Number) value) : numberKey(string);
+        if (number != null) {
+            keys.add(number);
+        }
+    }
+
+    private static String numberKey(Number number) {
+        return numberKey(number.toString());
+    }
+
+    private static String numberKey(String number) {
+        try {
+            return KEY_PREFIX_NUMBER + new BigDecimal(number.trim()).stripTrailingZeros().toPlainString();
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String encodeName(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // every JVM is required to support UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<Index, Queue<IndexSegment.Entry>> newEntries(List<Index> indexes) {
+        Map<Index, Queue<IndexSegment.Entry>> entries = new HashMap<>();
+        for (Index index : indexes) {
+            entries.put(index, new ConcurrentLinkedQueue<>());
+        }
+        return entries;
+    }
+
+    private static Map<Index, Consumer<IndexSegment.Entry>> sinksOf(Map<Index, Queue<IndexSegment.Entry>> entries) {
+        Map<Index, Consumer<IndexSegment.Entry>> sinks = new HashMap<>();
+        entries.forEach((index, queue) -> sinks.put(index, queue::add));
+        return sinks;
+    }
+
+    /**
+     * Build the indexes from every resource of the repository, walking its folders in parallel.
+     * The generations of the new base segments are reserved before the walk, so that the changes committed during it
+     * supersede what it read, and each base segment takes the place of the segments before it once written.
+     * The entries are written out in sorted runs as they are read, and the runs merged into the base segments,
+     * so that the memory of the build is bounded rather than growing with the repository.
+     * @param built the indexes to build
+     * @param cancelled state of the build being cancelled
+     * @param progress progress of the build
+     */
+    private static void build(List<Index> built, AtomicBoolean cancelled, BuildProgress progress) {
+        Map<Index, Long> generations = new HashMap<>();
+        Map<Index, SegmentedIndex.BaseBuilder> bases = new HashMap<>();
+        for (Index index : built) {
+            long generation = index.segments.reserveGeneration();
+            generations.put(index, generation);
+            bases.put(index, index.segments.newBase(generation));
+        }
+        String root = FSPConstants.RESOURCE_PATH_SEPARATOR;
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.submit(new SubtreeCollector(Paths.get(Util.getAbsPath(root)), root, bases, cancelled, progress.read)).get();
+            if (cancelled.get()) {
+                return;
+            }
+            for (Index index : built) {
+                bases.remove(index).write();
+                generations.remove(index);
+            }
+            // results cached from the previous segments may differ from those of the built ones
+            QueryCache.clear();
+            Files.write(getIndexesDirectory().resolve(FILENAME_BUILD_RESOURCES),
+                    Long.toString(progress.read.sum()).getBytes(StandardCharsets.UTF_8));
+            log.info("built the indexes {} from {} resources in {}ms", progress.indexes, progress.read.sum(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - progress.started));
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | IOException e) {
+            log.error("unable to build the indexes", e);
+        } finally {
+            pool.shutdown();
+            bases.values().forEach(SegmentedIndex.BaseBuilder::discard);
+            // the indexes that were not built keep their current segments
+            generations.forEach((index, generation) -> index.segments.abandonBase(generation));
+            progress.ended = System.nanoTime();
+        }
+    }
+
+    private static void collect(Map<Index, ? extends Consumer<IndexSegment.Entry>> entries, String path,
+            PropertySource source, JSONObject properties) {
+        if (properties == null) {
+            return;
+        }
+        for (Map.Entry<Index, ? extends Consumer<IndexSegment.Entry>> index : entries.entrySet()) {
+            for (String key : index.getKey().keys.apply(storedValue(path, source, properties, index.getKey().property))) {
+                index.getValue().accept(new IndexSegment.Entry(key, path, false));
+            }
+        }
+    }
+}
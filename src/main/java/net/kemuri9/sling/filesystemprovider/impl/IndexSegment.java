@@ -0,0 +1,298 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable file of index entries sorted by key and then resource path, which is memory mapped and binary searched.
+ * <pre>
+ * "FSPX" version(byte) count(int) tableOffset(int)
+ * entry*: removed(byte) keyLength(int) key(UTF-8) pathLength(int) path(UTF-8)
+ * table: offset(int) of each entry, in order
+ * </pre>
+ * Segments written later supersede the entries of earlier segments for the same key and path,
+ * where a removed entry records that the path no longer has the key.
+ */
+final class IndexSegment {
+
+    /** an entry of the index */
+    static final class Entry {
+        /** orders entries by key and then path */
+        static final Comparator<Entry> ORDER = Comparator.<Entry, String>comparing(entry -> entry.key)
+                .thenComparing(entry -> entry.path);
+
+        final String key;
+        final String path;
+        /** state of the entry recording the removal of the key from the path */
+        final boolean removed;
+
+        Entry(String key, String path, boolean removed) {
+            this.key = key;
+            this.path = path;
+            this.removed = removed;
+        }
+    }
+
+    /** magic bytes identifying the format */
+    private static final byte[] MAGIC = {'F', 'S', 'P', 'X'};
+
+    /** current version of the format */
+    static final byte VERSION = 1;
+
+    /** length of the header */
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + Integer.BYTES + Integer.BYTES;
+
+    /** the mapped segment. only absolute reads are made, so it is shared between threads */
+    private final ByteBuffer buffer;
+
+    /** the segment file */
+    private final Path file;
+
+    /** number of entries */
+    private final int count;
+
+    /** offset of the table of entry offsets */
+    private final int tableOffset;
+
+    private IndexSegment(Path file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_LENGTH) {
+            throw new IOException(file + " is not an index segment");
+        }
+        for (int idx = 0; idx < MAGIC.length; ++idx) {
+            if (buffer.get(idx) != MAGIC[idx]) {
+                throw new IOException(file + " is not an index segment");
+            }
+        }
+        byte version = buffer.get(MAGIC.length);
+        if (version != VERSION) {
+            throw new IOException("unsupported index segment version " + version + " of " + file);
+        }
+        count = buffer.getInt(MAGIC.length + 1);
+        tableOffset = buffer.getInt(MAGIC.length + 1 + Integer.BYTES);
+        if (count < 0 || tableOffset < HEADER_LENGTH || (long) tableOffset + (long) count * Integer.BYTES > buffer.limit()) {
+            throw new IOException("index segment " + file + " is incomplete");
+        }
+    }
+
+    /**
+     * Map the segment file into memory
+     * @param file the segment file
+     * @return the mapped segment
+     * @throws IOException if the file can not be mapped or is not an index segment
+     */
+    static IndexSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("index segment " + file + " is too large to map");
+            }
+            return new IndexSegment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * Write the entries into a segment file. The segment is written aside, and moved into place,
+     * so that readers never see a partial segment.
+     * @param file the segment file to write
+     * @param entries the entries to write, sorted by {@link Entry#ORDER}
+     * @throws IOException if the segment can not be written
+     */
+    static void write(Path file, Iterator<Entry> entries) throws IOException {
+        Path tempFile = Files.createTempFile(file.toAbsolutePath().getParent(),
+                FSPConstants.FILENAME_PREFIX_FSP, FSPConstants.FILENAME_FRAGMENT_TEMPORARY);
+        try {
+            int[] offsets = new int[64];
+            int count = 0;
+            long position = HEADER_LENGTH;
+            try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile), FSPConstants.BUFFER_SIZE))) {
+                output.write(MAGIC);
+                output.writeByte(VERSION);
+                // the count and table offset are filled in once the entries are written
+                output.writeInt(0);
+                output.writeInt(0);
+                while (entries.hasNext()) {
+                    Entry entry = entries.next();
+                    if (position > Integer.MAX_VALUE) {
+                        throw new IOException("index segment " + file + " is too large");
+                    }
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    offsets[count++] = (int) position;
+                    byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+                    byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+                    output.writeByte(entry.removed ? 1 : 0);
+                    output.writeInt(key.length);
+                    output.write(key);
+                    output.writeInt(path.length);
+                    output.write(path);
+                    position += 1 + Integer.BYTES + key.length + Integer.BYTES + path.length;
+                }
+                if (position + (long) count * Integer.BYTES > Integer.MAX_VALUE) {
+                    throw new IOException("index segment " + file + " is too large");
+                }
+                for (int idx = 0; idx < count; ++idx) {
+                    output.writeInt(offsets[idx]);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES);
+                header.putInt(count).putInt((int) position).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, MAGIC.length + 1 + header.position());
+                }
+                channel.force(true);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Retrieve the segment file
+     * @return the segment file
+     */
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Retrieve the number of entries
+     * @return number of entries
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Find the position of the first entry whose key is not less than the key
+     * @param key the key to find
+     * @return position of the entry, {@link #getCount()} if every key is less
+     */
+    int seek(String key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keyAt(mid).compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the position of the first entry that is not ordered before the key and path
+     * @param key the key to find
+     * @param path the path to find within the entries of the key
+     * @return position of the entry, {@link #getCount()} if every entry is ordered before
+     */
+    int seek(String key, String path) {
+        int low = seek(key);
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keyAt(mid).equals(key) && pathAt(mid).compareTo(path) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Iterate the entries from the position onwards
+     * @param position position of the first entry
+     * @return iterator of the entries, in order
+     */
+    Iterator<Entry> iterator(int position) {
+        return new Iterator<Entry>() {
+            private int next = position;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public Entry next() {
+                if (next >= count) {
+                    throw new NoSuchElementException();
+                }
+                return entryAt(next++);
+            }
+        };
+    }
+
+    /**
+     * Read the key of the entry at the position
+     * @param position position of the entry
+     * @return the key
+     */
+    String keyAt(int position) {
+        int offset = buffer.getInt(tableOffset + position * Integer.BYTES);
+        return readString(offset + 1);
+    }
+
+    /**
+     * Read the path of the entry at the position
+     * @param position position of the entry
+     * @return the path
+     */
+    String pathAt(int position) {
+        int offset = buffer.getInt(tableOffset + position * Integer.BYTES);
+        return readString(offset + 1 + Integer.BYTES + buffer.getInt(offset + 1));
+    }
+
+    /**
+     * Read the entry at the position
+     * @param position position of the entry
+     * @return the entry
+     */
+    Entry entryAt(int position) {
+        int offset = buffer.getInt(tableOffset + position * Integer.BYTES);
+        boolean removed = buffer.get(offset) != 0;
+        int keyLength = buffer.getInt(offset + 1);
+        String key = readString(offset + 1);
+        String path = readString(offset + 1 + Integer.BYTES + keyLength);
+        return new Entry(key, path, removed);
+    }
+
+    private String readString(int offset) {
+        return SymbolTable.intern(buffer, offset + Integer.BYTES, buffer.getInt(offset));
+    }
+}
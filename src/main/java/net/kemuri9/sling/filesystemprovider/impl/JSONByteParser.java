@@ -0,0 +1,532 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Parser of JSON properties files that works directly on their UTF-8 bytes, rather than on a decoded string
+ * as the {@link org.json.JSONTokener} does. Keys and short strings are retrieved through the {@link SymbolTable},
+ * and numbers are parsed without creating intermediate strings.
+ * The values produced are the same as those of {@link org.json.JSONTokener}: numbers are an {@link Integer} when they fit,
+ * otherwise a {@link Long}, and a {@link Double} when they have a fraction or exponent or do not fit a {@link Long}.
+ */
+final class JSONByteParser {
+
+    /** powers of ten that are exactly representable as doubles */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    /** largest mantissa that is exactly representable as a double */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /** the data being parsed, only read by absolute position */
+    private final ByteBuffer data;
+
+    /** end of the data */
+    private final int limit;
+
+    /** position of the next byte to parse */
+    private int pos;
+
+    /** buffer for decoding strings with escapes */
+    private char[] scratch = new char[64];
+
+    private JSONByteParser(ByteBuffer data) {
+        this.data = data;
+        pos = data.position();
+        limit = data.limit();
+    }
+
+    /**
+     * Parse the JSON object held by the data, from its position to its limit
+     * @param data UTF-8 bytes of the JSON object. its position is not changed.
+     * @return the parsed object
+     * @throws JSONException if the data is not a JSON object
+     */
+    static JSONObject parseObject(ByteBuffer data) throws JSONException {
+        JSONByteParser parser = open(data);
+        if (parser.nextToken() != '{') {
+            throw parser.syntaxError("Expected a JSON object");
+        }
+        JSONObject object = parser.readObject();
+        if (parser.skipWhitespace()) {
+            throw parser.syntaxError("Unexpected content after the JSON object");
+        }
+        return object;
+    }
+
+    /**
+     * Open a parser that walks the data token by token, so that the spans of values can be copied rather than parsed
+     * @param data UTF-8 bytes of JSON. its position is not changed.
+     * @return parser positioned at the start of the JSON
+     */
+    static JSONByteParser open(ByteBuffer data) {
+        JSONByteParser parser = new JSONByteParser(data);
+        // tolerate a byte order mark, as text editors may add one
+        if (parser.limit - parser.pos >= 3 && (data.get(parser.pos) & 0xFF) == 0xEF
+                && (data.get(parser.pos + 1) & 0xFF) == 0xBB && (data.get(parser.pos + 2) & 0xFF) == 0xBF) {
+            parser.pos += 3;
+        }
+        return parser;
+    }
+
+    /**
+     * Retrieve the absolute position of the next value, skipping the whitespace before it
+     * @return absolute position of the next value
+     */
+    int valueStart() {
+        skipWhitespace();
+        return pos;
+    }
+
+    /**
+     * Retrieve the absolute position after the last parsed or skipped value
+     * @return absolute position after the last value
+     */
+    int position() {
+        return pos;
+    }
+
+    /**
+     * Enter the object or array that is the next value
+     * @param open the opening character of the object or array
+     * @return state of the object or array having members
+     * @throws JSONException if the next value is not of the type
+     */
+    boolean enter(char open) throws JSONException {
+        expect(open);
+        char close = (open == '{') ? '}' : ']';
+        if (nextToken() == close) {
+            ++pos;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Move past the separator after the member or element of the object or array that was last parsed or skipped
+     * @param close the closing character of the object or array
+     * @return state of there being another member or element
+     * @throws JSONException if neither a separator nor the closing character follows
+     */
+    boolean next(char close) throws JSONException {
+        int next = nextToken();
+        ++pos;
+        if (next == close) {
+            return false;
+        }
+        if (next != ',') {
+            throw syntaxError("Expected , or " + close);
+        }
+        return true;
+    }
+
+    /**
+     * Read the key of the next member of an object, and its separator
+     * @return the key
+     * @throws JSONException if there is no key
+     */
+    String readKey() throws JSONException {
+        if (nextToken() != '"') {
+            throw syntaxError("Expected a key");
+        }
+        String key = readString();
+        expect(':');
+        return key;
+    }
+
+    /**
+     * Skip over the next value without creating it
+     * @throws JSONException if there is no value or it is unterminated
+     */
+    void skipValue() throws JSONException {
+        int first = nextToken();
+        if (first == -1) {
+            throw syntaxError("Unexpected end of data");
+        }
+        if (first != '{' && first != '[' && first != '"') {
+            // a literal runs up to the next structural character or whitespace
+            int start = pos;
+            while (pos < limit) {
+                byte b = data.get(pos);
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                    break;
+                }
+                ++pos;
+            }
+            if (pos == start) {
+                throw syntaxError("Expected a value");
+            }
+            return;
+        }
+        int depth = 0;
+        boolean inString = false;
+        for (; pos < limit; ++pos) {
+            byte b = data.get(pos);
+            if (inString) {
+                if (b == '\\') {
+                    ++pos;
+                } else if (b == '"') {
+                    inString = false;
+                    if (depth == 0) {
+                        ++pos;
+                        return;
+                    }
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                ++depth;
+            } else if (b == '}' || b == ']') {
+                if (--depth == 0) {
+                    ++pos;
+                    return;
+                }
+            }
+        }
+        throw syntaxError("Unterminated value");
+    }
+
+    /**
+     * Skip the whitespace
+     * @return state of there being data remaining after the whitespace
+     */
+    private boolean skipWhitespace() {
+        while (pos < limit) {
+            byte b = data.get(pos);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return true;
+            }
+            ++pos;
+        }
+        return false;
+    }
+
+    /**
+     * Retrieve the next byte that is not whitespace, without consuming it
+     * @return the next byte, -1 at the end of the data
+     */
+    private int nextToken() {
+        return skipWhitespace() ? data.get(pos) : -1;
+    }
+
+    /**
+     * Move past the expected character, skipping the whitespace before it
+     * @param expected the expected character
+     * @throws JSONException if the next character is not the expected one
+     */
+    void expect(char expected) throws JSONException {
+        if (nextToken() != expected) {
+            throw syntaxError("Expected " + expected);
+        }
+        ++pos;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at " + pos);
+    }
+
+    /**
+     * Parse the next value
+     * @return the value, as {@link org.json.JSONTokener} would produce it
+     * @throws JSONException if the value is malformed
+     */
+    Object readValue() throws JSONException {
+        switch (nextToken()) {
+        case '{':
+            return readObject();
+        case '[':
+            return readArray();
+        case '"':
+            return readString();
+        case 't':
+            readKeyword("true");
+            return Boolean.TRUE;
+        case 'f':
+            readKeyword("false");
+            return Boolean.FALSE;
+        case 'n':
+            readKeyword("null");
+            return JSONObject.NULL;
+        case -1:
+            throw syntaxError("Unexpected end of data");
+        default:
+            return readNumber();
+        }
+    }
+
+    private void readKeyword(String keyword) throws JSONException {
+        if (limit - pos < keyword.length()) {
+            throw syntaxError("Expected " + keyword);
+        }
+        for (int idx = 0; idx < keyword.length(); ++idx) {
+            if (data.get(pos + idx) != keyword.charAt(idx)) {
+                throw syntaxError("Expected " + keyword);
+            }
+        }
+        pos += keyword.length();
+    }
+
+    private JSONObject readObject() throws JSONException {
+        ++pos; // {
+        JSONObject object = new JSONObject();
+        if (nextToken() == '}') {
+            ++pos;
+            return object;
+        }
+        while (true) {
+            if (nextToken() != '"') {
+                throw syntaxError("Expected a key");
+            }
+            String key = readString();
+            expect(':');
+            object.put(key, readValue());
+            int next = nextToken();
+            ++pos;
+            if (next == '}') {
+                return object;
+            }
+            if (next != ',') {
+                throw syntaxError("Expected , or }");
+            }
+        }
+    }
+
+    private JSONArray readArray() throws JSONException {
+        ++pos; // [
+        JSONArray array = new JSONArray();
+        if (nextToken() == ']') {
+            ++pos;
+            return array;
+        }
+        while (true) {
+            array.put(readValue());
+            int next = nextToken();
+            ++pos;
+            if (next == ']') {
+                return array;
+            }
+            if (next != ',') {
+                throw syntaxError("Expected , or ]");
+            }
+        }
+    }
+
+    private String readString() throws JSONException {
+        int start = ++pos; // "
+        boolean escaped = false;
+        int end = start;
+        for (; end < limit; ++end) {
+            byte b = data.get(end);
+            if (b == '"') {
+                break;
+            }
+            if (b == '\\') {
+                escaped = true;
+                ++end;
+            }
+        }
+        if (end >= limit) {
+            throw syntaxError("Unterminated string");
+        }
+        pos = end + 1;
+        return escaped ? decodeEscaped(start, end) : SymbolTable.intern(data, start, end - start);
+    }
+
+    /**
+     * Decode the string with escapes
+     * @param start absolute offset of the first byte of the string
+     * @param end absolute offset of the closing quote
+     * @return the decoded string
+     * @throws JSONException if the string has an invalid escape
+     */
+    private String decodeEscaped(int start, int end) throws JSONException {
+        // a character never takes more than a byte of UTF-8, and escapes take more bytes than the character they represent
+        if (scratch.length < end - start) {
+            scratch = new char[end - start];
+        }
+        int length = 0;
+        int idx = start;
+        while (idx < end) {
+            int b = data.get(idx) & 0xFF;
+            if (b == '\\') {
+                char escape = (char) data.get(idx + 1);
+                idx += 2;
+                switch (escape) {
+                case 'b':
+                    scratch[length++] = '\b';
+                    break;
+                case 'f':
+                    scratch[length++] = '\f';
+                    break;
+                case 'n':
+                    scratch[length++] = '\n';
+                    break;
+                case 'r':
+                    scratch[length++] = '\r';
+                    break;
+                case 't':
+                    scratch[length++] = '\t';
+                    break;
+                case 'u':
+                    if (idx + 4 > end) {
+                        throw syntaxError("Unterminated escape sequence");
+                    }
+                    int ch = 0;
+                    for (int hex = 0; hex < 4; ++hex) {
+                        int digit = Character.digit((char) data.get(idx + hex), 16);
+                        if (digit < 0) {
+                            throw syntaxError("Invalid escape sequence");
+                        }
+                        ch = (ch << 4) | digit;
+                    }
+                    scratch[length++] = (char) ch;
+                    idx += 4;
+                    break;
+                default:
+                    // quotes, slashes and anything else escaped as itself
+                    scratch[length++] = escape;
+                    break;
+                }
+            } else if (b < 0x80) {
+                scratch[length++] = (char) b;
+                ++idx;
+            } else {
+                // a run of multi-byte characters is decoded as a whole
+                int runEnd = idx;
+                while (runEnd < end && (data.get(runEnd) & 0xFF) >= 0x80) {
+                    ++runEnd;
+                }
+                byte[] run = new byte[runEnd - idx];
+                for (int runIdx = 0; runIdx < run.length; ++runIdx) {
+                    run[runIdx] = data.get(idx + runIdx);
+                }
+                String decoded = new String(run, StandardCharsets.UTF_8);
+                decoded.getChars(0, decoded.length(), scratch, length);
+                length += decoded.length();
+                idx = runEnd;
+            }
+        }
+        return new String(scratch, 0, length);
+    }
+
+    private Number readNumber() throws JSONException {
+        int start = pos;
+        boolean negative = false;
+        if (data.get(pos) == '-') {
+            negative = true;
+            ++pos;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        boolean overflow = false;
+        for (; pos < limit && isDigit(data.get(pos)); ++pos, ++digits) {
+            int digit = data.get(pos) - '0';
+            // accumulate negatively, as the negative range is the larger one
+            if (mantissa < (Long.MIN_VALUE + digit) / 10) {
+                overflow = true;
+            }
+            mantissa = mantissa * 10 - digit;
+        }
+        if (digits == 0) {
+            throw syntaxError("Expected a value");
+        }
+        boolean decimal = false;
+        int fractionDigits = 0;
+        if (pos < limit && data.get(pos) == '.') {
+            decimal = true;
+            ++pos;
+            for (; pos < limit && isDigit(data.get(pos)); ++pos, ++fractionDigits) {
+                int digit = data.get(pos) - '0';
+                if (mantissa < (Long.MIN_VALUE + digit) / 10) {
+                    overflow = true;
+                }
+                mantissa = mantissa * 10 - digit;
+            }
+            if (fractionDigits == 0) {
+                throw syntaxError("Expected a fraction");
+            }
+        }
+        int exponent = 0;
+        if (pos < limit && (data.get(pos) == 'e' || data.get(pos) == 'E')) {
+            decimal = true;
+            ++pos;
+            boolean negativeExponent = false;
+            if (pos < limit && (data.get(pos) == '-' || data.get(pos) == '+')) {
+                negativeExponent = data.get(pos) == '-';
+                ++pos;
+            }
+            int exponentDigits = 0;
+            for (; pos < limit && isDigit(data.get(pos)); ++pos, ++exponentDigits) {
+                exponent = Math.min(exponent * 10 + (data.get(pos) - '0'), 100000);
+            }
+            if (exponentDigits == 0) {
+                throw syntaxError("Expected an exponent");
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+
+        if (!decimal && !overflow) {
+            if (!negative) {
+                if (mantissa == Long.MIN_VALUE) {
+                    // one beyond Long.MAX_VALUE
+                    return parseDouble(start);
+                }
+                mantissa = -mantissa;
+            }
+            if (mantissa >= Integer.MIN_VALUE && mantissa <= Integer.MAX_VALUE) {
+                return (int) mantissa;
+            }
+            return mantissa;
+        }
+        exponent -= fractionDigits;
+        // exact when both the mantissa and the power of ten are exactly representable
+        // Long.MIN_VALUE has no positive counterpart, so it is left to parseDouble like an overflow
+        if (!overflow && mantissa != Long.MIN_VALUE && -mantissa <= MAX_EXACT_MANTISSA
+                && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            double value = -mantissa;
+            value = (exponent < 0) ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        return parseDouble(start);
+    }
+
+    private Double parseDouble(int start) throws JSONException {
+        byte[] literal = new byte[pos - start];
+        for (int idx = 0; idx < literal.length; ++idx) {
+            literal[idx] = data.get(start + idx);
+        }
+        try {
+            return Double.valueOf(new String(literal, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number");
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
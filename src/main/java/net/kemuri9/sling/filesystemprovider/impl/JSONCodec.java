@@ -0,0 +1,53 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Codec for the encoding of the JSON property storage at rest.
+ * Codecs are created from a {@link JSONCompression} format with the tuning settings for it.
+ * <p>This is intentionally not a public extension point. Properties files are decoded by the format identified
+ * from their magic bytes, so a file written by an externally registered codec would become unreadable
+ * once that codec is no longer registered. New formats are added to {@link JSONCompression} instead.</p>
+ * @see JSONCompression#newCodec(int, int, boolean)
+ */
+interface JSONCodec {
+
+    /**
+     * Retrieve the compression format of the codec
+     * @return the compression format
+     */
+    JSONCompression getCompression();
+
+    /**
+     * Wrap the input stream to include any necessary decoding
+     * @param inputStream the input stream to wrap
+     * @return the wrapped (decoded) input stream
+     * @throws IOException if the stream can not be processed per the codec
+     */
+    InputStream wrapInput(InputStream inputStream) throws IOException;
+
+    /**
+     * Wrap the output stream to include any necessary encoding
+     * @param outputStream the output stream to wrap
+     * @return the wrapped (encoded) output stream
+     * @throws IOException if the stream can not be processed per the codec
+     */
+    OutputStream wrapOutput(OutputStream outputStream) throws IOException;
+}
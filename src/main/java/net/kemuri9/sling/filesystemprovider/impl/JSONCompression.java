@@ -15,12 +15,17 @@
  */
 package net.kemuri9.sling.filesystemprovider.impl;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 /**
@@ -38,9 +43,130 @@ enum JSONCompression {
      * as ZIP is an archive format meant for multiple files.
      * Here things are only a single file so there is no need for multiple file support. */
 
-    /** ZLIB, a.k.a. "Deflate" */
+    /** ZLIB, a.k.a. "Deflate". The only format supporting preset dictionaries. */
     ZLIB(".json.zlib");
 
+    /** {@link JSONCodec} of the format with its tuning settings */
+    private static final class Codec implements JSONCodec {
+
+        private final JSONCompression compression;
+        private final int level;
+        private final int bufferSize;
+        private final boolean useDictionary;
+
+        Codec(JSONCompression compression, int level, int bufferSize, boolean useDictionary) {
+            this.compression = compression;
+            this.level = level;
+            this.bufferSize = bufferSize;
+            this.useDictionary = useDictionary;
+        }
+
+        @Override
+        public JSONCompression getCompression() {
+            return compression;
+        }
+
+        @Override
+        public InputStream wrapInput(InputStream inputStream) throws IOException {
+            if (inputStream == null) {
+                return null;
+            }
+            switch (compression) {
+            case GZIP:
+                return new GZIPInputStream(inputStream, bufferSize);
+            case NONE:
+                return new BufferedInputStream(inputStream, bufferSize);
+            case ZLIB:
+                // the dictionary is recorded in the data, so it is always supported for reading
+                return new DictionaryInflaterInputStream(inputStream, bufferSize);
+            default:
+                throw new RuntimeException("A type was missed, fix this now");
+            }
+        }
+
+        @Override
+        public OutputStream wrapOutput(OutputStream outputStream) throws IOException {
+            if (outputStream == null) {
+                return null;
+            }
+            switch (compression) {
+            case GZIP:
+                return new LeveledGZIPOutputStream(outputStream, bufferSize, level);
+            case NONE:
+                return new BufferedOutputStream(outputStream, bufferSize);
+            case ZLIB:
+                Deflater deflater = new Deflater(level);
+                if (useDictionary) {
+                    deflater.setDictionary(JSONDictionary.current());
+                }
+                return new OwningDeflaterOutputStream(outputStream, deflater, bufferSize);
+            default:
+                throw new RuntimeException("A type was missed, fix this now");
+            }
+        }
+    }
+
+    /** {@link GZIPOutputStream} with a specific compression level */
+    private static final class LeveledGZIPOutputStream extends GZIPOutputStream {
+
+        LeveledGZIPOutputStream(OutputStream out, int bufferSize, int level) throws IOException {
+            super(out, bufferSize);
+            def.setLevel(level);
+        }
+    }
+
+    /** {@link DeflaterOutputStream} that releases its {@link Deflater} when closed */
+    private static final class OwningDeflaterOutputStream extends DeflaterOutputStream {
+
+        OwningDeflaterOutputStream(OutputStream out, Deflater deflater, int bufferSize) {
+            super(out, deflater, bufferSize);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    /** {@link Inflater} that supplies the preset dictionary that the data was compressed with */
+    private static final class DictionaryInflater extends Inflater {
+
+        @Override
+        public int inflate(byte[] b, int off, int len) throws DataFormatException {
+            int inflated = super.inflate(b, off, len);
+            if (inflated == 0 && needsDictionary()) {
+                byte[] dictionary = JSONDictionary.forId(getAdler());
+                if (dictionary == null) {
+                    throw new DataFormatException("unknown preset dictionary " + Integer.toHexString(getAdler()));
+                }
+                setDictionary(dictionary);
+                inflated = super.inflate(b, off, len);
+            }
+            return inflated;
+        }
+    }
+
+    /** {@link InflaterInputStream} that supports preset dictionaries, and releases its {@link Inflater} when closed */
+    private static final class DictionaryInflaterInputStream extends InflaterInputStream {
+
+        DictionaryInflaterInputStream(InputStream in, int bufferSize) {
+            super(in, new DictionaryInflater(), bufferSize);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
     /** File extension for the format */
     final String extension;
 
@@ -62,6 +188,45 @@ enum JSONCompression {
         return null;
     }
 
+    /**
+     * Identify the format from the magic bytes at the start of its data
+     * @param data the start of the data
+     * @param length number of bytes of the data
+     * @return the format. {@link #NONE} when the data does not start with the magic bytes of a compressed format.
+     */
+    public static JSONCompression fromMagic(byte[] data, int length) {
+        if (length < 2) {
+            return NONE;
+        }
+        int first = data[0] & 0xFF;
+        int second = data[1] & 0xFF;
+        if (first == 0x1F && second == 0x8B) {
+            return GZIP;
+        }
+        // ZLIB header of the deflate method, with its check bits. JSON text never starts with such a byte
+        if ((first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0) {
+            return ZLIB;
+        }
+        return NONE;
+    }
+
+    /**
+     * Create a codec for the format with the specified tuning
+     * @param level the compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}. Ignored for {@link #NONE}.
+     * @param bufferSize size, in bytes, of the buffers of the streams
+     * @param useDictionary state of compressing with the preset {@link JSONDictionary}. Only supported by {@link #ZLIB}.
+     * @return the codec
+     */
+    public JSONCodec newCodec(int level, int bufferSize, boolean useDictionary) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("invalid buffer size " + bufferSize);
+        }
+        return new Codec(this, level, bufferSize, useDictionary && this == ZLIB);
+    }
+
     /**
      * Wrap the input stream to include any necessary decompression for the format
      * @param inputStream the input stream to wrap
@@ -69,19 +234,7 @@ enum JSONCompression {
      * @throws IOException if the stream can not be processed per the compression format
      */
     public InputStream wrapInput(InputStream inputStream) throws IOException {
-        if (inputStream == null) {
-            return null;
-        }
-        switch (this) {
-        case GZIP:
-            return new GZIPInputStream(inputStream);
-        case NONE:
-            return inputStream;
-        case ZLIB:
-            return new InflaterInputStream(inputStream);
-        default:
-            throw new RuntimeException("A type was missed, fix this now");
-        }
+        return newCodec(Deflater.DEFAULT_COMPRESSION, FSPConstants.BUFFER_SIZE, false).wrapInput(inputStream);
     }
 
     /**
@@ -91,18 +244,6 @@ enum JSONCompression {
      * @throws IOException if the stream can not be processed per the compression format
      */
     public OutputStream wrapOutput(OutputStream outputStream) throws IOException {
-        if (outputStream == null) {
-            return null;
-        }
-        switch (this) {
-        case GZIP:
-            return new GZIPOutputStream(outputStream);
-        case NONE:
-            return outputStream;
-        case ZLIB:
-            return new DeflaterOutputStream(outputStream);
-        default:
-            throw new RuntimeException("A type was missed, fix this now");
-        }
+        return newCodec(Deflater.DEFAULT_COMPRESSION, FSPConstants.BUFFER_SIZE, false).wrapOutput(outputStream);
     }
 }
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides on the {@link JSONCompression} to store a JSON properties file with.
+ * When compression is adaptive, small files are not compressed, as compressing them costs more than it saves,
+ * and larger files are compressed with the configured compression unless a sample of them compresses poorly.
+ * The decisions and the resulting sizes are counted per compression, so that the thresholds can be tuned.
+ */
+final class JSONCompressionPolicy {
+
+    /** statistic of the number of files stored with the compression */
+    static final String STAT_FILES = "files";
+
+    /** statistic of the uncompressed bytes of the files stored with the compression */
+    static final String STAT_BYTES = "bytes";
+
+    /** statistic of the bytes stored with the compression */
+    static final String STAT_STORED_BYTES = "storedBytes";
+
+    /** statistic of the files left uncompressed for being below the minimum size */
+    static final String STAT_BELOW_MIN_SIZE = "belowMinSize";
+
+    /** statistic of the files left uncompressed for their sample compressing poorly */
+    static final String STAT_POOR_RATIO = "poorRatio";
+
+    /** statistic of the files compressed for their sample compressing well */
+    static final String STAT_GOOD_RATIO = "goodRatio";
+
+    /** statistic of the bytes sampled to decide on the compression */
+    static final String STAT_SAMPLED_BYTES = "sampledBytes";
+
+    /** statistic of the compressed bytes of the samples */
+    static final String STAT_SAMPLED_COMPRESSED_BYTES = "sampledCompressedBytes";
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(JSONCompressionPolicy.class);
+
+    /** statistics keyed by compression name and statistic name, separated by a period */
+    private static final ConcurrentHashMap<String, AtomicLong> STATISTICS = new ConcurrentHashMap<>();
+
+    private JSONCompressionPolicy() {
+    }
+
+    /**
+     * Choose the compression to store a JSON properties file with
+     * @param config configuration of the compression. {@code null} to not compress.
+     * @param content the uncompressed content of the file
+     * @return the compression to store the file with
+     */
+    static JSONCompression choose(FileSystemProviderConfig config, byte[] content) {
+        JSONCompression compression = (config == null) ? null : config.json_property_compression();
+        if (compression == null) {
+            return JSONCompression.NONE;
+        }
+        if (!config.json_property_compression_adaptive() || compression == JSONCompression.NONE) {
+            return compression;
+        }
+        if (content.length < config.json_property_compression_min_size()) {
+            increment(JSONCompression.NONE, STAT_BELOW_MIN_SIZE, 1);
+            return JSONCompression.NONE;
+        }
+        int sampleLength = Math.min(content.length, BinaryCompressionPolicy.SAMPLE_SIZE);
+        double ratio = BinaryCompressionPolicy.sampleRatio(content, sampleLength);
+        log.trace("sampled compression ratio of {}", ratio);
+        boolean compressible = ratio <= config.json_property_compression_max_ratio();
+        JSONCompression chosen = compressible ? compression : JSONCompression.NONE;
+        increment(chosen, compressible ? STAT_GOOD_RATIO : STAT_POOR_RATIO, 1);
+        increment(chosen, STAT_SAMPLED_BYTES, sampleLength);
+        increment(chosen, STAT_SAMPLED_COMPRESSED_BYTES, Math.round(ratio * sampleLength));
+        return chosen;
+    }
+
+    /**
+     * Count a file as stored with the compression
+     * @param compression the compression the file was stored with
+     * @param bytes the uncompressed size of the file
+     * @param storedBytes the stored size of the file
+     */
+    static void recordStored(JSONCompression compression, long bytes, long storedBytes) {
+        increment(compression, STAT_FILES, 1);
+        increment(compression, STAT_BYTES, bytes);
+        increment(compression, STAT_STORED_BYTES, storedBytes);
+    }
+
+    /**
+     * Retrieve the current statistics
+     * @return the statistics, keyed by compression name and statistic name separated by a period, such as {@code GZIP.files}
+     */
+    static Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : STATISTICS.entrySet()) {
+            statistics.put(entry.getKey(), entry.getValue().get());
+        }
+        return statistics;
+    }
+
+    /**
+     * Reset all of the statistics
+     */
+    static void resetStatistics() {
+        STATISTICS.clear();
+    }
+
+    private static void increment(JSONCompression compression, String statistic, long delta) {
+        STATISTICS.computeIfAbsent(compression.name() + '.' + statistic, key -> new AtomicLong()).addAndGet(delta);
+    }
+}
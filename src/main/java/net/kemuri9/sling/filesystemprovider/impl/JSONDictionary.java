@@ -0,0 +1,123 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+/**
+ * Preset dictionaries for the compression of the JSON property storage.
+ * Property files are small and repeat the same keys and type names, which deflate can only reference
+ * once it has seen them in the file. A preset dictionary holding them lets even the first occurrence be referenced.
+ *
+ * <p>Dictionaries are identified by their Adler-32 checksum, which ZLIB records in the compressed data.
+ * Once released a dictionary must never change, otherwise existing files can no longer be read.
+ * New dictionaries are to be added alongside the existing ones.</p>
+ */
+final class JSONDictionary {
+
+    /**
+     * Version 1 of the dictionary.
+     * Deflate prefers the nearest match, so the most frequent fragments are towards the end.
+     */
+    private static final String[] VERSION_1 = {
+        "java.lang.Object", "java.lang.Byte", "java.lang.Short", "java.lang.Float", "java.lang.Character",
+        "java.math.BigInteger", "java.math.BigDecimal", "java.util.Date", "java.sql.Timestamp",
+        "java.time.ZonedDateTime", "java.time.OffsetDateTime", "java.time.LocalDateTime", "java.time.Instant",
+        "java.util.GregorianCalendar", "java.util.Calendar", "null", "false", "true",
+        "\"sling:resourceSuperType\":", "\"sling:Folder\"", "\"sling:OrderedFolder\"", "\"nt:folder\"", "\"nt:file\"",
+        "\"nt:resource\"", "\"nt:unstructured\"", "\"jcr:mixinTypes\":", "\"jcr:primaryType\":",
+        "\"jcr:mimeType\":", "\"jcr:data\":", "\"jcr:description\":", "\"jcr:title\":",
+        "\"jcr:lastModifiedBy\":", "\"jcr:lastModified\":", "\"jcr:createdBy\":", "\"jcr:created\":",
+        "\"sling:resourceType\":", "\"inline\":true", "\"binary\":true",
+        "{\"type\":\"java.lang.Boolean\",\"value\":",
+        "{\"type\":\"java.lang.Double\",\"value\":",
+        "{\"type\":\"java.lang.Integer\",\"value\":",
+        "{\"type\":\"java.lang.Long\",\"value\":",
+        "{\"type\":\"java.lang.String\",\"values\":[\"",
+        "{\"type\":\"java.lang.String\",\"value\":\"",
+    };
+
+    /** dictionaries by their identifier */
+    private static final Map<Integer, byte[]> DICTIONARIES = new HashMap<>();
+
+    /** the dictionary to compress with */
+    private static final byte[] CURRENT;
+
+    /** identifier of the dictionary to compress with */
+    private static final int CURRENT_ID;
+
+    static {
+        CURRENT = build(VERSION_1);
+        CURRENT_ID = register(CURRENT);
+    }
+
+    private JSONDictionary() {
+    }
+
+    /**
+     * Build the dictionary from its fragments
+     * @param fragments the fragments of the dictionary
+     * @return the dictionary
+     */
+    private static byte[] build(String[] fragments) {
+        StringBuilder sb = new StringBuilder();
+        for (String fragment : fragments) {
+            sb.append(fragment);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Register the dictionary to be found by its identifier
+     * @param dictionary the dictionary to register
+     * @return identifier of the dictionary
+     */
+    private static int register(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        int id = (int) adler.getValue();
+        DICTIONARIES.put(id, dictionary);
+        return id;
+    }
+
+    /**
+     * Retrieve the dictionary to compress with. The returned array should not be modified.
+     * @return the dictionary
+     */
+    static byte[] current() {
+        return CURRENT;
+    }
+
+    /**
+     * Retrieve the identifier of the dictionary to compress with
+     * @return the identifier
+     */
+    static int currentId() {
+        return CURRENT_ID;
+    }
+
+    /**
+     * Retrieve the dictionary by its identifier. The returned array should not be modified.
+     * @param id identifier of the dictionary, as reported by {@link java.util.zip.Inflater#getAdler()}
+     * @return the dictionary, {@code null} if there is none with the identifier
+     */
+    static byte[] forId(int id) {
+        return DICTIONARIES.get(id);
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.kemuri9.sling.filesystemprovider.Binary;
+
+/**
+ * Binary representation of small data that is held in memory, and is persisted inline of the property storage.
+ */
+final class MemoryBinary implements Binary {
+
+    /** counter for generating names of the binaries */
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    /** the binary data */
+    private final byte[] data;
+
+    /** name of the binary */
+    private final String name;
+
+    /**
+     * Create a representation of the specified data. The data is not copied, so it should not be modified afterwards.
+     * @param data the binary data
+     */
+    MemoryBinary(byte[] data) {
+        this.data = data;
+        name = FSPConstants.FILENAME_PREFIX_FSP + "memory_" + COUNTER.incrementAndGet() + FSPConstants.FILENAME_EXTENSION_BINARY;
+    }
+
+    @Override
+    public void close() {
+        dispose();
+    }
+
+    @Override
+    public void dispose() {
+        // nothing to release, the memory is reclaimed on garbage collection
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return (obj instanceof MemoryBinary) && Arrays.equals(data, ((MemoryBinary) obj).data);
+    }
+
+    /**
+     * Retrieve the binary data. The returned array should not be modified.
+     * @return the binary data
+     */
+    byte[] getBytes() {
+        return data;
+    }
+
+    @Override
+    public long getLength() {
+        return data.length;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public InputStream getStream() {
+        return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append(getClass().getName())
+                .append(" name=").append(getName()).append(" length=").append(getLength()).toString();
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.kemuri9.sling.filesystemprovider.Binary;
+
+/**
+ * Manages the {@link SegmentPack}s of packed subtrees, keeping them open for serving lookups.
+ * Packing a subtree moves the properties of all of its descendant resources into a segment in the subtree's
+ * root directory, and removes their directories.
+ */
+final class PackManager {
+
+    /** a resource found within a packed subtree */
+    static final class Located implements PropertySource {
+        /** the segment holding the resource */
+        final SegmentPack pack;
+        /** the path of the resource relative to the subtree root */
+        final String path;
+
+        Located(SegmentPack pack, String path) {
+            this.pack = pack;
+            this.path = path;
+        }
+
+        @Override
+        public List<String> getChildNames() {
+            return pack.childNames(path);
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return false;
+        }
+
+        @Override
+        public Binary readBinary(String name) throws IOException {
+            throw new IOException("packed resource " + path + " can not hold the binary file " + name);
+        }
+
+        @Override
+        public JSONObject readProperties() throws IOException {
+            return pack.read(path);
+        }
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(PackManager.class);
+
+    /** the open segments by the directory of their subtree root */
+    private static final ConcurrentHashMap<Path, SegmentPack> PACKS = new ConcurrentHashMap<>();
+
+    /** fraction of garbage in a segment that triggers its compaction */
+    private static volatile double compactionThreshold = 0.5;
+
+    private PackManager() {
+    }
+
+    /**
+     * Initialize from the configuration
+     * @param config the configuration to initialize with
+     */
+    static void init(FileSystemProviderConfig config) {
+        destroy();
+        compactionThreshold = config.pack_compaction_threshold();
+    }
+
+    /**
+     * Uninitialize, closing all of the open segments
+     */
+    static synchronized void destroy() {
+        for (SegmentPack pack : PACKS.values()) {
+            try {
+                pack.close();
+            } catch (IOException e) {
+                log.error("unable to close segment pack", e);
+            }
+        }
+        PACKS.clear();
+    }
+
+    /**
+     * Retrieve the open segment of the subtree root directory, opening it if it exists
+     * @param directory the subtree root directory
+     * @return the segment, {@code null} if the directory is not the root of a packed subtree
+     * @throws IOException if the segment can not be opened
+     */
+    static synchronized SegmentPack get(Path directory) throws IOException {
+        SegmentPack pack = PACKS.get(directory);
+        if (pack == null) {
+            Path file = directory.resolve(FSPConstants.FILENAME_SEGMENT_PACK);
+            if (!Files.exists(file)) {
+                return null;
+            }
+            pack = new SegmentPack(file);
+            PACKS.put(directory, pack);
+        }
+        return pack;
+    }
+
+    /**
+     * Locate the resource within a packed subtree
+     * @param file the location the resource would have on disk if it were not packed
+     * @return the located resource, {@code null} if it is not in a packed subtree
+     */
+    static Located locate(Path file) {
+        // resources in packed subtrees have no directories, so the closest existing directory is the only candidate
+        for (Path dir = file.getParent(); dir != null; dir = dir.getParent()) {
+            SegmentPack pack = PACKS.get(dir);
+            if (pack == null) {
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+                try {
+                    pack = get(dir);
+                } catch (IOException e) {
+                    log.error("unable to open segment pack in {}", dir, e);
+                }
+                if (pack == null) {
+                    return null;
+                }
+            }
+            String path = relativePath(dir, file);
+            return pack.contains(path) ? new Located(pack, path) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Write the properties of a packed resource, compacting its segment when it has become fragmented
+     * @param located the packed resource
+     * @param properties the JSON properties
+     * @throws IOException if the properties can not be written
+     */
+    static void put(Located located, JSONObject properties) throws IOException {
+        located.pack.put(located.path, properties);
+        located.pack.compactIfFragmented(compactionThreshold);
+    }
+
+    /**
+     * Remove a packed resource and its descendants from their segment
+     * @param located the packed resource
+     * @throws IOException if the removal can not be written
+     */
+    static void remove(Located located) throws IOException {
+        for (String packed : located.pack.listSubtree(located.path)) {
+            located.pack.remove(packed);
+        }
+        located.pack.compactIfFragmented(compactionThreshold);
+    }
+
+    /**
+     * Close the open segments within the directory, such as before it is moved or deleted
+     * @param directory the directory
+     */
+    static synchronized void forget(Path directory) {
+        for (Iterator<Map.Entry<Path, SegmentPack>> iter = PACKS.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<Path, SegmentPack> entry = iter.next();
+            if (!entry.getKey().startsWith(directory)) {
+                continue;
+            }
+            iter.remove();
+            try {
+                entry.getValue().close();
+            } catch (IOException e) {
+                log.error("unable to close segment pack in {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Pack the descendants of the directory into a segment in it.
+     * The directory's own properties remain in its properties file.
+     * The locks of the packed resources are held throughout, so that commits to them are neither lost nor interleaved.
+     * @param directory the subtree root directory
+     * @return number of resources packed
+     * @throws IOException if the subtree can not be packed, such as when it holds binary files
+     * @see PersistenceHelper#lockOf(Path)
+     */
+    static int pack(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("no resource directory at " + directory);
+        }
+        List<Path> directories;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            directories = walk.filter(p -> !p.equals(directory) && Files.isDirectory(p)).sorted().collect(Collectors.toList());
+        }
+        // commits take the lock of their resource before this, so it is taken first as well
+        return PersistenceHelper.withLocksOf(directories, () -> {
+            synchronized (PackManager.class) {
+                return pack(directory, directories);
+            }
+        });
+    }
+
+    /**
+     * Pack the directories of the subtree, holding their locks
+     * @param directory the subtree root directory
+     * @param directories the directories of the descendants, sorted
+     * @return number of resources packed
+     * @throws IOException if the subtree can not be packed
+     */
+    private static int pack(Path directory, List<Path> directories) throws IOException {
+        // only properties can be packed, binary files need their resource directory
+        for (Path dir : directories) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    if (!Files.isDirectory(child) && !child.equals(PersistenceHelper.findPropertyFile(dir))) {
+                        throw new IOException("unable to pack " + directory + " as it holds the file " + child);
+                    }
+                }
+            }
+        }
+
+        SegmentPack pack = get(directory);
+        if (pack == null) {
+            pack = new SegmentPack(directory.resolve(FSPConstants.FILENAME_SEGMENT_PACK));
+            PACKS.put(directory, pack);
+        }
+        for (Path dir : directories) {
+            Path propFile = PersistenceHelper.findPropertyFile(dir);
+            try {
+                pack.put(relativePath(directory, dir), (propFile == null) ? new JSONObject()
+                        : PersistenceHelper.readPropertyFile(propFile));
+            } catch (JSONException e) {
+                throw new IOException("unable to read properties of " + dir, e);
+            }
+        }
+        // the properties are safely in the segment, so the directories can go
+        Collections.reverse(directories);
+        for (Path dir : directories) {
+            Path propFile = PersistenceHelper.findPropertyFile(dir);
+            if (propFile != null) {
+                Files.delete(propFile);
+            }
+            Files.delete(dir);
+        }
+        return directories.size();
+    }
+
+    /**
+     * Unpack the subtree back into directories and properties files, removing its segment
+     * @param directory the subtree root directory
+     * @return number of resources unpacked
+     * @throws IOException if the subtree can not be unpacked
+     */
+    static synchronized int unpack(Path directory) throws IOException {
+        SegmentPack pack = get(directory);
+        if (pack == null) {
+            return 0;
+        }
+        List<String> paths = pack.list();
+        for (String path : paths) {
+            Path dir = Files.createDirectories(directory.resolve(path));
+            JSONObject properties = pack.read(path);
+            if (properties.length() > 0) {
+                PersistenceHelper.writeProperties(dir, properties);
+            }
+        }
+        PACKS.remove(directory);
+        pack.close();
+        Files.delete(directory.resolve(FSPConstants.FILENAME_SEGMENT_PACK));
+        return paths.size();
+    }
+
+    /**
+     * Compact the segment of the subtree
+     * @param directory the subtree root directory
+     * @return state of the subtree being packed, and so compacted
+     * @throws IOException if the segment can not be compacted
+     */
+    static boolean compact(Path directory) throws IOException {
+        SegmentPack pack = get(directory);
+        if (pack == null) {
+            return false;
+        }
+        pack.compact();
+        return true;
+    }
+
+    /**
+     * Retrieve the relative path of the file from the subtree root, in resource path form
+     * @param root the subtree root directory
+     * @param file the file within the subtree
+     * @return the relative path, separated by {@link FSPConstants#RESOURCE_PATH_SEPARATOR}
+     */
+    static String relativePath(Path root, Path file) {
+        List<String> names = new ArrayList<>();
+        for (Path name : root.relativize(file)) {
+            names.add(name.toString());
+        }
+        return String.join(FSPConstants.RESOURCE_PATH_SEPARATOR, names);
+    }
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parallel walk of a resource and its descendants, splitting the subtrees into {@link ForkJoinTask}s.
+ * The resources that the visitor accepts are handed over through bounded buffers, so the walk waits for the consumer
+ * rather than holding its results in memory. It waits in place, without the pool adding threads in its stead,
+ * so that the walks never take more threads than the parallelism of the pool.
+ * The walk is cancelled once the limit of results is returned, the results are exhausted, the iterator is closed,
+ * or the pool is shut down. Iterators that are abandoned without being closed are only detected once collected.
+ * Unordered walks return the results as they are found. Ordered walks return them in the depth first order of
+ * {@link SubtreeIterator}, by walking the subtrees near the root in parallel and returning their results in turn.
+ */
+final class ParallelTraversal implements Iterator<FileSystemProviderResource>, AutoCloseable {
+
+    /** state of a walk that is shared with its tasks, which do not reference the iterator so that it can be collected */
+    private static final class Walk {
+        final Predicate<String> within;
+        final Predicate<FileSystemProviderResource> visitor;
+        /** maximum number of results that the tasks accept, 0 for no limit */
+        final int limit;
+        /** number of results accepted by the visitor */
+        final AtomicInteger accepted = new AtomicInteger();
+        /** state of the remaining work being skipped */
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        /** state of the consumer having stopped taking results */
+        final AtomicBoolean closed = new AtomicBoolean();
+        /** the iterator consuming the results, whose collection cancels the walk */
+        final WeakReference<ParallelTraversal> consumer;
+        /** the pool walking the subtrees, whose shutdown cancels the walk */
+        final ForkJoinPool walkers;
+
+        Walk(Predicate<String> within, Predicate<FileSystemProviderResource> visitor, int limit, ParallelTraversal consumer,
+                ForkJoinPool walkers) {
+            this.within = within;
+            this.visitor = visitor;
+            this.limit = limit;
+            this.consumer = new WeakReference<>(consumer);
+            this.walkers = walkers;
+        }
+
+        boolean isCancelled() {
+            return cancelled.get() || isClosed();
+        }
+
+        boolean isClosed() {
+            if (!closed.get() && (consumer.get() == null || walkers.isShutdown())) {
+                closed.set(true);
+            }
+            return closed.get();
+        }
+
+        /**
+         * Test the resource with the visitor, counting it towards the limit when accepted
+         * @param resource the resource to test
+         * @return state of the resource being a result
+         */
+        boolean accept(FileSystemProviderResource resource) {
+            if (!visitor.test(resource)) {
+                return false;
+            }
+            if (limit == 0) {
+                return true;
+            }
+            int count = accepted.incrementAndGet();
+            if (count >= limit) {
+                // the remaining work can not add results
+                cancelled.set(true);
+            }
+            return count <= limit;
+        }
+
+        /**
+         * Hand over an item to the consumer, waiting for room in the buffer
+         * @param buffer the buffer to the consumer
+         * @param item the item to hand over
+         * @return state of the item being handed over, {@code false} when the consumer has stopped taking results
+         */
+        boolean offer(BlockingQueue<Object> buffer, Object item) {
+            try {
+                // results accepted before the walk was cancelled still belong within the limit
+                while (!isClosed()) {
+                    if (buffer.offer(item, OFFER_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closed.set(true);
+            }
+            return false;
+        }
+    }
+
+    /** visits a resource, and forks to visit its children */
+    private static final class VisitTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Walk walk;
+        private final BlockingQueue<Object> buffer;
+        private final FileSystemProviderResource resource;
+
+        VisitTask(Walk walk, BlockingQueue<Object> buffer, FileSystemProviderResource resource) {
+            this.walk = walk;
+            this.buffer = buffer;
+            this.resource = resource;
+        }
+
+        @Override
+        protected void compute() {
+            if (walk.isCancelled()) {
+                return;
+            }
+            if (walk.accept(resource) && !walk.offer(buffer, resource)) {
+                return;
+            }
+            List<VisitTask> children = new ArrayList<>();
+            for (String name : childNames(resource)) {
+                if (walk.isCancelled()) {
+                    return;
+                }
+                if (walk.within.test(SubtreeIterator.childPath(resource.getPath(), name))) {
+                    FileSystemProviderResource child = resource.getChildResource(name);
+                    if (child != null) {
+                        children.add(new VisitTask(walk, buffer, child));
+                    }
+                }
+            }
+            invokeAll(children);
+        }
+    }
+
+    /** a part of an ordered walk, which is a resource alone or its whole subtree, walked into its own buffer */
+    private static final class Unit implements Runnable {
+        final Walk walk;
+        final FileSystemProviderResource resource;
+        /** state of the unit covering the resource's whole subtree, rather than the resource alone */
+        final boolean isSubtree;
+        final BlockingQueue<Object> buffer = new ArrayBlockingQueue<>(BUFFER_SIZE);
+
+        Unit(Walk walk, FileSystemProviderResource resource, boolean isSubtree) {
+            this.walk = walk;
+            this.resource = resource;
+            this.isSubtree = isSubtree;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Iterator<FileSystemProviderResource> resources = isSubtree ? new SubtreeIterator(resource, walk.within)
+                        : Collections.singletonList(resource).iterator();
+                while (!walk.isCancelled() && resources.hasNext()) {
+                    FileSystemProviderResource next = resources.next();
+                    if (walk.accept(next) && !walk.offer(buffer, next)) {
+                        return;
+                    }
+                }
+            } catch (RuntimeException e) {
+                logFailure(walk, resource, e);
+            } finally {
+                walk.offer(buffer, END);
+            }
+        }
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(ParallelTraversal.class);
+
+    /** marker of the end of a buffer's results */
+    private static final Object END = new Object();
+
+    /** number of results held by a buffer */
+    static final int BUFFER_SIZE = 256;
+
+    /** time waited on a full buffer between checks of the walk being cancelled */
+    private static final long OFFER_WAIT_MS = 100;
+
+    /** time waited on an empty buffer between checks of the pool having been shut down */
+    private static final long POLL_WAIT_MS = 100;
+
+    /** number of subtrees per thread that an ordered walk aims to split into */
+    private static final int UNITS_PER_THREAD = 4;
+
+    /** number of levels below the root that an ordered walk splits at most */
+    private static final int MAX_SPLIT_DEPTH = 3;
+
+    /** the pool walking the subtrees */
+    private static volatile ForkJoinPool pool;
+
+    private final Walk walk;
+
+    /** the pool walking the subtrees of this walk */
+    private final ForkJoinPool walkers;
+
+    /** maximum number of results, 0 for no limit */
+    private final int limit;
+
+    /** the buffer of an unordered walk, {@code null} for an ordered walk */
+    private final BlockingQueue<Object> buffer;
+
+    /** the units of an ordered walk yet to be started, in order */
+    private final Deque<Unit> pending = new ArrayDeque<>();
+
+    /** the started units of an ordered walk, in order, where the first is being returned */
+    private final Deque<Unit> started = new ArrayDeque<>();
+
+    /** number of units of an ordered walk that run at once */
+    private final int window;
+
+    /** number of results returned */
+    private int returned;
+
+    /** the result to return next, {@code null} when it has yet to be found */
+    private FileSystemProviderResource next;
+
+    /** state of every result having been returned */
+    private boolean finished;
+
+    /**
+     * Start a walk of the subtree
+     * @param root the root of the subtree, which is visited first
+     * @param within check of a descendant's path being walked. descendants of paths that fail it are not walked either.
+     * @param visitor check of a resource being a result
+     * @param limit maximum number of results, 0 for no limit
+     * @param ordered state of the results being returned in depth first order
+     */
+    ParallelTraversal(FileSystemProviderResource root, Predicate<String> within, Predicate<FileSystemProviderResource> visitor,
+            int limit, boolean ordered) {
+        this.limit = Math.max(0, limit);
+        // ordered results are limited as they are returned, as later subtrees may find theirs first
+        walkers = getPool();
+        walk = new Walk(within, visitor, ordered ? 0 : this.limit, this, walkers);
+        window = walkers.getParallelism();
+        if (ordered) {
+            buffer = null;
+            pending.addAll(split(root));
+        } else {
+            BlockingQueue<Object> results = new ArrayBlockingQueue<>(BUFFER_SIZE);
+            buffer = results;
+            Walk shared = walk;
+            walkers.execute(() -> {
+                try {
+                    new VisitTask(shared, results, root).invoke();
+                } catch (RuntimeException e) {
+                    logFailure(shared, root, e);
+                } finally {
+                    shared.offer(results, END);
+                }
+            });
+        }
+    }
+
+    /**
+     * Initialize from the configuration
+     * @param config the configuration to initialize with
+     */
+    static synchronized void init(FileSystemProviderConfig config) {
+        destroy();
+        int parallelism = (config.traversal_parallelism() > 0) ? config.traversal_parallelism()
+                : Runtime.getRuntime().availableProcessors();
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Uninitialize, stopping the walks in progress
+     */
+    static synchronized void destroy() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Retrieve the pool walking the subtrees, starting one of the default parallelism when there is none,
+     * rather than using the common pool that the walks could not be stopped in
+     * @return the pool
+     */
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /**
+     * Log the failure of walking a subtree, unless the walk was cancelled, such as by the provider being stopped
+     * @param walk the walk
+     * @param resource the root of the subtree
+     * @param e the failure
+     */
+    private static void logFailure(Walk walk, FileSystemProviderResource resource, RuntimeException e) {
+        if (walk.isCancelled()) {
+            log.debug("cancelled walk of the subtree of {} failed", resource.getPath(), e);
+        } else {
+            log.error("Unable to walk the subtree of {}", resource.getPath(), e);
+        }
+    }
+
+    /**
+     * Split the subtree into units in depth first order, until there are enough subtrees to keep the pool busy
+     * @param root the subtree root
+     * @return the units
+     */
+    private List<Unit> split(FileSystemProviderResource root) {
+        List<Unit> units = new ArrayList<>();
+        units.add(new Unit(walk, root, true));
+        int wanted = window * UNITS_PER_THREAD;
+        for (int depth = 0; depth < MAX_SPLIT_DEPTH; ++depth) {
+            List<Unit> split = new ArrayList<>();
+            int subtrees = 0;
+            for (Unit unit : units) {
+                if (!unit.isSubtree) {
+                    split.add(unit);
+                    continue;
+                }
+                split.add(new Unit(walk, unit.resource, false));
+                for (String name : childNames(unit.resource)) {
+                    if (walk.within.test(SubtreeIterator.childPath(unit.resource.getPath(), name))) {
+                        FileSystemProviderResource child = unit.resource.getChildResource(name);
+                        if (child != null) {
+                            split.add(new Unit(walk, child, true));
+                            ++subtrees;
+                        }
+                    }
+                }
+            }
+            units = split;
+            if (subtrees == 0 || subtrees >= wanted) {
+                break;
+            }
+        }
+        return units;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (finished || (limit > 0 && returned >= limit)) {
+            close();
+            return false;
+        }
+        try {
+            while (next == null) {
+                Object item;
+                if (buffer != null) {
+                    item = buffer.poll(POLL_WAIT_MS, TimeUnit.MILLISECONDS);
+                    if (item == END) {
+                        break;
+                    }
+                } else {
+                    while (started.size() < window && !pending.isEmpty()) {
+                        Unit unit = pending.poll();
+                        try {
+                            walkers.execute(unit);
+                        } catch (RejectedExecutionException e) {
+                            // the pool was shut down, so the remaining units are never walked
+                            pending.clear();
+                            break;
+                        }
+                        started.add(unit);
+                    }
+                    Unit current = started.peek();
+                    if (current == null) {
+                        break;
+                    }
+                    item = current.buffer.poll(POLL_WAIT_MS, TimeUnit.MILLISECONDS);
+                    if (item == END) {
+                        started.poll();
+                        continue;
+                    }
+                }
+                if (item == null) {
+                    if (walkers.isShutdown()) {
+                        // the walk was stopped along with the pool, and its remaining results never arrive
+                        break;
+                    }
+                    continue;
+                }
+                next = (FileSystemProviderResource) item;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (next == null) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public FileSystemProviderResource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        FileSystemProviderResource result = next;
+        next = null;
+        ++returned;
+        if (limit > 0 && returned >= limit) {
+            // consumers stop asking once they have the limit, so the walk is stopped with the last result
+            close();
+        }
+        return result;
+    }
+
+    /**
+     * Cancel the walk, discarding the results that have not been returned
+     */
+    @Override
+    public void close() {
+        finished = true;
+        next = null;
+        walk.closed.set(true);
+        pending.clear();
+        started.clear();
+        if (buffer != null) {
+            buffer.clear();
+        }
+    }
+
+    private static List<String> childNames(FileSystemProviderResource resource) {
+        try {
+            return PersistenceHelper.getChildNames(resource);
+        } catch (IOException e) {
+            log.error("Unable to list the children of {}", resource.getPath(), e);
+            return Collections.emptyList();
+        }
+    }
+}
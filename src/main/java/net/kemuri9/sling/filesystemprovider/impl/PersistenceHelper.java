@@ -15,20 +15,34 @@
  */
 package net.kemuri9.sling.filesystemprovider.impl;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -44,49 +58,47 @@ import net.kemuri9.sling.filesystemprovider.Binary;
 final class PersistenceHelper {
 
     /** small bean class to assist with the json handling of binary types */
+    /** work done holding the locks of several resources */
+    interface LockedWork<T> {
+        T run() throws IOException;
+    }
+
     static final class JSONStorage {
         /** the value to store in the JSON */
         public final Object value;
         /** the state of the value being a binary data value. */
         public final boolean isBinary;
+        /** the state of the binary data value being stored inline, rather than in a file. */
+        public final boolean isInline;
 
         public JSONStorage(Object value) {
             this(value, false);
         }
 
         public JSONStorage(Object value, boolean isBinary) {
+            this(value, isBinary, false);
+        }
+
+        public JSONStorage(Object value, boolean isBinary, boolean isInline) {
             this.value = value;
             this.isBinary = isBinary;
+            this.isInline = isInline;
         }
     }
 
     /** slf4j logger */
     private static Logger log = LoggerFactory.getLogger(PersistenceHelper.class);
 
-    /** file filter to find the properties file in the resource directory */
-    private static DirectoryStream.Filter<Path> DIR_STREAM_FILTER_PROPERTIES = new DirectoryStream.Filter<Path>() {
-        @Override
-        public boolean accept(Path pathname) throws IOException {
-            String name = pathname.getFileName().toString();
-            if (!name.startsWith(FSPConstants.FILENAME_PREFIX_FSP + FSPConstants.FILENAME_FRAGMENT_PROPERTIES_FILE)) {
-                return false;
-            }
-            String suffix = name.substring((FSPConstants.FILENAME_PREFIX_FSP + FSPConstants.FILENAME_FRAGMENT_PROPERTIES_FILE).length());
-            JSONCompression compression = JSONCompression.fromExtension(suffix);
-            return compression != null;
-        }
-    };
+    /** number of bytes at the start of a properties file that identify its format and codec */
+    private static final int MAGIC_LENGTH = 4;
 
-    /** retrieve the compression format from the specified file */
-    static JSONCompression compressionFromFile(Path file) {
-        String fileName = file.getFileName().toString();
-        for (JSONCompression compression : JSONCompression.values()) {
-            if (fileName.endsWith(compression.extension)) {
-                return compression;
-            }
+    /** locks serializing the writes of the properties stored for resources, striped by the resource's folder */
+    private static final Object[] PATH_LOCKS = new Object[64];
+
+    static {
+        for (int idx = 0; idx < PATH_LOCKS.length; ++idx) {
+            PATH_LOCKS[idx] = new Object();
         }
-        // default to NONE
-        return JSONCompression.NONE;
     }
 
     /**
@@ -96,6 +108,20 @@ final class PersistenceHelper {
      * A return of {@code null} means that the type is unsupported for storage.
      */
     static Object convertToJSONStorage(Object val) {
+        Object storage = convertNativeToJSONStorage(val);
+        if (storage == null && val instanceof Serializable) {
+            return convertNativeToJSONStorage(ValueConversion.convert(val, Binary.class));
+        }
+        return storage;
+    }
+
+    /**
+     * Returns an Object of how to store the object in JSON, for the types that are stored without serialization.
+     * @param val the value to store in JSON.
+     * @return a {@link JSONStorage} object for the types that require the extra meta information, otherwise the value to store.
+     * A return of {@code null} means that the type is not natively stored.
+     */
+    private static Object convertNativeToJSONStorage(Object val) {
         // nulls to convert to the JSON variation
         if (val == null) {
             return JSONObject.NULL;
@@ -112,6 +138,10 @@ final class PersistenceHelper {
         if (val instanceof FileBinary) {
             return new JSONStorage(((FileBinary) val).getName(), true);
         }
+        // in memory binaries are small enough to be stored inline
+        if (val instanceof MemoryBinary) {
+            return new JSONStorage(Base64.getEncoder().encodeToString(((MemoryBinary) val).getBytes()), true, true);
+        }
         // user implemented Binary interface - should not actually happen
         if (val instanceof Binary) {
             return null;
@@ -133,9 +163,6 @@ final class PersistenceHelper {
         if (val instanceof TemporalAccessor) {
             return ValueConversion.convert(val, String.class);
         }
-        if (val instanceof Serializable) {
-            return convertToJSONStorage(ValueConversion.convert(val, Binary.class));
-        }
         // unsupported
         return null;
     }
@@ -163,21 +190,33 @@ final class PersistenceHelper {
         }
 
         JSONObject jsonObj = new JSONObject();
-        jsonObj.put(FSPConstants.JSON_KEY_TYPE, type);
+        jsonObj.put(FSPConstants.JSON_KEY_TYPE, typeReference(type));
         boolean isBinary = false;
+        boolean isInline = false;
         if (isArray) {
             int arrSize = Array.getLength(obj);
-            JSONArray arr = new JSONArray();
-            jsonObj.put(FSPConstants.JSON_KEY_VALUES, arr);
+            Object[] storages = new Object[arrSize];
+            boolean hasFile = false;
             for (int arr_i = 0; arr_i < arrSize; ++arr_i) {
                 Object arr_val_i = Array.get(obj, arr_i);
                 Object storage = convertToJSONStorage(arr_val_i);
                 if (storage instanceof JSONStorage) {
                     JSONStorage jsonStore = (JSONStorage) storage;
                     isBinary |= jsonStore.isBinary;
-                    storage = jsonStore.value;
+                    isInline |= jsonStore.isInline;
+                    hasFile |= jsonStore.isBinary && !jsonStore.isInline;
                 }
-                arr.put(storage);
+                storages[arr_i] = storage;
+            }
+            // inline storage applies to the whole property, so when mixed the inline values go to files
+            if (isInline && hasFile) {
+                isInline = false;
+                spillInline(storages);
+            }
+            JSONArray arr = new JSONArray();
+            jsonObj.put(FSPConstants.JSON_KEY_VALUES, arr);
+            for (Object storage : storages) {
+                arr.put((storage instanceof JSONStorage) ? ((JSONStorage) storage).value : storage);
             }
         } else {
             // singly valued type
@@ -186,45 +225,79 @@ final class PersistenceHelper {
                 JSONStorage jsonStore = (JSONStorage) storage;
                 storage = jsonStore.value;
                 isBinary = jsonStore.isBinary;
+                isInline = jsonStore.isInline;
             }
             jsonObj.put(FSPConstants.JSON_KEY_VALUE, storage);
         }
         if (isBinary) {
             jsonObj.put(FSPConstants.JSON_KEY_BINARY, true);
         }
+        if (isInline) {
+            jsonObj.put(FSPConstants.JSON_KEY_INLINE, true);
+        }
 
         return jsonObj;
     }
 
 
+    /**
+     * Retrieve how to reference the type in the JSON storage
+     * @param type name of the type
+     * @return the id of the type in the {@link TypeDictionary} when it is in use, otherwise the name of the type
+     */
+    private static Object typeReference(String type) {
+        if (TypeDictionary.isWriting()) {
+            try {
+                return TypeDictionary.idOf(type);
+            } catch (IOException e) {
+                log.error("Unable to add type {} to the type dictionary, storing its name instead", type, e);
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Move the inline stored binary values into temporary files
+     * @param storages the storage values to update
+     * @throws JSONException if a temporary file can not be created
+     */
+    private static void spillInline(Object[] storages) throws JSONException {
+        for (int idx = 0; idx < storages.length; ++idx) {
+            if (!(storages[idx] instanceof JSONStorage) || !((JSONStorage) storages[idx]).isInline) {
+                continue;
+            }
+            byte[] data = Base64.getDecoder().decode((String) ((JSONStorage) storages[idx]).value);
+            try {
+                storages[idx] = convertToJSONStorage(new FileBinary(new ByteArrayInputStream(data)));
+            } catch (IOException e) {
+                throw new JSONException("unable to store inline binary into a file: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Retrieve properties for the specified resource
      * @param resource resource to retrieve the properties for
      * @return properties for the resource
      */
     static Map<String, Object> getProperties(FileSystemProviderResource resource) {
+        PropertySource source = resource.getPropertySource();
+        if (source != null) {
+            try {
+                JSONObject jsonProps = source.readProperties();
+                return (jsonProps == null) ? new TreeMap<>() : toProperties(resource.getPath(), source, jsonProps);
+            } catch (IOException e) {
+                log.error("Error occurred while reading stored properties of '{}'", resource.getPath(), e);
+                return new TreeMap<>();
+            }
+        }
+
         Path propFile = getPropertyFile(resource);
         Map<String, Object> properties = new TreeMap<>();
         if (propFile != null) {
 
-            // otherwise try and read the file accordingly
-            JSONCompression compression = compressionFromFile(propFile);
-            try (InputStreamReader reader = new InputStreamReader(
-                    compression.wrapInput(Files.newInputStream(propFile)), StandardCharsets.UTF_8)) {
-                String content = Util.slurp(reader);
-                JSONObject jsonProps = new JSONObject(content);
-
-                for (Iterator<String> keyIter = jsonProps.keys(); keyIter.hasNext();) {
-                    String key = keyIter.next();
-                    JSONObject jsonProp = jsonProps.optJSONObject(key);
-                    if (jsonProp == null) {
-                        log.warn("json key {} was not an Object", key);
-                    }
-
-                    Object value = readJSONPropertyValue(resource.getPath(), jsonProp);
-                    properties.put(key, value);
-                }
-
+            try {
+                properties = toProperties(resource.getPath(), null, readPropertyFile(propFile));
             } catch (FileNotFoundException e) {
                 log.error("Property file '{}' disappeared", propFile);
             } catch (IOException e) {
@@ -237,39 +310,594 @@ final class PersistenceHelper {
         return properties;
     }
 
-    private static Path getPropertyFile(FileSystemProviderResource resource) {
+    /**
+     * Convert the JSON properties into their property values
+     * @param path the resource path
+     * @param source storage of the properties, {@code null} when they are stored in the resource's folder
+     * @param jsonProps the JSON properties, keyed by property name
+     * @return the property values, keyed by property name
+     */
+    private static Map<String, Object> toProperties(String path, PropertySource source, JSONObject jsonProps) {
+        Map<String, Object> properties = new TreeMap<>();
+        for (Iterator<String> keyIter = jsonProps.keys(); keyIter.hasNext();) {
+            String key = keyIter.next();
+            JSONObject jsonProp = jsonProps.optJSONObject(key);
+            if (jsonProp == null) {
+                log.warn("json key {} was not an Object", key);
+            }
+
+            Object value = readJSONPropertyValue(path, source, jsonProp);
+            properties.put(key, value);
+        }
+        return properties;
+    }
+
+    /**
+     * Read the JSON properties of the properties file, in whichever format it is in
+     * @param propFile the properties file to read
+     * @return the JSON properties, keyed by property name
+     * @throws IOException if the properties file can not be read
+     * @throws JSONException if the JSON content can not be parsed
+     */
+    static JSONObject readPropertyFile(Path propFile) throws IOException, JSONException {
+        byte[] content = readPropertyContent(propFile);
+        if (BinaryPropertyFormat.isBinaryFormat(content, content.length)) {
+            return BinaryPropertyFormat.read(ByteBuffer.wrap(content));
+        }
+        return JSONByteParser.parseObject(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Read the content of the properties file, decompressing JSON content and leaving binary content as it is
+     * @param propFile the properties file to read
+     * @return UTF-8 JSON or binary format content of the properties file
+     * @throws IOException if the properties file can not be read
+     */
+    static byte[] readPropertyContent(Path propFile) throws IOException {
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(propFile), FSPConstants.BUFFER_SIZE)) {
+            // identify the format by its content rather than trusting the file name
+            byte[] magic = readMagic(input);
+            if (BinaryPropertyFormat.isBinaryFormat(magic, magic.length)) {
+                return Util.slurp(input);
+            }
+            JSONCompression compression = JSONCompression.fromMagic(magic, magic.length);
+            return Util.slurp(Util.getPropertyCodec(compression).wrapInput(input));
+        }
+    }
+
+    /**
+     * Read the persisted properties of the resource as UTF-8 JSON, without decoding the values.
+     * JSON properties files are only decompressed, while properties in other formats are converted into JSON.
+     * @param resource the resource to read the properties of
+     * @return UTF-8 bytes of the JSON properties, keyed by property name. {@code null} if the resource has none
+     * @throws IOException if the properties can not be read
+     */
+    static byte[] readRawProperties(FileSystemProviderResource resource) throws IOException {
+        return readRawProperties(resource.getFile(), resource.getPropertySource());
+    }
+
+    /**
+     * Read the persisted properties of a resource as UTF-8 JSON, without decoding the values or creating the resource.
+     * @param directory the resource directory
+     * @param source storage of the properties, {@code null} when they are stored in the resource's folder
+     * @return UTF-8 bytes of the JSON properties, keyed by property name. {@code null} if the resource has none
+     * @throws IOException if the properties can not be read
+     */
+    static byte[] readRawProperties(Path directory, PropertySource source) throws IOException {
+        if (source != null) {
+            JSONObject jsonProps = source.readProperties();
+            return (jsonProps == null) ? null : jsonProps.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        Path propFile = findPropertyFile(directory);
+        if (propFile == null) {
+            return null;
+        }
+        byte[] content = readPropertyContent(propFile);
+        if (BinaryPropertyFormat.isBinaryFormat(content, content.length)) {
+            return BinaryPropertyFormat.read(ByteBuffer.wrap(content)).toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return content;
+    }
+
+    /**
+     * Read the magic bytes at the start of the properties file, leaving the stream at its start
+     * @param input stream of the properties file, supporting mark
+     * @return the magic bytes, fewer than {@link #MAGIC_LENGTH} if the file is shorter
+     * @throws IOException if the file can not be read
+     */
+    private static byte[] readMagic(InputStream input) throws IOException {
+        byte[] magic = new byte[MAGIC_LENGTH];
+        input.mark(MAGIC_LENGTH);
+        int length = 0;
+        int read;
+        while (length < MAGIC_LENGTH && (read = input.read(magic, length, MAGIC_LENGTH - length)) >= 0) {
+            length += read;
+        }
+        input.reset();
+        return (length == MAGIC_LENGTH) ? magic : Arrays.copyOf(magic, length);
+    }
+
+    /**
+     * Retrieve the names of the resource's children
+     * @param resource the resource to retrieve the child names of
+     * @return names of the children, sorted
+     * @throws IOException if the children can not be listed
+     */
+    static List<String> getChildNames(FileSystemProviderResource resource) throws IOException {
+        PropertySource source = resource.getPropertySource();
+        if (source != null) {
+            return source.getChildNames();
+        }
+        TreeSet<String> names = new TreeSet<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(resource.getFile(), Files::isDirectory)) {
+            for (Path child : children) {
+                String name = child.getFileName().toString();
+                if (!name.startsWith(FSPConstants.FILENAME_PREFIX_FSP)) {
+                    names.add(name);
+                }
+            }
+        }
+        // children of a packed subtree root have no directories
+        SegmentPack pack = PackManager.get(resource.getFile());
+        if (pack != null) {
+            names.addAll(pack.childNames(""));
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Retrieve the lock serializing the writes of the properties stored for a resource, which commits hold from reading
+     * the previous properties until the indexes are updated. Locks are shared by the folders hashing alike.
+     * @param directory the resource's folder
+     * @return the lock of the folder
+     */
+    static Object lockOf(Path directory) {
+        return PATH_LOCKS[stripeOf(directory)];
+    }
+
+    /**
+     * Do the work holding the locks of all of the folders, such as for changes of whole subtrees.
+     * The locks are taken in the order of their stripes, so that holders of several locks do not deadlock each other.
+     * @param directories the resources' folders
+     * @param work the work to do
+     * @return the result of the work
+     * @throws IOException if the work fails
+     * @see #lockOf(Path)
+     */
+    static <T> T withLocksOf(Iterable<Path> directories, LockedWork<T> work) throws IOException {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Path directory : directories) {
+            stripes.add(stripeOf(directory));
+        }
+        return withLocks(stripes.iterator(), work);
+    }
+
+    private static <T> T withLocks(Iterator<Integer> stripes, LockedWork<T> work) throws IOException {
+        if (!stripes.hasNext()) {
+            return work.run();
+        }
+        synchronized (PATH_LOCKS[stripes.next()]) {
+            return withLocks(stripes, work);
+        }
+    }
+
+    private static int stripeOf(Path directory) {
+        return (directory.toAbsolutePath().normalize().hashCode() & Integer.MAX_VALUE) % PATH_LOCKS.length;
+    }
+
+    /**
+     * Persist the properties of the resource, replacing its stored properties, and update the indexes.
+     * File binaries are moved or copied into the resource's folder, and the files of binaries that are no longer
+     * referenced are removed.
+     * @param path the resource path
+     * @param properties the property values to persist, keyed by property name
+     * @throws IOException if the properties can not be persisted, such as for resources of repository images
+     */
+    static void commitProperties(String path, Map<String, Object> properties) throws IOException {
+        checkWritable(path);
+        Path directory = Paths.get(Util.getAbsPath(path));
+        // the previous properties are read under the lock, so that concurrent commits index the changes of each other
+        synchronized (lockOf(directory)) {
+            PackManager.Located packed = Files.isDirectory(directory) ? null : PackManager.locate(directory);
+            JSONObject previous;
+            if (packed != null) {
+                previous = packed.readProperties();
+            } else {
+                Path propFile = findPropertyFile(directory);
+                try {
+                    previous = (propFile == null) ? null : readPropertyFile(propFile);
+                } catch (JSONException e) {
+                    throw new IOException("unable to read the stored properties of " + path, e);
+                }
+            }
+
+            JSONObject jsonProps = new JSONObject();
+            Set<String> binaryFiles = new HashSet<>();
+            try {
+                for (Map.Entry<String, Object> property : properties.entrySet()) {
+                    Object value = toFileBinaries(property.getValue());
+                    if (value instanceof FileBinary || value instanceof FileBinary[]) {
+                        if (packed != null) {
+                            throw new IOException("packed resource " + path + " can not hold the binary file of "
+                                    + property.getKey());
+                        }
+                        value = persistBinaries(directory, value);
+                        FileBinary[] binaries = (value instanceof FileBinary) ? new FileBinary[] {(FileBinary) value} : (FileBinary[]) value;
+                        for (FileBinary binary : binaries) {
+                            if (binary != null) {
+                                binaryFiles.add(binary.getName());
+                            }
+                        }
+                    }
+                    jsonProps.put(property.getKey(), createJSONPropertyObject(value));
+                }
+            } catch (JSONException e) {
+                throw new IOException("unable to convert the properties of " + path, e);
+            }
+
+            if (packed != null) {
+                PackManager.put(packed, jsonProps);
+            } else {
+                writeProperties(Files.createDirectories(directory), jsonProps);
+                deleteUnreferencedBinaries(directory, previous, binaryFiles);
+            }
+            IndexManager.update(path, packed, previous, properties);
+            if (QueryCache.isEnabled()) {
+                QueryCache.committed(path, (previous == null) ? null : changedProperties(previous, jsonProps));
+            }
+        }
+    }
+
+    /**
+     * Retrieve the names of the properties whose stored JSON differs
+     * @param previous the previously stored JSON properties
+     * @param current the stored JSON properties
+     * @return names of the properties that were added, removed or changed
+     */
+    private static Set<String> changedProperties(JSONObject previous, JSONObject current) {
+        Set<String> names = new HashSet<>();
+        names.addAll(previous.keySet());
+        names.addAll(current.keySet());
+        names.removeIf(name -> {
+            JSONObject before = previous.optJSONObject(name);
+            JSONObject after = current.optJSONObject(name);
+            // binary content may change without changing its JSON
+            return before != null && after != null && !before.optBoolean(FSPConstants.JSON_KEY_BINARY, false)
+                    && before.toString().equals(after.toString());
+        });
+        return names;
+    }
+
+    /**
+     * Delete the resource and its descendants, and remove them from the indexes.
+     * The locks of the resources are held, so that commits to them neither interleave with the deletion
+     * nor leave their properties behind.
+     * @param path the resource path
+     * @throws IOException if the resource can not be deleted, such as when it does not exist
+     */
+    static void deleteResource(String path) throws IOException {
+        checkWritable(path);
+        Path directory = Paths.get(Util.getAbsPath(path));
+        PackManager.Located packed = Files.isDirectory(directory) ? null : PackManager.locate(directory);
+        if (packed == null && !Files.isDirectory(directory)) {
+            throw new FileNotFoundException("resource " + path + " does not exist");
+        }
+        withLocksOf(subtreeFolders(directory, packed), () -> {
+            IndexManager.IndexedSubtree indexed = IndexManager.collect(path);
+            if (packed != null) {
+                PackManager.remove(packed);
+            } else {
+                PackManager.forget(directory);
+                Files.walkFileTree(directory, new Util.DeletingFileVisitor(false));
+            }
+            IndexManager.removed(indexed);
+            return null;
+        });
+        QueryCache.changedWithin(path);
+    }
+
+    /**
+     * Move the resource and its descendants, and relocate them in the indexes.
+     * The locks of the resources at both the source and the destination are held, as for deletes.
+     * @param source path of the resource
+     * @param destination path to move the resource to, whose parent must exist
+     * @throws IOException if the resource can not be moved, such as when it is packed
+     */
+    static void moveResource(String source, String destination) throws IOException {
+        checkWritable(source);
+        checkWritable(destination);
+        Path sourceDirectory = Paths.get(Util.getAbsPath(source));
+        Path destinationDirectory = Paths.get(Util.getAbsPath(destination));
+        if (!Files.isDirectory(sourceDirectory)) {
+            throw new IOException("resource " + source + " can not be moved, as it is not a folder");
+        }
+        if (!Files.isDirectory(destinationDirectory.getParent())) {
+            throw new IOException("resource " + destination + " can not be moved to, as its parent is not a folder");
+        }
+        List<Path> folders = new ArrayList<>();
+        for (Path folder : subtreeFolders(sourceDirectory, null)) {
+            folders.add(folder);
+            folders.add(destinationDirectory.resolve(sourceDirectory.relativize(folder)));
+        }
+        withLocksOf(folders, () -> {
+            IndexManager.IndexedSubtree indexed = IndexManager.collect(source);
+            PackManager.forget(sourceDirectory);
+            Files.move(sourceDirectory, destinationDirectory);
+            IndexManager.moved(indexed, source, destination);
+            return null;
+        });
+        QueryCache.changedWithin(source);
+        QueryCache.changedWithin(destination);
+    }
+
+    /**
+     * Retrieve the folders of the resources of a subtree, which are the folders that their locks are taken by.
+     * Packed resources have no folders, and are given the folders they would have if unpacked.
+     * @param directory the folder of the subtree root
+     * @param packed the subtree root when it is packed, otherwise {@code null}
+     * @return the folders of the resources of the subtree
+     * @throws IOException if the subtree can not be listed
+     */
+    private static List<Path> subtreeFolders(Path directory, PackManager.Located packed) throws IOException {
+        List<Path> folders = new ArrayList<>();
+        if (packed != null) {
+            for (String descendant : packed.pack.listSubtree(packed.path)) {
+                String relative = descendant.substring(packed.path.length());
+                folders.add(relative.isEmpty() ? directory : directory.resolve(relative.substring(1)));
+            }
+            return folders;
+        }
+        try (Stream<Path> walk = Files.walk(directory)) {
+            walk.filter(Files::isDirectory).forEach(folders::add);
+        }
+        for (Path folder : new ArrayList<>(folders)) {
+            SegmentPack pack = PackManager.get(folder);
+            if (pack != null) {
+                for (String descendant : pack.list()) {
+                    folders.add(folder.resolve(descendant));
+                }
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * Check that the resource can be modified
+     * @param path the resource path
+     * @throws IOException if the resource is read only, as it is served from a repository image
+     */
+    private static void checkWritable(String path) throws IOException {
+        if (ImageManager.imageOf(path) != null) {
+            throw new IOException("resource " + path + " is read only, as it is served from a repository image");
+        }
+    }
+
+    /**
+     * Convert the value to the binaries it is stored as, so that the binaries stored in files are known ahead of storage.
+     * Serialized values become binaries, and arrays with binaries stored in files store all of their binaries in files.
+     * @param value the value to convert
+     * @return the value, with the binaries stored in files as {@link FileBinary}s
+     * @throws IOException if a binary can not be stored into a file
+     */
+    private static Object toFileBinaries(Object value) throws IOException {
+        if (value instanceof Object[]) {
+            Object[] values = (Object[]) value;
+            Object[] converted = new Object[values.length];
+            boolean hasFile = false;
+            for (int idx = 0; idx < values.length; ++idx) {
+                converted[idx] = toFileBinaries(values[idx]);
+                hasFile |= converted[idx] instanceof FileBinary;
+            }
+            if (!hasFile) {
+                return value;
+            }
+            // mirror createJSONPropertyObject, which stores every binary of the array in files when any is
+            FileBinary[] binaries = new FileBinary[converted.length];
+            for (int idx = 0; idx < converted.length; ++idx) {
+                Object element = converted[idx];
+                if (element instanceof MemoryBinary) {
+                    element = new FileBinary(new ByteArrayInputStream(((MemoryBinary) element).getBytes()));
+                } else if (element != null && !(element instanceof FileBinary)) {
+                    // not only binaries, stored as the values are
+                    return value;
+                }
+                binaries[idx] = (FileBinary) element;
+            }
+            return binaries;
+        }
+        if (value instanceof Serializable && !(value instanceof Binary) && convertNativeToJSONStorage(value) == null) {
+            return ValueConversion.convert(value, Binary.class);
+        }
+        return value;
+    }
+
+    /**
+     * Move or copy the file binaries of the value into the resource folder, where they are found by their name
+     * @param directory the resource folder
+     * @param value a {@link FileBinary} or array of them
+     * @return the value, with the binaries that were copied replaced by their copies
+     * @throws IOException if a binary can not be moved or copied
+     */
+    private static Object persistBinaries(Path directory, Object value) throws IOException {
+        if (value instanceof FileBinary[]) {
+            FileBinary[] binaries = ((FileBinary[]) value).clone();
+            for (int idx = 0; idx < binaries.length; ++idx) {
+                binaries[idx] = (FileBinary) persistBinaries(directory, binaries[idx]);
+            }
+            return binaries;
+        }
+        FileBinary binary = (FileBinary) value;
+        if (binary == null || directory.equals(binary.getFile().toAbsolutePath().getParent())) {
+            return binary;
+        }
+        Files.createDirectories(directory);
+        Path target = directory.resolve(binary.getName());
+        if (binary.isTemporary()) {
+            binary.move(target);
+            binary.setTemporary(false);
+            return binary;
+        }
+        // the binary belongs to another resource, which keeps it
+        Files.copy(binary.getFile(), target, StandardCopyOption.REPLACE_EXISTING);
+        return new FileBinary(target);
+    }
+
+    /**
+     * Delete the binary files that the previous properties referenced, and the new ones no longer do
+     * @param directory the resource folder
+     * @param previous the previous JSON properties, {@code null} if there were none
+     * @param referenced names of the binary files that the new properties reference
+     * @throws IOException if a file can not be deleted
+     */
+    private static void deleteUnreferencedBinaries(Path directory, JSONObject previous, Set<String> referenced)
+            throws IOException {
+        if (previous == null) {
+            return;
+        }
+        for (Iterator<String> keyIter = previous.keys(); keyIter.hasNext();) {
+            JSONObject property = previous.optJSONObject(keyIter.next());
+            if (property == null || !property.optBoolean(FSPConstants.JSON_KEY_BINARY, false)
+                    || property.optBoolean(FSPConstants.JSON_KEY_INLINE, false)) {
+                continue;
+            }
+            JSONArray values = property.optJSONArray(FSPConstants.JSON_KEY_VALUES);
+            List<Object> names = new ArrayList<>();
+            if (values == null) {
+                names.add(property.opt(FSPConstants.JSON_KEY_VALUE));
+            } else {
+                for (int idx = 0; idx < values.length(); ++idx) {
+                    names.add(values.opt(idx));
+                }
+            }
+            for (Object name : names) {
+                if (name instanceof String && !referenced.contains(name)
+                        && !((String) name).contains(FSPConstants.FILENAME_FRAGMENT_TEMPORARY)) {
+                    Files.deleteIfExists(directory.resolve((String) name));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the properties file into the resource directory, in the configured format and codec,
+     * or the codec chosen for the file when compression is adaptive.
+     * Properties files of other formats in the directory are removed.
+     * @param directory the resource directory to write the properties file into
+     * @param properties the JSON properties to write, as created by {@link #createJSONPropertyObject(Object)} per property
+     * @return the written properties file
+     * @throws IOException if the properties file can not be written
+     */
+    static Path writeProperties(Path directory, JSONObject properties) throws IOException {
+        FileSystemProviderConfig config = Util.getConfig();
+        PropertyFormat format = (config == null) ? PropertyFormat.JSON : config.property_format();
+        Path propFile = directory.resolve(getPropertyFileName());
+        // write aside and move into place so that readers never see a partial file
+        Path tempFile = Files.createTempFile(directory, FSPConstants.FILENAME_PREFIX_FSP, FSPConstants.FILENAME_FRAGMENT_TEMPORARY);
         try {
-            Iterator<Path> files = Files.newDirectoryStream(resource.getFile(), DIR_STREAM_FILTER_PROPERTIES).iterator();
-            return (files.hasNext()) ? files.next() : null;
-        } catch (IOException e) {
-            log.error("unable to find properties file");
+            switch (format) {
+            case BINARY:
+                try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(tempFile), FSPConstants.BUFFER_SIZE)) {
+                    BinaryPropertyFormat.write(properties, output);
+                }
+                break;
+            case JSON:
+                String content;
+                try {
+                    content = config != null && config.json_property_pretty_print() ? properties.toString(2) : properties.toString();
+                } catch (JSONException e) {
+                    throw new IOException("unable to write JSON properties", e);
+                }
+                byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+                // the compression may be chosen per file, which is then reflected in the file name
+                JSONCompression compression = JSONCompressionPolicy.choose(config, bytes);
+                propFile = directory.resolve(FSPConstants.FILENAME_PREFIX_FSP + FSPConstants.FILENAME_FRAGMENT_PROPERTIES_FILE
+                        + compression.extension);
+                try (OutputStream output = Util.getPropertyCodec(compression).wrapOutput(Files.newOutputStream(tempFile))) {
+                    output.write(bytes);
+                }
+                JSONCompressionPolicy.recordStored(compression, bytes.length, Files.size(tempFile));
+                break;
+            default:
+                throw new RuntimeException("A format was missed, fix this now");
+            }
+            Files.move(tempFile, propFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
         }
-        return null;
+        PropertyFileLocator.remember(directory, propFile);
+        for (Path file : PropertyFileLocator.candidates(directory)) {
+            if (!file.equals(propFile)) {
+                Files.deleteIfExists(file);
+            }
+        }
+        return propFile;
+    }
+
+    /**
+     * Retrieve the name of the properties file in the configured format and codec
+     * @return name of the properties file
+     */
+    static String getPropertyFileName() {
+        FileSystemProviderConfig config = Util.getConfig();
+        PropertyFormat format = (config == null) ? PropertyFormat.JSON : config.property_format();
+        String extension = (format == PropertyFormat.BINARY) ? PropertyFormat.EXTENSION_BINARY
+                : Util.getPropertyCodec().getCompression().extension;
+        return FSPConstants.FILENAME_PREFIX_FSP + FSPConstants.FILENAME_FRAGMENT_PROPERTIES_FILE + extension;
+    }
+
+    private static Path getPropertyFile(FileSystemProviderResource resource) {
+        return findPropertyFile(resource.getFile());
+    }
+
+    /**
+     * Find the properties file in the resource directory, in whichever format it is in
+     * @param directory the resource directory
+     * @return the properties file, {@code null} if there is none
+     */
+    static Path findPropertyFile(Path directory) {
+        return PropertyFileLocator.find(directory);
     }
 
     /**
      * Read the binary data indicated by the current value, if applicable.
      * @param path the resource path
+     * @param source storage of the properties, {@code null} when they are stored in the resource's folder
      * @param val the value that may be a binary value that requires reading.
      * @param isBinary state of the value being a binary value that requires processing.
+     * @param isInline state of the binary value being stored inline.
      * @return the possibly updated object that underwent binary transformation
      */
-    private static Object readBinary(String path, Object val, boolean isBinary) {
+    private static Object readBinary(String path, PropertySource source, Object val, boolean isBinary, boolean isInline) {
         if (!isBinary) {
             // there is no handling to perform, so return as-is
             return val;
         }
+        if (val == null) {
+            return null;
+        }
         if (!(val instanceof String)) {
             log.error("binary property did not have a string value");
+            return null;
+        }
+        if (isInline) {
+            try {
+                return new MemoryBinary(Base64.getDecoder().decode((String) val));
+            } catch (IllegalArgumentException e) {
+                log.error("inline binary property was not valid Base64", e);
+                return null;
+            }
         }
 
-        /* if it's a temporary file, then we need to look for it in the
-         * temporary folder, otherwise look in the resource folder */
-        String filename = (String) val;
-        Path folder = (filename.contains(FSPConstants.FILENAME_FRAGMENT_TEMPORARY))
-                ? Util.getTemporaryDirectory() : Paths.get(Util.getAbsPath(path));
-        Path file = Paths.get(folder.toAbsolutePath().toString(), filename);
+        if (source != null) {
+            try {
+                return source.readBinary((String) val);
+            } catch (IOException e) {
+                log.error("Unable to read binary {} of {}", val, path, e);
+                return null;
+            }
+        }
 
+        Path file = binaryFile(path, (String) val);
         try {
             return new FileBinary(file);
         } catch (IOException e) {
@@ -279,33 +907,77 @@ final class PersistenceHelper {
     }
 
     /**
-     * Create a property value usable in the ValueMap system
+     * Retrieve the length of a binary that the JSON properties reference by name, without opening its data
+     * @param path the resource path
+     * @param source storage of the properties, {@code null} when they are stored in the resource's folder
+     * @param name the name of the binary as held by the JSON properties
+     * @return the length of the binary, in bytes
+     * @throws IOException if the length can not be read
+     */
+    static long readBinaryLength(String path, PropertySource source, String name) throws IOException {
+        if (source != null) {
+            return source.readBinary(name).getLength();
+        }
+        Path file = binaryFile(path, name);
+        return BinaryCompression.fromFile(file).getLength(file);
+    }
+
+    /**
+     * Retrieve the file of a binary stored in its own file
+     * @param path the resource path
+     * @param filename the name of the binary file
+     * @return the binary file
+     */
+    private static Path binaryFile(String path, String filename) {
+        /* if it's a temporary file, then we need to look for it in the
+         * temporary folder, otherwise look in the resource folder */
+        Path folder = (filename.contains(FSPConstants.FILENAME_FRAGMENT_TEMPORARY))
+                ? Util.getTemporaryDirectory() : Paths.get(Util.getAbsPath(path));
+        return Paths.get(folder.toAbsolutePath().toString(), filename);
+    }
+
+    /**
+     * Create a property value usable in the ValueMap system, for properties stored in the resource's folder
      * @param path the resource path (in the repository, not on disk)
      * @param property JSON property to read into data
      * @return java object matching the JSON property data.
      */
     private static Object readJSONPropertyValue(String path, JSONObject property) {
+        return readJSONPropertyValue(path, null, property);
+    }
+
+    /**
+     * Create a property value usable in the ValueMap system
+     * @param path the resource path (in the repository, not on disk)
+     * @param source storage of the properties, {@code null} when they are stored in the resource's folder
+     * @param property JSON property to read into data
+     * @return java object matching the JSON property data.
+     */
+    static Object readJSONPropertyValue(String path, PropertySource source, JSONObject property) {
 
-        String type = property.optString(FSPConstants.JSON_KEY_TYPE);
+        Object type = property.opt(FSPConstants.JSON_KEY_TYPE);
         JSONArray values = property.optJSONArray(FSPConstants.JSON_KEY_VALUES);
         Object value = property.opt(FSPConstants.JSON_KEY_VALUE);
         boolean isBinary = property.optBoolean(FSPConstants.JSON_KEY_BINARY, false);
+        boolean isInline = property.optBoolean(FSPConstants.JSON_KEY_INLINE, false);
 
-        Class<?> clazz = Util.loadClass(type);
+        // types are either referenced by their id in the type dictionary, or by their name
+        Class<?> clazz = (type instanceof Number) ? TypeDictionary.classOf(((Number) type).intValue())
+                : Util.loadClass(property.optString(FSPConstants.JSON_KEY_TYPE));
         if (clazz == null) {
             return null;
         }
 
         if (values == null) {
             // single value case
-            Object valToConvert = readBinary(path, deNull(value), isBinary);
+            Object valToConvert = readBinary(path, source, deNull(value), isBinary, isInline);
             return ValueConversion.convert(valToConvert, clazz);
         } else {
             // multi-value case
             Object vals = Array.newInstance(clazz, values.length());
             for (int valIdx = 0; valIdx < values.length(); ++valIdx) {
                 // use opt instead of get to avoid the JSONException
-                Object val = readBinary(path, deNull(values.opt(valIdx)), isBinary);
+                Object val = readBinary(path, source, deNull(values.opt(valIdx)), isBinary, isInline);
                 Array.set(vals, valIdx, ValueConversion.convert(val, clazz));
             }
             return vals;
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * Read only {@link ValueMap} of the selected columns of a query result.
+ * Only the selected keys are held, and each value is retrieved on its first access,
+ * so that results whose values are never read do not pay for decoding them.
+ */
+final class ProjectedValueMap extends AbstractMap<String, Object> implements ValueMap {
+
+    /** marker of a retrieved value being {@code null}, as the retrieved values can not hold them */
+    private static final Object NULL = new Object();
+
+    /** keys of the selected columns, in their selected order */
+    private final List<String> columns;
+
+    /** retrieves the value of a column */
+    private final Function<String, Object> values;
+
+    /** the values that were retrieved, keyed by column */
+    private final Map<String, Object> retrieved = new HashMap<>();
+
+    /**
+     * Create the map of the selected columns
+     * @param columns keys of the selected columns
+     * @param values retrieves the value of a column, {@code null} when the result has none
+     */
+    ProjectedValueMap(List<String> columns, Function<String, Object> values) {
+        this.columns = columns;
+        this.values = values;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!columns.contains(key)) {
+            return null;
+        }
+        Object value = retrieved.get(key);
+        if (value == null) {
+            value = values.apply((String) key);
+            retrieved.put((String) key, (value == null) ? NULL : value);
+        }
+        return (value == NULL) ? null : value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public <T> T get(String name, Class<T> type) {
+        return ValueConversion.convert(get(name), type);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T get(String name, T defaultValue) {
+        if (defaultValue != null) {
+            T value = ValueConversion.convert(get(name), (Class<T>) defaultValue.getClass());
+            return (value == null) ? defaultValue : value;
+        }
+        return (T) get(name);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        Map<String, Object> present = new LinkedHashMap<>();
+        for (String column : columns) {
+            Object value = get(column);
+            if (value != null) {
+                present.put(column, value);
+            }
+        }
+        return Collections.unmodifiableMap(present).entrySet();
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.util.Map;
+
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Implementation of the {@link net.kemuri9.sling.filesystemprovider.PropertyCompressionStatistics PropertyCompressionStatistics} interface.
+ */
+@Component(service = {net.kemuri9.sling.filesystemprovider.PropertyCompressionStatistics.class})
+final class PropertyCompressionStatistics implements net.kemuri9.sling.filesystemprovider.PropertyCompressionStatistics {
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        return JSONCompressionPolicy.getStatistics();
+    }
+
+    @Override
+    public void reset() {
+        JSONCompressionPolicy.resetStatistics();
+    }
+}
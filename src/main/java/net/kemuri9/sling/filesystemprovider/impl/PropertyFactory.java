@@ -21,6 +21,7 @@ import java.io.InputStream;
 import org.osgi.service.component.annotations.Component;
 
 import net.kemuri9.sling.filesystemprovider.Binary;
+import net.kemuri9.sling.filesystemprovider.BinaryUpload;
 
 /**
  * Implementation of the {@link net.kemuri9.sling.filesystemprovider.PropertyFactory PropertyFactory} interface.
@@ -30,10 +31,25 @@ final class PropertyFactory implements net.kemuri9.sling.filesystemprovider.Prop
 
     @Override
     public Binary createBinaryProperty(InputStream input) throws IOException {
+        return createBinaryProperty(input, null);
+    }
+
+    @Override
+    public Binary createBinaryProperty(InputStream input, String contentType) throws IOException {
         if (input == null) {
             throw new IOException("unable to read from null InputStream");
         }
 
-        return new FileBinary(input);
+        return new FileBinary(input, contentType);
+    }
+
+    @Override
+    public BinaryUpload createBinaryUpload(long expectedLength) throws IOException {
+        return FileBinaryUpload.create(expectedLength);
+    }
+
+    @Override
+    public BinaryUpload resumeBinaryUpload(String id) throws IOException {
+        return FileBinaryUpload.resume(id);
     }
 }
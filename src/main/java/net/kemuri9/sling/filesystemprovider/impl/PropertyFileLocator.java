@@ -0,0 +1,128 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Locates the properties file of a resource directory without listing the directory, which also holds the
+ * resource's binaries and child directories. The few names that a properties file may have are probed,
+ * starting with a remembered hint of the directory's properties file name, and then the configured name.
+ */
+final class PropertyFileLocator {
+
+    /** maximum number of directories to remember the properties file name of */
+    static final int HINT_CACHE_SIZE = 16 * 1024;
+
+    /** names that a properties file may have, one per format and codec */
+    private static final List<String> CANDIDATES;
+
+    /** properties file names by their directory, in least recently used order. guarded by the class lock */
+    private static final LinkedHashMap<Path, String> HINTS = new LinkedHashMap<Path, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, String> eldest) {
+            return size() > HINT_CACHE_SIZE;
+        }
+    };
+
+    static {
+        List<String> candidates = new ArrayList<>();
+        String prefix = FSPConstants.FILENAME_PREFIX_FSP + FSPConstants.FILENAME_FRAGMENT_PROPERTIES_FILE;
+        for (JSONCompression compression : JSONCompression.values()) {
+            candidates.add(prefix + compression.extension);
+        }
+        candidates.add(prefix + PropertyFormat.EXTENSION_BINARY);
+        CANDIDATES = Collections.unmodifiableList(candidates);
+    }
+
+    private PropertyFileLocator() {
+    }
+
+    /**
+     * Retrieve the files that may be properties files of the directory. The files may not exist.
+     * @param directory the resource directory
+     * @return the possible properties files
+     */
+    static List<Path> candidates(Path directory) {
+        List<Path> files = new ArrayList<>(CANDIDATES.size());
+        for (String candidate : CANDIDATES) {
+            files.add(directory.resolve(candidate));
+        }
+        return files;
+    }
+
+    /**
+     * Forget all of the remembered properties file names
+     */
+    static synchronized void clear() {
+        HINTS.clear();
+    }
+
+    /**
+     * Find the properties file of the directory, probing at most one file per candidate name
+     * @param directory the resource directory
+     * @return the properties file, {@code null} if there is none
+     */
+    static Path find(Path directory) {
+        String hint;
+        synchronized (PropertyFileLocator.class) {
+            hint = HINTS.get(directory);
+        }
+        if (hint != null) {
+            Path file = directory.resolve(hint);
+            if (Files.isRegularFile(file)) {
+                return file;
+            }
+        }
+        // the configured name is the most likely, as it is what is written
+        String preferred = PersistenceHelper.getPropertyFileName();
+        if (!preferred.equals(hint)) {
+            Path file = directory.resolve(preferred);
+            if (Files.isRegularFile(file)) {
+                remember(directory, file);
+                return file;
+            }
+        }
+        for (String candidate : CANDIDATES) {
+            if (candidate.equals(hint) || candidate.equals(preferred)) {
+                continue;
+            }
+            Path file = directory.resolve(candidate);
+            if (Files.isRegularFile(file)) {
+                remember(directory, file);
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remember the properties file of the directory, such as when it was just written
+     * @param directory the resource directory
+     * @param propFile the properties file
+     */
+    static synchronized void remember(Path directory, Path propFile) {
+        HINTS.put(directory, propFile.getFileName().toString());
+    }
+}
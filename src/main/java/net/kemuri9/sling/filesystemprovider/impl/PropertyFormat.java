@@ -0,0 +1,42 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.nio.file.Path;
+
+/**
+ * Formats supported for the property storage of resources
+ */
+enum PropertyFormat {
+
+    /** JSON, optionally compressed per the {@link JSONCompression} configuration */
+    JSON,
+
+    /** Versioned, length-prefixed binary encoding. See {@link BinaryPropertyFormat}. */
+    BINARY;
+
+    /** File extension of the binary format */
+    static final String EXTENSION_BINARY = ".fspb";
+
+    /**
+     * Retrieve the format of the properties file from its name
+     * @param file the properties file
+     * @return the format of the file
+     */
+    static PropertyFormat fromFile(Path file) {
+        return file.getFileName().toString().endsWith(EXTENSION_BINARY) ? BINARY : JSON;
+    }
+}
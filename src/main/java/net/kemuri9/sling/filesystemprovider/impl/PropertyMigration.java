@@ -0,0 +1,474 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of the {@link net.kemuri9.sling.filesystemprovider.PropertyMigration PropertyMigration} interface.
+ * The repository is walked in parallel with a {@link ForkJoinPool}, and each top level subtree is recorded into
+ * the checkpoint file once it is completely migrated, so a resumed migration only walks the remaining subtrees.
+ * Within a subtree, property files already in the configured format are skipped by their name alone.
+ * Files are rewritten holding the lock that commits of their resource hold, so that a concurrent commit is not overwritten.
+ * Large files that adaptive compression keeps uncompressed, as they compress poorly, are recorded along with their size
+ * and modification time, so that later runs skip them until they change, rather than sampling and rewriting them again.
+ */
+@Component(service = {net.kemuri9.sling.filesystemprovider.PropertyMigration.class})
+final class PropertyMigration implements net.kemuri9.sling.filesystemprovider.PropertyMigration {
+
+    /** Limits the rate of I/O shared by all of the migration threads */
+    private static final class Throttle {
+
+        /** maximum number of bytes per second, 0 or less for unlimited */
+        private final long bytesPerSecond;
+
+        /** time, in nanoseconds, at which the budget is next available. guarded by this */
+        private long nextAvailable = System.nanoTime();
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * Acquire budget for the I/O of the number of bytes, waiting until it is available
+         * @param bytes number of bytes of I/O
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void acquire(long bytes) throws InterruptedException {
+            if (bytesPerSecond <= 0 || bytes <= 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(now, nextAvailable);
+                nextAvailable = start + TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+                wait = start - now;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    /** Migrates a directory and all of its descendants */
+    private final class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        /** failures within the top level subtree this directory is part of */
+        private final AtomicLong subtreeFailures;
+
+        DirectoryTask(Path directory, AtomicLong subtreeFailures) {
+            this.directory = directory;
+            this.subtreeFailures = subtreeFailures;
+        }
+
+        @Override
+        protected void compute() {
+            if (stopped) {
+                return;
+            }
+            if (!migrate(directory)) {
+                subtreeFailures.incrementAndGet();
+            }
+            List<Path> children = listDirectories(directory);
+            if (children == null) {
+                subtreeFailures.incrementAndGet();
+                return;
+            }
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            for (Path child : children) {
+                subtasks.add(new DirectoryTask(child, subtreeFailures));
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    /** Migrates the repository, checkpointing each completed top level subtree */
+    private final class RootTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+
+        RootTask(Path root) {
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Set<String> completed = readCheckpoint(root);
+                kept = readKept(root);
+                boolean succeeded = migrate(root);
+                List<Path> children = listDirectories(root);
+                if (children == null) {
+                    return;
+                }
+                List<ForkJoinTask<?>> subtrees = new ArrayList<>();
+                for (Path child : children) {
+                    String name = child.getFileName().toString();
+                    if (completed.contains(name)) {
+                        continue;
+                    }
+                    subtrees.add(ForkJoinTask.adapt(() -> {
+                        AtomicLong subtreeFailures = new AtomicLong();
+                        new DirectoryTask(child, subtreeFailures).invoke();
+                        if (!stopped && subtreeFailures.get() == 0) {
+                            checkpoint(root, name);
+                        }
+                    }));
+                }
+                invokeAll(subtrees);
+                if (!stopped && succeeded && failed.get() == 0) {
+                    // fully migrated, a later run starts over for a later change of configuration
+                    Files.deleteIfExists(root.resolve(FSPConstants.FILENAME_MIGRATION_CHECKPOINT));
+                }
+                log.info("property migration {}: {} migrated, {} skipped, {} failed", stopped ? "stopped" : "finished",
+                        migrated.get(), skipped.get(), failed.get());
+            } catch (IOException e) {
+                log.error("property migration failed", e);
+            } finally {
+                getPool().shutdown();
+            }
+        }
+    }
+
+    /** file filter to find the resource directories */
+    private static final DirectoryStream.Filter<Path> DIR_STREAM_FILTER_DIRECTORIES = new DirectoryStream.Filter<Path>() {
+        @Override
+        public boolean accept(Path path) throws IOException {
+            return !path.getFileName().toString().startsWith(FSPConstants.FILENAME_PREFIX_FSP) && Files.isDirectory(path);
+        }
+    };
+
+    /** name of the uncompressed JSON properties file */
+    private static final String UNCOMPRESSED_NAME = FSPConstants.FILENAME_PREFIX_FSP + FSPConstants.FILENAME_FRAGMENT_PROPERTIES_FILE
+            + JSONCompression.NONE.extension;
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(PropertyMigration.class);
+
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /** the running migration, {@code null} if never started */
+    private ForkJoinTask<?> running;
+
+    /** state of the migration being requested to stop */
+    private volatile boolean stopped;
+
+    /** name of the properties file in the format being migrated into */
+    private volatile String targetName;
+
+    /** size below which uncompressed JSON properties files are already in the target format, -1 when there is none */
+    private volatile long uncompressedBelow;
+
+    /** the settings deciding on keeping files uncompressed, {@code null} when files are not kept uncompressed */
+    private volatile String keptSettings;
+
+    /** stamps of the files kept uncompressed, by the relative path of their directory */
+    private volatile Map<String, String> kept = Collections.emptyMap();
+
+    /** the repository root of the running migration */
+    private volatile Path root;
+
+    /** I/O budget of the running migration */
+    private volatile Throttle throttle;
+
+    @Deactivate
+    protected void deactivate() {
+        stop();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public long getMigratedCount() {
+        return migrated.get();
+    }
+
+    @Override
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return running != null && !running.isDone();
+    }
+
+    @Override
+    public synchronized boolean start() {
+        if (isRunning()) {
+            return false;
+        }
+        FileSystemProviderConfig config = Util.getConfig();
+        if (config == null) {
+            throw new IllegalStateException("the file system provider is not active");
+        }
+        failed.set(0);
+        migrated.set(0);
+        skipped.set(0);
+        stopped = false;
+        targetName = PersistenceHelper.getPropertyFileName();
+        // adaptive compression leaves small files uncompressed
+        uncompressedBelow = (config.property_format() == PropertyFormat.JSON && config.json_property_compression_adaptive())
+                ? config.json_property_compression_min_size() : -1;
+        // the decisions of keeping files uncompressed only hold for the same settings
+        keptSettings = (uncompressedBelow < 0 || targetName.equals(UNCOMPRESSED_NAME)) ? null : targetName + ' '
+                + config.json_property_compression_min_size() + ' ' + config.json_property_compression_max_ratio();
+        throttle = new Throttle(config.migration_io_budget());
+        int parallelism = (config.migration_parallelism() > 0) ? config.migration_parallelism()
+                : Runtime.getRuntime().availableProcessors();
+        root = Paths.get(Util.getAbsPath("/"));
+        running = new ForkJoinPool(parallelism).submit(new RootTask(root));
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        ForkJoinTask<?> task;
+        synchronized (this) {
+            task = running;
+        }
+        if (task == null) {
+            return;
+        }
+        try {
+            task.get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.warn("property migration did not stop cleanly", e);
+        }
+    }
+
+    /**
+     * Migrate the properties file of the directory into the configured format
+     * @param directory the resource directory
+     * @return state of the directory being successfully migrated, or not needing to be
+     */
+    private boolean migrate(Path directory) {
+        Path propFile = PersistenceHelper.findPropertyFile(directory);
+        if (propFile == null) {
+            return true;
+        }
+        try {
+            if (isMigrated(propFile)) {
+                skipped.incrementAndGet();
+                return true;
+            }
+            throttle.acquire(Files.size(propFile));
+            Path written;
+            // commits of the resource hold the same lock, so that a newer commit is not replaced by the properties read here
+            synchronized (PersistenceHelper.lockOf(directory)) {
+                // a commit may have replaced the file since it was found
+                propFile = PersistenceHelper.findPropertyFile(directory);
+                if (propFile == null || isMigrated(propFile)) {
+                    skipped.incrementAndGet();
+                    return true;
+                }
+                JSONObject properties = PersistenceHelper.readPropertyFile(propFile);
+                written = PersistenceHelper.writeProperties(directory, properties);
+                if (keptSettings != null && written.getFileName().toString().equals(UNCOMPRESSED_NAME)) {
+                    recordKept(directory, written);
+                }
+            }
+            throttle.acquire(Files.size(written));
+            migrated.incrementAndGet();
+            return true;
+        } catch (InterruptedException e) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+        } catch (IOException | JSONException e) {
+            log.error("unable to migrate property file {}", propFile, e);
+            failed.incrementAndGet();
+        }
+        return false;
+    }
+
+    /**
+     * Check if the properties file is already in the configured format
+     * @param propFile the properties file
+     * @return state of the file not needing to be migrated
+     * @throws IOException if the size of the file can not be read
+     */
+    private boolean isMigrated(Path propFile) throws IOException {
+        String name = propFile.getFileName().toString();
+        if (name.equals(targetName)) {
+            return true;
+        }
+        if (!name.equals(UNCOMPRESSED_NAME)) {
+            return false;
+        }
+        return Files.size(propFile) < uncompressedBelow
+                || (keptSettings != null && stampOf(propFile).equals(kept.get(relativePath(propFile.getParent()))));
+    }
+
+    /**
+     * Retrieve the stamp of the file, that changes when the file is written
+     * @param file the file
+     * @return the size and modification time of the file
+     * @throws IOException if the attributes of the file can not be read
+     */
+    private static String stampOf(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return attributes.size() + " " + attributes.lastModifiedTime().toMillis();
+    }
+
+    private String relativePath(Path directory) {
+        return root.relativize(directory).toString();
+    }
+
+    /**
+     * List the resource directories within the directory
+     * @param directory the directory to list
+     * @return the resource directories, {@code null} if they can not be listed
+     */
+    private List<Path> listDirectories(Path directory) {
+        List<Path> directories = new ArrayList<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory, DIR_STREAM_FILTER_DIRECTORIES)) {
+            for (Path child : children) {
+                directories.add(child);
+            }
+        } catch (IOException e) {
+            log.error("unable to list directory {}", directory, e);
+            failed.incrementAndGet();
+            return null;
+        }
+        return directories;
+    }
+
+    /**
+     * Read the checkpoint of the previous run
+     * @param root the repository root
+     * @return names of the completed top level subtrees. empty if there is no checkpoint for the configured format.
+     * @throws IOException if the checkpoint can not be read or reset
+     */
+    private Set<String> readCheckpoint(Path root) throws IOException {
+        Path checkpoint = root.resolve(FSPConstants.FILENAME_MIGRATION_CHECKPOINT);
+        Set<String> completed = new HashSet<>();
+        if (Files.exists(checkpoint)) {
+            List<String> lines = Files.readAllLines(checkpoint, StandardCharsets.UTF_8);
+            // the checkpoint only applies when it was for migrating into the same format
+            if (!lines.isEmpty() && lines.get(0).equals(targetName)) {
+                completed.addAll(lines.subList(1, lines.size()));
+                log.info("resuming property migration with {} subtrees already completed", completed.size());
+                return completed;
+            }
+        }
+        Files.write(checkpoint, (targetName + '\n').getBytes(StandardCharsets.UTF_8));
+        return completed;
+    }
+
+    /**
+     * Read the files kept uncompressed by the previous runs, compacting their record
+     * @param root the repository root
+     * @return stamps of the files kept uncompressed, by the relative path of their directory.
+     * empty if the files were kept with other settings.
+     * @throws IOException if the record can not be read or reset
+     */
+    private Map<String, String> readKept(Path root) throws IOException {
+        Path record = root.resolve(FSPConstants.FILENAME_MIGRATION_KEPT);
+        Map<String, String> stamps = new ConcurrentHashMap<>();
+        if (keptSettings == null) {
+            Files.deleteIfExists(record);
+            return stamps;
+        }
+        if (Files.exists(record)) {
+            List<String> lines = Files.readAllLines(record, StandardCharsets.UTF_8);
+            // the files are only kept for the same settings of the adaptive compression
+            if (!lines.isEmpty() && lines.get(0).equals(keptSettings)) {
+                for (String line : lines.subList(1, lines.size())) {
+                    // the size and modification time, followed by the relative path that may have spaces
+                    String[] parts = line.split(" ", 3);
+                    if (parts.length == 3) {
+                        stamps.put(parts[2], parts[0] + ' ' + parts[1]);
+                    }
+                }
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(keptSettings);
+        for (Map.Entry<String, String> stamp : stamps.entrySet()) {
+            lines.add(stamp.getValue() + ' ' + stamp.getKey());
+        }
+        Files.write(record, lines, StandardCharsets.UTF_8);
+        return stamps;
+    }
+
+    /**
+     * Record that the properties file of the directory is kept uncompressed, as it compresses poorly
+     * @param directory the resource directory
+     * @param propFile the written properties file
+     */
+    private synchronized void recordKept(Path directory, Path propFile) {
+        try {
+            String line = stampOf(propFile) + ' ' + relativePath(directory) + '\n';
+            Files.write(root.resolve(FSPConstants.FILENAME_MIGRATION_KEPT), line.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.error("unable to record that property file {} is kept uncompressed", propFile, e);
+        }
+    }
+
+    /**
+     * Record the top level subtree as completely migrated
+     * @param root the repository root
+     * @param name name of the top level subtree
+     */
+    private synchronized void checkpoint(Path root, String name) {
+        try {
+            Files.write(root.resolve(FSPConstants.FILENAME_MIGRATION_CHECKPOINT), (name + '\n').getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        } catch (IOException e) {
+            log.error("unable to checkpoint property migration of {}", name, e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persisted properties of a resource whose values are only decoded when they are retrieved.
+ * The JSON of the properties is scanned once for the spans of its members, and each retrieved member
+ * is parsed from its span, so that reading a few properties does not pay for decoding all of them.
+ * Properties in the {@link BinaryPropertyFormat} take their spans from its index instead.
+ * Not thread safe.
+ */
+final class PropertyRecord {
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(PropertyRecord.class);
+
+    /** marker of a decoded value being {@code null}, as the decoded values can not hold them */
+    private static final Object NULL = new Object();
+
+    /** the resource path */
+    private final String path;
+
+    /** storage of the properties, {@code null} when they are stored in the resource's folder */
+    private final PropertySource source;
+
+    /** UTF-8 JSON or binary format of the properties, {@code null} when they are held by {@link #json} */
+    private final ByteBuffer data;
+
+    /** state of {@link #data} being in the {@link BinaryPropertyFormat} */
+    private final boolean binary;
+
+    /** start and end positions of each member's value within {@link #data}, keyed by property name */
+    private final Map<String, int[]> spans;
+
+    /** JSON properties read from a {@link PropertySource}, which are already parsed */
+    private final JSONObject json;
+
+    /** the values that were decoded, keyed by property name */
+    private final Map<String, Object> decoded = new HashMap<>();
+
+    private PropertyRecord(String path, PropertySource source, JSONObject json) {
+        this(path, source, null, false, null, json);
+    }
+
+    private PropertyRecord(String path, PropertySource source, ByteBuffer data, boolean binary, Map<String, int[]> spans,
+            JSONObject json) {
+        this.path = path;
+        this.source = source;
+        this.data = data;
+        this.binary = binary;
+        this.spans = spans;
+        this.json = json;
+    }
+
+    /**
+     * Read the persisted properties of the resource. Read errors are logged and result in no properties.
+     * @param path the resource path
+     * @param directory the resource directory
+     * @param source storage of the properties, {@code null} when they are stored in the resource's folder
+     * @return the record of the properties
+     */
+    static PropertyRecord read(String path, Path directory, PropertySource source) {
+        try {
+            if (source != null) {
+                JSONObject jsonProps = source.readProperties();
+                return new PropertyRecord(path, source, (jsonProps == null) ? new JSONObject() : jsonProps);
+            }
+            Path propFile = PersistenceHelper.findPropertyFile(directory);
+            if (propFile == null) {
+                return new PropertyRecord(path, null, new JSONObject());
+            }
+            byte[] content = PersistenceHelper.readPropertyContent(propFile);
+            ByteBuffer data = ByteBuffer.wrap(content);
+            if (BinaryPropertyFormat.isBinaryFormat(content, content.length)) {
+                return new PropertyRecord(path, null, data, true, BinaryPropertyFormat.scan(data), null);
+            }
+            return new PropertyRecord(path, null, data, false, scan(data), null);
+        } catch (IOException e) {
+            log.error("Error occurred while reading stored properties of '{}'", path, e);
+        } catch (JSONException e) {
+            log.error("Unable to parse JSON property content of '{}'", path, e);
+        }
+        return new PropertyRecord(path, source, new JSONObject());
+    }
+
+    /**
+     * Scan the JSON properties for the spans of their values, without parsing the values
+     * @param data UTF-8 JSON of the properties
+     * @return start and end positions of each member's value, keyed by property name
+     * @throws JSONException if the data is not a JSON object
+     */
+    private static Map<String, int[]> scan(ByteBuffer data) throws JSONException {
+        Map<String, int[]> spans = new HashMap<>();
+        JSONByteParser parser = JSONByteParser.open(data);
+        if (parser.enter('{')) {
+            do {
+                String key = parser.readKey();
+                int start = parser.valueStart();
+                parser.skipValue();
+                spans.put(key, new int[] {start, parser.position()});
+            } while (parser.next('}'));
+        }
+        return spans;
+    }
+
+    /**
+     * Retrieve the value of the property, decoding it on its first retrieval
+     * @param name the property name
+     * @return the property value, {@code null} if the resource does not have it
+     */
+    Object get(String name) {
+        Object value = decoded.get(name);
+        if (value == null) {
+            value = decode(name);
+            decoded.put(name, (value == null) ? NULL : value);
+        }
+        return (value == NULL) ? null : value;
+    }
+
+    private Object decode(String name) {
+        JSONObject property;
+        if (json != null) {
+            if (!json.has(name)) {
+                return null;
+            }
+            property = json.optJSONObject(name);
+        } else {
+            int[] span = spans.get(name);
+            if (span == null) {
+                return null;
+            }
+            property = binary ? decodeBinary(name, span) : decodeJSON(span);
+        }
+        if (property == null) {
+            log.warn("json key {} was not an Object", name);
+            return null;
+        }
+        return PersistenceHelper.readJSONPropertyValue(path, source, property);
+    }
+
+    private JSONObject decodeJSON(int[] span) {
+        ByteBuffer value = data.duplicate();
+        value.limit(span[1]).position(span[0]);
+        try {
+            return JSONByteParser.parseObject(value);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private JSONObject decodeBinary(String name, int[] span) {
+        try {
+            Object property = BinaryPropertyFormat.readProperty(data, span);
+            return (property instanceof JSONObject) ? (JSONObject) property : null;
+        } catch (IOException e) {
+            log.error("Unable to decode binary property {} of '{}'", name, path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Retrieve the names of the persisted properties
+     * @return the property names
+     */
+    Iterable<String> names() {
+        if (json != null) {
+            return json::keys;
+        }
+        return Collections.unmodifiableSet(spans.keySet());
+    }
+
+    /**
+     * Decode all of the properties
+     * @return the property values, keyed by property name
+     */
+    Map<String, Object> toProperties() {
+        Map<String, Object> properties = new TreeMap<>();
+        for (String name : names()) {
+            properties.put(name, get(name));
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import net.kemuri9.sling.filesystemprovider.Binary;
+
+/**
+ * Storage of a resource's properties other than its own directory and properties file,
+ * such as a packed subtree's segment or a repository image.
+ */
+interface PropertySource {
+
+    /**
+     * Retrieve the names of the resource's children held by the source
+     * @return names of the children, sorted
+     */
+    List<String> getChildNames();
+
+    /**
+     * Retrieve the state of the source being read only, where its resources can not be modified
+     * @return state of the source being read only
+     */
+    boolean isReadOnly();
+
+    /**
+     * Read a binary that the JSON properties reference by name, rather than holding inline
+     * @param name the name of the binary as held by the JSON properties
+     * @return the binary
+     * @throws IOException if the binary can not be read
+     */
+    Binary readBinary(String name) throws IOException;
+
+    /**
+     * Read the JSON properties of the resource
+     * @return the JSON properties, keyed by property name. {@code null} if the resource no longer exists
+     * @throws IOException if the properties can not be read
+     */
+    JSONObject readProperties() throws IOException;
+}
@@ -0,0 +1,564 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Query of the {@link FileSystemProviderQueryLanguageProvider#LANGUAGE_FSP} language, as parsed by {@link QueryParser}.
+ * A query is a tree of conditions that resources are matched against. Path conditions also limit which subtrees
+ * are walked, so that a query only visits the resources that it may match.
+ */
+final class Query {
+
+    /** a condition that resources are matched against */
+    interface Condition {
+
+        /**
+         * Check if the resource matches the condition
+         * @param resource the resource to check
+         * @return state of the resource matching
+         */
+        boolean matches(FileSystemProviderResource resource);
+
+        /**
+         * Check if the resource of the path, or any of its descendants, may match the condition,
+         * so that subtrees that can not match are not walked
+         * @param path the resource path
+         * @return state of the path's subtree possibly holding matches
+         */
+        boolean mayMatchWithin(String path);
+
+        /**
+         * Retrieve the deepest path that all of the matching resources are within
+         * @return the resource path, {@code null} when matches may be anywhere
+         */
+        String scope();
+    }
+
+    /** comparison operators of property conditions */
+    static enum Operator {
+        /** equal */
+        EQ("="),
+        /** not equal */
+        NE("!="),
+        /** less than */
+        LT("<"),
+        /** less than or equal */
+        LE("<="),
+        /** greater than */
+        GT(">"),
+        /** greater than or equal */
+        GE(">=");
+
+        /** the symbol of the operator in queries */
+        final String symbol;
+
+        private Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        /**
+         * Check if the result of a comparison satisfies the operator
+         * @param comparison result of comparing the property value to the query value
+         * @return state of the operator being satisfied
+         */
+        boolean test(int comparison) {
+            switch (this) {
+            case EQ:
+                return comparison == 0;
+            case NE:
+                return comparison != 0;
+            case LT:
+                return comparison < 0;
+            case LE:
+                return comparison <= 0;
+            case GT:
+                return comparison > 0;
+            case GE:
+                return comparison >= 0;
+            default:
+                throw new RuntimeException("A type was missed, fix this now");
+            }
+        }
+    }
+
+    /** all of the conditions */
+    static final class And implements Condition {
+        final List<Condition> conditions;
+
+        And(List<Condition> conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        public boolean matches(FileSystemProviderResource resource) {
+            for (Condition condition : conditions) {
+                if (!condition.matches(resource)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean mayMatchWithin(String path) {
+            for (Condition condition : conditions) {
+                if (!condition.mayMatchWithin(path)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String scope() {
+            // every condition holds, so the deepest of their scopes holds
+            String scope = null;
+            for (Condition condition : conditions) {
+                String conditionScope = condition.scope();
+                if (conditionScope != null && (scope == null || conditionScope.length() > scope.length())) {
+                    scope = conditionScope;
+                }
+            }
+            return scope;
+        }
+    }
+
+    /** any of the conditions */
+    static final class Or implements Condition {
+        final List<Condition> conditions;
+
+        Or(List<Condition> conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        public boolean matches(FileSystemProviderResource resource) {
+            for (Condition condition : conditions) {
+                if (condition.matches(resource)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean mayMatchWithin(String path) {
+            for (Condition condition : conditions) {
+                if (condition.mayMatchWithin(path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String scope() {
+            // any condition may hold, so only their common ancestor holds
+            String scope = null;
+            for (Condition condition : conditions) {
+                String conditionScope = condition.scope();
+                if (conditionScope == null) {
+                    return null;
+                }
+                scope = (scope == null) ? conditionScope : commonAncestor(scope, conditionScope);
+            }
+            return scope;
+        }
+    }
+
+    /**
+     * Resource path matching a glob, where {@code *} matches within a path segment, {@code ?} matches a single character,
+     * and a {@code **} segment matches any number of segments, including none.
+     */
+    static final class PathCondition implements Condition {
+        final String glob;
+
+        /** the segments of the glob, {@code null} for {@code **} */
+        private final Pattern[] segments;
+
+        /** the literal path before the first wildcard */
+        private final String prefix;
+
+        PathCondition(String glob) {
+            this.glob = glob;
+            String[] parts = splitPath(glob);
+            segments = new Pattern[parts.length];
+            StringBuilder literal = new StringBuilder();
+            boolean isLiteral = true;
+            for (int idx = 0; idx < parts.length; ++idx) {
+                String part = parts[idx];
+                isLiteral = isLiteral && part.indexOf('*') < 0 && part.indexOf('?') < 0;
+                if (isLiteral) {
+                    literal.append(FSPConstants.RESOURCE_PATH_SEPARATOR).append(part);
+                }
+                segments[idx] = "**".equals(part) ? null : globToPattern(part);
+            }
+            prefix = (literal.length() == 0) ? FSPConstants.RESOURCE_PATH_SEPARATOR : literal.toString();
+        }
+
+        @Override
+        public boolean matches(FileSystemProviderResource resource) {
+            return matches(resource.getPath());
+        }
+
+        /**
+         * Check if the resource path matches the glob
+         * @param path the resource path
+         * @return state of the path matching
+         */
+        boolean matches(String path) {
+            return matches(splitPath(path), 0, 0);
+        }
+
+        private boolean matches(String[] path, int pathIdx, int globIdx) {
+            for (; globIdx < segments.length; ++globIdx, ++pathIdx) {
+                if (segments[globIdx] == null) {
+                    // any number of segments, so try every remainder
+                    for (int rest = pathIdx; rest <= path.length; ++rest) {
+                        if (matches(path, rest, globIdx + 1)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                if (pathIdx >= path.length || !segments[globIdx].matcher(path[pathIdx]).matches()) {
+                    return false;
+                }
+            }
+            return pathIdx == path.length;
+        }
+
+        @Override
+        public boolean mayMatchWithin(String path) {
+            String[] parts = splitPath(path);
+            for (int idx = 0; idx < parts.length; ++idx) {
+                if (idx >= segments.length) {
+                    return false;
+                }
+                if (segments[idx] == null) {
+                    return true;
+                }
+                if (!segments[idx].matcher(parts[idx]).matches()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String scope() {
+            return prefix;
+        }
+
+        private static Pattern globToPattern(String glob) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char ch : glob.toCharArray()) {
+                if (ch == '*' || ch == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append((ch == '*') ? ".*" : ".");
+                } else {
+                    literal.append(ch);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+    }
+
+    /** resource type equality */
+    static final class TypeCondition implements Condition {
+        final String resourceType;
+
+        TypeCondition(String resourceType) {
+            this.resourceType = resourceType;
+        }
+
+        @Override
+        public boolean matches(FileSystemProviderResource resource) {
+            return resourceType.equals(resource.getResourceType());
+        }
+
+        @Override
+        public boolean mayMatchWithin(String path) {
+            return true;
+        }
+
+        @Override
+        public String scope() {
+            return null;
+        }
+    }
+
+    /** comparison of a property's value. multiple valued properties match when any of their values match. */
+    static final class PropertyCondition implements Condition {
+        final String name;
+        final Operator operator;
+        /** the value compared against, a {@link String}, {@link Long}, {@link Double}, {@link Calendar} or {@link Boolean} */
+        final Object value;
+
+        PropertyCondition(String name, Operator operator, Object value) {
+            this.name = name;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        public boolean matches(FileSystemProviderResource resource) {
+            return test(resource.getProperty(name));
+        }
+
+        /**
+         * Check if the property value satisfies the condition
+         * @param property the property value
+         * @return state of the value satisfying the condition. missing values never do.
+         */
+        boolean test(Object property) {
+            if (property == null) {
+                return false;
+            }
+            if (property.getClass().isArray()) {
+                for (int idx = 0; idx < Array.getLength(property); ++idx) {
+                    if (testSingle(Array.get(property, idx))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return testSingle(property);
+        }
+
+        private boolean testSingle(Object property) {
+            Integer comparison = compareValues(property, value);
+            return comparison != null && operator.test(comparison);
+        }
+
+        @Override
+        public boolean mayMatchWithin(String path) {
+            return true;
+        }
+
+        @Override
+        public String scope() {
+            return null;
+        }
+    }
+
+    /**
+     * full-text match of every term of a text, within a property or within any of the full-text indexed properties.
+     * when answered by the full-text indexes, the matches are ranked by relevance.
+     */
+    static final class FullTextCondition implements Condition {
+        /** maximum number of distinct terms that are matched */
+        static final int MAX_TERMS = 64;
+
+        /** name of the property, {@code null} for every full-text indexed property */
+        final String property;
+        /** the text being searched for */
+        final String text;
+        /** the distinct terms of the text */
+        final List<String> terms;
+
+        FullTextCondition(String property, String text) {
+            this.property = property;
+            this.text = text;
+            List<String> distinct = new ArrayList<>(new LinkedHashSet<>(FullTextTokenizer.tokenize(text)));
+            terms = (distinct.size() > MAX_TERMS) ? distinct.subList(0, MAX_TERMS) : distinct;
+        }
+
+        @Override
+        public boolean matches(FileSystemProviderResource resource) {
+            if (terms.isEmpty()) {
+                return false;
+            }
+            Iterable<String> names;
+            if (property != null) {
+                names = Collections.singletonList(property);
+            } else if (!IndexManager.getFullTextProperties().isEmpty()) {
+                names = IndexManager.getFullTextProperties();
+            } else {
+                // without configured properties every property is searched
+                names = resource.getProperties().keySet();
+            }
+            Set<String> found = new HashSet<>();
+            for (String name : names) {
+                found.addAll(FullTextTokenizer.termCounts(resource.getProperty(name)).keySet());
+            }
+            return found.containsAll(terms);
+        }
+
+        @Override
+        public boolean mayMatchWithin(String path) {
+            return true;
+        }
+
+        @Override
+        public String scope() {
+            return null;
+        }
+    }
+
+    /** ordering of the results by the value of a property */
+    static final class Ordering {
+        /** name of the property */
+        final String name;
+        /** state of the larger values being first */
+        final boolean descending;
+
+        Ordering(String name, boolean descending) {
+            this.name = name;
+            this.descending = descending;
+        }
+    }
+
+    /** key of the path column of projected results, named as the JCR resource provider names it */
+    static final String COLUMN_PATH = "jcr:path";
+
+    /** the condition of the query */
+    final Condition condition;
+
+    /** the text of the query */
+    final String text;
+
+    /** keys of the selected columns, {@code null} when the query does not select any */
+    final List<String> projection;
+
+    /** ordering of the results, empty when they are in depth first order */
+    final List<Ordering> order;
+
+    /** maximum number of results, 0 for no limit */
+    final long limit;
+
+    /** state of the query's plan being reported rather than its results */
+    final boolean explain;
+
+    Query(String text, Condition condition, List<String> projection, List<Ordering> order, long limit, boolean explain) {
+        this.text = text;
+        this.condition = condition;
+        this.projection = projection;
+        this.order = order;
+        this.limit = limit;
+        this.explain = explain;
+    }
+
+    /**
+     * Compare the resources per the ordering of the query. Resources without a property are ordered after those with it,
+     * and multiple valued properties are ordered by their first value.
+     * @param resource1 the first resource
+     * @param resource2 the second resource
+     * @return the comparison of the resources
+     */
+    int compare(FileSystemProviderResource resource1, FileSystemProviderResource resource2) {
+        for (Ordering ordering : order) {
+            Object value1 = orderingValue(resource1.getProperty(ordering.name));
+            Object value2 = orderingValue(resource2.getProperty(ordering.name));
+            int comparison;
+            if (value1 == null || value2 == null) {
+                comparison = (value1 == null) ? ((value2 == null) ? 0 : 1) : -1;
+            } else {
+                Integer compared = (value2 instanceof Comparable) ? compareValues(value1, value2) : null;
+                comparison = (compared == null) ? value1.toString().compareTo(value2.toString()) : compared;
+                comparison = ordering.descending ? -comparison : comparison;
+            }
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Retrieve the value that a property is ordered by
+     * @param property the property value
+     * @return the value, the first value of multiple valued properties. {@code null} if there is none
+     */
+    static Object orderingValue(Object property) {
+        if (property == null || !property.getClass().isArray()) {
+            return property;
+        }
+        return (Array.getLength(property) == 0) ? null : Array.get(property, 0);
+    }
+
+    /**
+     * Compare a property value to a query value, converting the property value to the query value's type
+     * @param property the property value
+     * @param value the query value
+     * @return the comparison of the property value to the query value,
+     * {@code null} if the property value can not be converted
+     */
+    @SuppressWarnings("unchecked")
+    static Integer compareValues(Object property, Object value) {
+        if (property == null) {
+            return null;
+        }
+        if (value instanceof Long && (property instanceof Long || property instanceof Integer
+                || property instanceof Short || property instanceof Byte)) {
+            return Long.compare(((Number) property).longValue(), (Long) value);
+        }
+        if (value instanceof Number) {
+            Double converted = ValueConversion.convert(property, Double.class);
+            return (converted == null) ? null : Double.compare(converted, ((Number) value).doubleValue());
+        }
+        if (value instanceof Calendar) {
+            // dates compare by their instants, regardless of their time zones
+            Calendar converted = ValueConversion.convert(property, Calendar.class);
+            return (converted == null) ? null : Long.compare(converted.getTimeInMillis(), ((Calendar) value).getTimeInMillis());
+        }
+        Object converted = ValueConversion.convert(property, value.getClass());
+        return (converted == null) ? null : ((Comparable<Object>) converted).compareTo(value);
+    }
+
+    /**
+     * Split the resource path into its segments
+     * @param path the resource path
+     * @return the segments, empty for the root
+     */
+    static String[] splitPath(String path) {
+        String trimmed = path.startsWith(FSPConstants.RESOURCE_PATH_SEPARATOR) ? path.substring(1) : path;
+        return trimmed.isEmpty() ? new String[0] : trimmed.split(FSPConstants.RESOURCE_PATH_SEPARATOR);
+    }
+
+    /**
+     * Retrieve the deepest common ancestor of the paths
+     * @param path1 the first resource path
+     * @param path2 the second resource path
+     * @return the common ancestor, which may be either path
+     */
+    static String commonAncestor(String path1, String path2) {
+        String[] parts1 = splitPath(path1);
+        String[] parts2 = splitPath(path2);
+        StringBuilder common = new StringBuilder();
+        for (int idx = 0; idx < parts1.length && idx < parts2.length && parts1[idx].equals(parts2[idx]); ++idx) {
+            common.append(FSPConstants.RESOURCE_PATH_SEPARATOR).append(parts1[idx]);
+        }
+        return (common.length() == 0) ? FSPConstants.RESOURCE_PATH_SEPARATOR : common.toString();
+    }
+}
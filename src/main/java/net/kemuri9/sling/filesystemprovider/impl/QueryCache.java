@@ -0,0 +1,395 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the result paths of queries, keyed by their language and normalized text.
+ * Each entry knows the subtree, path globs and properties that its query depends on, so that a commit only invalidates
+ * the entries whose results it may change. Entries also expire, for changes that are not committed through the provider.
+ * Results are only cached from queries made without pending changes, once they have been iterated to their end.
+ */
+final class QueryCache {
+
+    /** cached results of a query, and what they depend on */
+    private static final class Entry {
+        /** the result paths, in order */
+        final List<String> paths;
+        /** path of the subtree that the results are within, {@code null} when they are not within the provider */
+        final String scope;
+        /** the query condition, which tells the subtrees that may hold results */
+        final Query.Condition condition;
+        /** names of the properties that the results depend on, {@code null} for every property */
+        final Set<String> properties;
+        /** state of the results depending on every resource, regardless of the scope, such as for relevance */
+        final boolean global;
+        /** {@link System#nanoTime()} after which the entry has expired */
+        final long expires;
+
+        Entry(List<String> paths, String scope, Query query, long expires) {
+            this.paths = paths;
+            this.scope = scope;
+            this.condition = query.condition;
+            this.properties = properties(query);
+            this.global = hasFullText(query.condition);
+            this.expires = expires;
+        }
+
+        /**
+         * Check if committing the properties of a resource may change the results
+         * @param path path of the resource
+         * @param names names of the changed properties, {@code null} when the resource is created
+         * @return state of the results possibly changing
+         */
+        boolean isChangedBy(String path, Set<String> names) {
+            if (scope == null || (!global && !(Util.isWithin(scope, path) && condition.mayMatchWithin(path)))) {
+                return false;
+            }
+            return names == null || properties == null || !Collections.disjoint(properties, names);
+        }
+
+        /**
+         * Check if deleting, moving or moving into the subtree may change the results
+         * @param path path of the subtree root
+         * @return state of the results possibly changing
+         */
+        boolean isChangedWithin(String path) {
+            if (scope == null) {
+                return false;
+            }
+            return global || Util.isWithin(path, scope) || (Util.isWithin(scope, path) && condition.mayMatchWithin(path));
+        }
+    }
+
+    /** records the result paths of a query as they are iterated, caching them once they are all iterated */
+    static final class Recorder {
+        private final String key;
+        private final Query query;
+        private final String scope;
+        /** the {@link #generation} when the query was made, so that results found across a commit are not cached */
+        private final long startGeneration;
+        private final List<String> paths = new ArrayList<>();
+        /** state of the results being too many to cache, or already cached */
+        private boolean done;
+
+        private Recorder(String key, Query query, String scope, long startGeneration) {
+            this.key = key;
+            this.query = query;
+            this.scope = scope;
+            this.startGeneration = startGeneration;
+        }
+
+        /**
+         * Record the path of the next result
+         * @param path the result path
+         */
+        void add(String path) {
+            if (paths.size() >= MAX_RESULTS) {
+                done = true;
+            } else {
+                paths.add(path);
+            }
+        }
+
+        /**
+         * Wrap the results, caching the recorded paths once the results are iterated to their end
+         * @param <T> type of the results
+         * @param results the results, which record their paths as they are iterated
+         * @return the wrapped results
+         */
+        <T> Iterator<T> wrap(Iterator<T> results) {
+            return new Iterator<T>() {
+                @Override
+                public boolean hasNext() {
+                    boolean hasNext = results.hasNext();
+                    if (!hasNext && !done) {
+                        done = true;
+                        put(Recorder.this);
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public T next() {
+                    return results.next();
+                }
+            };
+        }
+    }
+
+    /** maximum number of results of a query that are cached, so that large results do not hold the memory */
+    static final int MAX_RESULTS = 10_000;
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(QueryCache.class);
+
+    /** cached results by key, in least recently used order. guarded by the class lock */
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** number of invalidations made. guarded by the class lock */
+    private static long generation = 0;
+
+    /** maximum number of cached queries, 0 when the cache is disabled */
+    private static volatile int maxSize = 0;
+
+    /** nanoseconds that results are cached for */
+    private static volatile long ttl = 0;
+
+    private QueryCache() {
+    }
+
+    /**
+     * Initialize the cache from the configuration
+     * @param config the configuration to initialize with
+     */
+    static void init(FileSystemProviderConfig config) {
+        clear();
+        maxSize = Math.max(0, config.query_cache_size());
+        ttl = TimeUnit.SECONDS.toNanos(Math.max(0, config.query_cache_ttl()));
+    }
+
+    /**
+     * Uninitialize the cache, disabling it
+     */
+    static void destroy() {
+        maxSize = 0;
+        clear();
+    }
+
+    /**
+     * Remove all cached results
+     */
+    static synchronized void clear() {
+        ENTRIES.clear();
+        ++generation;
+    }
+
+    /**
+     * Retrieve the state of the cache being enabled
+     * @return state of the cache being enabled
+     */
+    static boolean isEnabled() {
+        return maxSize > 0 && ttl > 0;
+    }
+
+    /**
+     * Retrieve the number of cached queries
+     * @return the number of cached queries
+     */
+    static synchronized int size() {
+        return ENTRIES.size();
+    }
+
+    /**
+     * Retrieve the cached result paths of the query
+     * @param language the query language
+     * @param text the query text
+     * @return the result paths, {@code null} if they are not cached
+     */
+    static synchronized List<String> get(String language, String text) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = key(language, text);
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expires > 0) {
+            ENTRIES.remove(key);
+            return null;
+        }
+        return entry.paths;
+    }
+
+    /**
+     * Start recording the results of the query, to cache them
+     * @param language the query language
+     * @param text the query text
+     * @param query the parsed query
+     * @param scope path of the subtree that the results are within, {@code null} when they are not within the provider
+     * @return the recorder of the results, {@code null} when the cache is disabled
+     */
+    static synchronized Recorder record(String language, String text, Query query, String scope) {
+        return isEnabled() ? new Recorder(key(language, text), query, scope, generation) : null;
+    }
+
+    private static synchronized void put(Recorder recorder) {
+        if (!isEnabled() || recorder.startGeneration != generation) {
+            // a commit may have changed the results while they were found
+            return;
+        }
+        ENTRIES.put(recorder.key, new Entry(Collections.unmodifiableList(recorder.paths), recorder.scope, recorder.query,
+                System.nanoTime() + ttl));
+        for (Iterator<String> iter = ENTRIES.keySet().iterator(); ENTRIES.size() > maxSize && iter.hasNext();) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Invalidate the results that committing the properties of a resource may change
+     * @param path path of the resource
+     * @param names names of the changed properties, {@code null} when the resource is created
+     */
+    static synchronized void committed(String path, Set<String> names) {
+        ++generation;
+        int removed = 0;
+        for (Iterator<Entry> iter = ENTRIES.values().iterator(); iter.hasNext();) {
+            if (iter.next().isChangedBy(path, names)) {
+                iter.remove();
+                ++removed;
+            }
+        }
+        log.trace("commit of {} {} invalidated {} cached queries", path, names, removed);
+    }
+
+    /**
+     * Invalidate the results that deleting or moving a subtree may change
+     * @param path path of the subtree root, either the deleted or moved subtree, or the subtree that it is moved to
+     */
+    static synchronized void changedWithin(String path) {
+        ++generation;
+        int removed = 0;
+        for (Iterator<Entry> iter = ENTRIES.values().iterator(); iter.hasNext();) {
+            if (iter.next().isChangedWithin(path)) {
+                iter.remove();
+                ++removed;
+            }
+        }
+        log.trace("change within {} invalidated {} cached queries", path, removed);
+    }
+
+    /**
+     * Normalize the query text, so that queries differing in whitespace outside of quotes share their results
+     * @param text the query text
+     * @return the normalized text
+     */
+    static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        char quote = 0;
+        boolean whitespace = false;
+        for (int idx = 0; idx < text.length(); ++idx) {
+            char ch = text.charAt(idx);
+            if (quote == 0 && Character.isWhitespace(ch)) {
+                whitespace = true;
+                continue;
+            }
+            if (whitespace && normalized.length() > 0) {
+                normalized.append(' ');
+            }
+            whitespace = false;
+            normalized.append(ch);
+            if (quote != 0 && ch == '\\' && idx + 1 < text.length()) {
+                normalized.append(text.charAt(++idx));
+            } else if (quote == 0 && (ch == '\'' || ch == '"')) {
+                quote = ch;
+            } else if (ch == quote) {
+                quote = 0;
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static String key(String language, String text) {
+        return language + ':' + normalize(text);
+    }
+
+    /**
+     * Retrieve the names of the properties that the results of the query depend on
+     * @param query the query
+     * @return the property names, {@code null} for every property
+     */
+    private static Set<String> properties(Query query) {
+        Set<String> names = new HashSet<>();
+        for (Query.Ordering ordering : query.order) {
+            names.add(ordering.name);
+        }
+        return addProperties(names, query.condition) ? names : null;
+    }
+
+    /**
+     * Add the names of the properties that the condition depends on
+     * @param names the property names to add to
+     * @param condition the condition
+     * @return state of the condition depending on only the added properties, {@code false} when it depends on every property
+     */
+    private static boolean addProperties(Set<String> names, Query.Condition condition) {
+        if (condition instanceof Query.PathCondition) {
+            return true;
+        }
+        if (condition instanceof Query.TypeCondition) {
+            names.add(FSPConstants.PROPERTY_RESOURCE_TYPE);
+            return true;
+        }
+        if (condition instanceof Query.PropertyCondition) {
+            names.add(((Query.PropertyCondition) condition).name);
+            return true;
+        }
+        if (condition instanceof Query.FullTextCondition) {
+            Query.FullTextCondition fullText = (Query.FullTextCondition) condition;
+            List<String> searched = (fullText.property != null) ? Collections.singletonList(fullText.property)
+                    : IndexManager.getFullTextProperties();
+            names.addAll(searched);
+            // without configured full-text properties, every property is searched
+            return !searched.isEmpty();
+        }
+        List<Query.Condition> children;
+        if (condition instanceof Query.And) {
+            children = ((Query.And) condition).conditions;
+        } else if (condition instanceof Query.Or) {
+            children = ((Query.Or) condition).conditions;
+        } else {
+            return false;
+        }
+        for (Query.Condition child : children) {
+            if (!addProperties(names, child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the condition holds a full-text condition, whose relevance depends on every resource
+     * @param condition the condition
+     * @return state of the condition holding a full-text condition
+     */
+    private static boolean hasFullText(Query.Condition condition) {
+        if (condition instanceof Query.FullTextCondition) {
+            return true;
+        }
+        List<Query.Condition> children = (condition instanceof Query.And) ? ((Query.And) condition).conditions
+                : (condition instanceof Query.Or) ? ((Query.Or) condition).conditions : Collections.emptyList();
+        for (Query.Condition child : children) {
+            if (hasFullText(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
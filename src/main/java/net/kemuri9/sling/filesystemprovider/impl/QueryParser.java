@@ -0,0 +1,537 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.sling.api.resource.QuerySyntaxException;
+
+/**
+ * Parser of the {@link FileSystemProviderQueryLanguageProvider#LANGUAGE_FSP} query language.
+ * <pre>
+ * statement := [ EXPLAIN ] [ SELECT column ( ',' column )* WHERE ] query [ order ] [ LIMIT number ]
+ * column    := '@' name | 'path'
+ * query     := term ( OR term )*
+ * term      := factor ( AND factor )*
+ * factor    := '(' query ')' | 'path:' glob | 'type:' text | 'text:' text | '@' name operator value
+ * operator  := '=' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;='
+ * value     := quoted string | number | true | false | 'xs:dateTime(' quoted string ')'
+ * order     := ORDER BY '@' name [ ASCENDING | DESCENDING ] ( ',' '@' name [ ASCENDING | DESCENDING ] )*
+ * </pre>
+ * Keywords are case insensitive. Globs, resource types and texts are quoted when they hold whitespace or parentheses.
+ * {@code text:} searches the full-text indexed properties for every term of the text.
+ * {@code xs:dateTime()} is an ISO 8601 date and time with its offset, compared to the instants of the property values.
+ * The optional columns select the values that {@code queryResources} returns for each match.
+ * <p>
+ * The subset of the {@link FileSystemProviderQueryLanguageProvider#LANGUAGE_XPATH} language is parsed into the same
+ * conditions, the steps becoming a path glob:
+ * <pre>
+ * statement := [ EXPLAIN ] path [ '[' predicate ']' ] [ order ] [ LIMIT number ]
+ * path      := ( '/' | '//' ) step ( ( '/' | '//' ) step )*
+ * step      := name | '*' | 'element(' ( name | '*' ) [ ',' type ] ')'
+ * predicate := conjunct ( or conjunct )*
+ * conjunct  := primary ( and primary )*
+ * primary   := '(' predicate ')' | '@' name operator ( value | true() | false() )
+ *            | 'jcr:contains(' ( '.' | '@' name ) ',' quoted string ')'
+ * </pre>
+ * A leading {@code /jcr:root} step is the root, and {@code element()} with a type may only be the last step.
+ */
+final class QueryParser {
+
+    /** function of date and time values */
+    private static final String FUNCTION_DATE_TIME = "xs:dateTime(";
+
+    /** the query text */
+    private final String text;
+
+    /** the language being parsed, for reporting errors */
+    private final String language;
+
+    /** position of the next character to parse */
+    private int pos;
+
+    private QueryParser(String text, String language) {
+        this.text = text;
+        this.language = language;
+    }
+
+    /**
+     * Parse the query text
+     * @param text the query text
+     * @param language the language of the query, for reporting errors
+     * @return the parsed query
+     * @throws QuerySyntaxException if the text is not a valid query
+     */
+    static Query parse(String text, String language) throws QuerySyntaxException {
+        if (text == null) {
+            throw new QuerySyntaxException("no query specified", text, language);
+        }
+        QueryParser parser = new QueryParser(text, language);
+        boolean explain = parser.consumeKeyword("EXPLAIN");
+        List<String> projection = null;
+        Query.Condition condition;
+        if (FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH.equals(language)) {
+            condition = parser.parseXPath();
+        } else {
+            projection = parser.parseProjection();
+            condition = parser.parseQuery();
+        }
+        List<Query.Ordering> order = parser.parseOrder();
+        long limit = parser.parseLimit();
+        if (parser.skipWhitespace()) {
+            throw parser.syntaxError("unexpected content");
+        }
+        return new Query(text, condition, projection, order, limit, explain);
+    }
+
+    /**
+     * Parse the maximum number of results
+     * @return the maximum number of results, 0 when the query has no limit
+     * @throws QuerySyntaxException if the limit is not a positive number
+     */
+    private long parseLimit() throws QuerySyntaxException {
+        if (!consumeKeyword("LIMIT")) {
+            return 0;
+        }
+        skipWhitespace();
+        int start = pos;
+        while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+            ++pos;
+        }
+        try {
+            long limit = Long.parseLong(text.substring(start, pos));
+            if (limit > 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        pos = start;
+        throw syntaxError("expected a positive number of results");
+    }
+
+    /**
+     * Parse the ordering of the results
+     * @return the ordering, empty when the query has none
+     * @throws QuerySyntaxException if the ordering is not valid
+     */
+    private List<Query.Ordering> parseOrder() throws QuerySyntaxException {
+        if (!consumeKeyword("ORDER")) {
+            return Collections.emptyList();
+        }
+        if (!consumeKeyword("BY")) {
+            throw syntaxError("expected BY");
+        }
+        List<Query.Ordering> order = new ArrayList<>();
+        do {
+            if (!skipWhitespace() || text.charAt(pos) != '@') {
+                throw syntaxError("expected a property to order by");
+            }
+            ++pos;
+            String name = readName();
+            boolean descending = consumeKeyword("DESCENDING");
+            if (!descending) {
+                consumeKeyword("ASCENDING");
+            }
+            order.add(new Query.Ordering(name, descending));
+        } while (consumeSeparator(','));
+        return order;
+    }
+
+    /**
+     * Parse the path steps and predicate of an XPath query
+     * @return the condition of the query
+     * @throws QuerySyntaxException if the query is not within the supported subset of XPath
+     */
+    private Query.Condition parseXPath() throws QuerySyntaxException {
+        skipWhitespace();
+        StringBuilder glob = new StringBuilder();
+        String resourceType = null;
+        boolean isFirst = true;
+        do {
+            if (resourceType != null) {
+                throw syntaxError("element() with a type must be the last step");
+            }
+            if (pos >= text.length() || text.charAt(pos) != '/') {
+                throw syntaxError("expected /");
+            }
+            boolean isDescendant = text.startsWith("//", pos);
+            pos += isDescendant ? 2 : 1;
+            String name;
+            if (text.startsWith("element(", pos)) {
+                pos += "element(".length();
+                skipWhitespace();
+                name = readStep();
+                if (consumeSeparator(',')) {
+                    skipWhitespace();
+                    resourceType = readTypeName();
+                }
+                if (!consumeSeparator(')')) {
+                    throw syntaxError("expected )");
+                }
+            } else {
+                name = readStep();
+            }
+            if (isFirst && !isDescendant && resourceType == null && "jcr:root".equals(name)) {
+                // the root of the repository, which the path is already relative to
+                isFirst = false;
+                continue;
+            }
+            isFirst = false;
+            glob.append(isDescendant ? "/**/" : FSPConstants.RESOURCE_PATH_SEPARATOR).append(name);
+        } while (pos < text.length() && text.charAt(pos) == '/');
+
+        List<Query.Condition> conditions = new ArrayList<>();
+        conditions.add(new Query.PathCondition((glob.length() == 0) ? FSPConstants.RESOURCE_PATH_SEPARATOR : glob.toString()));
+        if (resourceType != null) {
+            conditions.add(new Query.TypeCondition(resourceType));
+        }
+        if (consumeSeparator('[')) {
+            conditions.add(parsePredicate());
+            if (!consumeSeparator(']')) {
+                throw syntaxError("expected ]");
+            }
+        }
+        return (conditions.size() == 1) ? conditions.get(0) : new Query.And(conditions);
+    }
+
+    private Query.Condition parsePredicate() throws QuerySyntaxException {
+        List<Query.Condition> conjuncts = new ArrayList<>();
+        conjuncts.add(parseConjunct());
+        while (consumeKeyword("or")) {
+            conjuncts.add(parseConjunct());
+        }
+        return (conjuncts.size() == 1) ? conjuncts.get(0) : new Query.Or(conjuncts);
+    }
+
+    private Query.Condition parseConjunct() throws QuerySyntaxException {
+        List<Query.Condition> primaries = new ArrayList<>();
+        primaries.add(parsePrimary());
+        while (consumeKeyword("and")) {
+            primaries.add(parsePrimary());
+        }
+        return (primaries.size() == 1) ? primaries.get(0) : new Query.And(primaries);
+    }
+
+    private Query.Condition parsePrimary() throws QuerySyntaxException {
+        if (consumeSeparator('(')) {
+            Query.Condition condition = parsePredicate();
+            if (!consumeSeparator(')')) {
+                throw syntaxError("expected )");
+            }
+            return condition;
+        }
+        if (skipWhitespace() && text.startsWith("jcr:contains(", pos)) {
+            pos += "jcr:contains(".length();
+            String property = null;
+            if (consumeSeparator('@')) {
+                property = readName();
+            } else if (!consumeSeparator('.')) {
+                throw syntaxError("expected . or a property");
+            }
+            if (!consumeSeparator(',') || !skipWhitespace()
+                    || (text.charAt(pos) != '\'' && text.charAt(pos) != '"')) {
+                throw syntaxError("expected a quoted text");
+            }
+            String searched = readQuoted();
+            if (!consumeSeparator(')')) {
+                throw syntaxError("expected )");
+            }
+            return new Query.FullTextCondition(property, searched);
+        }
+        if (!consumeSeparator('@')) {
+            throw syntaxError("expected a property comparison");
+        }
+        String name = readName();
+        Query.Operator operator = readOperator();
+        skipWhitespace();
+        for (Boolean bool : new Boolean[] {Boolean.TRUE, Boolean.FALSE}) {
+            if (text.startsWith(bool + "()", pos)) {
+                pos += (bool + "()").length();
+                return new Query.PropertyCondition(name, operator, bool);
+            }
+        }
+        return new Query.PropertyCondition(name, operator, readValue());
+    }
+
+    /**
+     * Read the name of an XPath step, which runs up to the next step, predicate or whitespace
+     * @return the name, {@code *} for any name
+     * @throws QuerySyntaxException if there is no name
+     */
+    private String readStep() throws QuerySyntaxException {
+        int start = pos;
+        while (pos < text.length() && "/[](), \t\r\n".indexOf(text.charAt(pos)) < 0) {
+            ++pos;
+        }
+        if (pos == start) {
+            throw syntaxError("expected a step");
+        }
+        return text.substring(start, pos);
+    }
+
+    private String readTypeName() throws QuerySyntaxException {
+        if (pos < text.length() && (text.charAt(pos) == '\'' || text.charAt(pos) == '"')) {
+            return readQuoted();
+        }
+        int start = pos;
+        while (pos < text.length() && !Character.isWhitespace(text.charAt(pos)) && text.charAt(pos) != ')') {
+            ++pos;
+        }
+        if (pos == start) {
+            throw syntaxError("expected a resource type");
+        }
+        return text.substring(start, pos);
+    }
+
+    /**
+     * Parse the selected columns
+     * @return the keys of the selected columns, {@code null} when the query does not select any
+     * @throws QuerySyntaxException if the columns are not valid
+     */
+    private List<String> parseProjection() throws QuerySyntaxException {
+        if (!consumeKeyword("SELECT")) {
+            return null;
+        }
+        List<String> projection = new ArrayList<>();
+        do {
+            if (!skipWhitespace()) {
+                throw syntaxError("expected a column");
+            }
+            String column;
+            if (text.charAt(pos) == '@') {
+                ++pos;
+                column = readName();
+            } else if (consumeKeyword("path")) {
+                column = Query.COLUMN_PATH;
+            } else {
+                throw syntaxError("expected a column");
+            }
+            if (!projection.contains(column)) {
+                projection.add(column);
+            }
+        } while (consumeSeparator(','));
+        if (!consumeKeyword("WHERE")) {
+            throw syntaxError("expected WHERE");
+        }
+        return projection;
+    }
+
+    private boolean consumeSeparator(char separator) {
+        if (!skipWhitespace() || text.charAt(pos) != separator) {
+            return false;
+        }
+        ++pos;
+        return true;
+    }
+
+    private Query.Condition parseQuery() throws QuerySyntaxException {
+        List<Query.Condition> terms = new ArrayList<>();
+        terms.add(parseTerm());
+        while (consumeKeyword("OR")) {
+            terms.add(parseTerm());
+        }
+        return (terms.size() == 1) ? terms.get(0) : new Query.Or(terms);
+    }
+
+    private Query.Condition parseTerm() throws QuerySyntaxException {
+        List<Query.Condition> factors = new ArrayList<>();
+        factors.add(parseFactor());
+        while (consumeKeyword("AND")) {
+            factors.add(parseFactor());
+        }
+        return (factors.size() == 1) ? factors.get(0) : new Query.And(factors);
+    }
+
+    private Query.Condition parseFactor() throws QuerySyntaxException {
+        if (!skipWhitespace()) {
+            throw syntaxError("expected a condition");
+        }
+        char ch = text.charAt(pos);
+        if (ch == '(') {
+            ++pos;
+            Query.Condition condition = parseQuery();
+            if (!skipWhitespace() || text.charAt(pos) != ')') {
+                throw syntaxError("expected )");
+            }
+            ++pos;
+            return condition;
+        }
+        if (ch == '@') {
+            ++pos;
+            String name = readName();
+            Query.Operator operator = readOperator();
+            return new Query.PropertyCondition(name, operator, readValue());
+        }
+        if (text.startsWith("path:", pos)) {
+            pos += "path:".length();
+            String glob = readText();
+            if (!glob.startsWith(FSPConstants.RESOURCE_PATH_SEPARATOR)) {
+                throw syntaxError("path globs must be absolute");
+            }
+            return new Query.PathCondition(glob);
+        }
+        if (text.startsWith("type:", pos)) {
+            pos += "type:".length();
+            return new Query.TypeCondition(readText());
+        }
+        if (text.startsWith("text:", pos)) {
+            pos += "text:".length();
+            return new Query.FullTextCondition(null, readText());
+        }
+        throw syntaxError("expected a condition");
+    }
+
+    /**
+     * Skip the whitespace
+     * @return state of there being text remaining after the whitespace
+     */
+    private boolean skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            ++pos;
+        }
+        return pos < text.length();
+    }
+
+    private boolean consumeKeyword(String keyword) {
+        if (!skipWhitespace() || !text.regionMatches(true, pos, keyword, 0, keyword.length())) {
+            return false;
+        }
+        int end = pos + keyword.length();
+        if (end < text.length() && !Character.isWhitespace(text.charAt(end)) && "(,".indexOf(text.charAt(end)) < 0) {
+            // a longer word
+            return false;
+        }
+        pos = end;
+        return true;
+    }
+
+    private String readName() throws QuerySyntaxException {
+        int start = pos;
+        while (pos < text.length() && "=!<>,[] \t\r\n()".indexOf(text.charAt(pos)) < 0) {
+            ++pos;
+        }
+        if (pos == start) {
+            throw syntaxError("expected a property name");
+        }
+        return text.substring(start, pos);
+    }
+
+    private Query.Operator readOperator() throws QuerySyntaxException {
+        skipWhitespace();
+        // longest symbols first, so that <= is not read as <
+        Query.Operator[] operators = {Query.Operator.NE, Query.Operator.LE, Query.Operator.GE,
+            Query.Operator.EQ, Query.Operator.LT, Query.Operator.GT};
+        for (Query.Operator operator : operators) {
+            if (text.startsWith(operator.symbol, pos)) {
+                pos += operator.symbol.length();
+                return operator;
+            }
+        }
+        throw syntaxError("expected a comparison operator");
+    }
+
+    /**
+     * Read the text of a glob or resource type, which is quoted or runs up to whitespace or parentheses
+     * @return the text
+     * @throws QuerySyntaxException if there is no text
+     */
+    private String readText() throws QuerySyntaxException {
+        if (pos < text.length() && (text.charAt(pos) == '\'' || text.charAt(pos) == '"')) {
+            return readQuoted();
+        }
+        int start = pos;
+        while (pos < text.length() && !Character.isWhitespace(text.charAt(pos))
+                && text.charAt(pos) != '(' && text.charAt(pos) != ')') {
+            ++pos;
+        }
+        if (pos == start) {
+            throw syntaxError("expected text");
+        }
+        return text.substring(start, pos);
+    }
+
+    private Object readValue() throws QuerySyntaxException {
+        if (!skipWhitespace()) {
+            throw syntaxError("expected a value");
+        }
+        char ch = text.charAt(pos);
+        if (ch == '\'' || ch == '"') {
+            return readQuoted();
+        }
+        if (text.startsWith(FUNCTION_DATE_TIME, pos)) {
+            return readDateTime();
+        }
+        int start = pos;
+        while (pos < text.length() && !Character.isWhitespace(text.charAt(pos))
+                && text.charAt(pos) != ')' && text.charAt(pos) != ']') {
+            ++pos;
+        }
+        String literal = text.substring(start, pos);
+        if ("true".equalsIgnoreCase(literal) || "false".equalsIgnoreCase(literal)) {
+            return Boolean.valueOf(literal);
+        }
+        try {
+            if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+                return Long.valueOf(literal);
+            }
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw syntaxError("expected a quoted string, number or boolean");
+        }
+    }
+
+    private Calendar readDateTime() throws QuerySyntaxException {
+        pos += FUNCTION_DATE_TIME.length();
+        if (!skipWhitespace() || (text.charAt(pos) != '\'' && text.charAt(pos) != '"')) {
+            throw syntaxError("expected a quoted date and time");
+        }
+        int start = pos;
+        Calendar value = ValueConversion.convert(readQuoted(), Calendar.class);
+        if (value == null) {
+            pos = start;
+            throw syntaxError("expected an ISO 8601 date and time");
+        }
+        if (!consumeSeparator(')')) {
+            throw syntaxError("expected )");
+        }
+        return value;
+    }
+
+    private String readQuoted() throws QuerySyntaxException {
+        char quote = text.charAt(pos++);
+        StringBuilder value = new StringBuilder();
+        while (pos < text.length()) {
+            char ch = text.charAt(pos++);
+            if (ch == quote) {
+                return value.toString();
+            }
+            if (ch == '\\' && pos < text.length()) {
+                ch = text.charAt(pos++);
+            }
+            value.append(ch);
+        }
+        throw syntaxError("unterminated string");
+    }
+
+    private QuerySyntaxException syntaxError(String message) {
+        return new QuerySyntaxException(message + " at " + pos, text, language);
+    }
+}
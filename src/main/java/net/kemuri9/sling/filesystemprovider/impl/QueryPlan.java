@@ -0,0 +1,354 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plan of how a query finds its results, chosen by the estimated number of resources each way reads:
+ * the candidates from the {@link IndexManager indexes} are each read on their own, so they cost more per resource
+ * than walking the subtree of the query, which is estimated by listing its folders up to the cost of the candidates.
+ * Ordered queries with a limit instead read the range index of their first ordering in order, until they have enough results.
+ * The indexes hold the committed state, so the resources with pending changes are added to their candidates,
+ * and pending deletes and moves walk the subtree instead.
+ * The plan also counts the resources read while the results are found, so that it can be explained.
+ */
+final class QueryPlan {
+
+    /** how the results are found */
+    static enum Strategy {
+        /** the query can not match any of the provider's resources */
+        NONE,
+        /** the index candidates are read and checked against the query */
+        INDEX,
+        /** the results are answered from the resource type index alone, only reading the properties of selected columns */
+        COVERING_INDEX,
+        /** the full-text matches are read in order of relevance, and checked against the query */
+        RANKED_INDEX,
+        /**
+         * the range index of the first ordering is read in order until the limit is reached,
+         * reading only the index candidates when there are any
+         */
+        ORDERED_INDEX,
+        /** the subtree of the query is walked */
+        TRAVERSAL;
+    }
+
+    /** cost of reading an index candidate relative to reading a resource of a walk, as candidates are read one at a time */
+    static final long INDEX_READ_COST = 2;
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(QueryPlan.class);
+
+    /** how the results are found */
+    final Strategy strategy;
+
+    /** path of the subtree that the results are within, {@code null} for {@link Strategy#NONE} */
+    final String scope;
+
+    /**
+     * paths of the index candidates, or the results themselves for {@link Strategy#COVERING_INDEX}.
+     * {@code null} when the indexes can not answer the query
+     */
+    final List<String> candidates;
+
+    /** the resource type of the results of {@link Strategy#COVERING_INDEX} */
+    final String resourceType;
+
+    /** the estimated number of resources walked, which stops above the cost of the candidates. -1 when not estimated */
+    final long traversalEstimate;
+
+    /** number of folders listed to estimate the walk */
+    final long foldersListed;
+
+    /** number of resources read while the results are found */
+    final LongAdder resourcesRead = new LongAdder();
+
+    /** number of results found */
+    final LongAdder results = new LongAdder();
+
+    private QueryPlan(Strategy strategy, String scope, List<String> candidates, String resourceType,
+            long traversalEstimate, long foldersListed) {
+        this.strategy = strategy;
+        this.scope = scope;
+        this.candidates = candidates;
+        this.resourceType = resourceType;
+        this.traversalEstimate = traversalEstimate;
+        this.foldersListed = foldersListed;
+    }
+
+    /**
+     * Plan how the query finds its results
+     * @param query the query
+     * @param state the provider state the query is made in
+     * @return the plan of the query
+     */
+    static QueryPlan plan(Query query, FileSystemProviderState state) {
+        String scope = scope(query);
+        if (scope == null) {
+            return new QueryPlan(Strategy.NONE, null, null, null, -1, 0);
+        }
+        if (!state.structuralChanges.isEmpty()) {
+            // the indexes hold the committed paths, which the pending deletes and moves no longer match
+            return new QueryPlan(Strategy.TRAVERSAL, scope, null, null, -1, 0);
+        }
+        if (query.order.isEmpty()) {
+            // relevance is only known from the full-text indexes, so they are used regardless of the cost
+            Query.FullTextCondition fullText = rankedCondition(query.condition);
+            // the top results are only cut when no other condition filters them afterwards
+            List<String> ranked = (fullText == null) ? null : IndexManager.search(fullText, scope, fullText == query.condition);
+            if (ranked != null) {
+                return new QueryPlan(Strategy.RANKED_INDEX, scope, withPending(ranked, state, scope, false), null, -1, 0);
+            }
+        }
+        boolean pending = state.isModified() || !state.createdPaths.isEmpty();
+        if (query.projection != null && query.order.isEmpty() && !pending) {
+            QueryPlan covering = covering(query, scope);
+            if (covering != null) {
+                return covering;
+            }
+        }
+        List<String> candidates = IndexManager.candidates(query.condition, scope);
+        if (query.limit > 0 && !query.order.isEmpty() && !pending && IndexManager.isRangeIndexed(query.order.get(0).name)) {
+            // the first results in order are found without reading and sorting every match
+            return new QueryPlan(Strategy.ORDERED_INDEX, scope, candidates, null, -1, 0);
+        }
+        if (candidates == null) {
+            return new QueryPlan(Strategy.TRAVERSAL, scope, null, null, -1, 0);
+        }
+        candidates = withPending(candidates, state, scope, true);
+        long indexCost = candidates.size() * INDEX_READ_COST;
+        long[] estimate = estimateWalk(scope, query.condition, indexCost);
+        Strategy strategy = (estimate[0] > indexCost) ? Strategy.INDEX : Strategy.TRAVERSAL;
+        log.debug("planned {} for {}, {} candidates against a walk of {}", strategy, query.text, candidates.size(), estimate[0]);
+        return new QueryPlan(strategy, scope, candidates, null, estimate[0], estimate[1]);
+    }
+
+    /**
+     * Add the resources with pending changes to the index candidates, as the indexes only hold the committed state
+     * @param candidates the index candidates
+     * @param state the provider state the query is made in
+     * @param scope path of the subtree that the results are within
+     * @param sorted state of the candidates being sorted by path, rather than ranked. ranked candidates keep their order,
+     * followed by the pending resources that they do not hold.
+     * @return the candidates along with the pending resources within the scope
+     */
+    private static List<String> withPending(List<String> candidates, FileSystemProviderState state, String scope,
+            boolean sorted) {
+        if (state.modifiedProperties.isEmpty() && state.createdPaths.isEmpty()) {
+            return candidates;
+        }
+        Set<String> paths = sorted ? new TreeSet<>(candidates) : new LinkedHashSet<>(candidates);
+        for (String path : state.modifiedProperties.keySet()) {
+            if (Util.isWithin(scope, path)) {
+                paths.add(path);
+            }
+        }
+        for (String path : state.createdPaths) {
+            if (Util.isWithin(scope, path)) {
+                paths.add(path);
+            }
+        }
+        return new ArrayList<>(paths);
+    }
+
+    /**
+     * Retrieve the full-text condition that ranks the results of the query
+     * @param condition the query condition
+     * @return the full-text condition that must hold, {@code null} if there is none
+     */
+    private static Query.FullTextCondition rankedCondition(Query.Condition condition) {
+        if (condition instanceof Query.FullTextCondition) {
+            return (Query.FullTextCondition) condition;
+        }
+        if (condition instanceof Query.And) {
+            for (Query.Condition child : ((Query.And) condition).conditions) {
+                if (child instanceof Query.FullTextCondition) {
+                    return (Query.FullTextCondition) child;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Plan answering a query selecting columns from the resource type index alone, when the index covers it:
+     * the query only matches by resource type and path globs, and the state has no pending changes that the index
+     * does not hold.
+     * @param query the query selecting columns
+     * @param scope path of the subtree that the results are within
+     * @return the plan, {@code null} if the index does not cover the query
+     */
+    private static QueryPlan covering(Query query, String scope) {
+        List<Query.Condition> conditions = (query.condition instanceof Query.And)
+                ? ((Query.And) query.condition).conditions : Collections.singletonList(query.condition);
+        Query.TypeCondition type = null;
+        List<Query.PathCondition> globs = new ArrayList<>();
+        for (Query.Condition condition : conditions) {
+            if (type == null && condition instanceof Query.TypeCondition) {
+                type = (Query.TypeCondition) condition;
+            } else if (condition instanceof Query.PathCondition) {
+                globs.add((Query.PathCondition) condition);
+            } else {
+                return null;
+            }
+        }
+        if (type == null) {
+            return null;
+        }
+        List<String> paths = IndexManager.lookupType(type.resourceType, scope);
+        if (paths == null) {
+            return null;
+        }
+        List<String> results = paths.stream()
+                .filter(path -> Util.isWithin(scope, path) && globs.stream().allMatch(glob -> glob.matches(path)))
+                .collect(Collectors.toList());
+        return new QueryPlan(Strategy.COVERING_INDEX, scope, results, type.resourceType, -1, 0);
+    }
+
+    /**
+     * Estimate the number of resources that walking the subtree visits, by listing its folders,
+     * pruning the subtrees that the condition can not match
+     * @param scope path of the subtree root
+     * @param condition the query condition
+     * @param limit number of resources after which the estimate stops
+     * @return the estimated number of resources, which is above the limit when the estimate stopped,
+     * and the number of folders listed
+     */
+    private static long[] estimateWalk(String scope, Query.Condition condition, long limit) {
+        Path directory = Paths.get(Util.getAbsPath(scope));
+        if (!Files.isDirectory(directory)) {
+            // packed or imaged, which are read as a whole
+            return new long[] {1, 0};
+        }
+        Queue<Path> pending = new ArrayDeque<>();
+        Queue<String> pendingPaths = new ArrayDeque<>();
+        pending.add(directory);
+        pendingPaths.add(scope);
+        long count = 0;
+        long listed = 0;
+        while (!pending.isEmpty() && count <= limit) {
+            Path folder = pending.remove();
+            String path = pendingPaths.remove();
+            ++count;
+            ++listed;
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(folder, Files::isDirectory)) {
+                for (Path child : children) {
+                    String name = child.getFileName().toString();
+                    String childPath = SubtreeIterator.childPath(path, name);
+                    if (!name.startsWith(FSPConstants.FILENAME_PREFIX_FSP) && ImageManager.imageOf(childPath) == null
+                            && condition.mayMatchWithin(childPath)) {
+                        pending.add(child);
+                        pendingPaths.add(childPath);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Unable to list {} to estimate a walk", folder, e);
+            }
+        }
+        return new long[] {count + pending.size(), listed};
+    }
+
+    /**
+     * Retrieve the subtree that the query's matches are within, limited to the provider's subtree
+     * @param query the query
+     * @return path of the subtree root, {@code null} if the query can not match any of the provider's resources
+     */
+    private static String scope(Query query) {
+        String root = Util.getConfig().provider_root();
+        String scope = query.condition.scope();
+        if (scope == null || Util.isWithin(scope, root)) {
+            return root;
+        }
+        return Util.isWithin(root, scope) ? scope : null;
+    }
+
+    /**
+     * Retrieve the estimated number of resources read by the plan
+     * @param query the query that was planned
+     * @return the estimated cost, -1 if the walk was not estimated
+     */
+    long estimatedCost(Query query) {
+        switch (strategy) {
+        case NONE:
+            return 0;
+        case INDEX:
+        case RANKED_INDEX:
+            return candidates.size() * INDEX_READ_COST;
+        case ORDERED_INDEX:
+            // as many as the limit are estimated to be read, unless there are fewer candidates
+            return ((candidates == null) ? query.limit : Math.min(query.limit, candidates.size())) * INDEX_READ_COST;
+        case COVERING_INDEX:
+            return candidates.size();
+        case TRAVERSAL:
+            return traversalEstimate;
+        default:
+            throw new RuntimeException("A type was missed, fix this now");
+        }
+    }
+
+    /**
+     * Describe the plan and the I/O it performed, for explaining the query
+     * @param query the query that was planned
+     * @param elapsed milliseconds taken to find the results
+     * @return the description, keyed by its aspects
+     */
+    Map<String, Object> explain(Query query, long elapsed) {
+        Map<String, Object> explanation = new LinkedHashMap<>();
+        explanation.put("statement", query.text);
+        explanation.put("plan", strategy.name());
+        if (scope != null) {
+            explanation.put("scope", scope);
+        }
+        if (resourceType != null) {
+            explanation.put("resourceType", resourceType);
+        }
+        if (candidates != null) {
+            explanation.put("indexCandidates", (long) candidates.size());
+        }
+        if (query.limit > 0) {
+            explanation.put("limit", query.limit);
+        }
+        explanation.put("estimatedCost", estimatedCost(query));
+        if (traversalEstimate >= 0) {
+            explanation.put("traversalEstimate", traversalEstimate);
+            explanation.put("foldersListed", foldersListed);
+        }
+        explanation.put("resourcesRead", resourcesRead.sum());
+        explanation.put("results", results.sum());
+        explanation.put("elapsedMillis", elapsed);
+        return explanation;
+    }
+}
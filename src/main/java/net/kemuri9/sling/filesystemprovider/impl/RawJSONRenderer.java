@@ -0,0 +1,331 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.kemuri9.sling.filesystemprovider.JSONRenderer;
+
+/**
+ * {@link JSONRenderer} that copies the persisted JSON properties of the resources into the output.
+ * The properties are walked with a {@link JSONByteParser} without parsing their values, so that keys and values are
+ * written as the spans of bytes they are stored as. Only dates and binaries are parsed, to be reformatted.
+ */
+final class RawJSONRenderer implements JSONRenderer {
+
+    /** how a property is rendered, by its type */
+    private static enum Rendering {
+        /** as its stored value */
+        RAW,
+        /** as a date in the ECMA date format */
+        DATE,
+        /** not at all, as its type is not available */
+        SKIP;
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(RawJSONRenderer.class);
+
+    /** the ECMA date format that Sling renders dates in */
+    private static final DateTimeFormatter ECMA_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM dd yyyy HH:mm:ss 'GMT'Z", Locale.ENGLISH);
+
+    /** the resource to render */
+    private final FileSystemProviderResource resource;
+
+    /** rendering of the properties by their stored type, which is either a type id or a type name */
+    private final Map<Object, Rendering> renderings = new HashMap<>();
+
+    /** the output being rendered into */
+    private OutputStream out;
+
+    RawJSONRenderer(FileSystemProviderResource resource) {
+        this.resource = resource;
+    }
+
+    @Override
+    public void render(OutputStream output, int depth) throws IOException {
+        out = new BufferedOutputStream(output, FSPConstants.BUFFER_SIZE);
+        try {
+            writeResource(resource, depth);
+            out.flush();
+        } finally {
+            out = null;
+        }
+    }
+
+    private void writeResource(FileSystemProviderResource rsrc, int depth) throws IOException {
+        out.write('{');
+        byte[] json = PersistenceHelper.readRawProperties(rsrc);
+        boolean first = true;
+        if (json != null) {
+            try {
+                first = writeProperties(rsrc, json);
+            } catch (JSONException e) {
+                throw new IOException("unable to render the properties of " + rsrc.getPath(), e);
+            }
+        }
+        if (depth != 0) {
+            for (String name : PersistenceHelper.getChildNames(rsrc)) {
+                FileSystemProviderResource child = rsrc.getChildResource(name);
+                if (child == null) {
+                    // removed since it was listed
+                    continue;
+                }
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                out.write(JSONObject.quote(name).getBytes(StandardCharsets.UTF_8));
+                out.write(':');
+                writeResource(child, (depth < 0) ? depth : depth - 1);
+            }
+        }
+        out.write('}');
+    }
+
+    /**
+     * Write the members of the stored JSON properties as the properties of the rendered resource
+     * @param rsrc the resource of the properties
+     * @param json UTF-8 bytes of the stored JSON properties
+     * @return state of no property having been written
+     */
+    private boolean writeProperties(FileSystemProviderResource rsrc, byte[] json) throws IOException, JSONException {
+        JSONByteParser parser = JSONByteParser.open(ByteBuffer.wrap(json));
+        boolean first = true;
+        if (!parser.enter('{')) {
+            return first;
+        }
+        do {
+            int keyStart = parser.valueStart();
+            parser.skipValue();
+            int keyEnd = parser.position();
+            parser.expect(':');
+
+            Object type = null;
+            int valueStart = -1;
+            int valueEnd = -1;
+            boolean isArray = false;
+            boolean isBinary = false;
+            boolean isInline = false;
+            if (parser.enter('{')) {
+                do {
+                    String name = parser.readKey();
+                    if (FSPConstants.JSON_KEY_TYPE.equals(name)) {
+                        type = parser.readValue();
+                    } else if (FSPConstants.JSON_KEY_VALUE.equals(name) || FSPConstants.JSON_KEY_VALUES.equals(name)) {
+                        isArray = FSPConstants.JSON_KEY_VALUES.equals(name);
+                        valueStart = parser.valueStart();
+                        parser.skipValue();
+                        valueEnd = parser.position();
+                    } else if (FSPConstants.JSON_KEY_BINARY.equals(name)) {
+                        isBinary = Boolean.TRUE.equals(parser.readValue());
+                    } else if (FSPConstants.JSON_KEY_INLINE.equals(name)) {
+                        isInline = Boolean.TRUE.equals(parser.readValue());
+                    } else {
+                        parser.skipValue();
+                    }
+                } while (parser.next('}'));
+            }
+
+            Rendering rendering = renderingOf(type);
+            if (valueStart < 0 || rendering == Rendering.SKIP) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            if (isBinary) {
+                // binaries are rendered as their length, under their name prefixed with a colon
+                out.write('"');
+                out.write(':');
+                out.write(json, keyStart + 1, keyEnd - keyStart - 1);
+            } else {
+                out.write(json, keyStart, keyEnd - keyStart);
+            }
+            out.write(':');
+            if (!isBinary && rendering == Rendering.RAW) {
+                out.write(json, valueStart, valueEnd - valueStart);
+            } else if (isArray) {
+                writeArray(rsrc, json, valueStart, valueEnd, type, isBinary, isInline);
+            } else {
+                writeValue(rsrc, json, valueStart, valueEnd, type, isBinary, isInline);
+            }
+        } while (parser.next('}'));
+        return first;
+    }
+
+    private void writeArray(FileSystemProviderResource rsrc, byte[] json, int start, int end, Object type,
+            boolean isBinary, boolean isInline) throws IOException, JSONException {
+        JSONByteParser parser = JSONByteParser.open(ByteBuffer.wrap(json, start, end - start));
+        out.write('[');
+        if (parser.enter('[')) {
+            boolean first = true;
+            do {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                int valueStart = parser.valueStart();
+                parser.skipValue();
+                writeValue(rsrc, json, valueStart, parser.position(), type, isBinary, isInline);
+            } while (parser.next(']'));
+        }
+        out.write(']');
+    }
+
+    /**
+     * Write a single value that needs reformatting
+     * @param rsrc the resource of the value
+     * @param json UTF-8 bytes of the stored JSON properties
+     * @param start absolute offset of the stored value
+     * @param end absolute offset after the stored value
+     * @param type the stored type of the value
+     * @param isBinary state of the value being a binary
+     * @param isInline state of the binary being held inline as Base64
+     */
+    private void writeValue(FileSystemProviderResource rsrc, byte[] json, int start, int end, Object type,
+            boolean isBinary, boolean isInline) throws IOException, JSONException {
+        if (json[start] == 'n') {
+            // null
+            out.write(json, start, end - start);
+            return;
+        }
+        if (isBinary && isInline) {
+            writeNumber(base64Length(json, start, end));
+            return;
+        }
+        Object value = JSONByteParser.open(ByteBuffer.wrap(json, start, end - start)).readValue();
+        if (isBinary) {
+            try {
+                writeNumber(PersistenceHelper.readBinaryLength(rsrc.getPath(), rsrc.getPropertySource(), String.valueOf(value)));
+            } catch (IOException e) {
+                log.error("Unable to read the length of binary {} of {}", value, rsrc.getPath(), e);
+                out.write(JSONObject.NULL.toString().getBytes(StandardCharsets.US_ASCII));
+            }
+            return;
+        }
+        ZonedDateTime dateTime = toDateTime(ValueConversion.convert(value, classOf(type)));
+        if (dateTime == null) {
+            out.write(json, start, end - start);
+            return;
+        }
+        out.write('"');
+        out.write(ECMA_DATE_FORMAT.format(dateTime).getBytes(StandardCharsets.UTF_8));
+        out.write('"');
+    }
+
+    private void writeNumber(long number) throws IOException {
+        out.write(Long.toString(number).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Compute the decoded length of a stored Base64 string, without decoding it
+     * @param json UTF-8 bytes of the stored JSON properties
+     * @param start absolute offset of the opening quote
+     * @param end absolute offset after the closing quote
+     * @return the decoded length
+     */
+    private static long base64Length(byte[] json, int start, int end) {
+        long chars = 0;
+        int padding = 0;
+        for (int idx = start + 1; idx < end - 1; ++idx) {
+            byte b = json[idx];
+            if (b == '=') {
+                ++padding;
+            } else if (b != '\\') {
+                // slashes may be escaped, which is the only escape in Base64
+                ++chars;
+            }
+        }
+        return (chars + padding) / 4 * 3 - padding;
+    }
+
+    /**
+     * Retrieve how properties of the stored type are rendered
+     * @param type the stored type, a type id or a type name
+     * @return the rendering of the type
+     */
+    private Rendering renderingOf(Object type) {
+        Rendering rendering = renderings.get(type);
+        if (rendering == null) {
+            Class<?> clazz = classOf(type);
+            if (clazz == null) {
+                rendering = Rendering.SKIP;
+            } else if (Calendar.class.isAssignableFrom(clazz) || clazz == Date.class || clazz == Instant.class
+                    || clazz == ZonedDateTime.class || clazz == OffsetDateTime.class) {
+                rendering = Rendering.DATE;
+            } else {
+                rendering = Rendering.RAW;
+            }
+            renderings.put(type, rendering);
+        }
+        return rendering;
+    }
+
+    private static Class<?> classOf(Object type) {
+        if (type instanceof Number) {
+            return TypeDictionary.classOf(((Number) type).intValue());
+        }
+        return (type instanceof String) ? Util.loadClass((String) type) : null;
+    }
+
+    /**
+     * Convert the date value into a date time in its time zone
+     * @param value the date value
+     * @return the date time, {@code null} if the value is not a date
+     */
+    private static ZonedDateTime toDateTime(Object value) {
+        if (value instanceof Calendar) {
+            Calendar cal = (Calendar) value;
+            return ZonedDateTime.ofInstant(cal.toInstant(), cal.getTimeZone().toZoneId());
+        }
+        if (value instanceof Date) {
+            return ZonedDateTime.ofInstant(((Date) value).toInstant(), ZoneId.systemDefault());
+        }
+        if (value instanceof Instant) {
+            return ZonedDateTime.ofInstant((Instant) value, ZoneOffset.UTC);
+        }
+        if (value instanceof ZonedDateTime) {
+            return (ZonedDateTime) value;
+        }
+        if (value instanceof OffsetDateTime) {
+            return ((OffsetDateTime) value).toZonedDateTime();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,574 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.kemuri9.sling.filesystemprovider.Binary;
+
+/**
+ * Immutable image of the resources of a subtree, compiled into a single file that is served from a read only
+ * memory mapping. Looking up a resource walks a path trie within the mapping, so serving the subtree
+ * does not touch the file system once the image is mapped.
+ *
+ * <p>The layout is:</p>
+ * <pre>
+ * magic "FSPI" | version (1 byte) | root node offset (int) | node count (int)
+ * then, for each resource after those of its children:
+ * binaries: the data of the resource's binaries that are not inline
+ * properties: the JSON properties of the resource in the {@link BinaryPropertyFormat}
+ * node: name length (int) | name (UTF-8) | properties offset (int) | properties length (int)
+ *       | child count (int) | child node offsets (int each)
+ * </pre>
+ * <p>Children are ordered by the unsigned bytes of their names, so that they are binary searched.
+ * Small binaries are held inline of the properties, the others are referenced by a name that encodes their
+ * location within the image. Type ids of the {@link TypeDictionary} are resolved to type names,
+ * so that the image does not depend on the repository it was compiled from.</p>
+ */
+final class RepositoryImage {
+
+    /** a resource within the image */
+    static final class Node implements PropertySource {
+        /** the image holding the resource */
+        final RepositoryImage image;
+        /** offset of the resource's node within the image */
+        final int offset;
+
+        Node(RepositoryImage image, int offset) {
+            this.image = image;
+            this.offset = offset;
+        }
+
+        @Override
+        public List<String> getChildNames() {
+            return image.childNames(offset);
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        @Override
+        public Binary readBinary(String name) throws IOException {
+            return image.readBinary(name);
+        }
+
+        @Override
+        public JSONObject readProperties() throws IOException {
+            return image.readProperties(offset);
+        }
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(RepositoryImage.class);
+
+    /** magic bytes identifying the format */
+    private static final byte[] MAGIC = {'F', 'S', 'P', 'I'};
+
+    /** current version of the format */
+    static final byte VERSION = 1;
+
+    /** length of the header */
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + Integer.BYTES + Integer.BYTES;
+
+    /** prefix of the names of binaries held within the image */
+    private static final String BINARY_PREFIX = FSPConstants.FILENAME_PREFIX_FSP + "image_";
+
+    /** the mapped image. only absolute reads are made, so it is shared between threads */
+    private final ByteBuffer buffer;
+
+    /** the image file */
+    private final Path file;
+
+    /** resource path that the image is mounted at */
+    private final String mountPath;
+
+    /** number of resources in the image */
+    private final int nodeCount;
+
+    /** offset of the root resource's node */
+    private final int rootOffset;
+
+    private RepositoryImage(Path file, String mountPath, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.mountPath = mountPath;
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_LENGTH) {
+            throw new IOException(file + " is not a repository image");
+        }
+        for (int idx = 0; idx < MAGIC.length; ++idx) {
+            if (buffer.get(idx) != MAGIC[idx]) {
+                throw new IOException(file + " is not a repository image");
+            }
+        }
+        byte version = buffer.get(MAGIC.length);
+        if (version != VERSION) {
+            throw new IOException("unsupported repository image version " + version + " of " + file);
+        }
+        rootOffset = buffer.getInt(MAGIC.length + 1);
+        nodeCount = buffer.getInt(MAGIC.length + 1 + Integer.BYTES);
+        if (rootOffset < HEADER_LENGTH || rootOffset >= buffer.limit()) {
+            throw new IOException("repository image " + file + " is incomplete");
+        }
+    }
+
+    /**
+     * Map the image file into memory
+     * @param file the image file
+     * @param mountPath resource path that the image is mounted at
+     * @return the mapped image
+     * @throws IOException if the file can not be mapped or is not a repository image
+     */
+    static RepositoryImage open(Path file, String mountPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("repository image " + file + " is too large to map");
+            }
+            // the mapping remains valid after the channel is closed, and after the file is replaced
+            RepositoryImage image = new RepositoryImage(file, mountPath, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            log.info("mapped repository image {} of {} resources at {}", file, image.nodeCount, mountPath);
+            return image;
+        }
+    }
+
+    /**
+     * Compile the resources of the source directory into an image file. The image is written aside,
+     * and moved into place, so that readers of the image file never see a partial image.
+     * @param source the directory of the root resource of the subtree to compile
+     * @param imageFile the image file to write
+     * @param inlineThreshold maximum size, in bytes, of binaries to hold inline of the properties
+     * @return number of resources in the image
+     * @throws IOException if the image can not be compiled, such as when the subtree holds a packed subtree
+     */
+    static int compile(Path source, Path imageFile, int inlineThreshold) throws IOException {
+        if (!Files.isDirectory(source)) {
+            throw new IOException("no resource directory at " + source);
+        }
+        Path tempFile = Files.createTempFile(imageFile.toAbsolutePath().getParent(),
+                FSPConstants.FILENAME_PREFIX_FSP, FSPConstants.FILENAME_FRAGMENT_TEMPORARY);
+        try {
+            Compiler compiler = new Compiler(inlineThreshold);
+            int root;
+            try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile), FSPConstants.BUFFER_SIZE))) {
+                output.write(MAGIC);
+                output.writeByte(VERSION);
+                // offsets are filled in once the nodes are written
+                output.writeInt(0);
+                output.writeInt(0);
+                compiler.output = output;
+                root = compiler.writeNode(source, "");
+            }
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES);
+                header.putInt(root).putInt(compiler.count).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, MAGIC.length + 1 + header.position());
+                }
+                channel.force(true);
+            }
+            Files.move(tempFile, imageFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return compiler.count;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /** writes the nodes of the image, after their children */
+    private static final class Compiler {
+
+        /** maximum size, in bytes, of binaries to hold inline of the properties */
+        private final int inlineThreshold;
+
+        /** the image being written */
+        private DataOutputStream output;
+
+        /** number of nodes written */
+        private int count = 0;
+
+        Compiler(int inlineThreshold) {
+            this.inlineThreshold = inlineThreshold;
+        }
+
+        /**
+         * Write the node of the directory's resource, after those of its children
+         * @param directory the resource directory
+         * @param name name of the resource
+         * @return offset of the node
+         * @throws IOException if the node can not be written
+         */
+        int writeNode(Path directory, String name) throws IOException {
+            if (Files.exists(directory.resolve(FSPConstants.FILENAME_SEGMENT_PACK))) {
+                throw new IOException("unable to compile the packed subtree " + directory + ", unpack it first");
+            }
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, Files::isDirectory)) {
+                for (Path entry : entries) {
+                    children.add(entry);
+                }
+            }
+            List<byte[]> childNames = new ArrayList<>(children.size());
+            for (Path child : children) {
+                childNames.add(child.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            Integer[] order = new Integer[children.size()];
+            for (int idx = 0; idx < order.length; ++idx) {
+                order[idx] = idx;
+            }
+            Arrays.sort(order, (a, b) -> compare(childNames.get(a), childNames.get(b)));
+            int[] childOffsets = new int[order.length];
+            for (int idx = 0; idx < order.length; ++idx) {
+                Path child = children.get(order[idx]);
+                childOffsets[idx] = writeNode(child, child.getFileName().toString());
+            }
+
+            int propsOffset = 0;
+            int propsLength = 0;
+            Path propFile = PersistenceHelper.findPropertyFile(directory);
+            if (propFile != null) {
+                byte[] props;
+                try {
+                    props = encodeProperties(directory, PersistenceHelper.readPropertyFile(propFile));
+                } catch (JSONException e) {
+                    throw new IOException("unable to read properties of " + directory, e);
+                }
+                propsOffset = position();
+                output.write(props);
+                propsLength = props.length;
+            }
+
+            int offset = position();
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(nameBytes.length);
+            output.write(nameBytes);
+            output.writeInt(propsOffset);
+            output.writeInt(propsLength);
+            output.writeInt(childOffsets.length);
+            for (int childOffset : childOffsets) {
+                output.writeInt(childOffset);
+            }
+            ++count;
+            return offset;
+        }
+
+        /**
+         * Encode the properties for the image, writing out their binaries
+         * @param directory the resource directory holding the binary files
+         * @param properties the JSON properties of the resource
+         * @return the encoded properties
+         * @throws IOException if the binaries can not be written
+         * @throws JSONException if the properties can not be updated
+         */
+        private byte[] encodeProperties(Path directory, JSONObject properties) throws IOException, JSONException {
+            for (Iterator<String> keyIter = properties.keys(); keyIter.hasNext();) {
+                JSONObject property = properties.optJSONObject(keyIter.next());
+                if (property == null) {
+                    continue;
+                }
+                Object type = property.opt(FSPConstants.JSON_KEY_TYPE);
+                if (type instanceof Number) {
+                    property.put(FSPConstants.JSON_KEY_TYPE, TypeDictionary.nameOf(((Number) type).intValue()));
+                }
+                if (!property.optBoolean(FSPConstants.JSON_KEY_BINARY, false)
+                        || property.optBoolean(FSPConstants.JSON_KEY_INLINE, false)) {
+                    continue;
+                }
+                JSONArray values = property.optJSONArray(FSPConstants.JSON_KEY_VALUES);
+                if (values == null) {
+                    values = new JSONArray().put(property.opt(FSPConstants.JSON_KEY_VALUE));
+                }
+                // the inline state is of the whole property, so only inline when all of its binaries are small
+                boolean inline = true;
+                for (int idx = 0; inline && idx < values.length(); ++idx) {
+                    Path file = binaryFile(directory, values.opt(idx));
+                    inline = file == null || BinaryCompression.fromFile(file).getLength(file) <= inlineThreshold;
+                }
+                JSONArray converted = new JSONArray();
+                for (int idx = 0; idx < values.length(); ++idx) {
+                    Path file = binaryFile(directory, values.opt(idx));
+                    converted.put((file == null) ? JSONObject.NULL : (inline ? inlineBinary(file) : writeBinary(file)));
+                }
+                if (inline) {
+                    property.put(FSPConstants.JSON_KEY_INLINE, true);
+                }
+                if (property.has(FSPConstants.JSON_KEY_VALUES)) {
+                    property.put(FSPConstants.JSON_KEY_VALUES, converted);
+                } else {
+                    property.put(FSPConstants.JSON_KEY_VALUE, converted.opt(0));
+                }
+            }
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            BinaryPropertyFormat.write(properties, encoded);
+            return encoded.toByteArray();
+        }
+
+        /**
+         * Retrieve the binary file of the value
+         * @param directory the resource directory
+         * @param value the value of the binary property
+         * @return the binary file, {@code null} when the value is null
+         */
+        private static Path binaryFile(Path directory, Object value) {
+            if (value == null || JSONObject.NULL.equals(value)) {
+                return null;
+            }
+            return directory.resolve(value.toString());
+        }
+
+        private static String inlineBinary(Path file) throws IOException {
+            try (InputStream input = BinaryCompression.fromFile(file).openInput(file)) {
+                return Base64.getEncoder().encodeToString(Util.slurp(input));
+            }
+        }
+
+        /**
+         * Write the binary's data into the image
+         * @param file the binary file
+         * @return name of the binary within the image
+         * @throws IOException if the binary can not be written
+         */
+        private String writeBinary(Path file) throws IOException {
+            int offset = position();
+            long length = 0;
+            byte[] buf = new byte[FSPConstants.BUFFER_SIZE];
+            try (InputStream input = BinaryCompression.fromFile(file).openInput(file)) {
+                for (int read = input.read(buf); read >= 0; read = input.read(buf)) {
+                    output.write(buf, 0, read);
+                    length += read;
+                }
+            }
+            return BINARY_PREFIX + offset + "_" + length + FSPConstants.FILENAME_EXTENSION_BINARY;
+        }
+
+        /**
+         * Retrieve the current position within the image
+         * @return the current position
+         * @throws IOException if the image has grown too large to be mapped
+         */
+        private int position() throws IOException {
+            // the written count saturates rather than overflowing
+            if (output.size() == Integer.MAX_VALUE) {
+                throw new IOException("repository image is too large to map");
+            }
+            return output.size();
+        }
+    }
+
+    /**
+     * Compare names by their unsigned bytes
+     * @param a first name
+     * @param b second name
+     * @return comparison of the names
+     */
+    private static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int idx = 0; idx < length; ++idx) {
+            int cmp = (a[idx] & 0xFF) - (b[idx] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Find the resource within the image
+     * @param path the resource path, within the mounted subtree
+     * @return the resource, {@code null} if the image does not hold it
+     */
+    Node find(String path) {
+        if (!Util.isWithin(mountPath, path)) {
+            return null;
+        }
+        int node = rootOffset;
+        for (String name : path.substring(mountPath.length()).split(FSPConstants.RESOURCE_PATH_SEPARATOR)) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            node = findChild(node, name.getBytes(StandardCharsets.UTF_8));
+            if (node < 0) {
+                return null;
+            }
+        }
+        return new Node(this, node);
+    }
+
+    /**
+     * Binary search the children of the node for the name
+     * @param node offset of the node
+     * @param name name of the child
+     * @return offset of the child node, -1 if there is no such child
+     */
+    private int findChild(int node, byte[] name) {
+        int childrenOffset = childrenOffset(node);
+        int low = 0;
+        int high = buffer.getInt(childrenOffset) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int child = buffer.getInt(childrenOffset + Integer.BYTES + mid * Integer.BYTES);
+            int cmp = compareName(child, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare the name of the node with the name, by their unsigned bytes
+     * @param node offset of the node
+     * @param name the name to compare with
+     * @return comparison of the node's name to the name
+     */
+    private int compareName(int node, byte[] name) {
+        int nameLength = buffer.getInt(node);
+        int length = Math.min(nameLength, name.length);
+        for (int idx = 0; idx < length; ++idx) {
+            int cmp = (buffer.get(node + Integer.BYTES + idx) & 0xFF) - (name[idx] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return nameLength - name.length;
+    }
+
+    private int childrenOffset(int node) {
+        return node + Integer.BYTES + buffer.getInt(node) + Integer.BYTES + Integer.BYTES;
+    }
+
+    /**
+     * Retrieve the names of the node's children
+     * @param node offset of the node
+     * @return names of the children
+     */
+    private List<String> childNames(int node) {
+        int childrenOffset = childrenOffset(node);
+        int childCount = buffer.getInt(childrenOffset);
+        if (childCount == 0) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>(childCount);
+        for (int idx = 0; idx < childCount; ++idx) {
+            int child = buffer.getInt(childrenOffset + Integer.BYTES + idx * Integer.BYTES);
+            byte[] name = new byte[buffer.getInt(child)];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(child + Integer.BYTES);
+            slice.get(name);
+            names.add(new String(name, StandardCharsets.UTF_8));
+        }
+        return names;
+    }
+
+    /**
+     * Retrieve the image file
+     * @return the image file
+     */
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Retrieve the resource path that the image is mounted at
+     * @return the mount path
+     */
+    String getMountPath() {
+        return mountPath;
+    }
+
+    /**
+     * Retrieve the number of resources in the image
+     * @return the number of resources
+     */
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Read a binary held within the image
+     * @param name name of the binary within the image
+     * @return the binary
+     * @throws IOException if the name does not reference a binary of the image
+     */
+    private Binary readBinary(String name) throws IOException {
+        if (!name.startsWith(BINARY_PREFIX) || !name.endsWith(FSPConstants.FILENAME_EXTENSION_BINARY)) {
+            throw new IOException("binary " + name + " is not held in the repository image " + file);
+        }
+        String location = name.substring(BINARY_PREFIX.length(), name.length() - FSPConstants.FILENAME_EXTENSION_BINARY.length());
+        int separator = location.indexOf('_');
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(location.substring(0, Math.max(0, separator)));
+            length = Long.parseLong(location.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("binary " + name + " is not held in the repository image " + file, e);
+        }
+        if (offset < HEADER_LENGTH || length < 0 || offset + length > buffer.limit()) {
+            throw new IOException("binary " + name + " is outside of the repository image " + file);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.limit((int) (offset + length)).position((int) offset);
+        return new ImageBinary(name, data);
+    }
+
+    /**
+     * Read the JSON properties of the node
+     * @param node offset of the node
+     * @return the JSON properties
+     * @throws IOException if the properties can not be decoded
+     */
+    private JSONObject readProperties(int node) throws IOException {
+        int propsInfo = node + Integer.BYTES + buffer.getInt(node);
+        int propsOffset = buffer.getInt(propsInfo);
+        int propsLength = buffer.getInt(propsInfo + Integer.BYTES);
+        if (propsLength == 0) {
+            return new JSONObject();
+        }
+        ByteBuffer props = buffer.duplicate();
+        props.limit(propsOffset + propsLength).position(propsOffset);
+        return BinaryPropertyFormat.read(props);
+    }
+}
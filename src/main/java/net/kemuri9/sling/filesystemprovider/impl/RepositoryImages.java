@@ -0,0 +1,46 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Implementation of the {@link net.kemuri9.sling.filesystemprovider.RepositoryImages RepositoryImages} interface.
+ */
+@Component(service = {net.kemuri9.sling.filesystemprovider.RepositoryImages.class})
+final class RepositoryImages implements net.kemuri9.sling.filesystemprovider.RepositoryImages {
+
+    @Override
+    public int deploy(String path, Path source) throws IOException {
+        checkActive();
+        return ImageManager.deploy(path, source);
+    }
+
+    @Override
+    public boolean reload(String path) {
+        checkActive();
+        return ImageManager.reload(path);
+    }
+
+    private static void checkActive() {
+        if (Util.getConfig() == null) {
+            throw new IllegalStateException("the file system provider is not active");
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Segment file holding the properties of all of the resources of a subtree, so that they do not each need
+ * their own directory and properties file. The segment lives in the directory of the subtree's root resource,
+ * and the resources of the subtree are identified by their path relative to it.
+ *
+ * <p>The segment is an append-only log of records, each either putting the properties of a resource
+ * in the {@link BinaryPropertyFormat}, or removing a resource. An index of the latest record per resource is held
+ * in memory, so that reading a resource is a single positional read of the open channel. The index is sorted,
+ * and the names of the children of each resource are indexed, so that listing them does not go through every resource.
+ * Superseded records are garbage until the segment is {@link #compact() compacted}.</p>
+ *
+ * <pre>
+ * magic "FSPS" | version (1 byte)
+ * records: kind (1 byte) | path length (int) | path (UTF-8) | data length (int) | data
+ * </pre>
+ */
+final class SegmentPack implements Closeable {
+
+    /** location of a resource's properties within the segment */
+    private static final class Location {
+        final long offset;
+        final int length;
+        final int recordLength;
+
+        Location(long offset, int length, int recordLength) {
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(SegmentPack.class);
+
+    /** magic bytes identifying the format */
+    private static final byte[] MAGIC = {'F', 'S', 'P', 'S'};
+
+    /** current version of the format */
+    static final byte VERSION = 1;
+
+    /** length of the header */
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+
+    /** length of a record, excluding its path and data */
+    private static final int RECORD_OVERHEAD = 1 + Integer.BYTES + Integer.BYTES;
+
+    /** record kind putting the properties of a resource */
+    private static final byte KIND_PUT = 1;
+
+    /** record kind removing a resource */
+    private static final byte KIND_REMOVE = 2;
+
+    /** segments smaller than this are not worth compacting */
+    private static final long COMPACTION_MIN_SIZE = 64 * 1024;
+
+    /** the segment file */
+    private final Path file;
+
+    /** the open segment. guarded by this */
+    private FileChannel channel;
+
+    /** locations of the resources by their relative path, sorted. guarded by this */
+    private final TreeMap<String, Location> index = new TreeMap<>();
+
+    /** names of the children of the resources, by the relative path of their parent, "" for the subtree root. guarded by this */
+    private final Map<String, TreeSet<String>> children = new HashMap<>();
+
+    /** number of bytes of the records that are current. guarded by this */
+    private long liveBytes;
+
+    /**
+     * Open the segment, creating it when it does not exist
+     * @param file the segment file
+     * @throws IOException if the segment can not be opened or is not valid
+     */
+    SegmentPack(Path file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            load();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** read the header and build the index from the records */
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC).put(VERSION).flip();
+            writeFully(header, 0);
+            channel.force(false);
+            return;
+        }
+        ByteBuffer header = readFully(0, HEADER_LENGTH);
+        for (byte b : MAGIC) {
+            if (header.get() != b) {
+                throw new IOException("not a segment pack: " + file);
+            }
+        }
+        byte version = header.get();
+        if (version != VERSION) {
+            throw new IOException("unsupported segment pack version " + version);
+        }
+
+        long position = HEADER_LENGTH;
+        ByteBuffer recordHeader = ByteBuffer.allocate(1 + Integer.BYTES);
+        while (position < size) {
+            // a record cut short by an interruption is dropped
+            if (size - position < RECORD_OVERHEAD) {
+                break;
+            }
+            recordHeader.clear();
+            readFully(recordHeader, position);
+            recordHeader.flip();
+            byte kind = recordHeader.get();
+            int pathLength = recordHeader.getInt();
+            if (pathLength < 0 || size - position < RECORD_OVERHEAD + (long) pathLength) {
+                break;
+            }
+            String path = new String(readFully(position + 1 + Integer.BYTES, pathLength).array(), StandardCharsets.UTF_8);
+            int dataLength = readFully(position + 1 + Integer.BYTES + pathLength, Integer.BYTES).getInt();
+            int recordLength = RECORD_OVERHEAD + pathLength + dataLength;
+            if (dataLength < 0 || size - position < recordLength) {
+                break;
+            }
+            apply(kind, path, position + RECORD_OVERHEAD + pathLength, dataLength, recordLength);
+            position += recordLength;
+        }
+        if (position < size) {
+            log.warn("Dropping incomplete record at the end of segment pack {}", file);
+            channel.truncate(position);
+        }
+    }
+
+    /** apply the record to the index */
+    private void apply(byte kind, String path, long dataOffset, int dataLength, int recordLength) throws IOException {
+        Location previous;
+        switch (kind) {
+        case KIND_PUT:
+            previous = index.put(path, new Location(dataOffset, dataLength, recordLength));
+            liveBytes += recordLength;
+            if (previous == null) {
+                children.computeIfAbsent(parentOf(path), parent -> new TreeSet<>()).add(nameOf(path));
+            }
+            break;
+        case KIND_REMOVE:
+            previous = index.remove(path);
+            if (previous != null) {
+                TreeSet<String> siblings = children.get(parentOf(path));
+                siblings.remove(nameOf(path));
+                if (siblings.isEmpty()) {
+                    children.remove(parentOf(path));
+                }
+            }
+            break;
+        default:
+            throw new IOException("unknown record kind " + kind + " in segment pack " + file);
+        }
+        if (previous != null) {
+            liveBytes -= previous.recordLength;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Check if the resource is in the segment
+     * @param path relative path of the resource
+     * @return state of the resource being in the segment
+     */
+    synchronized boolean contains(String path) {
+        return index.containsKey(path);
+    }
+
+    /**
+     * Retrieve the relative paths of all the resources in the segment
+     * @return the relative paths, sorted
+     */
+    synchronized List<String> list() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * Retrieve the names of the children of the resource in the segment
+     * @param path relative path of the resource, "" for the subtree root
+     * @return the names of the children, sorted
+     */
+    synchronized List<String> childNames(String path) {
+        TreeSet<String> names = children.get(path);
+        return (names == null) ? Collections.emptyList() : new ArrayList<>(names);
+    }
+
+    /**
+     * Retrieve the relative paths of the resource and its descendants in the segment
+     * @param path relative path of the resource
+     * @return the relative paths, sorted
+     */
+    synchronized List<String> listSubtree(String path) {
+        List<String> paths = new ArrayList<>();
+        if (index.containsKey(path)) {
+            paths.add(path);
+        }
+        // the descendants sort between the path followed by the separator, and the path followed by the next character
+        String prefix = path + FSPConstants.RESOURCE_PATH_SEPARATOR;
+        String end = path + (char) (FSPConstants.RESOURCE_PATH_SEPARATOR.charAt(0) + 1);
+        paths.addAll(index.subMap(prefix, end).keySet());
+        return paths;
+    }
+
+    /**
+     * Read the properties of the resource
+     * @param path relative path of the resource
+     * @return the JSON properties, {@code null} if the resource is not in the segment
+     * @throws IOException if the properties can not be read
+     */
+    JSONObject read(String path) throws IOException {
+        ByteBuffer data;
+        synchronized (this) {
+            Location location = index.get(path);
+            if (location == null) {
+                return null;
+            }
+            data = readFully(location.offset, location.length);
+        }
+        return BinaryPropertyFormat.read(data);
+    }
+
+    /**
+     * Put the properties of the resource, replacing any previous properties
+     * @param path relative path of the resource
+     * @param properties the JSON properties
+     * @throws IOException if the properties can not be written
+     */
+    void put(String path, JSONObject properties) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        BinaryPropertyFormat.write(properties, data);
+        synchronized (this) {
+            append(KIND_PUT, path, data.toByteArray());
+        }
+    }
+
+    /**
+     * Remove the resource from the segment
+     * @param path relative path of the resource
+     * @return state of the resource being removed, {@code false} if it was not in the segment
+     * @throws IOException if the removal can not be written
+     */
+    synchronized boolean remove(String path) throws IOException {
+        if (!index.containsKey(path)) {
+            return false;
+        }
+        append(KIND_REMOVE, path, new byte[0]);
+        return true;
+    }
+
+    /**
+     * Retrieve the fraction of the segment that is garbage
+     * @return fraction of the segment that is garbage, from 0 to 1
+     * @throws IOException if the size of the segment can not be read
+     */
+    synchronized double getFragmentation() throws IOException {
+        long size = channel.size() - HEADER_LENGTH;
+        return (size <= 0) ? 0 : (double) (size - liveBytes) / size;
+    }
+
+    /**
+     * Compact the segment if it is large enough and its fragmentation exceeds the threshold
+     * @param threshold fraction of garbage in the segment that triggers compaction. 0 or less to never compact.
+     * @return state of the segment being compacted
+     * @throws IOException if the segment can not be compacted
+     */
+    synchronized boolean compactIfFragmented(double threshold) throws IOException {
+        if (threshold <= 0 || channel.size() < COMPACTION_MIN_SIZE || getFragmentation() < threshold) {
+            return false;
+        }
+        compact();
+        return true;
+    }
+
+    /**
+     * Rewrite the segment with only its current records, and swap it into place atomically
+     * @throws IOException if the segment can not be rewritten
+     */
+    synchronized void compact() throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + FSPConstants.FILENAME_FRAGMENT_TEMPORARY);
+        Map<String, Location> newIndex = new HashMap<>();
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC).put(VERSION).flip();
+            long position = write(out, header, 0);
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                String path = entry.getKey();
+                Location location = entry.getValue();
+                ByteBuffer record = encode(KIND_PUT, path, readFully(location.offset, location.length).array());
+                long dataOffset = position + record.limit() - location.length;
+                position = write(out, record, position);
+                newIndex.put(path, new Location(dataOffset, location.length, location.recordLength));
+            }
+            out.force(true);
+        }
+        channel.close();
+        boolean moved = false;
+        try {
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            // the segment stays usable, on the previous file when it could not be replaced
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!moved) {
+                Files.deleteIfExists(compacted);
+            }
+        }
+        index.clear();
+        index.putAll(newIndex);
+        log.debug("compacted segment pack {} to {} bytes", file, channel.size());
+    }
+
+    private static String parentOf(String path) {
+        int separator = path.lastIndexOf(FSPConstants.RESOURCE_PATH_SEPARATOR);
+        return (separator < 0) ? "" : path.substring(0, separator);
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf(FSPConstants.RESOURCE_PATH_SEPARATOR) + 1);
+    }
+
+    /** append a record and apply it to the index. must be called holding the lock */
+    private void append(byte kind, String path, byte[] data) throws IOException {
+        ByteBuffer record = encode(kind, path, data);
+        long position = channel.size();
+        write(channel, record, position);
+        channel.force(false);
+        apply(kind, path, position + record.limit() - data.length, data.length, record.limit());
+    }
+
+    private static ByteBuffer encode(byte kind, String path, byte[] data) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + pathBytes.length + data.length);
+        record.put(kind).putInt(pathBytes.length).put(pathBytes).putInt(data.length).put(data).flip();
+        return record;
+    }
+
+    private static long write(FileChannel out, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += out.write(buf, position);
+        }
+        return position;
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        write(channel, buf, position);
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        readFully(buf, position);
+        buf.flip();
+        return buf;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position() - start) < 0) {
+                throw new IOException("segment pack " + file + " is truncated");
+            }
+        }
+    }
+}
@@ -0,0 +1,733 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of keys to resource paths, held as a directory of {@link IndexSegment}s in the manner of a log structured merge tree.
+ * A base segment is built from the whole repository, and each change is written as a small segment that supersedes it.
+ * A new base segment can be built while the index is in use, and takes the place of the segments before it once written,
+ * keeping the changes applied while it was built.
+ * Lookups merge the segments, newest first, and the newest segments are merged when there are too many,
+ * either by the change that made too many, or in the background when the index has a merger.
+ * Merges are tiered by size: the small segments of the changes are merged with each other, and an older, larger segment,
+ * such as the base segment, is only merged once the newer segments hold a meaningful part of its entries,
+ * so that changes do not rewrite the whole index.
+ */
+final class SegmentedIndex {
+
+    /** position within a segment during a merge */
+    private static final class Cursor {
+        /** rank of the segment, where newer segments rank higher */
+        final int rank;
+        final Iterator<IndexSegment.Entry> entries;
+        IndexSegment.Entry current;
+
+        Cursor(int rank, Iterator<IndexSegment.Entry> entries) {
+            this.rank = rank;
+            this.entries = entries;
+            current = entries.next();
+        }
+    }
+
+    /** iterator of the merged live entries of segments */
+    private static final class MergingIterator implements Iterator<IndexSegment.Entry> {
+        /** the order of the entries of the segments */
+        private final Comparator<IndexSegment.Entry> order;
+
+        /** orders by entry, and then newest first, so that the newest entry of a key and path comes first */
+        private final PriorityQueue<Cursor> queue;
+
+        /** state of removal entries being kept, for when older entries they supersede are not merged */
+        private final boolean keepRemoved;
+
+        private IndexSegment.Entry next;
+
+        /**
+         * Merge the entries of the segments
+         * @param sources the entries of each segment, oldest segment first
+         * @param keepRemoved state of removal entries being kept
+         */
+        MergingIterator(List<Iterator<IndexSegment.Entry>> sources, boolean keepRemoved) {
+            this(sources, keepRemoved, IndexSegment.Entry.ORDER);
+        }
+
+        /**
+         * Merge the entries of the segments
+         * @param sources the entries of each segment in the order, oldest segment first
+         * @param keepRemoved state of removal entries being kept
+         * @param order the order of the entries, either {@link IndexSegment.Entry#ORDER} or its reverse
+         */
+        MergingIterator(List<Iterator<IndexSegment.Entry>> sources, boolean keepRemoved, Comparator<IndexSegment.Entry> order) {
+            this.keepRemoved = keepRemoved;
+            this.order = order;
+            queue = new PriorityQueue<>((c1, c2) -> {
+                int comparison = order.compare(c1.current, c2.current);
+                return (comparison != 0) ? comparison : Integer.compare(c2.rank, c1.rank);
+            });
+            for (int rank = 0; rank < sources.size(); ++rank) {
+                if (sources.get(rank).hasNext()) {
+                    queue.add(new Cursor(rank, sources.get(rank)));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !queue.isEmpty()) {
+                Cursor newest = queue.poll();
+                IndexSegment.Entry entry = newest.current;
+                advance(newest);
+                // skip the superseded entries of the same key and path
+                while (!queue.isEmpty() && order.compare(queue.peek().current, entry) == 0) {
+                    advance(queue.poll());
+                }
+                if (keepRemoved || !entry.removed) {
+                    next = entry;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public IndexSegment.Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            IndexSegment.Entry entry = next;
+            next = null;
+            return entry;
+        }
+
+        private void advance(Cursor cursor) {
+            if (cursor.entries.hasNext()) {
+                cursor.current = cursor.entries.next();
+                queue.add(cursor);
+            }
+        }
+    }
+
+    /**
+     * collects the entries of a base segment in any order, holding a bounded number of them in memory.
+     * Once enough are held they are sorted and written out as a run, and the runs are merged into the base segment.
+     */
+    final class BaseBuilder implements Consumer<IndexSegment.Entry> {
+        /** the generation reserved for the base segment */
+        private final long generation;
+
+        /** the entries not yet written to a run. guarded by this */
+        private List<IndexSegment.Entry> held = new ArrayList<>();
+
+        /** the written runs. guarded by itself */
+        private final List<Path> runs = new ArrayList<>();
+
+        /** number of the next run */
+        private final AtomicInteger nextRun = new AtomicInteger();
+
+        private BaseBuilder(long generation) {
+            this.generation = generation;
+        }
+
+        /**
+         * Add an entry of the base segment, writing the held entries as a run once there are enough of them
+         * @param entry the entry to add
+         * @throws UncheckedIOException if the run can not be written
+         */
+        @Override
+        public void accept(IndexSegment.Entry entry) {
+            List<IndexSegment.Entry> full = null;
+            synchronized (this) {
+                held.add(entry);
+                if (held.size() >= runEntries) {
+                    full = held;
+                    held = new ArrayList<>();
+                }
+            }
+            if (full != null) {
+                // sorted and written outside of the lock, so that the other collectors keep adding entries
+                full.sort(IndexSegment.Entry.ORDER);
+                Path run = directory.resolve(String.format("%s%016x_%d%s", RUN_PREFIX, generation, nextRun.getAndIncrement(),
+                        SEGMENT_EXTENSION));
+                synchronized (runs) {
+                    runs.add(run);
+                }
+                try {
+                    IndexSegment.write(run, full.iterator());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * Install the base segment from the merged runs and held entries, and delete the runs
+         * @throws IOException if a run can not be read or the segment can not be written
+         * @see SegmentedIndex#writeBase(long, Iterator)
+         */
+        void write() throws IOException {
+            try {
+                List<IndexSegment.Entry> remaining;
+                synchronized (this) {
+                    remaining = held;
+                    held = new ArrayList<>();
+                }
+                remaining.sort(IndexSegment.Entry.ORDER);
+                List<Iterator<IndexSegment.Entry>> sources = new ArrayList<>();
+                synchronized (runs) {
+                    for (Path run : runs) {
+                        sources.add(IndexSegment.open(run).iterator(0));
+                    }
+                }
+                sources.add(remaining.iterator());
+                writeBase(generation, new MergingIterator(sources, false));
+            } finally {
+                discard();
+            }
+        }
+
+        /**
+         * Delete the runs written so far, such as when the build is cancelled
+         */
+        void discard() {
+            synchronized (runs) {
+                for (Path run : runs) {
+                    try {
+                        Files.deleteIfExists(run);
+                    } catch (IOException e) {
+                        log.warn("unable to delete the index run {}", run, e);
+                    }
+                }
+                runs.clear();
+            }
+        }
+    }
+
+    /** iterator of the entries of a segment whose keys start with a prefix */
+    private static final class PrefixIterator implements Iterator<IndexSegment.Entry> {
+        private final IndexSegment segment;
+        private final String prefix;
+        private int position;
+
+        PrefixIterator(IndexSegment segment, String prefix) {
+            this.segment = segment;
+            this.prefix = prefix;
+            position = segment.seek(prefix);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < segment.getCount() && segment.keyAt(position).startsWith(prefix);
+        }
+
+        @Override
+        public IndexSegment.Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return segment.entryAt(position++);
+        }
+    }
+
+    /** iterator of the entries of a segment whose keys are within a range, in either direction */
+    private static final class RangeIterator implements Iterator<IndexSegment.Entry> {
+        private final IndexSegment segment;
+        private final boolean descending;
+        /** the first position of the range */
+        private final int from;
+        /** the position after the range */
+        private final int to;
+        private int position;
+
+        RangeIterator(IndexSegment segment, String from, String to, boolean descending) {
+            this.segment = segment;
+            this.descending = descending;
+            this.from = (from == null) ? 0 : segment.seek(from);
+            this.to = Math.max(this.from, (to == null) ? segment.getCount() : segment.seek(to));
+            position = descending ? this.to - 1 : this.from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return descending ? position >= from : position < to;
+        }
+
+        @Override
+        public IndexSegment.Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return segment.entryAt(descending ? position-- : position++);
+        }
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(SegmentedIndex.class);
+
+    /** prefix of the names of segment files */
+    private static final String SEGMENT_PREFIX = "segment_";
+
+    /** extension of the names of segment files */
+    private static final String SEGMENT_EXTENSION = ".idx";
+
+    /** prefix of the names of the sorted runs written while building a base segment */
+    private static final String RUN_PREFIX = "run_";
+
+    /** number of entries a {@link BaseBuilder} holds in memory before writing them as a run. not final for the specs */
+    static int runEntries = 100_000;
+
+    /** name of the file that merged segments are written into before they take the place of the newest merged segment */
+    private static final String MERGE_FILE = "merging.tmp";
+
+    /** name of the file marking that the base segment has been built, holding the generation of the base segment */
+    private static final String BUILT_MARKER = "built";
+
+    /** number of segments at which the newest of them are merged */
+    private static final int MAX_SEGMENTS = 8;
+
+    /** an older segment is merged with the newer segments once they hold at least its entries divided by this ratio */
+    private static final int MERGE_RATIO = 2;
+
+    /** the directory of the segments */
+    private final Path directory;
+
+    /** the segments, oldest first. replaced rather than modified, so that lookups need no lock */
+    private volatile List<IndexSegment> segments;
+
+    /** generations of the segments, in the order of {@link #segments}. guarded by this */
+    private List<Long> generations;
+
+    /** generation of the next segment to write. guarded by this */
+    private long nextGeneration;
+
+    /** generation reserved for the base segment being built, -1 when none is. guarded by this */
+    private long pendingBase = -1;
+
+    /** state of the base segment having been built */
+    private volatile boolean built;
+
+    /** executor merging the segments in the background, {@code null} to merge them while applying changes */
+    private final Executor merger;
+
+    /** state of a background merge being scheduled or in progress */
+    private final AtomicBoolean merging = new AtomicBoolean();
+
+    /** lock held while merging, so that only one merge writes the merge file at a time */
+    private final Object mergeLock = new Object();
+
+    /**
+     * Open the index in the directory, creating the directory if needed
+     * @param directory the directory of the segments
+     * @throws IOException if the segments can not be opened
+     */
+    SegmentedIndex(Path directory) throws IOException {
+        this(directory, null);
+    }
+
+    /**
+     * Open the index in the directory, creating the directory if needed
+     * @param directory the directory of the segments
+     * @param merger executor merging the segments in the background, {@code null} to merge them while applying changes.
+     * Changes are still merged while applying them when the background merges fall behind.
+     * @throws IOException if the segments can not be opened
+     */
+    SegmentedIndex(Path directory, Executor merger) throws IOException {
+        this.merger = merger;
+        this.directory = Files.createDirectories(directory);
+        TreeMap<Long, IndexSegment> found = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long generation = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_EXTENSION.length()), 16);
+                    found.put(generation, IndexSegment.open(file));
+                } catch (NumberFormatException e) {
+                    log.warn("ignoring unexpected index file {}", file);
+                }
+            }
+        }
+        // runs of a build that was interrupted
+        try (DirectoryStream<Path> runs = Files.newDirectoryStream(directory, RUN_PREFIX + "*")) {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+        nextGeneration = found.isEmpty() ? 0 : found.lastKey() + 1;
+        Path marker = directory.resolve(BUILT_MARKER);
+        built = Files.exists(marker);
+        String base = built ? new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim() : "";
+        if (!base.isEmpty()) {
+            // segments before the base were replaced by it, but were left behind when interrupted before being deleted
+            Map<Long, IndexSegment> replaced = found.headMap(Long.parseLong(base, 16));
+            for (IndexSegment segment : replaced.values()) {
+                Files.deleteIfExists(segment.getFile());
+            }
+            replaced.clear();
+        }
+        segments = Collections.unmodifiableList(new ArrayList<>(found.values()));
+        generations = new ArrayList<>(found.keySet());
+    }
+
+    /**
+     * Retrieve the state of the base segment having been built, so that the index holds every resource
+     * @return state of the index being built
+     */
+    boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Reserve the generation of a base segment that is about to be built. Changes that are applied while it is built
+     * have later generations, and so supersede it. Lookups keep using the current segments until it is written.
+     * @return the generation of the base segment
+     */
+    synchronized long reserveGeneration() {
+        pendingBase = nextGeneration++;
+        return pendingBase;
+    }
+
+    /**
+     * Start collecting the entries of a base segment
+     * @param generation the generation reserved for the base segment
+     * @return the collector of the entries of the base segment
+     * @see #reserveGeneration()
+     */
+    BaseBuilder newBase(long generation) {
+        return new BaseBuilder(generation);
+    }
+
+    /**
+     * Abandon the base segment being built, such as when its build is cancelled
+     * @param generation the generation reserved for the base segment
+     */
+    synchronized void abandonBase(long generation) {
+        if (pendingBase == generation) {
+            pendingBase = -1;
+        }
+    }
+
+    /**
+     * Install the base segment, replacing the segments before it, and mark the index as built
+     * @param generation the generation reserved for the base segment
+     * @param entries the entries of the base segment, sorted by {@link IndexSegment.Entry#ORDER}
+     * @throws IOException if the segment can not be written
+     */
+    void writeBase(long generation, Iterator<IndexSegment.Entry> entries) throws IOException {
+        Path file = segmentFile(generation);
+        IndexSegment.write(file, entries);
+        IndexSegment base = IndexSegment.open(file);
+        List<Path> obsolete = new ArrayList<>();
+        synchronized (this) {
+            List<IndexSegment> updated = new ArrayList<>();
+            List<Long> updatedGenerations = new ArrayList<>();
+            updated.add(base);
+            updatedGenerations.add(generation);
+            for (int idx = 0; idx < generations.size(); ++idx) {
+                if (generations.get(idx) > generation) {
+                    updated.add(segments.get(idx));
+                    updatedGenerations.add(generations.get(idx));
+                } else if (generations.get(idx) != generation) {
+                    obsolete.add(segments.get(idx).getFile());
+                }
+            }
+            // the marker is written before the replaced segments are deleted, so that an interrupted cutover completes on open
+            Files.write(directory.resolve(BUILT_MARKER), Long.toHexString(generation).getBytes(StandardCharsets.UTF_8));
+            segments = Collections.unmodifiableList(updated);
+            generations = updatedGenerations;
+            built = true;
+            if (pendingBase == generation) {
+                pendingBase = -1;
+            }
+        }
+        for (Path obsoleteFile : obsolete) {
+            Files.deleteIfExists(obsoleteFile);
+        }
+    }
+
+    /**
+     * Apply changes to the index as a new segment, merging the segments when there are too many
+     * @param changes the changes, in any order. the last change of a key and path wins.
+     * @throws IOException if the changes can not be written
+     */
+    void apply(List<IndexSegment.Entry> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        int count = write(changes);
+        if (count >= MAX_SEGMENTS * 2 || (merger == null && count >= MAX_SEGMENTS)) {
+            compact();
+        } else if (count >= MAX_SEGMENTS && merging.compareAndSet(false, true)) {
+            try {
+                merger.execute(() -> {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        log.error("unable to merge the segments of index {}", directory, e);
+                    } finally {
+                        merging.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down, the segments are merged by a later change
+                merging.set(false);
+            }
+        }
+    }
+
+    /**
+     * Write the changes as a new segment
+     * @param changes the changes, in any order. the last change of a key and path wins.
+     * @return the number of segments
+     * @throws IOException if the changes can not be written
+     */
+    private synchronized int write(List<IndexSegment.Entry> changes) throws IOException {
+        // stable sort, so that the last change of a key and path is the last of its run
+        List<IndexSegment.Entry> sorted = new ArrayList<>(changes);
+        sorted.sort(IndexSegment.Entry.ORDER);
+        List<IndexSegment.Entry> deduplicated = new ArrayList<>(sorted.size());
+        for (int idx = 0; idx < sorted.size(); ++idx) {
+            if (idx + 1 < sorted.size() && IndexSegment.Entry.ORDER.compare(sorted.get(idx), sorted.get(idx + 1)) == 0) {
+                continue;
+            }
+            deduplicated.add(sorted.get(idx));
+        }
+        long generation = nextGeneration++;
+        Path file = segmentFile(generation);
+        IndexSegment.write(file, deduplicated.iterator());
+        List<IndexSegment> updated = new ArrayList<>(segments);
+        updated.add(IndexSegment.open(file));
+        generations.add(generation);
+        segments = Collections.unmodifiableList(updated);
+        return segments.size();
+    }
+
+    /**
+     * Merge the newest segments into one, dropping superseded entries, and removed entries when the oldest segment
+     * of a built index is merged. The newest segments are merged, along with each older segment that has no more than
+     * {@link #MERGE_RATIO} times the entries of the segments newer than it.
+     * While a base segment is built, only the segments after it are merged, as the segments before it are to be replaced.
+     * @throws IOException if the merged segment can not be written
+     */
+    void compact() throws IOException {
+        synchronized (mergeLock) {
+            List<IndexSegment> merged;
+            long generation;
+            boolean keepRemoved;
+            synchronized (this) {
+                int first = 0;
+                while (pendingBase >= 0 && first < generations.size() && generations.get(first) < pendingBase) {
+                    ++first;
+                }
+                int start = segments.size() - 1;
+                long newer = segments.get(start).getCount();
+                while (start > first) {
+                    long older = segments.get(start - 1).getCount();
+                    if (segments.size() - start >= 2 && older > newer * MERGE_RATIO) {
+                        break;
+                    }
+                    newer += older;
+                    --start;
+                }
+                if (segments.size() - start <= 1) {
+                    return;
+                }
+                merged = new ArrayList<>(segments.subList(start, segments.size()));
+                // the merged segment takes the place of the newest one
+                generation = generations.get(generations.size() - 1);
+                // removals must remain to supersede the older segments, and the base segment until it is built
+                keepRemoved = !built || pendingBase >= 0 || start > 0;
+            }
+            // changes are applied while the segments are merged, into segments after the merged ones
+            List<Iterator<IndexSegment.Entry>> sources = new ArrayList<>();
+            for (IndexSegment segment : merged) {
+                sources.add(segment.iterator(0));
+            }
+            Path mergeFile = directory.resolve(MERGE_FILE);
+            IndexSegment.write(mergeFile, new MergingIterator(sources, keepRemoved));
+            synchronized (this) {
+                int first = segments.indexOf(merged.get(0));
+                if (first < 0 || segments.size() < first + merged.size()
+                        || !segments.subList(first, first + merged.size()).equals(merged)) {
+                    // a base segment replaced the merged segments meanwhile
+                    Files.deleteIfExists(mergeFile);
+                    return;
+                }
+                Path file = segmentFile(generation);
+                Files.move(mergeFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                List<IndexSegment> updated = new ArrayList<>(segments.subList(0, first));
+                updated.add(IndexSegment.open(file));
+                updated.addAll(segments.subList(first + merged.size(), segments.size()));
+                List<Long> updatedGenerations = new ArrayList<>(generations.subList(0, first));
+                updatedGenerations.add(generation);
+                updatedGenerations.addAll(generations.subList(first + merged.size(), generations.size()));
+                segments = Collections.unmodifiableList(updated);
+                generations = updatedGenerations;
+            }
+            // readers still holding the old segments keep their mappings after the files are deleted
+            for (IndexSegment segment : merged.subList(0, merged.size() - 1)) {
+                Files.deleteIfExists(segment.getFile());
+            }
+            log.debug("compacted {} segments of index {}", merged.size(), directory);
+        }
+    }
+
+    /**
+     * Iterate the live entries whose keys start with the prefix, merged from every segment
+     * @param prefix the prefix of the keys
+     * @return iterator of the entries, ordered by key and then path
+     */
+    Iterator<IndexSegment.Entry> scan(String prefix) {
+        List<Iterator<IndexSegment.Entry>> sources = new ArrayList<>();
+        for (IndexSegment segment : segments) {
+            sources.add(new PrefixIterator(segment, prefix));
+        }
+        return new MergingIterator(sources, false);
+    }
+
+    /**
+     * Iterate the live entries whose keys are within a range, merged from every segment.
+     * Only the entries within the range are read, as each segment is seeked to its bounds.
+     * @param from the smallest key of the range, {@code null} for no lower bound
+     * @param to the key after the range, {@code null} for no upper bound
+     * @param descending state of iterating from the largest key down
+     * @return iterator of the entries, ordered by key and then path, or the reverse when descending
+     */
+    Iterator<IndexSegment.Entry> scan(String from, String to, boolean descending) {
+        List<Iterator<IndexSegment.Entry>> sources = new ArrayList<>();
+        for (IndexSegment segment : segments) {
+            sources.add(new RangeIterator(segment, from, to, descending));
+        }
+        return new MergingIterator(sources, false, descending ? IndexSegment.Entry.ORDER.reversed() : IndexSegment.Entry.ORDER);
+    }
+
+    /**
+     * Look up the resource paths within a subtree that have a key within a range
+     * @param from the smallest key of the range, {@code null} for no lower bound
+     * @param to the key after the range, {@code null} for no upper bound
+     * @param scope path of the subtree root
+     * @return the resource paths, sorted
+     */
+    List<String> lookupRange(String from, String to, String scope) {
+        TreeSet<String> paths = new TreeSet<>();
+        for (Iterator<IndexSegment.Entry> entries = scan(from, to, false); entries.hasNext();) {
+            String path = entries.next().path;
+            if (Util.isWithin(scope, path)) {
+                paths.add(path);
+            }
+        }
+        return new ArrayList<>(paths);
+    }
+
+    /**
+     * Estimate the number of resource paths that have the key, without reading the entries of the base segment.
+     * Entries that were both built into the base segment and applied while it was built are counted twice.
+     * @param key the key to count
+     * @return the estimated number of paths
+     */
+    long count(String key) {
+        List<IndexSegment> current = segments;
+        boolean isBuilt = built;
+        // the smallest key that is greater than the key
+        String after = key + '\u0000';
+        long count = 0;
+        for (int idx = 0; idx < current.size(); ++idx) {
+            IndexSegment segment = current.get(idx);
+            int from = segment.seek(key);
+            int to = segment.seek(after);
+            if (idx == 0 && isBuilt) {
+                // the oldest segment of a built index is a base or a merge, neither of which hold removals
+                count += to - from;
+                continue;
+            }
+            for (int pos = from; pos < to; ++pos) {
+                count += segment.entryAt(pos).removed ? -1 : 1;
+            }
+        }
+        return Math.max(0, count);
+    }
+
+    /**
+     * Look up the resource paths that have the key
+     * @param key the key to look up
+     * @return the resource paths, sorted
+     */
+    List<String> lookup(String key) {
+        return lookup(key, FSPConstants.RESOURCE_PATH_SEPARATOR);
+    }
+
+    /**
+     * Look up the resource paths within a subtree that have the key.
+     * As the paths of a key are sorted, only the range of the subtree is read.
+     * @param key the key to look up
+     * @param scope path of the subtree root
+     * @return the resource paths, sorted
+     */
+    List<String> lookup(String key, String scope) {
+        List<IndexSegment> current = segments;
+        TreeMap<String, Boolean> paths = new TreeMap<>();
+        for (int idx = current.size() - 1; idx >= 0; --idx) {
+            IndexSegment segment = current.get(idx);
+            for (int pos = segment.seek(key, scope); pos < segment.getCount() && segment.keyAt(pos).equals(key); ++pos) {
+                IndexSegment.Entry entry = segment.entryAt(pos);
+                if (!entry.path.startsWith(scope)) {
+                    break;
+                }
+                if (!Util.isWithin(scope, entry.path)) {
+                    // a sibling sharing the prefix, such as /a/b-c of /a/b
+                    continue;
+                }
+                // newer segments were seen first, and supersede the older ones
+                paths.putIfAbsent(entry.path, entry.removed);
+            }
+        }
+        List<String> result = new ArrayList<>(paths.size());
+        paths.forEach((path, removed) -> {
+            if (!removed) {
+                result.add(path);
+            }
+        });
+        return result;
+    }
+
+    private Path segmentFile(long generation) {
+        return directory.resolve(String.format("%s%016x%s", SEGMENT_PREFIX, generation, SEGMENT_EXTENSION));
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of deserialized {@link Serializable} values of persisted {@link FileBinary}s.
+ * Values are looked up by the identity of the binary's file (path, size and modification time),
+ * and shared between files by the digest of their content.
+ * The cache is bounded by the total size of the serialized data of the cached values.
+ */
+final class SerializableCache {
+
+    /** identity of a binary file, changing whenever the file is rewritten */
+    private static final class Identity {
+        final Path file;
+        final long size;
+        final long modified;
+
+        Identity(Path file, BasicFileAttributes attrs) {
+            this.file = file;
+            this.size = attrs.size();
+            this.modified = attrs.lastModifiedTime().toMillis();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Identity)) {
+                return false;
+            }
+            Identity other = (Identity) obj;
+            return size == other.size && modified == other.modified && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, size, modified);
+        }
+    }
+
+    /** digest of binary content, usable as a key */
+    private static final class Digest {
+        final byte[] digest;
+
+        Digest(byte[] digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof Digest) && Arrays.equals(digest, ((Digest) obj).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(digest);
+        }
+    }
+
+    /** a cached deserialized value */
+    private static final class Entry {
+        final Serializable value;
+        final byte[] serialized;
+
+        Entry(Serializable value, byte[] serialized) {
+            this.value = value;
+            this.serialized = serialized;
+        }
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(SerializableCache.class);
+
+    /** cached values by their content digest, in least recently used order. guarded by the class lock */
+    private static final LinkedHashMap<Digest, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** content digests of the known binary files. guarded by the class lock */
+    private static final HashMap<Identity, Digest> IDENTITIES = new HashMap<>();
+
+    /** total size of the serialized data of the cached values. guarded by the class lock */
+    private static long currentSize = 0;
+
+    /** maximum size of the serialized data of the cached values, 0 when the cache is disabled */
+    private static volatile long maxSize = 0;
+
+    /** types whose instances can not be modified, and are safe to hand out from the cache as they are */
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<>(Arrays.<Class<?>>asList(String.class,
+            Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class,
+            Double.class, BigInteger.class, BigDecimal.class, UUID.class, URI.class, Instant.class, LocalDate.class,
+            LocalTime.class, LocalDateTime.class, OffsetDateTime.class, ZonedDateTime.class, Duration.class));
+
+    /** how cached values are handed out */
+    private static volatile SerializableCacheMode mode = SerializableCacheMode.READ_ONLY;
+
+    private SerializableCache() {
+    }
+
+    /**
+     * Initialize the cache from the configuration
+     * @param config the configuration to initialize with
+     */
+    static void init(FileSystemProviderConfig config) {
+        clear();
+        maxSize = Math.max(0, config.serializable_cache_size());
+        mode = (config.serializable_cache_mode() == null) ? SerializableCacheMode.READ_ONLY : config.serializable_cache_mode();
+    }
+
+    /**
+     * Uninitialize the cache, disabling it
+     */
+    static void destroy() {
+        maxSize = 0;
+        clear();
+    }
+
+    /**
+     * Remove all cached values, such as when the classes of the cached values may no longer be valid.
+     */
+    static synchronized void clear() {
+        ENTRIES.clear();
+        IDENTITIES.clear();
+        currentSize = 0;
+    }
+
+    /**
+     * Retrieve the state of the cache being enabled
+     * @return state of the cache being enabled
+     */
+    static boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Retrieve the deserialized value of the persisted binary file.
+     * @param file the file of the persisted binary
+     * @param type the type the value is requested as. a copy is handed out when a read-only view can not satisfy it,
+     * which is the case for concrete collection classes.
+     * @return the deserialized value, handed out per the configured mode.
+     * {@code null} if the value can not be deserialized.
+     */
+    static Serializable get(Path file, Class<?> type) {
+        Identity identity;
+        try {
+            identity = new Identity(file.toAbsolutePath(), Files.readAttributes(file, BasicFileAttributes.class));
+        } catch (IOException e) {
+            log.error("Unable to read attributes of {}", file, e);
+            return null;
+        }
+
+        Entry entry = null;
+        synchronized (SerializableCache.class) {
+            Digest digest = IDENTITIES.get(identity);
+            if (digest != null) {
+                entry = ENTRIES.get(digest);
+            }
+        }
+        if (entry == null) {
+            entry = load(identity);
+            if (entry == null) {
+                return null;
+            }
+        }
+        return handOut(entry, type);
+    }
+
+    /**
+     * Load the value of the binary file into the cache
+     * @param identity identity of the binary file
+     * @return the cache entry, {@code null} if the value could not be deserialized
+     */
+    private static Entry load(Identity identity) {
+        byte[] serialized;
+        try (InputStream input = BinaryCompression.fromFile(identity.file).openInput(identity.file)) {
+            serialized = Util.slurp(input);
+        } catch (IOException e) {
+            log.error("Unable to read serialized data from {}", identity.file, e);
+            return null;
+        }
+        Digest digest = digest(serialized);
+
+        Entry entry;
+        synchronized (SerializableCache.class) {
+            entry = ENTRIES.get(digest);
+        }
+        if (entry == null) {
+            Serializable value = deserialize(serialized);
+            if (value == null) {
+                return null;
+            }
+            entry = new Entry(value, serialized);
+        }
+
+        synchronized (SerializableCache.class) {
+            if (serialized.length > maxSize) {
+                // too large to ever be cached
+                return entry;
+            }
+            IDENTITIES.put(identity, digest);
+            if (ENTRIES.putIfAbsent(digest, entry) == null) {
+                currentSize += serialized.length;
+                evict();
+            }
+        }
+        return entry;
+    }
+
+    /** evict the least recently used values until the cache fits. must be called holding the class lock */
+    private static void evict() {
+        for (Iterator<Map.Entry<Digest, Entry>> iter = ENTRIES.entrySet().iterator(); currentSize > maxSize && iter.hasNext();) {
+            Map.Entry<Digest, Entry> evicted = iter.next();
+            iter.remove();
+            currentSize -= evicted.getValue().serialized.length;
+            IDENTITIES.values().removeIf(evicted.getKey()::equals);
+        }
+    }
+
+    private static Digest digest(byte[] data) {
+        try {
+            return new Digest(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Serializable deserialize(byte[] serialized) {
+        Object deserialized = null;
+        try (Util.SpecificClassLoadingObjectInputStream objInputStream =
+                new Util.SpecificClassLoadingObjectInputStream(Util.getClassLoader(), new ByteArrayInputStream(serialized))) {
+            deserialized = objInputStream.readObject();
+            return (Serializable) deserialized;
+        } catch (IOException | ClassNotFoundException e) {
+            log.error("Error deserializing serializable class data", e);
+            return null;
+        } catch (ClassCastException e) {
+            log.error("deserialized object {} was not serializable", deserialized.getClass().getName());
+            return null;
+        }
+    }
+
+    /**
+     * Hand out the cached value per the configured mode
+     * @param entry the cache entry to hand out
+     * @param type the type the value is requested as
+     * @return the value to hand out
+     */
+    private static Serializable handOut(Entry entry, Class<?> type) {
+        switch (mode) {
+        case SHARED:
+            return entry.value;
+        case READ_ONLY:
+            Serializable view = readOnlyView(entry.value);
+            return (view != null && (type == null || type.isInstance(view))) ? view : deserialize(entry.serialized);
+        case COPY:
+            // deserializing from memory still avoids the disk read and content digest
+            return deserialize(entry.serialized);
+        default:
+            throw new RuntimeException("A mode was missed, fix this now");
+        }
+    }
+
+    /**
+     * Retrieve a read-only view of the value, for the types that have one
+     * @param value the value to retrieve a read-only view of
+     * @return the read-only view, the value itself if it is immutable,
+     * {@code null} if it has no read-only view and must be copied.
+     */
+    @SuppressWarnings("unchecked")
+    private static Serializable readOnlyView(Serializable value) {
+        if (value instanceof NavigableMap) {
+            return (Serializable) Collections.unmodifiableNavigableMap((NavigableMap<Object, Object>) value);
+        }
+        if (value instanceof SortedMap) {
+            return (Serializable) Collections.unmodifiableSortedMap((SortedMap<Object, Object>) value);
+        }
+        if (value instanceof Map) {
+            return (Serializable) Collections.unmodifiableMap((Map<Object, Object>) value);
+        }
+        if (value instanceof List) {
+            return (Serializable) Collections.unmodifiableList((List<Object>) value);
+        }
+        if (value instanceof NavigableSet) {
+            return (Serializable) Collections.unmodifiableNavigableSet((NavigableSet<Object>) value);
+        }
+        if (value instanceof SortedSet) {
+            return (Serializable) Collections.unmodifiableSortedSet((SortedSet<Object>) value);
+        }
+        if (value instanceof Set) {
+            return (Serializable) Collections.unmodifiableSet((Set<Object>) value);
+        }
+        if (value instanceof Collection) {
+            return (Serializable) Collections.unmodifiableCollection((Collection<Object>) value);
+        }
+        if (value instanceof Enum || IMMUTABLE_TYPES.contains(value.getClass())) {
+            return value;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+/**
+ * How values held by the {@link SerializableCache} are handed out
+ */
+enum SerializableCacheMode {
+
+    /** The cached instance itself. Callers must not modify it. */
+    SHARED,
+
+    /**
+     * A shallow read-only view of the cached instance for {@link java.util.Collection}s and {@link java.util.Map}s.
+     * Immutable types are handed out as the cached instance itself, other types as a copy.
+     * The views only implement the collection interfaces, so values requested as a concrete class,
+     * such as {@link java.util.HashMap}, are handed out as a copy, as in {@link #COPY}.
+     */
+    READ_ONLY,
+
+    /** A copy of the cached instance, deserialized from the cached serialized form held in memory. */
+    COPY;
+}
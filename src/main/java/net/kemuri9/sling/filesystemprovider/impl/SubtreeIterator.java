@@ -0,0 +1,123 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lazy depth first walk of a resource and its descendants, in the order of their names.
+ * Children are only listed when the walk reaches them, so stopping early never lists the rest of the subtree.
+ */
+final class SubtreeIterator implements Iterator<FileSystemProviderResource> {
+
+    /** a resource whose children are being walked */
+    private static final class Frame {
+        final FileSystemProviderResource parent;
+        final Iterator<String> names;
+
+        Frame(FileSystemProviderResource parent, Iterator<String> names) {
+            this.parent = parent;
+            this.names = names;
+        }
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(SubtreeIterator.class);
+
+    /** the resources whose children are being walked, innermost first */
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    /** check of a child path being walked at all, so that subtrees are pruned before their resources are retrieved */
+    private final Predicate<String> within;
+
+    /** the resource to return next, {@code null} when it has yet to be found */
+    private FileSystemProviderResource next;
+
+    /** the resource last returned, whose children have yet to be walked */
+    private FileSystemProviderResource last;
+
+    /**
+     * Create a walk of the subtree
+     * @param root the root of the subtree, which is returned first
+     * @param within check of a descendant's path being walked. descendants of paths that fail it are not walked either.
+     */
+    SubtreeIterator(FileSystemProviderResource root, Predicate<String> within) {
+        this.next = root;
+        this.within = within;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (last != null) {
+                stack.push(new Frame(last, childNames(last)));
+                last = null;
+            }
+            Frame frame = stack.peek();
+            if (frame == null) {
+                return false;
+            }
+            if (!frame.names.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            String name = frame.names.next();
+            if (within.test(childPath(frame.parent.getPath(), name))) {
+                next = frame.parent.getChildResource(name);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public FileSystemProviderResource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        last = next;
+        next = null;
+        return last;
+    }
+
+    private static Iterator<String> childNames(FileSystemProviderResource resource) {
+        try {
+            return PersistenceHelper.getChildNames(resource).iterator();
+        } catch (IOException e) {
+            log.error("Unable to list the children of {}", resource.getPath(), e);
+            return Collections.emptyIterator();
+        }
+    }
+
+    /**
+     * Retrieve the path of the child
+     * @param parent the parent resource path
+     * @param name the name of the child
+     * @return the child resource path
+     */
+    static String childPath(String parent, String name) {
+        return parent.endsWith(FSPConstants.RESOURCE_PATH_SEPARATOR) ? parent + name
+                : parent + FSPConstants.RESOURCE_PATH_SEPARATOR + name;
+    }
+}
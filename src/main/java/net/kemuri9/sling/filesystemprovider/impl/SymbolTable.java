@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import net.kemuri9.sling.filesystemprovider.Binary;
+
+/**
+ * Table of the strings that repeat across properties files, such as the keys of the JSON properties and the type names,
+ * so that reading properties hands out shared instances rather than allocating a string per occurrence.
+ * Strings are looked up by their UTF-8 bytes, so that a hit does not decode nor allocate.
+ *
+ * <p>Well known symbols are always present. Other short strings are learned into a fixed size cache,
+ * where a string replaces whichever string previously occupied its slot. Symbols are immutable,
+ * so the cache is shared between threads without locking.</p>
+ */
+final class SymbolTable {
+
+    /** a string with its UTF-8 bytes */
+    private static final class Symbol {
+        final byte[] bytes;
+        final int hash;
+        final String string;
+
+        Symbol(byte[] bytes, int hash, String string) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.string = string;
+        }
+    }
+
+    /** maximum length, in bytes, of strings to learn */
+    static final int MAX_LEARNED_LENGTH = 64;
+
+    /** strings that are always present */
+    private static final String[] WELL_KNOWN = {
+        FSPConstants.JSON_KEY_TYPE, FSPConstants.JSON_KEY_VALUE, FSPConstants.JSON_KEY_VALUES,
+        FSPConstants.JSON_KEY_BINARY, FSPConstants.JSON_KEY_INLINE,
+        String.class.getName(), Boolean.class.getName(), Byte.class.getName(), Short.class.getName(),
+        Integer.class.getName(), Long.class.getName(), Float.class.getName(), Double.class.getName(),
+        Character.class.getName(), Object.class.getName(), java.math.BigDecimal.class.getName(),
+        java.math.BigInteger.class.getName(), java.util.Calendar.class.getName(), java.util.GregorianCalendar.class.getName(),
+        java.util.Date.class.getName(), java.time.ZonedDateTime.class.getName(), java.time.OffsetDateTime.class.getName(),
+        java.time.LocalDateTime.class.getName(), java.time.Instant.class.getName(), Binary.class.getName(),
+        FSPConstants.PROPERTY_RESOURCE_TYPE, FSPConstants.PROPERTY_RESOURCE_SUPER_TYPE,
+        "jcr:primaryType", "jcr:mixinTypes", "jcr:title", "jcr:description", "jcr:created", "jcr:createdBy",
+        "jcr:lastModified", "jcr:lastModifiedBy", "jcr:mimeType", "jcr:data",
+        "nt:unstructured", "nt:folder", "nt:file", "nt:resource", "sling:Folder", "sling:OrderedFolder",
+    };
+
+    /** the well known symbols, by open addressing of their hash */
+    private static final Symbol[] KNOWN = new Symbol[128];
+
+    /** the learned symbols, by their hash */
+    private static final Symbol[] LEARNED = new Symbol[1024];
+
+    static {
+        for (String string : WELL_KNOWN) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            int hash = hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+            int slot = hash & (KNOWN.length - 1);
+            while (KNOWN[slot] != null) {
+                slot = (slot + 1) & (KNOWN.length - 1);
+            }
+            KNOWN[slot] = new Symbol(bytes, hash, string);
+        }
+    }
+
+    private SymbolTable() {
+    }
+
+    /**
+     * Retrieve the string of the UTF-8 bytes
+     * @param data the buffer holding the bytes
+     * @param offset absolute offset of the bytes within the buffer
+     * @param length number of bytes
+     * @return the string, a shared instance if it is a symbol
+     */
+    static String intern(ByteBuffer data, int offset, int length) {
+        if (length > MAX_LEARNED_LENGTH) {
+            return decode(data, offset, length);
+        }
+        int hash = hash(data, offset, length);
+        for (int slot = hash & (KNOWN.length - 1); KNOWN[slot] != null; slot = (slot + 1) & (KNOWN.length - 1)) {
+            if (matches(KNOWN[slot], hash, data, offset, length)) {
+                return KNOWN[slot].string;
+            }
+        }
+        int slot = hash & (LEARNED.length - 1);
+        Symbol learned = LEARNED[slot];
+        if (learned != null && matches(learned, hash, data, offset, length)) {
+            return learned.string;
+        }
+        byte[] bytes = new byte[length];
+        for (int idx = 0; idx < length; ++idx) {
+            bytes[idx] = data.get(offset + idx);
+        }
+        String string = new String(bytes, StandardCharsets.UTF_8);
+        LEARNED[slot] = new Symbol(bytes, hash, string);
+        return string;
+    }
+
+    /**
+     * Retrieve the string of the UTF-8 bytes
+     * @param bytes the UTF-8 bytes
+     * @return the string, a shared instance if it is a symbol
+     */
+    static String intern(byte[] bytes) {
+        return intern(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    private static String decode(ByteBuffer data, int offset, int length) {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        for (int idx = 0; idx < length; ++idx) {
+            bytes[idx] = data.get(offset + idx);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** FNV-1a hash of the bytes */
+    private static int hash(ByteBuffer data, int offset, int length) {
+        int hash = 0x811C9DC5;
+        for (int idx = 0; idx < length; ++idx) {
+            hash = (hash ^ (data.get(offset + idx) & 0xFF)) * 0x01000193;
+        }
+        // spread the high bits into the low bits that select the slot
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(Symbol symbol, int hash, ByteBuffer data, int offset, int length) {
+        if (symbol.hash != hash || symbol.bytes.length != length) {
+            return false;
+        }
+        for (int idx = 0; idx < length; ++idx) {
+            if (symbol.bytes[idx] != data.get(offset + idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
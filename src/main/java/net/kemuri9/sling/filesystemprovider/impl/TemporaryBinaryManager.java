@@ -0,0 +1,448 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the temporary files backing {@link FileBinary}s for the duration of their life.
+ * <ul>
+ * <li>{@link FileBinary}s that become unreachable without being disposed are detected as leaks and their files deleted.</li>
+ * <li>Files that fail to be deleted are retried in the background instead of growing {@link java.io.File#deleteOnExit()}.</li>
+ * <li>Untracked files in the temporary directory that are older than the configured TTL are reaped as orphans.</li>
+ * <li>The amount of outstanding temporary data, including uploads in progress, can be limited by a quota,
+ * which is enforced as the data is written.</li>
+ * </ul>
+ */
+final class TemporaryBinaryManager {
+
+    /** tracking information of a single temporary file */
+    private static final class Entry {
+        /** the temporary file */
+        final Path file;
+        /** references to the live binaries of the file */
+        final Set<TrackingReference> references = ConcurrentHashMap.newKeySet();
+        /** last known size of the file */
+        long size;
+        /** state of the file needing deletion, due to a prior failed deletion */
+        volatile boolean pendingDelete;
+
+        Entry(Path file) {
+            this.file = file;
+        }
+    }
+
+    /** {@link OutputStream} that reserves the quota for the data before it is written into the temporary file */
+    private static final class QuotaOutputStream extends FilterOutputStream {
+        /** the temporary file */
+        private final Path file;
+        /** amount of data written into the file */
+        private long written;
+
+        QuotaOutputStream(Path file, OutputStream out) {
+            super(out);
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            reserve(file, written + 1);
+            out.write(b);
+            ++written;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            reserve(file, written + len);
+            out.write(b, off, len);
+            written += len;
+        }
+    }
+
+    /** reference to a tracked {@link FileBinary}, that is enqueued when the binary becomes unreachable */
+    private static final class TrackingReference extends WeakReference<FileBinary> {
+        /** the file of the binary */
+        final Path file;
+
+        TrackingReference(FileBinary binary, Path file) {
+            super(binary, QUEUE);
+            this.file = file;
+        }
+    }
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(TemporaryBinaryManager.class);
+
+    /** tracked temporary files */
+    private static final Map<Path, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    /** queue of references to binaries that have become unreachable */
+    private static final ReferenceQueue<FileBinary> QUEUE = new ReferenceQueue<>();
+
+    /** total size of the tracked temporary files */
+    private static final AtomicLong outstandingBytes = new AtomicLong();
+
+    /** number of binaries detected as leaked */
+    private static final AtomicLong leakedCount = new AtomicLong();
+
+    /** number of files deleted by the reaper */
+    private static final AtomicLong reapedCount = new AtomicLong();
+
+    /** maximum amount of outstanding temporary data, in bytes. 0 for unlimited */
+    private static volatile long quota = 0;
+
+    /** default time untracked files may exist before being reaped, in milliseconds */
+    private static final long DEFAULT_ORPHAN_TTL = TimeUnit.HOURS.toMillis(1);
+
+    /** time untracked files may exist before being reaped, in milliseconds */
+    private static volatile long orphanTTL = DEFAULT_ORPHAN_TTL;
+
+    /** background reaper */
+    private static ScheduledExecutorService reaper;
+
+    private TemporaryBinaryManager() {
+    }
+
+    /**
+     * Perform one-time initialization routines, starting the background reaper.
+     * @param config the configuration to initialize with
+     */
+    static synchronized void init(FileSystemProviderConfig config) {
+        quota = Math.max(0, config.temporary_binary_quota());
+        orphanTTL = TimeUnit.SECONDS.toMillis(Math.max(0, config.temporary_binary_ttl()));
+        long interval = config.temporary_binary_reap_interval();
+        if (reaper == null && interval > 0) {
+            reaper = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+                Thread thread = new Thread(r, "sling-fsp-temporary-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reaper.scheduleWithFixedDelay(TemporaryBinaryManager::reap, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Perform one-time uninitialization routines, stopping the background reaper and forgetting all tracked files.
+     */
+    static synchronized void destroy() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+        ENTRIES.clear();
+        outstandingBytes.set(0);
+        quota = 0;
+        orphanTTL = DEFAULT_ORPHAN_TTL;
+    }
+
+    /**
+     * Verify that more temporary data is allowed to be created.
+     * @param additional the number of bytes about to be created, if known. 0 otherwise.
+     * @throws IOException if creating the data would exceed the quota
+     */
+    static void checkQuota(long additional) throws IOException {
+        long limit = quota;
+        if (limit <= 0) {
+            return;
+        }
+        long outstanding = outstandingBytes.get();
+        if (outstanding >= limit || outstanding + additional > limit) {
+            throw new IOException("temporary binary quota of " + limit + " bytes exceeded, " + outstanding + " bytes outstanding");
+        }
+    }
+
+    /**
+     * Reserve the quota for the temporary file growing to the specified size.
+     * Files that are not tracked are not limited.
+     * @param file the temporary file
+     * @param size the size the file is about to grow to
+     * @throws IOException if the growth would exceed the quota
+     */
+    static void reserve(Path file, long size) throws IOException {
+        Entry entry = ENTRIES.get(file);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            long additional = size - entry.size;
+            if (additional <= 0) {
+                return;
+            }
+            long limit = quota;
+            long outstanding = outstandingBytes.addAndGet(additional);
+            if (limit > 0 && outstanding > limit) {
+                outstandingBytes.addAndGet(-additional);
+                throw new IOException("temporary binary quota of " + limit + " bytes exceeded, "
+                        + (outstanding - additional) + " bytes outstanding");
+            }
+            entry.size = size;
+        }
+    }
+
+    /**
+     * Open the tracked temporary file for writing its data, enforcing the quota as the data is written
+     * @param file the tracked temporary file
+     * @return {@link OutputStream} to write the data of the file into
+     * @throws IOException if the file can not be opened
+     */
+    static OutputStream openOutput(Path file) throws IOException {
+        OutputStream output = Files.newOutputStream(file);
+        // the file was truncated
+        updateSize(file, 0);
+        return new QuotaOutputStream(file, output);
+    }
+
+    /**
+     * Retrieve the number of binaries that were detected as leaked, being unreachable without being disposed.
+     * @return number of leaked binaries
+     */
+    static long getLeakedCount() {
+        return leakedCount.get();
+    }
+
+    /**
+     * Retrieve the number of tracked temporary files.
+     * @return number of tracked temporary files
+     */
+    static int getOutstandingCount() {
+        return ENTRIES.size();
+    }
+
+    /**
+     * Retrieve the total size of the tracked temporary files.
+     * @return size of the tracked temporary files, in bytes
+     */
+    static long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    /**
+     * Retrieve the maximum amount of outstanding temporary data.
+     * @return the quota, in bytes. 0 when unlimited
+     */
+    static long getQuota() {
+        return quota;
+    }
+
+    /**
+     * Retrieve the number of files that the reaper has deleted.
+     * @return number of files reaped
+     */
+    static long getReapedCount() {
+        return reapedCount.get();
+    }
+
+    /**
+     * Delete the temporary file, as its binary has been disposed.
+     * Should the deletion fail, it is retried by the reaper.
+     * @param file the temporary file to delete
+     */
+    static void release(Path file) {
+        Entry entry = ENTRIES.get(file);
+        if (delete(file)) {
+            forget(file);
+            return;
+        }
+        log.error("unable to delete {}, trying again later", file);
+        if (entry == null) {
+            entry = track(file);
+        }
+        entry.pendingDelete = true;
+    }
+
+    /**
+     * Track the specified binary as being backed by the temporary file
+     * @param binary the binary backed by the temporary file
+     * @param file the temporary file
+     */
+    static void track(FileBinary binary, Path file) {
+        track(file).references.add(new TrackingReference(binary, file));
+    }
+
+    /**
+     * Track the file of an upload, so that its data counts toward the quota while the upload is in progress
+     * @param file the file of the upload
+     */
+    static void trackUpload(Path file) {
+        track(file);
+    }
+
+    /**
+     * Stop tracking the temporary file, as it is no longer temporary.
+     * @param file the file to stop tracking
+     */
+    static void untrack(Path file) {
+        forget(file);
+    }
+
+    /**
+     * Update the known size of the temporary file, after it was written.
+     * @param file the temporary file
+     * @param size the new size of the file
+     */
+    static void updateSize(Path file, long size) {
+        Entry entry = ENTRIES.get(file);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            outstandingBytes.addAndGet(size - entry.size);
+            entry.size = size;
+        }
+    }
+
+    /**
+     * Perform a reaping pass:
+     * deleting the files of leaked binaries, retrying failed deletions and deleting orphaned files.
+     */
+    static void reap() {
+        try {
+            reapLeaks();
+            reapTracked();
+            reapOrphans();
+        } catch (RuntimeException e) {
+            // do not let the scheduled executor cancel later runs
+            log.error("error occurred reaping temporary binaries", e);
+        }
+        log.debug("{} temporary binaries outstanding using {} bytes, {} leaked and {} reaped in total",
+                getOutstandingCount(), getOutstandingBytes(), getLeakedCount(), getReapedCount());
+    }
+
+    private static boolean delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException e) {
+            log.error("error occurred deleting {}", file, e);
+            return false;
+        }
+    }
+
+    private static void forget(Path file) {
+        Entry entry = ENTRIES.remove(file);
+        if (entry != null) {
+            synchronized (entry) {
+                outstandingBytes.addAndGet(-entry.size);
+            }
+        }
+    }
+
+    /** process the binaries that have become unreachable */
+    private static void reapLeaks() {
+        for (Reference<? extends FileBinary> ref = QUEUE.poll(); ref != null; ref = QUEUE.poll()) {
+            TrackingReference tracking = (TrackingReference) ref;
+            Entry entry = ENTRIES.get(tracking.file);
+            if (entry == null || !entry.references.remove(tracking) || !entry.references.isEmpty()) {
+                continue;
+            }
+            if (Files.exists(entry.file)) {
+                leakedCount.incrementAndGet();
+                log.warn("temporary binary {} was never disposed, deleting it", entry.file);
+                entry.pendingDelete = true;
+            } else {
+                forget(entry.file);
+            }
+        }
+    }
+
+    /** retry failed deletions and refresh the sizes of the tracked files */
+    private static void reapTracked() {
+        for (Entry entry : ENTRIES.values()) {
+            if (entry.pendingDelete) {
+                if (delete(entry.file)) {
+                    reapedCount.incrementAndGet();
+                    forget(entry.file);
+                }
+                continue;
+            }
+            try {
+                updateSize(entry.file, Files.size(entry.file));
+            } catch (IOException e) {
+                // disappeared without being disposed
+                forget(entry.file);
+            }
+        }
+    }
+
+    /** delete untracked files that are older than the TTL, including the files of uploads that are not resumed */
+    private static void reapOrphans() {
+        long expiry = System.currentTimeMillis() - orphanTTL;
+        reapOrphans(Util.getTemporaryDirectory(), FSPConstants.FILENAME_PREFIX_TEMPORARY_BINARY, expiry);
+        reapOrphans(FileBinaryUpload.getDirectory(), FSPConstants.FILENAME_PREFIX_UPLOAD, expiry);
+    }
+
+    /**
+     * Delete the untracked files of the directory that were last modified before the expiry
+     * @param directory the directory to reap
+     * @param prefix prefix of the names of the files to reap, so that other files of the directory are left alone
+     * @param expiry time before which the files expire, in milliseconds since the epoch
+     */
+    private static void reapOrphans(Path directory, String prefix, long expiry) {
+        if (directory == null || !Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (ENTRIES.containsKey(file) || FileBinaryUpload.isInProgress(FileBinaryUpload.idOf(name))
+                        || !Files.isRegularFile(file)) {
+                    continue;
+                }
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < expiry && Files.deleteIfExists(file)) {
+                        reapedCount.incrementAndGet();
+                        log.info("reaped orphaned temporary file {}", file);
+                    }
+                } catch (IOException e) {
+                    log.error("unable to reap orphaned temporary file {}", file, e);
+                }
+            }
+        } catch (IOException e) {
+            log.error("unable to list temporary directory {}", directory, e);
+        }
+    }
+
+    private static Entry track(Path file) {
+        return ENTRIES.computeIfAbsent(file, (Path key) -> {
+            Entry entry = new Entry(key);
+            try {
+                entry.size = Files.size(key);
+            } catch (IOException e) {
+                entry.size = 0;
+            }
+            outstandingBytes.addAndGet(entry.size);
+            return entry;
+        });
+    }
+}
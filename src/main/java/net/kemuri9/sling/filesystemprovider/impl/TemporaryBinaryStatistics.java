@@ -0,0 +1,50 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Implementation of the {@link net.kemuri9.sling.filesystemprovider.TemporaryBinaryStatistics TemporaryBinaryStatistics} interface.
+ */
+@Component(service = {net.kemuri9.sling.filesystemprovider.TemporaryBinaryStatistics.class})
+final class TemporaryBinaryStatistics implements net.kemuri9.sling.filesystemprovider.TemporaryBinaryStatistics {
+
+    @Override
+    public int getOutstandingCount() {
+        return TemporaryBinaryManager.getOutstandingCount();
+    }
+
+    @Override
+    public long getOutstandingBytes() {
+        return TemporaryBinaryManager.getOutstandingBytes();
+    }
+
+    @Override
+    public long getQuota() {
+        return TemporaryBinaryManager.getQuota();
+    }
+
+    @Override
+    public long getLeakedCount() {
+        return TemporaryBinaryManager.getLeakedCount();
+    }
+
+    @Override
+    public long getReapedCount() {
+        return TemporaryBinaryManager.getReapedCount();
+    }
+}
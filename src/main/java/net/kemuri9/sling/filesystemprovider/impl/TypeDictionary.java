@@ -0,0 +1,211 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Repository wide dictionary of the type names of properties, so that properties can store a small id rather than
+ * the full type name. The dictionary is persisted at the repository root as one type name per line, the line number
+ * being the id. It is append-only, so that the ids of stored properties never change.
+ */
+final class TypeDictionary {
+
+    /** slf4j logger */
+    private static Logger log = LoggerFactory.getLogger(TypeDictionary.class);
+
+    /** type names by their id. guarded by the class lock */
+    private static final List<String> NAMES = new ArrayList<>();
+
+    /** ids by their type names. guarded by the class lock */
+    private static final Map<String, Integer> IDS = new HashMap<>();
+
+    /** resolved classes by their id, {@code null} when not yet resolved. guarded by the class lock */
+    private static final List<Class<?>> CLASSES = new ArrayList<>();
+
+    /** the file persisting the dictionary, {@code null} when there is none */
+    private static Path file;
+
+    /** state of assigning ids to new types when writing */
+    private static volatile boolean isWriting = false;
+
+    private TypeDictionary() {
+    }
+
+    /**
+     * Initialize the dictionary from its file
+     * @param dictionaryFile the file persisting the dictionary, {@code null} when there is none
+     * @param writing state of storing type ids in newly written properties
+     */
+    static synchronized void init(Path dictionaryFile, boolean writing) {
+        destroy();
+        file = dictionaryFile;
+        if (file == null) {
+            return;
+        }
+        try {
+            load();
+            isWriting = writing;
+        } catch (IOException e) {
+            log.error("Unable to load the type dictionary {}, type names will be stored instead", file, e);
+            clear();
+        }
+    }
+
+    /**
+     * Uninitialize the dictionary
+     */
+    static synchronized void destroy() {
+        isWriting = false;
+        file = null;
+        clear();
+    }
+
+    private static void clear() {
+        NAMES.clear();
+        IDS.clear();
+        CLASSES.clear();
+    }
+
+    /**
+     * Forget the resolved classes, such as when the classes may no longer be valid.
+     */
+    static synchronized void clearClasses() {
+        for (int idx = 0; idx < CLASSES.size(); ++idx) {
+            CLASSES.set(idx, null);
+        }
+    }
+
+    /**
+     * Retrieve the state of storing type ids in newly written properties
+     * @return state of storing type ids
+     */
+    static boolean isWriting() {
+        return isWriting;
+    }
+
+    /**
+     * Retrieve the id of the type name, adding it to the dictionary when it is new
+     * @param type name of the type
+     * @return the id of the type
+     * @throws IOException if the type can not be added to the dictionary
+     */
+    static synchronized int idOf(String type) throws IOException {
+        Integer id = IDS.get(type);
+        if (id != null) {
+            return id;
+        }
+        if (file == null) {
+            throw new IOException("type dictionary is not available");
+        }
+        if (type.indexOf('\n') >= 0 || type.indexOf('\r') >= 0) {
+            throw new IOException("type name can not be stored in the dictionary: " + type);
+        }
+        // persist before use, so that no stored property can reference an id that is not persisted
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer line = ByteBuffer.wrap((type + '\n').getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            channel.force(false);
+        }
+        return add(type);
+    }
+
+    /**
+     * Retrieve the type name of the id
+     * @param id the id of the type
+     * @return name of the type, {@code null} if the id is unknown
+     */
+    static synchronized String nameOf(int id) {
+        return (id >= 0 && id < NAMES.size()) ? NAMES.get(id) : null;
+    }
+
+    /**
+     * Retrieve the class of the id, resolving it only on its first use
+     * @param id the id of the type
+     * @return the class of the type, {@code null} if the id is unknown or the class can not be loaded
+     */
+    static Class<?> classOf(int id) {
+        String name;
+        synchronized (TypeDictionary.class) {
+            if (id < 0 || id >= NAMES.size()) {
+                log.error("Unknown type id {}", id);
+                return null;
+            }
+            Class<?> clazz = CLASSES.get(id);
+            if (clazz != null) {
+                return clazz;
+            }
+            name = NAMES.get(id);
+        }
+        Class<?> clazz = Util.loadClass(name);
+        if (clazz != null) {
+            synchronized (TypeDictionary.class) {
+                if (id < CLASSES.size()) {
+                    CLASSES.set(id, clazz);
+                }
+            }
+        }
+        return clazz;
+    }
+
+    /** load the dictionary from its file. must be called holding the class lock */
+    private static void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        byte[] content = Files.readAllBytes(file);
+        int lineStart = 0;
+        for (int idx = 0; idx < content.length; ++idx) {
+            if (content[idx] == '\n') {
+                add(new String(content, lineStart, idx - lineStart, StandardCharsets.UTF_8));
+                lineStart = idx + 1;
+            }
+        }
+        if (lineStart < content.length) {
+            // an append was interrupted, drop the partial line so the next append starts on a new line
+            log.warn("Dropping incomplete entry from type dictionary {}", file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(lineStart);
+            }
+        }
+    }
+
+    /** add the type name to the dictionary. must be called holding the class lock */
+    private static int add(String type) {
+        int id = NAMES.size();
+        NAMES.add(type);
+        CLASSES.add(null);
+        IDS.put(type, id);
+        return id;
+    }
+}
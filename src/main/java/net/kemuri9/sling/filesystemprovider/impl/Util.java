@@ -28,9 +28,11 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.zip.Deflater;
 
 import org.apache.sling.commons.classloader.DynamicClassLoaderManager;
 import org.apache.sling.settings.SlingSettingsService;
@@ -102,7 +104,8 @@ final class Util {
                 throws IOException, ClassNotFoundException {
 
             if (this.classLoader != null) {
-                return this.classLoader.loadClass(objectStreamClass.getName());
+                // unlike ClassLoader.loadClass, Class.forName also resolves array types
+                return Class.forName(objectStreamClass.getName(), false, this.classLoader);
             }
             return super.resolveClass(objectStreamClass);
         }
@@ -143,6 +146,94 @@ final class Util {
         }
     }
 
+    /**
+     * {@link OutputStream} that holds data in memory up to a threshold,
+     * spilling all of it into a temporary {@link FileBinary} once the threshold is exceeded.
+     */
+    static final class SpillingStream extends OutputStream {
+
+        /** number of bytes that may be held in memory */
+        private final int threshold;
+
+        /** data held in memory, {@code null} once spilled */
+        private CopyStream memory;
+
+        /** the binary spilled into, {@code null} until spilled */
+        private FileBinary spilled;
+
+        /** output into the spilled binary */
+        private OutputStream spilledOutput;
+
+        /**
+         * Create a new SpillingStream
+         * @param threshold the number of bytes that may be held in memory
+         */
+        public SpillingStream(int threshold) {
+            this.threshold = Math.max(0, threshold);
+            memory = new CopyStream(Math.min(this.threshold, FSPConstants.BUFFER_SIZE));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spilledOutput != null) {
+                spilledOutput.close();
+            }
+        }
+
+        /**
+         * Discard all written data, such as on an error occurring
+         */
+        public void discard() {
+            try {
+                close();
+            } catch (IOException e) {
+                log.debug("error closing discarded stream", e);
+            }
+            if (spilled != null) {
+                spilled.dispose();
+            }
+        }
+
+        /**
+         * Retrieve the {@link Binary} of the written data. should only be called after closing.
+         * @return {@link MemoryBinary} if the data was held in memory, otherwise the spilled {@link FileBinary}
+         * @throws IOException if the size of the spilled data can not be determined
+         */
+        public Binary toBinary() throws IOException {
+            if (spilled == null) {
+                return new MemoryBinary(memory.toByteArray());
+            }
+            TemporaryBinaryManager.updateSize(spilled.getFile(), Files.size(spilled.getFile()));
+            return spilled;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            prepare(1).write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            prepare(len).write(b, off, len);
+        }
+
+        /**
+         * Prepare for writing the specified amount of data, spilling to disk if necessary
+         * @param len amount of data about to be written
+         * @return stream to write the data into
+         * @throws IOException if spilling to disk fails
+         */
+        private OutputStream prepare(int len) throws IOException {
+            if (memory != null && memory.size() + len > threshold) {
+                spilled = new FileBinary();
+                spilledOutput = spilled.getOutputStream();
+                memory.writeTo(spilledOutput);
+                memory = null;
+            }
+            return (memory != null) ? memory : spilledOutput;
+        }
+    }
+
     /** Sling ClassLoader Manager for accessing classes within the Sling environment. */
     private static volatile DynamicClassLoaderManager classLoaderManager = null;
 
@@ -229,6 +320,17 @@ final class Util {
      * Perform one-time uninitialization routines
      */
     static void destroy() {
+        FileBinaryUpload.closeAll();
+        TemporaryBinaryManager.destroy();
+        SerializableCache.destroy();
+        QueryCache.destroy();
+        TypeDictionary.destroy();
+        PackManager.destroy();
+        ImageManager.destroy();
+        IndexManager.destroy();
+        ParallelTraversal.destroy();
+        PropertyFileLocator.clear();
+        config = null;
         try {
             Files.walkFileTree(tempDir, FILE_VISITOR_DELETING);
         } catch (IOException e) {
@@ -252,6 +354,38 @@ final class Util {
         return slingSettings.getAbsolutePathWithinSlingHome(config.repository_root() + rsrcPath);
     }
 
+    /**
+     * Retrieve the absolute path on the file system of an internal file, kept in the sling home outside of the repository,
+     * so that it is neither within the resource namespace nor lost on a restart
+     * @param name name of the internal file
+     * @return file system path of the internal file
+     */
+    static Path getInternalPath(String name) {
+        return Paths.get(slingSettings.getAbsolutePathWithinSlingHome(name));
+    }
+
+    /**
+     * Check if the repository is configured, so that resource paths can be resolved on the file system
+     * @return state of the repository being configured
+     */
+    static boolean isConfigured() {
+        return slingSettings != null && config != null;
+    }
+
+    /**
+     * Check if the resource path is the ancestor path or within its subtree
+     * @param ancestor the ancestor resource path
+     * @param path the resource path
+     * @return state of the path being within the ancestor's subtree
+     */
+    static boolean isWithin(String ancestor, String path) {
+        if (ancestor.equals(FSPConstants.RESOURCE_PATH_SEPARATOR)) {
+            return path.startsWith(FSPConstants.RESOURCE_PATH_SEPARATOR);
+        }
+        return path.startsWith(ancestor) && (path.length() == ancestor.length()
+                || path.startsWith(FSPConstants.RESOURCE_PATH_SEPARATOR, ancestor.length()));
+    }
+
     /**
      * Retrieve a class loader to load classes with.
      * @return class loader
@@ -269,8 +403,59 @@ final class Util {
         return (classLoaderManager == null) ? null : classLoaderManager.getDynamicClassLoader();
     }
 
-    /** Retrieve the directory in which temporary files should be managed */
+    /**
+     * Retrieve the configuration
+     * @return the configuration, {@code null} if not yet initialized
+     */
+    static FileSystemProviderConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Retrieve the codec to write the JSON property storage with, per the configuration
+     * @return the codec
+     */
+    static JSONCodec getPropertyCodec() {
+        FileSystemProviderConfig cfg = config;
+        return getPropertyCodec((cfg == null) ? JSONCompression.NONE : cfg.json_property_compression());
+    }
+
+    /**
+     * Retrieve the codec of the compression format, tuned per the configuration
+     * @param compression the compression format to retrieve the codec of
+     * @return the codec
+     */
+    static JSONCodec getPropertyCodec(JSONCompression compression) {
+        FileSystemProviderConfig cfg = config;
+        if (cfg == null) {
+            return compression.newCodec(Deflater.DEFAULT_COMPRESSION, FSPConstants.BUFFER_SIZE, false);
+        }
+        return compression.newCodec(cfg.json_property_compression_level(), cfg.json_property_buffer_size(),
+                cfg.json_property_compression_dictionary());
+    }
+
+    /**
+     * Retrieve the maximum size of serialized data that is held in memory and persisted inline,
+     * rather than being stored in temporary files.
+     * @return size in bytes
+     */
+    static int getSerializableInlineThreshold() {
+        FileSystemProviderConfig cfg = config;
+        return (cfg == null) ? FSPConstants.BUFFER_SIZE : cfg.serializable_inline_threshold();
+    }
+
+    /**
+     * Retrieve the directory in which temporary files should be managed.
+     * The directory is recreated when it was removed by {@link #destroy()}.
+     */
     static Path getTemporaryDirectory() {
+        if (tempDir != null && !Files.isDirectory(tempDir)) {
+            try {
+                Files.createDirectories(tempDir);
+            } catch (IOException e) {
+                log.error("unable to recreate temporary directory {}", tempDir, e);
+            }
+        }
         return tempDir;
     }
 
@@ -295,6 +480,23 @@ final class Util {
     static void init(SlingSettingsService slingSettings, FileSystemProviderConfig config) {
         Util.slingSettings = slingSettings;
         Util.config = config;
+        // a previous destroy removed the temporary directory along with its files
+        getTemporaryDirectory();
+        TemporaryBinaryManager.init(config);
+        SerializableCache.init(config);
+        QueryCache.init(config);
+        PackManager.init(config);
+        ImageManager.init(config);
+        PropertyFileLocator.clear();
+        Path dictionary = null;
+        if (slingSettings != null) {
+            dictionary = Paths.get(slingSettings.getAbsolutePathWithinSlingHome(config.repository_root()))
+                    .resolve(FSPConstants.FILENAME_TYPE_DICTIONARY);
+        }
+        TypeDictionary.init(dictionary, config.type_dictionary());
+        // indexes are built from the stored properties, which may reference the type dictionary
+        IndexManager.init(config);
+        ParallelTraversal.init(config);
     }
 
     static Class<?> loadClass(String type) {
@@ -393,6 +595,9 @@ final class Util {
      */
     static void setDynamicClassLoaderManager(DynamicClassLoaderManager manager) {
         classLoaderManager = manager;
+        // cached values may be of classes from the previous class loader
+        SerializableCache.clear();
+        TypeDictionary.clearClasses();
     }
 
     /**
@@ -138,7 +138,7 @@ final class ValueConversion {
         }
         // special case all the serializable possibilities
         if (val instanceof Binary && Serializable.class.isAssignableFrom(clazz)) {
-            Object newVal = binaryToSerializable((Binary) val);
+            Object newVal = binaryToSerializable((Binary) val, clazz);
             if (newVal != null) {
                 try {
                     return clazz.cast(newVal);
@@ -223,8 +223,17 @@ final class ValueConversion {
     }
 
     private static Serializable binaryToSerializable(Binary bin) {
+        return binaryToSerializable(bin, Serializable.class);
+    }
+
+    private static Serializable binaryToSerializable(Binary bin, Class<?> clazz) {
         log.trace("Attempting deserialization converstion of binary");
 
+        // persisted binaries do not change without their file changing, so they can be served from the cache
+        if (SerializableCache.isEnabled() && bin instanceof FileBinary && !((FileBinary) bin).isTemporary()) {
+            return SerializableCache.get(((FileBinary) bin).getFile(), clazz);
+        }
+
         Object deserialized = null;
         try (Util.SpecificClassLoadingObjectInputStream objInputStream =
                 new Util.SpecificClassLoadingObjectInputStream(Util.getClassLoader(), Util.getBinaryStreamQuietly(bin))) {
@@ -242,17 +251,16 @@ final class ValueConversion {
     }
 
     private static Binary serializableToBinary(Serializable val) {
+        // small values stay in memory, only larger ones go to temporary files
+        Util.SpillingStream spillingStream = new Util.SpillingStream(Util.getSerializableInlineThreshold());
         try {
-            FileBinary temporary = new FileBinary();
-            try (ObjectOutputStream output = new ObjectOutputStream(temporary.getOutputStream())) {
+            try (ObjectOutputStream output = new ObjectOutputStream(spillingStream)) {
                 output.writeObject(val);
-            } catch (IOException e) {
-                log.error("Error serializing class data", e);
-                return null;
             }
-            return temporary;
+            return spillingStream.toBinary();
         } catch (IOException e) {
-            log.error("Error preparing for serialization", e);
+            log.error("Error serializing class data", e);
+            spillingStream.discard();
         }
         return null;
     }
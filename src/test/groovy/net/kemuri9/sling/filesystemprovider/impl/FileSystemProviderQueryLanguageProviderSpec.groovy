@@ -0,0 +1,271 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.TimeUnit
+
+import org.apache.sling.api.resource.QuerySyntaxException
+import org.apache.sling.api.resource.ValueMap
+import org.apache.sling.settings.SlingSettingsService
+import org.apache.sling.spi.resource.provider.ResolveContext
+import org.json.JSONObject
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@spock.lang.Subject(FileSystemProviderQueryLanguageProvider)
+class FileSystemProviderQueryLanguageProviderSpec extends Specification {
+
+    @Shared
+    Path root
+
+    @Shared
+    SlingSettingsService slingSettings
+
+    @Shared
+    FileSystemProviderQueryLanguageProvider queryProvider
+
+    def setupSpec() {
+        root = Files.createTempDirectory('query')
+        slingSettings = Mock(SlingSettingsService)
+        slingSettings.slingHomePath >> new File('.').canonicalPath
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath ->
+            new File(relPath).absolutePath
+        }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+        queryProvider = new FileSystemProviderQueryLanguageProvider(new FileSystemProvider())
+
+        write('/content', [:])
+        write('/content/site', [(FSPConstants.PROPERTY_RESOURCE_TYPE): 'app/site', title: 'Site'])
+        write('/content/site/en', [(FSPConstants.PROPERTY_RESOURCE_TYPE): 'app/page', title: 'English', rank: 2])
+        write('/content/site/en/news', [(FSPConstants.PROPERTY_RESOURCE_TYPE): 'app/page', title: 'News', rank: 5,
+            tags: ['a', 'b'] as String[]])
+        write('/content/site/fr', [(FSPConstants.PROPERTY_RESOURCE_TYPE): 'app/page', title: 'French', rank: 3.5d])
+        write('/apps/app/page', [title: 'Page component'])
+    }
+
+    def cleanupSpec() {
+        Util.init(slingSettings, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    static void write(String path, Map<String, Object> values) {
+        JSONObject props = new JSONObject()
+        values.each { String key, Object value -> props.put(key, PersistenceHelper.createJSONPropertyObject(value)) }
+        PersistenceHelper.writeProperties(Files.createDirectories(Paths.get(Util.getAbsPath(path))), props)
+    }
+
+    List<String> find(String query, String language = FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP) {
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+        return queryProvider.findResources(resolveContext, query, language).collect { it.path }
+    }
+
+    @Unroll
+    def 'test query #query'() {
+        expect:
+        find(query) == expected
+
+        where:
+        query                                                   | expected
+        'path:/content/site/*'                                  | ['/content/site/en', '/content/site/fr']
+        'path:/content/**'                                      | ['/content', '/content/site', '/content/site/en',
+                                                                   '/content/site/en/news', '/content/site/fr']
+        'path:/content/site/en'                                 | ['/content/site/en']
+        'path:/content/*/e?'                                    | ['/content/site/en']
+        'type:app/page'                                         | ['/content/site/en', '/content/site/en/news', '/content/site/fr']
+        'type:app/page AND @rank > 2'                           | ['/content/site/en/news', '/content/site/fr']
+        "@title = 'Site' or @tags = 'b'"                        | ['/content/site', '/content/site/en/news']
+        '@rank <= 3.5 AND (path:/content/site/fr OR @rank = 2)' | ['/content/site/en', '/content/site/fr']
+        "@title != 'News' AND path:/content/site/en/**"         | ['/content/site/en']
+        'path:/missing/** OR path:/apps/*/*'                    | ['/apps/app/page']
+    }
+
+    @Unroll
+    def 'test xpath query #query'() {
+        expect:
+        find(query, FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH) == expected
+
+        where:
+        query                                                           | expected
+        '/jcr:root/content/site/*'                                      | ['/content/site/en', '/content/site/fr']
+        '/content//*'                                                   | ['/content/site', '/content/site/en',
+                                                                           '/content/site/en/news', '/content/site/fr']
+        '//element(*, app/page)[@rank > 2]'                             | ['/content/site/en/news', '/content/site/fr']
+        "/content/site/element(en, 'app/page')"                         | ['/content/site/en']
+        "//*[@title = 'Site' or (@tags = 'b' and @rank >= 5)]"          | ['/content/site', '/content/site/en/news']
+        '//element(*, app/page) order by @rank descending'              | ['/content/site/en/news', '/content/site/fr',
+                                                                           '/content/site/en']
+        '/content//* order by @rank, @title'                            | ['/content/site/en', '/content/site/fr',
+                                                                           '/content/site/en/news', '/content/site']
+        '/jcr:root'                                                     | ['/']
+    }
+
+    def 'test fsp results are ordered'() {
+        expect:
+        find('type:app/page ORDER BY @title DESCENDING') == ['/content/site/en/news', '/content/site/fr', '/content/site/en']
+        find('type:app/page ORDER BY @title DESCENDING LIMIT 2') == ['/content/site/en/news', '/content/site/fr']
+        find('//element(*, app/page) order by @title limit 1', FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH) ==
+            ['/content/site/en']
+    }
+
+    def 'test explain reports the plan and its io'() {
+        when:
+        List<Map<String, Object>> explained = select('EXPLAIN path:/content/site/* AND @rank > 0')
+
+        then:
+        explained.size() == 1
+        explained[0].plan == 'TRAVERSAL'
+        explained[0].scope == '/content/site'
+        explained[0].results == 2L
+        explained[0].resourcesRead == 3L
+
+        when:
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+        queryProvider.findResources(resolveContext, 'explain type:a', FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP)
+
+        then:
+        thrown(QuerySyntaxException)
+    }
+
+    def 'test results are found lazily'() {
+        setup:
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+
+        when:
+        Iterator<?> results = queryProvider.queryResources(resolveContext, 'path:/**',
+            FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP)
+
+        then:
+        results.hasNext()
+        results.next() != null
+    }
+
+    def 'test closing the results stops finding them'() {
+        setup:
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+        Iterator<?> results = queryProvider.findResources(resolveContext, 'path:/**',
+            FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP)
+
+        when:
+        results.next()
+        ((AutoCloseable) results).close()
+
+        then:
+        !results.hasNext()
+    }
+
+    List<Map<String, Object>> select(String query, FileSystemProviderState state = new FileSystemProviderState()) {
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> state
+        return queryProvider.queryResources(resolveContext, query, FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP)
+            .collect { new LinkedHashMap<>(it) }
+    }
+
+    def 'test projected query results hold only the selected columns'() {
+        when:
+        List<Map<String, Object>> results = select('SELECT path, @title, @missing WHERE type:app/page AND @rank > 2')
+
+        then:
+        results == [['jcr:path': '/content/site/en/news', title: 'News'], ['jcr:path': '/content/site/fr', title: 'French']]
+        results*.keySet()*.toList() == [['jcr:path', 'title'], ['jcr:path', 'title']]
+
+        when:
+        FileSystemProviderState state = new FileSystemProviderState()
+        state.modifiedProperties.put('/content/site/fr', [title: 'Francais', rank: 4L])
+        results = select('select @rank, @title where path:/content/site/fr', state)
+
+        then: 'pending changes are selected'
+        results == [[rank: 4L, title: 'Francais']]
+    }
+
+    def 'test projected values are converted and decoded lazily'() {
+        setup:
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+
+        when:
+        Iterator<ValueMap> results = queryProvider.queryResources(resolveContext, 'select @rank where path:/content/site/en',
+            FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP)
+        ValueMap result = results.next()
+
+        then:
+        result instanceof ProjectedValueMap
+        result.get('rank', String) == '2'
+        result.get('rank', 0L) == 2L
+        result.get('title') == null
+        !result.containsKey('title')
+        result.get('missing', 'default') == 'default'
+        !results.hasNext()
+    }
+
+    def 'test projected queries are answered from the resource type index'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), resource_type_index: true]))
+        assert IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+
+        expect:
+        select("SELECT path, @${FSPConstants.PROPERTY_RESOURCE_TYPE}, @rank WHERE type:app/page AND path:/content/site/*") == [
+            ['jcr:path': '/content/site/en', (FSPConstants.PROPERTY_RESOURCE_TYPE): 'app/page', rank: 2],
+            ['jcr:path': '/content/site/fr', (FSPConstants.PROPERTY_RESOURCE_TYPE): 'app/page', rank: 3.5d]]
+        select('select path where type:app/site') == [['jcr:path': '/content/site']]
+        select('select path where type:app/page AND path:/apps/**') == []
+
+        cleanup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+    }
+
+    @Unroll
+    def 'test syntax error for #query'() {
+        setup:
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+
+        when:
+        queryProvider.findResources(resolveContext, query, language)
+
+        then:
+        thrown(QuerySyntaxException)
+
+        where:
+        query                  | language
+        'path:relative'        | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        '@title = unquoted'    | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        "(@title = 'x'"        | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        'type:a AND'           | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        'type:a'               | FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH
+        'select where type:a'  | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        'select @a type:a'     | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        'select @a, where type:a' | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        'type:a ORDER @a'      | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        'type:a LIMIT 0'       | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        'type:a LIMIT x'       | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        "@a > xs:dateTime('yesterday')" | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        "@a > xs:dateTime('2016-01-01T00:00:00Z'" | FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+        'content/*'            | FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH
+        '//*[@a = 1'           | FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH
+        '//element(*, a)/b'    | FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH
+        '//*[jcr:like(@a, 1)]' | FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH
+        'type:a'               | 'sql'
+    }
+}
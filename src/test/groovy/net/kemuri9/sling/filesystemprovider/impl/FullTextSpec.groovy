@@ -0,0 +1,165 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+
+import org.apache.sling.settings.SlingSettingsService
+import org.apache.sling.spi.resource.provider.ResolveContext
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@spock.lang.Subject(FullTextTokenizer)
+class FullTextSpec extends Specification {
+
+    @Shared
+    Path root
+
+    @Shared
+    SlingSettingsService slingSettings
+
+    @Shared
+    FileSystemProviderQueryLanguageProvider queryProvider
+
+    def setupSpec() {
+        root = Files.createTempDirectory('fulltext')
+        slingSettings = Mock(SlingSettingsService)
+        slingSettings.slingHomePath >> new File('.').canonicalPath
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath ->
+            new File(relPath).absolutePath
+        }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+        IndexManagerSpec.commit(['/site/a': [title: 'Apache Sling', body: 'Sling is a web framework. Sling, Sling!'],
+            '/site/b': [title: 'Web pages', body: 'Pages about the web', summary: 'hidden words'],
+            '/site/c': [title: 'Sling models', body: 'Models adapt resources'],
+            '/other/d': [title: ['Sling', 'elsewhere'] as String[], rank: 5L]])
+        init([:])
+        queryProvider = new FileSystemProviderQueryLanguageProvider(new FileSystemProvider())
+    }
+
+    def cleanupSpec() {
+        Util.init(slingSettings, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    void init(Map<String, Object> overrides) {
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(),
+            fulltext_properties: ['title', 'body'] as String[]] + overrides))
+        assert IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+    }
+
+    List<String> search(String text, String property = null, String scope = '/') {
+        return IndexManager.search(new Query.FullTextCondition(property, text), scope)
+    }
+
+    List<String> find(String query, String language = FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP) {
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+        return queryProvider.findResources(resolveContext, query, language).collect { it.path }
+    }
+
+    def 'test tokenizing'() {
+        expect:
+        FullTextTokenizer.tokenize("Hello, World! l'été 2016") == ['hello', 'world', 'l', 'été', '2016']
+        FullTextTokenizer.tokenize('a' * (FullTextTokenizer.MAX_TERM_LENGTH + 1) + ' b') == ['b']
+        FullTextTokenizer.keysOf('b a B') == [FullTextTokenizer.DOCUMENT_KEY, 'a 1', 'b 2'] as Set
+        FullTextTokenizer.keysOf(['x', 'x y'] as String[]) == [FullTextTokenizer.DOCUMENT_KEY, 'x 2', 'y 1'] as Set
+        FullTextTokenizer.keysOf(5L).isEmpty()
+        FullTextTokenizer.keysOf(' ,.').isEmpty()
+        FullTextTokenizer.countOf('x 12') == 12
+    }
+
+    @Unroll
+    def 'test search for #text in #property within #scope'() {
+        expect:
+        IndexManager.isFullTextIndexed(property)
+        search(text, property, scope) == expected
+
+        where:
+        text        | property | scope   | expected
+        'sling'     | null     | '/'     | ['/site/a', '/other/d', '/site/c']
+        'SLING'     | null     | '/site' | ['/site/a', '/site/c']
+        'sling web' | null     | '/'     | ['/site/a']
+        'web'       | 'title'  | '/'     | ['/site/b']
+        'web'       | null     | '/'     | ['/site/b', '/site/a']
+        'missing'   | null     | '/'     | []
+        '!!!'       | null     | '/'     | []
+    }
+
+    def 'test search of unindexed properties'() {
+        expect:
+        !IndexManager.isFullTextIndexed('summary')
+        search('hidden', 'summary') == null
+    }
+
+    def 'test full-text queries are ranked'() {
+        setup:
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+
+        expect:
+        find('text:sling') == ['/site/a', '/other/d', '/site/c']
+        find("text:'sling models' OR @rank = 5") == ['/other/d', '/site/c']
+        find('text:sling AND path:/site/* ORDER BY @title DESCENDING') == ['/site/c', '/site/a']
+        find("/jcr:root/site/*[jcr:contains(., 'sling')]", FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH) ==
+            ['/site/a', '/site/c']
+        find("//*[jcr:contains(@title, 'models') or @rank > 4]", FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH) ==
+            ['/other/d', '/site/c']
+        queryProvider.queryResources(resolveContext, 'explain text:sling', FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP)
+            .next().plan == 'RANKED_INDEX'
+
+        and: 'unindexed properties are searched by walking'
+        find("//*[jcr:contains(@summary, 'HIDDEN')]", FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH) == ['/site/b']
+    }
+
+    def 'test the number of ranked results is limited'() {
+        setup:
+        init([fulltext_max_results: 2])
+
+        expect:
+        search('sling') == ['/site/a', '/other/d']
+
+        and: 'the limit applies after the other conditions of the query'
+        find("text:sling AND @title = 'Sling models'") == ['/site/c']
+        find('text:sling') == ['/site/a', '/other/d']
+
+        cleanup:
+        init([:])
+    }
+
+    def 'test full-text indexes are updated on commit and merged in the background'() {
+        when:
+        IndexManagerSpec.commit(['/site/a': [title: 'Apache Sling', body: 'nothing'], '/site/b': [title: 'Sling web pages']])
+
+        then:
+        search('sling web') == ['/site/b']
+        search('framework') == []
+
+        when: 'enough commits are made to merge the segments'
+        (1..SegmentedIndex.MAX_SEGMENTS * 2).each { IndexManagerSpec.commit(['/site/e': [body: "revision r${it}".toString()]]) }
+
+        then:
+        search('revision') == ['/site/e']
+        search("r${SegmentedIndex.MAX_SEGMENTS * 2}".toString()) == ['/site/e']
+        search('r1') == []
+        Files.list(IndexManager.indexesDirectory.resolve('fulltext').resolve('body'))
+            .filter { it.fileName.toString().endsWith('.idx') }.count() < SegmentedIndex.MAX_SEGMENTS * 2
+    }
+}
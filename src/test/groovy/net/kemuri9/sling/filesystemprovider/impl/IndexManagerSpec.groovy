@@ -0,0 +1,304 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.TimeUnit
+
+import org.apache.sling.settings.SlingSettingsService
+import org.apache.sling.spi.resource.provider.ResolveContext
+import org.apache.sling.spi.resource.provider.ResourceContext
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+@spock.lang.Subject(IndexManager)
+class IndexManagerSpec extends Specification {
+
+    @Shared
+    Path root
+
+    @Shared
+    SlingSettingsService slingSettings
+
+    def setupSpec() {
+        root = Files.createTempDirectory('indexes')
+        slingSettings = Mock(SlingSettingsService)
+        slingSettings.slingHomePath >> new File('.').canonicalPath
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath ->
+            new File(relPath).absolutePath
+        }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+        commit(['/content/a': [status: 'draft', rank: 1], '/content/b': [status: 'live', rank: 2.0d],
+            '/content/b/c': [status: ['live', 'archived'] as String[]], '/content/d': [title: 'no status']])
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), property_indexes: ['status', 'rank'] as String[]]))
+        assert IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+    }
+
+    def cleanupSpec() {
+        Util.init(slingSettings, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    static void commit(Map<String, Map<String, Object>> changes) {
+        FileSystemProviderState state = new FileSystemProviderState()
+        changes.each { String path, Map<String, Object> properties -> state.modifiedProperties.put(path, properties) }
+        state.commit()
+    }
+
+    def 'test indexes are built from the repository'() {
+        expect:
+        IndexManager.isIndexed('status')
+        !IndexManager.isIndexed('title')
+        IndexManager.lookup('status', 'live') == ['/content/b', '/content/b/c']
+        IndexManager.lookup('status', 'archived') == ['/content/b/c']
+        IndexManager.lookup('rank', 2L) == ['/content/b']
+        IndexManager.lookup('rank', '1') == ['/content/a']
+        IndexManager.lookup('rank', 1.0d) == ['/content/a']
+        IndexManager.lookup('title', 'no status') == null
+    }
+
+    def 'test indexes are updated on commit'() {
+        when:
+        commit(['/content/a': [status: 'live'], '/content/d': [status: 'draft'], '/content/e': [status: 'live']])
+
+        then:
+        IndexManager.lookup('status', 'live') == ['/content/a', '/content/b', '/content/b/c', '/content/e']
+        IndexManager.lookup('status', 'draft') == ['/content/d']
+        IndexManager.lookup('rank', 1L) == []
+
+        when: 'enough commits are made to compact the segments'
+        (1..SegmentedIndex.MAX_SEGMENTS + 1).each { commit(['/content/e': [status: "v${it}".toString()]]) }
+
+        then:
+        IndexManager.lookup('status', 'live') == ['/content/a', '/content/b', '/content/b/c']
+        IndexManager.lookup('status', "v${SegmentedIndex.MAX_SEGMENTS + 1}".toString()) == ['/content/e']
+        IndexManager.lookup('status', 'v1') == []
+        Files.list(IndexManager.indexesDirectory.resolve('property').resolve('status'))
+            .filter { it.fileName.toString().endsWith('.idx') }.count() <= SegmentedIndex.MAX_SEGMENTS
+    }
+
+    def 'test changes are merged without rewriting the base segment'() {
+        setup:
+        Path directory = Files.createTempDirectory('segments')
+        SegmentedIndex index = new SegmentedIndex(directory)
+        long base = index.reserveGeneration()
+        index.writeBase(base, (0..<1000).collect { new IndexSegment.Entry('k', String.format('/base/%04d', it), false) }.iterator())
+        Path baseFile = index.segments[0].file
+
+        when:
+        (1..SegmentedIndex.MAX_SEGMENTS * 4).each {
+            index.apply([new IndexSegment.Entry('k', "/change/${it}".toString(), false),
+                new IndexSegment.Entry('k', '/base/0000', it % 2 == 1)])
+        }
+
+        then:
+        index.segments[0].file == baseFile
+        Files.exists(baseFile)
+        index.segments.size() <= SegmentedIndex.MAX_SEGMENTS
+        index.lookup('k').size() == 1000 + SegmentedIndex.MAX_SEGMENTS * 4
+        index.lookup('k').contains('/base/0000')
+
+        cleanup:
+        Files.walk(directory).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    def 'test indexes persist across restarts and answer queries'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), property_indexes: ['status'] as String[]]))
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+        FileSystemProviderQueryLanguageProvider queryProvider = new FileSystemProviderQueryLanguageProvider(new FileSystemProvider())
+
+        expect:
+        IndexManager.isIndexed('status')
+        IndexManager.candidates(QueryParser.parse("@status = 'live' AND path:/content/b/**", 'fsp').condition, '/content/b') ==
+            ['/content/b', '/content/b/c']
+        queryProvider.findResources(resolveContext, "@status = 'live' AND path:/content/b/**",
+            FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP).collect { it.path } == ['/content/b', '/content/b/c']
+    }
+
+    def 'test queries are planned by the estimated cost of the index and the walk'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), property_indexes: ['status'] as String[]]))
+        FileSystemProviderState state = new FileSystemProviderState()
+        Query selective = QueryParser.parse("@status = 'archived'", 'fsp')
+        Query narrow = QueryParser.parse("path:/content/b/c AND @status = 'live'", 'fsp')
+        Query unindexed = QueryParser.parse("@title = 'x'", 'fsp')
+
+        expect:
+        QueryPlan.plan(selective, state).strategy == QueryPlan.Strategy.INDEX
+        QueryPlan.plan(selective, state).candidates == ['/content/b/c']
+        QueryPlan.plan(narrow, state).strategy == QueryPlan.Strategy.TRAVERSAL
+        QueryPlan.plan(narrow, state).traversalEstimate == 1
+        QueryPlan.plan(unindexed, state).strategy == QueryPlan.Strategy.TRAVERSAL
+        QueryPlan.plan(unindexed, state).traversalEstimate == -1
+    }
+
+    def 'test resource type index follows create, delete and move'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), resource_type_index: true]))
+        assert IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+        FileSystemProviderState state = new FileSystemProviderState()
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> state
+        FileSystemProvider provider = new FileSystemProvider()
+        String type = FSPConstants.PROPERTY_RESOURCE_TYPE
+
+        when:
+        provider.create(resolveContext, '/content/types', [:])
+        provider.create(resolveContext, '/content/types/p1', [(type): 'app/page'])
+        provider.create(resolveContext, '/content/types/p2', [(type): 'app/page'])
+        provider.create(resolveContext, '/content/types/c', [(type): 'app/component'])
+
+        then: 'created resources are only indexed once committed'
+        provider.getResource(resolveContext, '/content/types/p1', ResourceContext.EMPTY_CONTEXT, null).resourceType == 'app/page'
+        IndexManager.lookupType('app/page', '/') == []
+
+        when:
+        provider.commit(resolveContext)
+
+        then:
+        IndexManager.isTypeIndexed()
+        IndexManager.lookupType('app/page', '/content') == ['/content/types/p1', '/content/types/p2']
+        IndexManager.lookupType('app/page', '/content/types/p1') == ['/content/types/p1']
+        IndexManager.lookupType('app/component', '/content/types') == ['/content/types/c']
+
+        when:
+        provider.delete(resolveContext, provider.getResource(resolveContext, '/content/types/p2', ResourceContext.EMPTY_CONTEXT, null))
+        provider.move(resolveContext, '/content/types/p1', '/content/b')
+
+        then: 'pending changes are seen before they are committed'
+        provider.getResource(resolveContext, '/content/types/p2', ResourceContext.EMPTY_CONTEXT, null) == null
+        provider.getResource(resolveContext, '/content/types/p1', ResourceContext.EMPTY_CONTEXT, null) == null
+        provider.getResource(resolveContext, '/content/b/p1', ResourceContext.EMPTY_CONTEXT, null).resourceType == 'app/page'
+
+        when:
+        provider.commit(resolveContext)
+
+        then:
+        !Files.exists(Paths.get(Util.getAbsPath('/content/types/p2')))
+        Files.isDirectory(Paths.get(Util.getAbsPath('/content/b/p1')))
+        IndexManager.lookupType('app/page', '/') == ['/content/b/p1']
+        new FileSystemProviderQueryLanguageProvider(provider).findResources(resolveContext, 'type:app/page',
+            FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP).collect { it.path } == ['/content/b/p1']
+
+        when: 'the index is rebuilt'
+        Files.walk(IndexManager.indexesDirectory.resolve('type')).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), resource_type_index: true]))
+
+        then:
+        IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+        IndexManager.lookupType('app/page', '/') == ['/content/b/p1']
+        IndexManager.lookupType('app/component', '/') == ['/content/types/c']
+    }
+
+    def 'test dates are not looked up in property indexes'() {
+        setup:
+        commit(['/content/dated': [published: ValueConversion.convert('2020-01-02T03:04:05.000Z', Calendar)]])
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), property_indexes: ['published'] as String[]]))
+        assert IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+        FileSystemProviderQueryLanguageProvider queryProvider = new FileSystemProviderQueryLanguageProvider(new FileSystemProvider())
+        Query query = QueryParser.parse("@published = xs:dateTime('2020-01-02T04:04:05.000+01:00')", 'fsp')
+
+        expect:
+        IndexManager.isIndexed('published')
+        IndexManager.candidates(query.condition, '/') == null
+        QueryPlan.plan(query, new FileSystemProviderState()).strategy == QueryPlan.Strategy.TRAVERSAL
+        queryProvider.findResources(resolveContext, "//*[@published = xs:dateTime('2020-01-02T03:04:05.000Z')]",
+            FileSystemProviderQueryLanguageProvider.LANGUAGE_XPATH).collect { it.path } == ['/content/dated']
+        queryProvider.findResources(resolveContext, query.text,
+            FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP).collect { it.path } == ['/content/dated']
+    }
+
+    def 'test index candidates include the pending changes'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), property_indexes: ['status'] as String[]]))
+        assert IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+        FileSystemProviderState state = new FileSystemProviderState()
+        state.modifiedProperties.put('/content/b', [status: 'pending'])
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> state
+        FileSystemProviderQueryLanguageProvider queryProvider = new FileSystemProviderQueryLanguageProvider(new FileSystemProvider())
+        Query query = QueryParser.parse("@status = 'pending'", 'fsp')
+
+        expect:
+        QueryPlan.plan(query, state).strategy == QueryPlan.Strategy.INDEX
+        QueryPlan.plan(query, state).candidates == ['/content/b']
+        queryProvider.findResources(resolveContext, query.text, FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP)
+            .collect { it.path } == ['/content/b']
+
+        when: 'pending deletes and moves are not held by the indexes'
+        state.structuralChanges.add(new FileSystemProviderState.StructuralChange('/content/a', null))
+
+        then:
+        QueryPlan.plan(query, state).strategy == QueryPlan.Strategy.TRAVERSAL
+    }
+
+    def 'test concurrent commits of a resource keep its index entries'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), property_indexes: ['status'] as String[]]))
+        assert IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+
+        when:
+        List<Thread> threads = (1..8).collect { int thread ->
+            Thread.start {
+                (1..20).each { PersistenceHelper.commitProperties('/content/race', [status: "race${thread}".toString()]) }
+            }
+        }
+        threads.each { it.join() }
+        String stored = PersistenceHelper.readPropertyFile(PersistenceHelper.findPropertyFile(
+            Paths.get(Util.getAbsPath('/content/race')))).getJSONObject('status').get('value')
+
+        then:
+        (1..8).collectMany { IndexManager.lookup('status', "race${it}".toString()) } == ['/content/race']
+        IndexManager.lookup('status', stored) == ['/content/race']
+    }
+
+    def 'test deleting and moving a subtree wait for the commits of its resources'() {
+        setup:
+        commit(['/content/locked': [:], '/content/locked/child': [status: 'a'], '/content/kept': [:], '/content/kept/child': [:]])
+        Object lock = PersistenceHelper.lockOf(Paths.get(Util.getAbsPath('/content/locked/child')))
+        Object keptLock = PersistenceHelper.lockOf(Paths.get(Util.getAbsPath('/content/moved/child')))
+        Thread delete
+        Thread move
+
+        when:
+        synchronized (lock) {
+            delete = Thread.start { PersistenceHelper.deleteResource('/content/locked') }
+            delete.join(200)
+            assert delete.alive
+            assert Files.isDirectory(Paths.get(Util.getAbsPath('/content/locked/child')))
+        }
+        delete.join()
+        synchronized (keptLock) {
+            move = Thread.start { PersistenceHelper.moveResource('/content/kept', '/content/moved') }
+            move.join(200)
+            assert move.alive
+            assert Files.isDirectory(Paths.get(Util.getAbsPath('/content/kept/child')))
+        }
+        move.join()
+
+        then:
+        !Files.exists(Paths.get(Util.getAbsPath('/content/locked')))
+        !Files.exists(Paths.get(Util.getAbsPath('/content/kept')))
+        Files.isDirectory(Paths.get(Util.getAbsPath('/content/moved/child')))
+    }
+}
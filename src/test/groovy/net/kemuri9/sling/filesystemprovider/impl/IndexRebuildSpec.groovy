@@ -0,0 +1,243 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+
+import org.apache.sling.settings.SlingSettingsService
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class IndexRebuildSpec extends Specification {
+
+    @Shared
+    Path root
+
+    @Shared
+    SlingSettingsService slingSettings
+
+    @Shared
+    IndexRebuild rebuild = new IndexRebuild()
+
+    def setupSpec() {
+        root = Files.createTempDirectory('rebuild')
+        slingSettings = Mock(SlingSettingsService)
+        slingSettings.slingHomePath >> new File('.').canonicalPath
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath ->
+            new File(relPath).absolutePath
+        }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+        IndexManagerSpec.commit(['/content/a': [status: 'draft', rank: 1L], '/content/b': [status: 'live', rank: 2L],
+            '/content/b/c': [status: 'live', title: 'rebuilt index']])
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), property_indexes: ['status'] as String[],
+            range_indexes: ['rank'] as String[], fulltext_properties: ['title'] as String[], resource_type_index: true]))
+        assert IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+    }
+
+    def cleanupSpec() {
+        Util.init(slingSettings, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    static IndexSegment.Entry entry(String key, String path, boolean removed = false) {
+        return new IndexSegment.Entry(key, path, removed)
+    }
+
+    def 'test the indexes are named by their kind and property'() {
+        expect:
+        rebuild.indexes == ['property/status', 'range/rank', 'type', 'fulltext/title']
+        rebuild.statistics.indexes == 4L
+        rebuild.statistics.running == 0L
+        rebuild.statistics.resources == 3L
+        rebuild.statistics.estimatedResources == -1L
+        rebuild.statistics.remainingMillis == 0L
+    }
+
+    def 'test rebuilding replaces corrupt entries while the index stays in use'() {
+        setup:
+        IndexManager.propertyIndexes.status.segments.apply([entry('s:live', '/content/bogus'), entry('s:draft', '/content/a', true)])
+
+        expect:
+        IndexManager.lookup('status', 'live') == ['/content/b', '/content/b/c', '/content/bogus']
+
+        when:
+        boolean started = rebuild.start('property/status')
+
+        then:
+        started
+        IndexManager.isIndexed('status')
+        IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+        !rebuild.running
+        IndexManager.lookup('status', 'live') == ['/content/b', '/content/b/c']
+        IndexManager.lookup('status', 'draft') == ['/content/a']
+        rebuild.statistics.indexes == 1L
+        rebuild.statistics.estimatedResources == 3L
+        rebuild.statistics.resources == 3L
+        rebuild.statistics.resourcesPerSecond >= 0L
+    }
+
+    def 'test rebuilding every index'() {
+        when:
+        IndexManagerSpec.commit(['/content/d': [status: 'live', rank: 3L, title: 'another index']])
+
+        then:
+        rebuild.start()
+        IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+        rebuild.statistics.indexes == 4L
+        rebuild.statistics.resources == 4L
+        IndexManager.lookup('status', 'live') == ['/content/b', '/content/b/c', '/content/d']
+        IndexManager.candidates(QueryParser.parse('@rank >= 2', 'fsp').condition, '/') == ['/content/b', '/content/d']
+        IndexManager.candidates(QueryParser.parse("text:'index'", 'fsp').condition, '/').sort() == ['/content/b/c', '/content/d']
+        IndexManager.lookupType('app/page', '/') == []
+    }
+
+    def 'test rebuilding unknown indexes'() {
+        when:
+        rebuild.start('property/title')
+
+        then:
+        thrown(IllegalArgumentException)
+        !rebuild.running
+    }
+
+    def 'test a stopped rebuild keeps the index'() {
+        when:
+        rebuild.start('property/status')
+        rebuild.stop()
+
+        then:
+        IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+        IndexManager.isIndexed('status')
+        IndexManager.lookup('status', 'draft') == ['/content/a']
+
+        when: 'changes keep being applied'
+        IndexManagerSpec.commit(['/content/a': [status: 'live', rank: 1L]])
+
+        then:
+        IndexManager.lookup('status', 'draft') == []
+        IndexManager.lookup('status', 'live').contains('/content/a')
+    }
+
+    def 'test changes applied while a base segment is built supersede it'() {
+        setup:
+        Path directory = Files.createTempDirectory('segments')
+        SegmentedIndex index = new SegmentedIndex(directory)
+        long first = index.reserveGeneration()
+        index.writeBase(first, [entry('a', '/1'), entry('a', '/stale'), entry('b', '/2')].iterator())
+
+        when:
+        long generation = index.reserveGeneration()
+        (1..SegmentedIndex.MAX_SEGMENTS + 1).each { index.apply([entry('c', "/c${it}".toString())]) }
+        index.apply([entry('a', '/1', true), entry('a', '/3')])
+
+        then: 'lookups use the current segments while the base is built'
+        index.lookup('a') == ['/3', '/stale']
+        index.lookup('c').size() == SegmentedIndex.MAX_SEGMENTS + 1
+
+        when: 'the base was read before /1 was removed'
+        index.writeBase(generation, [entry('a', '/1'), entry('b', '/2'), entry('c', '/c1')].iterator())
+
+        then:
+        index.lookup('a') == ['/3']
+        index.lookup('b') == ['/2']
+        index.lookup('c').size() == SegmentedIndex.MAX_SEGMENTS + 1
+
+        when: 'the segments the base replaced are left behind by an interrupted cutover'
+        IndexSegment.write(directory.resolve(String.format('segment_%016x.idx', first)), [entry('d', '/stale')].iterator())
+        SegmentedIndex reopened = new SegmentedIndex(directory)
+
+        then:
+        reopened.isBuilt()
+        reopened.lookup('d') == []
+        reopened.lookup('a') == ['/3']
+        !Files.exists(directory.resolve(String.format('segment_%016x.idx', first)))
+
+        cleanup:
+        Files.walk(directory).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    def 'test an abandoned base segment leaves the index as it was'() {
+        setup:
+        Path directory = Files.createTempDirectory('segments')
+        SegmentedIndex index = new SegmentedIndex(directory)
+        index.writeBase(index.reserveGeneration(), [entry('a', '/stale')].iterator())
+
+        when:
+        index.abandonBase(index.reserveGeneration())
+        (1..SegmentedIndex.MAX_SEGMENTS).each { index.apply([entry('a', "/a${it}".toString())]) }
+        index.apply([entry('a', '/stale', true)])
+
+        then: 'the base segment is merged again'
+        index.lookup('a').size() == SegmentedIndex.MAX_SEGMENTS
+        Files.list(directory).filter { it.fileName.toString().endsWith('.idx') }.count() == 3
+
+        cleanup:
+        Files.walk(directory).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    def 'test a base segment is built from sorted runs'() {
+        setup:
+        Path directory = Files.createTempDirectory('segments')
+        SegmentedIndex index = new SegmentedIndex(directory)
+        int runEntries = SegmentedIndex.runEntries
+        SegmentedIndex.runEntries = 10
+
+        when: 'the entries are added out of order, and more than once'
+        SegmentedIndex.BaseBuilder base = index.newBase(index.reserveGeneration())
+        List<Integer> order = (0..<95).toList()
+        Collections.shuffle(order, new Random(1))
+        order.each { base.accept(entry("k${it % 3}".toString(), String.format('/%02d', it))) }
+        base.accept(entry('k0', '/00'))
+
+        then: 'the full runs are written out'
+        Files.list(directory).filter { it.fileName.toString().startsWith('run_') }.count() == 9
+
+        when:
+        base.write()
+
+        then:
+        index.isBuilt()
+        index.lookup('k0') == (0..<95).findAll { it % 3 == 0 }.collect { String.format('/%02d', it) }
+        index.lookup('k2').size() == 31
+        Files.list(directory).filter { it.fileName.toString().startsWith('run_') }.count() == 0
+
+        cleanup:
+        SegmentedIndex.runEntries = runEntries
+        Files.walk(directory).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    def 'test rebuilding from sorted runs'() {
+        setup:
+        int runEntries = SegmentedIndex.runEntries
+        SegmentedIndex.runEntries = 1
+
+        when:
+        rebuild.start()
+
+        then:
+        IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+        IndexManager.lookup('status', 'live') == IndexManager.lookup('status', 'live').sort()
+        IndexManager.lookup('status', 'live').containsAll(['/content/b', '/content/b/c'])
+        IndexManager.candidates(QueryParser.parse('@rank >= 2', 'fsp').condition, '/').contains('/content/b')
+        !Files.walk(root).anyMatch { it.fileName.toString().startsWith('run_') }
+
+        cleanup:
+        SegmentedIndex.runEntries = runEntries
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+
+import org.json.JSONException
+import org.json.JSONObject
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@spock.lang.Subject(JSONByteParser)
+class JSONByteParserSpec extends Specification {
+
+    static JSONObject parse(String json) {
+        return JSONByteParser.parseObject(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)))
+    }
+
+    @Unroll
+    def 'test parsing #json matches JSONTokener'() {
+        when:
+        JSONObject expected = new JSONObject(json)
+        JSONObject parsed = parse(json)
+
+        then:
+        parsed.toString() == expected.toString()
+        expected.keys().every { String key ->
+            parsed.get(key).getClass() == expected.get(key).getClass()
+        }
+
+        where:
+        json << [
+            '{}',
+            ' { "a" : 1 , "b" : [ ] , "c" : { } } ',
+            '{"int":2147483647,"long":2147483648,"negInt":-2147483648,"negLong":-2147483649,"zero":-0}',
+            '{"max":9223372036854775807,"min":-9223372036854775808,"beyond":9223372036854775808,"huge":123456789012345678901234567890}',
+            '{"a":9223372036854775808e0,"b":-9223372036854775808e0,"c":9223372036854775808.0,"d":-9223372036854775808.0}',
+            '{"a":1.5,"b":-0.0,"c":1e3,"d":1E-3,"e":0.1,"f":1.7976931348623157e308,"g":4.9e-324,"h":123456789012345678.5,"i":2.5e+2}',
+            '{"a":true,"b":false,"c":null,"d":[1,"two",[3.0],{"four":4}]}',
+            '{"esc":"q\\"b\\\\s\\/n\\nr\\rt\\tb\\bf\\fu\\u00e9\\ud83d\\ude00"}',
+            '{"utf8":"café 日本 😀","mixed":"é\\né"}',
+            '{"type":"java.lang.String","value":"x","values":["y","z"],"binary":true,"inline":false}',
+        ]
+    }
+
+    def 'test keys and type names are shared between parses'() {
+        when:
+        JSONObject first = parse('{"p":{"type":"java.lang.Long","value":1},"customKey":{"type":"com.example.Custom","value":2}}')
+        JSONObject second = parse('{"customKey":{"type":"com.example.Custom","value":3},"p":{"type":"java.lang.Long","value":4}}')
+
+        then:
+        first.keys().find { it == 'customKey' }.is(second.keys().find { it == 'customKey' })
+        first.getJSONObject('p').keys().next().is(FSPConstants.JSON_KEY_TYPE)
+        first.getJSONObject('p').getString('type').is(second.getJSONObject('p').getString('type'))
+        first.getJSONObject('customKey').getString('type').is(second.getJSONObject('customKey').getString('type'))
+    }
+
+    @Unroll
+    def 'test malformed #json is rejected'() {
+        when:
+        parse(json)
+
+        then:
+        thrown(JSONException)
+
+        where:
+        json << ['', '[]', '{', '{"a"}', '{"a":}', '{"a":1,}', '{"a":tru}', '{"a":"b', '{"a":1} x', '{"a":-}', '{"a":1.}', '{"a":1e}']
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.charset.StandardCharsets
+import java.util.zip.Deflater
+
+import org.json.JSONObject
+
+import spock.lang.IgnoreIf
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@spock.lang.Subject(JSONCompression)
+class JSONCompressionSpec extends Specification {
+
+    @Shared
+    List<byte[]> sampleRepository = createSampleRepository(500)
+
+    /**
+     * Create the property files of a sample repository, resembling a typical content tree
+     * @param count number of resources in the repository
+     * @return the JSON content of the property files
+     */
+    static List<byte[]> createSampleRepository(int count) {
+        Random random = new Random(9)
+        List<byte[]> files = []
+        for (int idx = 0; idx < count; ++idx) {
+            JSONObject props = new JSONObject()
+            Calendar created = Calendar.getInstance()
+            created.timeInMillis = 1465296780859L + random.nextInt(1000000000)
+            props.put('jcr:primaryType', PersistenceHelper.createJSONPropertyObject(idx % 3 ? 'nt:unstructured' : 'sling:Folder'))
+            props.put('sling:resourceType', PersistenceHelper.createJSONPropertyObject("my/app/components/type${idx % 7}".toString()))
+            props.put('jcr:created', PersistenceHelper.createJSONPropertyObject(created))
+            props.put('jcr:createdBy', PersistenceHelper.createJSONPropertyObject('admin'))
+            props.put('jcr:title', PersistenceHelper.createJSONPropertyObject("Page ${idx} about ${random.nextInt(100)}".toString()))
+            props.put('order', PersistenceHelper.createJSONPropertyObject(random.nextLong()))
+            props.put('hidden', PersistenceHelper.createJSONPropertyObject(random.nextBoolean()))
+            props.put('tags', PersistenceHelper.createJSONPropertyObject(['news', "topic${idx % 11}".toString()] as String[]))
+            files << props.toString().getBytes(StandardCharsets.UTF_8)
+        }
+        return files
+    }
+
+    static byte[] encode(JSONCodec codec, byte[] data) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream()
+        OutputStream output = codec.wrapOutput(baos)
+        output.write(data)
+        output.close()
+        return baos.toByteArray()
+    }
+
+    @Unroll
+    def 'test round trip of #compression at level #level with dictionary #dictionary'() {
+        setup:
+        JSONCodec codec = compression.newCodec(level, 512, dictionary)
+
+        when:
+        byte[] encoded = encode(codec, sampleRepository[0])
+
+        then: 'readable with a codec of any tuning'
+        Util.slurp(codec.wrapInput(new ByteArrayInputStream(encoded))) == sampleRepository[0]
+        Util.slurp(compression.wrapInput(new ByteArrayInputStream(encoded))) == sampleRepository[0]
+
+        where:
+        [compression, level, dictionary] << [JSONCompression.values(), [Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION], [false, true]].combinations()
+    }
+
+    def 'test dictionary improves compression of small property files'() {
+        setup:
+        JSONCodec plain = JSONCompression.ZLIB.newCodec(Deflater.DEFAULT_COMPRESSION, 512, false)
+        JSONCodec dictionary = JSONCompression.ZLIB.newCodec(Deflater.DEFAULT_COMPRESSION, 512, true)
+
+        expect:
+        sampleRepository.sum { encode(dictionary, it).length } < sampleRepository.sum { encode(plain, it).length }
+    }
+
+    def 'test invalid tuning'() {
+        when:
+        JSONCompression.GZIP.newCodec(10, 512, false)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    /** run with -Dfsp.benchmark=true to report the ratio and throughput of each codec */
+    @IgnoreIf({ !Boolean.getBoolean('fsp.benchmark') })
+    def 'benchmark codecs on a sample repository'() {
+        setup:
+        long rawSize = sampleRepository.sum { it.length }
+        int iterations = 20
+        List<String> report = []
+
+        when:
+        for (JSONCompression compression : JSONCompression.values()) {
+            for (int level : [Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION]) {
+                for (boolean dictionary : [false, true]) {
+                    if ((compression == JSONCompression.NONE && (level != Deflater.DEFAULT_COMPRESSION || dictionary))
+                            || (dictionary && compression != JSONCompression.ZLIB)) {
+                        continue
+                    }
+                    JSONCodec codec = compression.newCodec(level, FSPConstants.BUFFER_SIZE, dictionary)
+                    List<byte[]> encoded = sampleRepository.collect { encode(codec, it) }
+                    long encodedSize = encoded.sum { it.length }
+
+                    long start = System.nanoTime()
+                    for (int iter = 0; iter < iterations; ++iter) {
+                        for (byte[] data : sampleRepository) {
+                            encode(codec, data)
+                        }
+                    }
+                    long encodeNanos = System.nanoTime() - start
+                    start = System.nanoTime()
+                    for (int iter = 0; iter < iterations; ++iter) {
+                        for (byte[] data : encoded) {
+                            Util.slurp(codec.wrapInput(new ByteArrayInputStream(data)))
+                        }
+                    }
+                    long decodeNanos = System.nanoTime() - start
+
+                    double mb = rawSize * iterations / (1024d * 1024d)
+                    report << String.format('%-5s level %2d dictionary %-5s ratio %.3f encode %8.1f MB/s decode %8.1f MB/s',
+                        compression, level, dictionary, encodedSize / (double) rawSize,
+                        mb / (encodeNanos / 1e9d), mb / (decodeNanos / 1e9d))
+                }
+            }
+        }
+        report.each { println it }
+
+        then:
+        !report.isEmpty()
+    }
+}
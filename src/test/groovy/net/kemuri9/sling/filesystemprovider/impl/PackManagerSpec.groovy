@@ -0,0 +1,181 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+import org.json.JSONObject
+
+import spock.lang.Specification
+
+@spock.lang.Subject(PackManager)
+class PackManagerSpec extends Specification {
+
+    Path root
+
+    def setup() {
+        root = Files.createTempDirectory('pack')
+        PackManager.init(TestUtil.newConfig())
+    }
+
+    def cleanup() {
+        PackManager.destroy()
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    static JSONObject properties(String value) {
+        JSONObject props = new JSONObject()
+        props.put('title', PersistenceHelper.createJSONPropertyObject(value))
+        return props
+    }
+
+    def 'test pack and unpack subtree'() {
+        setup:
+        for (String dir : ['a', 'a/b', 'c']) {
+            PersistenceHelper.writeProperties(Files.createDirectories(root.resolve(dir)), properties(dir))
+        }
+        Files.createDirectories(root.resolve('a/empty'))
+
+        when:
+        int packed = PackManager.pack(root)
+
+        then:
+        packed == 4
+        !Files.exists(root.resolve('a'))
+        Files.exists(root.resolve(FSPConstants.FILENAME_SEGMENT_PACK))
+
+        when:
+        PackManager.Located located = PackManager.locate(root.resolve('a/b'))
+
+        then:
+        located.path == 'a/b'
+        located.pack.read('a/b').toString() == properties('a/b').toString()
+        PackManager.locate(root.resolve('a/empty')).pack.read('a/empty').length() == 0
+        PackManager.locate(root.resolve('a/missing')) == null
+        located.pack.childNames('') == ['a', 'c']
+        PackManager.locate(root.resolve('a')).childNames == ['b', 'empty']
+
+        when:
+        int unpacked = PackManager.unpack(root)
+
+        then:
+        unpacked == 4
+        !Files.exists(root.resolve(FSPConstants.FILENAME_SEGMENT_PACK))
+        Files.isDirectory(root.resolve('a/empty'))
+        PersistenceHelper.readPropertyFile(PersistenceHelper.findPropertyFile(root.resolve('a/b'))).toString() ==
+            properties('a/b').toString()
+    }
+
+    def 'test pack refuses subtree with binary files'() {
+        setup:
+        Path dir = Files.createDirectories(root.resolve('a'))
+        dir.resolve('_sling_fsp_1.bin').bytes = [1, 2, 3] as byte[]
+
+        when:
+        PackManager.pack(root)
+
+        then:
+        thrown(IOException)
+        Files.isDirectory(dir)
+    }
+
+    def 'test removing a packed subtree keeps the child index'() {
+        setup:
+        for (String dir : ['a', 'a/b', 'a/b/c', 'a/d', 'ab']) {
+            PersistenceHelper.writeProperties(Files.createDirectories(root.resolve(dir)), properties(dir))
+        }
+        PackManager.pack(root)
+        SegmentPack pack = PackManager.get(root)
+
+        expect:
+        pack.listSubtree('a/b') == ['a/b', 'a/b/c']
+        pack.listSubtree('a') == ['a', 'a/b', 'a/b/c', 'a/d']
+
+        when:
+        PackManager.remove(PackManager.locate(root.resolve('a/b')))
+
+        then:
+        pack.list() == ['a', 'a/d', 'ab']
+        pack.childNames('a') == ['d']
+        pack.childNames('a/b') == []
+        pack.childNames('') == ['a', 'ab']
+
+        when: 'the segment is reopened from its records'
+        PackManager.destroy()
+
+        then:
+        PackManager.get(root).childNames('a') == ['d']
+    }
+
+    def 'test packing waits for the commits of the packed resources'() {
+        setup:
+        PersistenceHelper.writeProperties(Files.createDirectories(root.resolve('a')), properties('a'))
+        Thread packing = new Thread({ PackManager.pack(root) })
+
+        when:
+        synchronized (PersistenceHelper.lockOf(root.resolve('a'))) {
+            packing.start()
+            packing.join(200)
+            assert packing.alive
+            assert Files.isDirectory(root.resolve('a'))
+        }
+        packing.join(5000)
+
+        then:
+        !packing.alive
+        !Files.exists(root.resolve('a'))
+    }
+
+    def 'test segment compaction and recovery'() {
+        setup:
+        Path file = root.resolve(FSPConstants.FILENAME_SEGMENT_PACK)
+        SegmentPack pack = new SegmentPack(file)
+        String large = 'x' * 10000
+
+        when: 'rewriting the same resources fragments the segment'
+        for (int idx = 0; idx < 10; ++idx) {
+            pack.put('a', properties(large + idx))
+            pack.put('b', properties(large + idx))
+        }
+        pack.remove('b')
+        long fragmentedSize = Files.size(file)
+
+        then:
+        pack.fragmentation > 0.9
+        pack.compactIfFragmented(0.5)
+        Files.size(file) < fragmentedSize / 10
+        pack.read('a').toString() == properties(large + 9).toString()
+        pack.list() == ['a']
+
+        when: 'an append is interrupted'
+        pack.close()
+        FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND).withCloseable {
+            it.write(java.nio.ByteBuffer.wrap([1, 0, 0] as byte[]))
+        }
+        long truncatedSize = Files.size(file)
+        pack = new SegmentPack(file)
+
+        then:
+        Files.size(file) == truncatedSize - 3
+        pack.read('a').toString() == properties(large + 9).toString()
+
+        cleanup:
+        pack?.close()
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+
+import org.apache.sling.settings.SlingSettingsService
+import org.apache.sling.spi.resource.provider.ResolveContext
+import org.apache.sling.spi.resource.provider.ResourceContext
+import org.json.JSONObject
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@spock.lang.Subject(ParallelTraversal)
+class ParallelTraversalSpec extends Specification {
+
+    @Shared
+    Path root
+
+    @Shared
+    SlingSettingsService slingSettings
+
+    @Shared
+    List<String> allPaths = []
+
+    @Shared
+    Map<String, Integer> values = [:]
+
+    def setupSpec() {
+        root = Files.createTempDirectory('traversal')
+        slingSettings = Mock(SlingSettingsService)
+        slingSettings.slingHomePath >> new File('.').canonicalPath
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath ->
+            new File(relPath).absolutePath
+        }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), traversal_parallelism: 4]))
+        write('/tree', 0)
+        (1..6).each { int first ->
+            write("/tree/n${first}", first)
+            (1..5).each { int second ->
+                write("/tree/n${first}/n${second}", first * second)
+                (1..3).each { int third -> write("/tree/n${first}/n${second}/n${third}", first * second * third) }
+            }
+        }
+    }
+
+    def cleanupSpec() {
+        Util.init(slingSettings, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    void write(String path, int value) {
+        JSONObject props = new JSONObject()
+        props.put('value', PersistenceHelper.createJSONPropertyObject(value))
+        PersistenceHelper.writeProperties(Files.createDirectories(Paths.get(Util.getAbsPath(path))), props)
+        allPaths << path
+        values[path] = value
+    }
+
+    FileSystemProviderResource tree() {
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+        return new FileSystemProvider().getResource(resolveContext, '/tree', ResourceContext.EMPTY_CONTEXT, null)
+    }
+
+    static List<String> paths(Iterator<FileSystemProviderResource> resources) {
+        return resources.collect { it.path }
+    }
+
+    def 'test ordered walk matches the sequential walk'() {
+        expect:
+        paths(new ParallelTraversal(tree(), { true }, { true }, 0, true)) == paths(new SubtreeIterator(tree(), { true }))
+        paths(new ParallelTraversal(tree(), { true }, { true }, 0, true)) == allPaths
+    }
+
+    def 'test unordered walk finds every resource'() {
+        expect:
+        paths(new ParallelTraversal(tree(), { true }, { true }, 0, false)).sort() == allPaths.sort(false)
+    }
+
+    @Unroll
+    def 'test visitor and pruning with ordered #ordered'() {
+        setup:
+        // the subtrees below n2 are pruned, and only even values are visited
+        Closure<Boolean> within = { String path -> !path.startsWith('/tree/n2/') }
+        List<String> expected = allPaths.findAll { within(it) && values[it] % 2 == 0 }
+
+        when:
+        List<String> found = paths(new ParallelTraversal(tree(), within,
+            { FileSystemProviderResource resource -> resource.valueMap.get('value', Integer) % 2 == 0 }, 0, ordered))
+
+        then:
+        (ordered ? found : found.sort(false)) == (ordered ? expected : expected.sort(false))
+        found.contains('/tree/n2')
+        !found.contains('/tree/n1')
+
+        where:
+        ordered << [true, false]
+    }
+
+    @Unroll
+    def 'test limit of #limit with ordered #ordered'() {
+        when:
+        List<String> found = paths(new ParallelTraversal(tree(), { true }, { true }, limit, ordered))
+
+        then:
+        found.size() == limit
+        !ordered || found == allPaths.subList(0, limit)
+        allPaths.containsAll(found)
+
+        where:
+        limit | ordered
+        1     | true
+        10    | true
+        1     | false
+        10    | false
+    }
+
+    def 'test closing stops the walk'() {
+        setup:
+        ParallelTraversal walk = new ParallelTraversal(tree(), { true }, { true }, 0, false)
+
+        when:
+        walk.next()
+        walk.close()
+
+        then:
+        !walk.hasNext()
+    }
+
+    @Unroll
+    def 'test returning the limit stops the walk with ordered #ordered'() {
+        setup:
+        ParallelTraversal walk = new ParallelTraversal(tree(), { true }, { true }, 3, ordered)
+
+        when: 'the consumer stops asking once it has the limit'
+        3.times { walk.next() }
+
+        then:
+        walk.walk.isClosed()
+        !walk.hasNext()
+        waitFor { ParallelTraversal.pool.activeThreadCount == 0 }
+
+        where:
+        ordered << [true, false]
+    }
+
+    @spock.lang.Timeout(10)
+    def 'test stopping the pool ends the walk'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), traversal_parallelism: 1]))
+        // occupies the only thread, so that the walk is still queued when the pool is stopped
+        ParallelTraversal.pool.execute { Thread.sleep(5000) }
+        ParallelTraversal walk = new ParallelTraversal(tree(), { true }, { true }, 0, false)
+
+        when:
+        ParallelTraversal.destroy()
+
+        then:
+        !walk.hasNext()
+
+        cleanup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), traversal_parallelism: 4]))
+    }
+
+    static boolean waitFor(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 5000
+        while (!condition()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false
+            }
+            Thread.sleep(10)
+        }
+        return true
+    }
+}
@@ -15,6 +15,7 @@
  */
 package net.kemuri9.sling.filesystemprovider.impl
 
+import java.nio.ByteBuffer
 import java.nio.charset.StandardCharsets
 import java.nio.file.Files
 import java.nio.file.Path
@@ -343,4 +344,203 @@ class PersistenceHelperSpec extends Specification {
         { -> SQLTime.valueOf(new SQLTime(System.currentTimeMillis()).toString()) } | _
         { -> SQLTimestamp t = new SQLTimestamp(System.currentTimeMillis()); t.setNanos(5000000); t } | _
     }
+
+    def 'test write small serializable inline'() {
+        when:
+        ConcurrentHashMap<String, Integer> val = new ConcurrentHashMap<>(['1':1, '2':4])
+        JSONObject prop = PersistenceHelper.createJSONPropertyObject(val)
+
+        then:
+        prop.getString(FSPConstants.JSON_KEY_TYPE) == ConcurrentHashMap.name
+        prop.getBoolean(FSPConstants.JSON_KEY_BINARY)
+        prop.getBoolean(FSPConstants.JSON_KEY_INLINE)
+
+        when:
+        Object backConvert = PersistenceHelper.readJSONPropertyValue(resourcePath, prop)
+
+        then:
+        backConvert instanceof ConcurrentHashMap
+        val == backConvert
+    }
+
+    def 'test write large serializable to file'() {
+        when:
+        ArrayList<Integer> val = new ArrayList<>(0..<5000)
+        JSONObject prop = PersistenceHelper.createJSONPropertyObject(val)
+
+        then:
+        prop.getBoolean(FSPConstants.JSON_KEY_BINARY)
+        !prop.optBoolean(FSPConstants.JSON_KEY_INLINE)
+        Path file = Util.temporaryDirectory.resolve(prop.getString(FSPConstants.JSON_KEY_VALUE))
+        Files.exists(file)
+
+        when:
+        Object backConvert = ValueConversion.convert(new FileBinary(file), ArrayList)
+
+        then:
+        val == backConvert
+    }
+
+    @Unroll
+    def 'test conversion of properties between JSON and #format'() {
+        setup:
+        Path directory = Files.createTempDirectory(Util.temporaryDirectory, 'format')
+        Util.init(slingSettings, TestUtil.newConfig([property_format: format]))
+
+        when:
+        Path propFile = PersistenceHelper.writeProperties(directory, properties)
+
+        then:
+        PropertyFormat.fromFile(propFile) == format
+        JSONObject read = PersistenceHelper.readPropertyFile(propFile)
+        read.toString() == properties.toString()
+
+        when: 'converting back to JSON'
+        Util.init(slingSettings, TestUtil.newConfig())
+        Path jsonFile = PersistenceHelper.writeProperties(directory, read)
+
+        then:
+        PersistenceHelper.readPropertyFile(jsonFile).toString() == properties.toString()
+        Files.list(directory).count() == 1
+
+        cleanup:
+        Util.init(slingSettings, TestUtil.newConfig())
+
+        where:
+        format << PropertyFormat.values()
+    }
+
+    def 'test read single property of binary format'() {
+        setup:
+        Path jsonDirectory = Files.createTempDirectory(Util.temporaryDirectory, 'json')
+        PersistenceHelper.writeProperties(jsonDirectory, properties)
+        Path binaryDirectory = Files.createTempDirectory(Util.temporaryDirectory, 'binary')
+        Util.init(slingSettings, TestUtil.newConfig([property_format: PropertyFormat.BINARY]))
+        PersistenceHelper.writeProperties(binaryDirectory, properties)
+        Util.init(slingSettings, TestUtil.newConfig())
+
+        when:
+        PropertyRecord json = PropertyRecord.read(resourcePath, jsonDirectory, null)
+        PropertyRecord binary = PropertyRecord.read(resourcePath, binaryDirectory, null)
+
+        then:
+        binary.names().toSet() == json.names().toSet()
+        properties.keys().every { String key -> binary.get(key) == json.get(key) }
+        binary.get('missing') == null
+    }
+
+    def 'test corrupt lengths of binary format are rejected'() {
+        setup:
+        ByteArrayOutputStream baos = new ByteArrayOutputStream()
+        BinaryPropertyFormat.write(properties, baos)
+        ByteBuffer data = ByteBuffer.wrap(baos.toByteArray())
+        // the length of the first key, following the magic, version, count and index length
+        data.putInt(13, Integer.MAX_VALUE)
+
+        when:
+        BinaryPropertyFormat.scan(data)
+
+        then:
+        IOException e = thrown()
+        e.message == "invalid string length ${Integer.MAX_VALUE}"
+
+        when:
+        BinaryPropertyFormat.read(data)
+
+        then:
+        e = thrown()
+        e.message == "invalid string length ${Integer.MAX_VALUE}"
+    }
+
+    @Unroll
+    def 'test locating and reading #compression properties by content'() {
+        setup:
+        Path directory = Files.createTempDirectory(Util.temporaryDirectory, 'locate')
+        Util.init(slingSettings, TestUtil.newConfig([json_property_compression: compression]))
+        for (int idx = 0; idx < 100; ++idx) {
+            Files.createDirectory(directory.resolve('child' + idx))
+            directory.resolve('_sling_fsp_' + idx + '.bin').bytes = [idx] as byte[]
+        }
+        Path written = PersistenceHelper.writeProperties(directory, properties)
+
+        when: 'the codec is configured differently from the one the file was written with'
+        Util.init(slingSettings, TestUtil.newConfig([property_format: PropertyFormat.BINARY]))
+        Path found = PersistenceHelper.findPropertyFile(directory)
+        Path misnamed = directory.resolve('_sling_fsp_properties.json')
+        if (found != misnamed) {
+            Files.move(found, misnamed)
+        }
+
+        then:
+        found == written
+        PersistenceHelper.findPropertyFile(directory) == misnamed
+        PersistenceHelper.readPropertyFile(misnamed).toString() == properties.toString()
+
+        cleanup:
+        Util.init(slingSettings, TestUtil.newConfig())
+
+        where:
+        compression << JSONCompression.values()
+    }
+
+    def 'test adaptive compression of properties files'() {
+        setup:
+        Path directory = Files.createTempDirectory(Util.temporaryDirectory, 'adaptive')
+        Util.init(slingSettings, TestUtil.newConfig([json_property_compression: JSONCompression.GZIP,
+            json_property_compression_adaptive: true, json_property_compression_max_ratio: 0.5d]))
+        JSONCompressionPolicy.resetStatistics()
+        byte[] noise = new byte[4096]
+        new Random(0).nextBytes(noise)
+        JSONObject small = new JSONObject().put('a', PersistenceHelper.createJSONPropertyObject('small'))
+        JSONObject repetitive = new JSONObject().put('a', PersistenceHelper.createJSONPropertyObject('repeat' * 1000))
+        JSONObject incompressible = new JSONObject().put('a', PersistenceHelper.createJSONPropertyObject(noise.encodeBase64().toString()))
+
+        expect:
+        PersistenceHelper.writeProperties(directory, small).fileName.toString().endsWith(JSONCompression.NONE.extension)
+        PersistenceHelper.writeProperties(directory, repetitive).fileName.toString().endsWith(JSONCompression.GZIP.extension)
+        PersistenceHelper.writeProperties(directory, incompressible).fileName.toString().endsWith(JSONCompression.NONE.extension)
+        Files.list(directory).count() == 1
+        PersistenceHelper.readPropertyFile(PersistenceHelper.findPropertyFile(directory)).toString() == incompressible.toString()
+        Map<String, Long> stats = JSONCompressionPolicy.statistics
+        stats['NONE.belowMinSize'] == 1
+        stats['NONE.poorRatio'] == 1
+        stats['GZIP.goodRatio'] == 1
+        stats['GZIP.files'] == 1
+        stats['GZIP.storedBytes'] < stats['GZIP.bytes'] / 10
+        stats['NONE.files'] == 2
+
+        cleanup:
+        Util.init(slingSettings, TestUtil.newConfig())
+    }
+
+    def 'test type dictionary'() {
+        setup:
+        Path dictionary = Files.createTempFile(Util.temporaryDirectory, 'types', '.txt')
+        TypeDictionary.init(dictionary, true)
+
+        when:
+        JSONObject longProp = PersistenceHelper.createJSONPropertyObject(5L)
+        JSONObject stringsProp = PersistenceHelper.createJSONPropertyObject(['a', 'b'] as String[])
+        JSONObject otherLongProp = PersistenceHelper.createJSONPropertyObject(7L)
+
+        then:
+        longProp.get(FSPConstants.JSON_KEY_TYPE) == 0
+        stringsProp.get(FSPConstants.JSON_KEY_TYPE) == 1
+        otherLongProp.get(FSPConstants.JSON_KEY_TYPE) == 0
+        Files.readAllLines(dictionary) == [Long.name, String.name]
+
+        when: 'reloaded after an interrupted append'
+        dictionary.append(Date.name)
+        TypeDictionary.init(dictionary, false)
+
+        then:
+        TypeDictionary.nameOf(2) == null
+        Files.readAllLines(dictionary) == [Long.name, String.name]
+        PersistenceHelper.readJSONPropertyValue(resourcePath, longProp) == 5L
+        PersistenceHelper.readJSONPropertyValue(resourcePath, stringsProp) == ['a', 'b'] as String[]
+        PersistenceHelper.readJSONPropertyValue(resourcePath, new JSONObject('{"type":"java.lang.Long","value":3}')) == 3L
+
+        cleanup:
+        TypeDictionary.destroy()
+    }
 }
@@ -15,10 +15,227 @@
  */
 package net.kemuri9.sling.filesystemprovider.impl
 
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.zip.GZIPInputStream
+
+import org.apache.sling.settings.SlingSettingsService
+
+import net.kemuri9.sling.filesystemprovider.Binary
+import net.kemuri9.sling.filesystemprovider.BinaryUpload
+import spock.lang.Shared
 import spock.lang.Specification
+import spock.lang.Unroll
 
 @spock.lang.Subject(PropertyFactory)
 class PropertyFactorySpec extends Specification {
 
+    @Shared
+    PropertyFactory factory = new PropertyFactory()
+
+    def setupSpec() {
+        // unconfigured, so that uploads are kept in the temporary directory
+        Util.init(null, TestUtil.newConfig())
+    }
+
+    def 'test parallel chunked upload'() {
+        setup:
+        byte[] data = new byte[100000]
+        new Random(5).nextBytes(data)
+        int chunkSize = 7000
+        BinaryUpload upload = factory.createBinaryUpload(data.length)
+        ExecutorService executor = Executors.newFixedThreadPool(4)
+
+        when:
+        List<Callable<Object>> tasks = []
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            ByteBuffer chunk = ByteBuffer.wrap(data, offset, Math.min(chunkSize, data.length - offset))
+            long chunkOffset = offset
+            tasks.add(0, { -> upload.write(chunkOffset, chunk) } as Callable<Object>)
+        }
+        executor.invokeAll(tasks)*.get()
+        Binary binary = upload.complete()
+
+        then:
+        binary instanceof FileBinary
+        ((FileBinary) binary).temporary
+        binary.length == data.length
+        Util.slurp(binary.stream) == data
+
+        cleanup:
+        executor?.shutdown()
+        binary?.dispose()
+    }
+
+    def 'test resume of unknown length upload'() {
+        setup:
+        byte[] data = 'resumable upload contents'.getBytes('UTF-8')
+        BinaryUpload upload = factory.createBinaryUpload(BinaryUpload.LENGTH_UNKNOWN)
+
+        when:
+        upload.write(0, new ByteArrayInputStream(data, 0, 10))
+        upload.write(15, new ByteArrayInputStream(data, 15, data.length - 15))
+        upload.close()
+        BinaryUpload resumed = factory.resumeBinaryUpload(upload.id)
+
+        then:
+        resumed.contiguousLength == 10
+
+        when:
+        resumed.complete()
+
+        then:
+        thrown(IOException)
+
+        when:
+        resumed.write(resumed.contiguousLength, new ByteArrayInputStream(data, 10, 5))
+        Binary binary = resumed.complete()
+
+        then:
+        Util.slurp(binary.stream) == data
+
+        when:
+        factory.resumeBinaryUpload(upload.id)
+
+        then:
+        thrown(IOException)
+
+        cleanup:
+        binary?.dispose()
+    }
+
+    def 'test chunk beyond expected length'() {
+        setup:
+        BinaryUpload upload = factory.createBinaryUpload(4)
+
+        when:
+        upload.write(2, ByteBuffer.wrap([1, 2, 3] as byte[]))
+
+        then:
+        thrown(IOException)
+
+        cleanup:
+        upload.abort()
+    }
+
+    def 'test concurrent completions produce a single binary'() {
+        setup:
+        BinaryUpload upload = factory.createBinaryUpload(1000)
+        upload.write(0, ByteBuffer.wrap(new byte[1000]))
+        ExecutorService executor = Executors.newFixedThreadPool(4)
+
+        when:
+        List<Object> outcomes = executor.invokeAll((1..4).collect { { ->
+            try {
+                return upload.complete()
+            } catch (IOException e) {
+                return e
+            }
+        } as Callable<Object> })*.get()
+
+        then:
+        outcomes.count { it instanceof Binary } == 1
+        outcomes.count { it instanceof IOException } == 3
+
+        cleanup:
+        executor?.shutdown()
+        outcomes?.findAll { it instanceof Binary }*.dispose()
+    }
+
+    def 'test uploads are resumed after a restart'() {
+        setup:
+        Path root = Files.createTempDirectory('uploads')
+        SlingSettingsService slingSettings = Mock(SlingSettingsService)
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath -> root.resolve(relPath).toString() }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+        byte[] data = 'contents that survive a restart'.getBytes('UTF-8')
+        BinaryUpload upload = factory.createBinaryUpload(data.length)
+        upload.write(0, ByteBuffer.wrap(data, 0, 10))
+        upload.write(20, ByteBuffer.wrap(data, 20, data.length - 20))
+
+        when:
+        Util.destroy()
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+        BinaryUpload resumed = factory.resumeBinaryUpload(upload.id)
+
+        then:
+        FileBinaryUpload.directory == root.resolve(FSPConstants.FILENAME_UPLOADS)
+        !resumed.is(upload)
+        resumed.contiguousLength == 10
+        resumed.expectedLength == data.length
+
+        when:
+        resumed.write(10, ByteBuffer.wrap(data, 10, 10))
+        Binary binary = resumed.complete()
+
+        then:
+        Util.slurp(binary.stream) == data
+        !Files.exists(FileBinaryUpload.directory.resolve(upload.id + FileBinaryUpload.FILENAME_EXTENSION_RANGES))
+
+        when:
+        factory.resumeBinaryUpload(upload.id)
+
+        then:
+        thrown(IOException)
+
+        cleanup:
+        binary?.dispose()
+        Util.init(null, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    @Unroll
+    def 'test binary compression of #description'() {
+        setup:
+        Util.init(null, TestUtil.newConfig([binary_compression: BinaryCompression.GZIP]))
+
+        when:
+        Binary binary = factory.createBinaryProperty(new ByteArrayInputStream(data), contentType)
+
+        then:
+        ((FileBinary) binary).compression == expected
+        binary.name.endsWith(expected.extension)
+        binary.length == data.length
+        Util.slurp(binary.stream) == data
+
+        cleanup:
+        binary?.dispose()
+        // not destroyed, as that removes the temporary directory the other specs use
+        Util.init(null, TestUtil.newConfig())
+
+        where:
+        description                  | data                                         | contentType       | expected
+        'compressible text'          | ('lorem ipsum ' * 2000).bytes                | null              | BinaryCompression.GZIP
+        'declared compressed type'   | ('lorem ipsum ' * 2000).bytes                | 'application/zip' | BinaryCompression.NONE
+        'gzip signature'             | ([0x1F, 0x8B] + [0] * 10000) as byte[]      | null              | BinaryCompression.NONE
+        'small data'                 | ('lorem ipsum ' * 10).bytes                  | 'text/plain'      | BinaryCompression.NONE
+    }
+
+    @Unroll
+    def 'test #compression binaries keep their length and close once'() {
+        setup:
+        Path file = Files.createTempFile('compression', compression.extension)
+        byte[] data = ('lorem ipsum ' * 2000).bytes
+
+        when:
+        OutputStream output = compression.openOutput(file)
+        output.write(data)
+        output.close()
+        output.close()
+
+        then:
+        compression.getLength(file) == data.length
+        Util.slurp(compression.openInput(file)) == data
+        compression != BinaryCompression.GZIP || Util.slurp(new GZIPInputStream(Files.newInputStream(file))) == data
+
+        cleanup:
+        Files.deleteIfExists(file)
 
+        where:
+        compression << [BinaryCompression.GZIP, BinaryCompression.ZLIB]
+    }
 }
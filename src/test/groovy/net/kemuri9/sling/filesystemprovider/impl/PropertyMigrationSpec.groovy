@@ -0,0 +1,170 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import org.apache.sling.settings.SlingSettingsService
+
+import spock.lang.Specification
+
+@spock.lang.Subject(PropertyMigration)
+class PropertyMigrationSpec extends Specification {
+
+    static final String PROPERTIES = '{"p":{"type":"java.lang.String","value":"v"}}'
+
+    Path root
+
+    Path repository
+
+    SlingSettingsService slingSettings
+
+    PropertyMigration migration = new PropertyMigration()
+
+    def setup() {
+        root = Files.createTempDirectory('migration')
+        repository = Files.createDirectory(root.resolve('repo'))
+        for (String dir : ['', 'a', 'a/x', 'a/x/y', 'b', 'c']) {
+            Path resource = Files.createDirectories(repository.resolve(dir))
+            resource.resolve('_sling_fsp_properties.json').text = PROPERTIES
+        }
+        slingSettings = Mock(SlingSettingsService)
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath -> root.resolve(relPath).toString() }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: 'repo', property_format: PropertyFormat.BINARY,
+            migration_parallelism: 2]))
+    }
+
+    def cleanup() {
+        migration.stop()
+        Util.init(null, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    void awaitMigration() {
+        long deadline = System.currentTimeMillis() + 10000
+        while (migration.running && System.currentTimeMillis() < deadline) {
+            sleep(10)
+        }
+    }
+
+    def 'test migration into configured format'() {
+        when:
+        migration.start()
+        awaitMigration()
+
+        then:
+        migration.migratedCount == 6
+        migration.failedCount == 0
+        Files.walk(repository).filter { it.fileName.toString().startsWith('_sling_fsp_properties') }.every {
+            it.fileName.toString() == '_sling_fsp_properties' + PropertyFormat.EXTENSION_BINARY
+        }
+        PersistenceHelper.readPropertyFile(PersistenceHelper.findPropertyFile(repository.resolve('a/x/y'))).toString() ==
+            new org.json.JSONObject(PROPERTIES).toString()
+        !Files.exists(repository.resolve(FSPConstants.FILENAME_MIGRATION_CHECKPOINT))
+
+        when: 'run again'
+        migration.start()
+        awaitMigration()
+
+        then:
+        migration.migratedCount == 0
+        migration.skippedCount == 6
+    }
+
+    def 'test migration waits for the commits of a resource'() {
+        setup:
+        Path directory = repository.resolve('a/x')
+
+        when: 'a commit of the resource is in progress'
+        synchronized (PersistenceHelper.lockOf(directory)) {
+            migration.start()
+            sleep(500)
+            assert migration.running
+            // the commit replaces the properties that the migration found
+            PersistenceHelper.writeProperties(directory, new org.json.JSONObject('{"p":{"type":"java.lang.String","value":"new"}}'))
+        }
+        awaitMigration()
+
+        then: 'the migration does not overwrite the commit'
+        migration.migratedCount == 5
+        migration.failedCount == 0
+        PersistenceHelper.readPropertyFile(PersistenceHelper.findPropertyFile(directory)).getJSONObject('p').getString('value') == 'new'
+    }
+
+    def 'test files kept uncompressed are skipped by later runs'() {
+        setup: 'every file compresses too poorly to be compressed'
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: 'repo', json_property_compression: JSONCompression.GZIP,
+            json_property_compression_adaptive: true, json_property_compression_min_size: 10,
+            json_property_compression_max_ratio: 0.01d]))
+
+        when:
+        migration.start()
+        awaitMigration()
+
+        then:
+        migration.migratedCount == 6
+        Files.exists(repository.resolve('a/x/_sling_fsp_properties.json'))
+        Files.exists(repository.resolve(FSPConstants.FILENAME_MIGRATION_KEPT))
+
+        when: 'run again'
+        migration.start()
+        awaitMigration()
+
+        then:
+        migration.migratedCount == 0
+        migration.skippedCount == 6
+
+        when: 'a file is changed'
+        PersistenceHelper.writeProperties(repository.resolve('b'), new org.json.JSONObject(PROPERTIES.replace('"v"', '"changed"')))
+        migration.start()
+        awaitMigration()
+
+        then:
+        migration.migratedCount == 1
+        migration.skippedCount == 5
+    }
+
+    def 'test migration resumes from checkpoint'() {
+        setup:
+        repository.resolve(FSPConstants.FILENAME_MIGRATION_CHECKPOINT).text =
+            "_sling_fsp_properties${PropertyFormat.EXTENSION_BINARY}\na\n"
+
+        when:
+        migration.start()
+        awaitMigration()
+
+        then: 'the completed subtree is not walked again'
+        migration.migratedCount == 3
+        Files.exists(repository.resolve('a/x/_sling_fsp_properties.json'))
+        Files.exists(repository.resolve('b/_sling_fsp_properties' + PropertyFormat.EXTENSION_BINARY))
+    }
+
+    def 'test migration with I/O budget'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: 'repo', property_format: PropertyFormat.BINARY,
+            migration_io_budget: 1000L]))
+        long start = System.nanoTime()
+
+        when:
+        migration.start()
+        awaitMigration()
+
+        then: 'the roughly 600 bytes read are limited to the budget'
+        migration.migratedCount == 6
+        System.nanoTime() - start > 500000000L
+    }
+}
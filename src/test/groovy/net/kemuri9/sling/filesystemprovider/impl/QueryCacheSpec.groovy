@@ -0,0 +1,243 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import org.apache.sling.settings.SlingSettingsService
+import org.apache.sling.spi.resource.provider.ResolveContext
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class QueryCacheSpec extends Specification {
+
+    static final String FSP = FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP
+
+    @Shared
+    Path root
+
+    @Shared
+    SlingSettingsService slingSettings
+
+    @Shared
+    FileSystemProviderQueryLanguageProvider queryProvider
+
+    def setupSpec() {
+        root = Files.createTempDirectory('querycache')
+        slingSettings = Mock(SlingSettingsService)
+        slingSettings.slingHomePath >> new File('.').canonicalPath
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath ->
+            new File(relPath).absolutePath
+        }
+        queryProvider = new FileSystemProviderQueryLanguageProvider(new FileSystemProvider())
+    }
+
+    def setup() {
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), query_cache_size: 10]))
+        IndexManagerSpec.commit(['/content': [:], '/content/a': [status: 'live', title: 'a'],
+            '/content/b': [status: 'draft', title: 'b'], '/content/b/c': [status: 'live', title: 'c'],
+            '/other': [:], '/other/d': [status: 'live', title: 'd']])
+        QueryCache.clear()
+    }
+
+    def cleanup() {
+        Files.list(root).each { Files.walk(it).sorted(Comparator.reverseOrder()).each { Files.delete(it) } }
+    }
+
+    def cleanupSpec() {
+        Util.init(slingSettings, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    ResolveContext<FileSystemProviderState> newContext(FileSystemProviderState state = new FileSystemProviderState()) {
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> state
+        return resolveContext
+    }
+
+    List<String> find(String query, FileSystemProviderState state = new FileSystemProviderState()) {
+        return queryProvider.findResources(newContext(state), query, FSP).collect { it.path }
+    }
+
+    def 'test results are cached once iterated'() {
+        when:
+        Iterator<?> results = queryProvider.findResources(newContext(), "path:/content/** AND @status = 'live'", FSP)
+        results.next()
+
+        then: 'partially iterated results are not cached'
+        QueryCache.size() == 0
+
+        when:
+        results.next()
+        results.hasNext()
+
+        then:
+        QueryCache.get(FSP, "path:/content/**   AND @status = 'live'") == ['/content/a', '/content/b/c']
+        QueryCache.get(FSP, "path:/content/** AND @status = 'live '") == null
+        find("path:/content/**\tAND @status = 'live'") == ['/content/a', '/content/b/c']
+        queryProvider.queryResources(newContext(), "SELECT @title WHERE path:/content/** AND @status = 'live'", FSP)
+            .collect { it.title } == ['a', 'c']
+        QueryCache.size() == 2
+    }
+
+    def 'test cached results read the current resources'() {
+        setup:
+        find("path:/content/** AND @status = 'live'")
+        // written around the provider, as the cached paths are only invalidated through commits
+        Files.walk(root.resolve('content/b/c')).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+
+        expect:
+        find("path:/content/** AND @status = 'live'") == ['/content/a']
+    }
+
+    @Unroll
+    def 'test committing #changes invalidates cached results: #invalidated'() {
+        setup:
+        find("path:/content/** AND @status = 'live' ORDER BY @title")
+
+        when:
+        IndexManagerSpec.commit(changes)
+
+        then:
+        (QueryCache.size() == 0) == invalidated
+
+        where:
+        changes                                        | invalidated
+        ['/content/a': [status: 'draft', title: 'a']]  | true
+        ['/content/a': [status: 'live', title: 'z']]   | true
+        ['/content/a': [status: 'live', title: 'a']]   | false
+        ['/content/a': [status: 'live', title: 'a', rank: 1L]] | false
+        ['/content/e': [status: 'draft']]              | true
+        ['/other/d': [status: 'draft', title: 'd']]    | false
+        ['/other/e': [status: 'live']]                 | false
+    }
+
+    def 'test committing within the path globs of the condition'() {
+        setup:
+        find("path:/content/b/* OR path:/other/*")
+
+        when:
+        IndexManagerSpec.commit(['/content/a': [status: 'live', title: 'a', rank: 1L]])
+
+        then:
+        QueryCache.size() == 1
+
+        when:
+        IndexManagerSpec.commit(['/other/d': [status: 'live', title: 'd', rank: 1L]])
+
+        then: 'path conditions depend on no properties, but on the resources that exist'
+        QueryCache.size() == 1
+        IndexManagerSpec.commit(['/other/e': [:]])
+        QueryCache.size() == 0
+    }
+
+    def 'test deleting and moving subtrees invalidates cached results'() {
+        setup:
+        find("path:/content/** AND @status = 'live'")
+        find("path:/other/* AND @status = 'live'")
+
+        when:
+        PersistenceHelper.deleteResource('/content/b')
+
+        then:
+        QueryCache.get(FSP, "path:/content/** AND @status = 'live'") == null
+        QueryCache.get(FSP, "path:/other/* AND @status = 'live'") == ['/other/d']
+
+        when:
+        PersistenceHelper.moveResource('/other/d', '/content/d')
+
+        then:
+        QueryCache.size() == 0
+        find("path:/content/** AND @status = 'live'") == ['/content/a', '/content/d']
+    }
+
+    def 'test cached results expire'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), query_cache_size: 10,
+            query_cache_ttl: 1L]))
+        find("@status = 'live'")
+
+        expect:
+        QueryCache.get(FSP, "@status = 'live'") != null
+
+        when:
+        Thread.sleep(1100)
+
+        then:
+        QueryCache.get(FSP, "@status = 'live'") == null
+    }
+
+    def 'test queries with pending changes or explained are not cached'() {
+        setup:
+        FileSystemProviderState state = new FileSystemProviderState()
+        state.modifiedProperties.put('/content/a', [status: 'draft'])
+
+        expect:
+        find("@status = 'live'", state) == ['/content/b/c', '/other/d']
+        QueryCache.size() == 0
+        queryProvider.queryResources(newContext(), "EXPLAIN @status = 'live'", FSP).next().results == 3L
+        QueryCache.size() == 0
+
+        when: 'cached results are not used with pending changes'
+        find("@status = 'live'")
+
+        then:
+        QueryCache.size() == 1
+        find("@status = 'live'", state) == ['/content/b/c', '/other/d']
+    }
+
+    def 'test only the least recently used queries are cached'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(), query_cache_size: 2]))
+
+        when:
+        find("@status = 'live'")
+        find("@status = 'draft'")
+        find("@status = 'live'")
+        find("@status = 'none'")
+
+        then:
+        QueryCache.size() == 2
+        QueryCache.get(FSP, "@status = 'draft'") == null
+        QueryCache.get(FSP, "@status = 'live'") != null
+    }
+
+    def 'test the cache is disabled by default'() {
+        setup:
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+
+        when:
+        find("@status = 'live'")
+
+        then:
+        !QueryCache.isEnabled()
+        QueryCache.size() == 0
+    }
+
+    def 'test normalizing query text'() {
+        expect:
+        QueryCache.normalize(text) == expected
+
+        where:
+        text                                  | expected
+        "  @a = 'x'  "                        | "@a = 'x'"
+        "@a\n=\t'x  y'"                       | "@a = 'x  y'"
+        "@a = 'it\\'s  ' AND\n @b = \"q  \""  | "@a = 'it\\'s  ' AND @b = \"q  \""
+    }
+}
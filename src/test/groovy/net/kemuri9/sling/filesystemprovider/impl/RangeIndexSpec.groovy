@@ -0,0 +1,178 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+
+import org.apache.sling.settings.SlingSettingsService
+import org.apache.sling.spi.resource.provider.ResolveContext
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class RangeIndexSpec extends Specification {
+
+    @Shared
+    Path root
+
+    @Shared
+    SlingSettingsService slingSettings
+
+    @Shared
+    FileSystemProviderQueryLanguageProvider queryProvider
+
+    def setupSpec() {
+        root = Files.createTempDirectory('range')
+        slingSettings = Mock(SlingSettingsService)
+        slingSettings.slingHomePath >> new File('.').canonicalPath
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath ->
+            new File(relPath).absolutePath
+        }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+        IndexManagerSpec.commit(['/news/a': [published: date('2016-10-01T00:00:00Z'), rank: 3L, title: 'b'],
+            '/news/b': [published: date('2016-10-05T00:00:00Z'), rank: 1L],
+            '/news/c': [published: '2016-10-03T12:00:00.000+02:00', rank: 2.5d],
+            '/news/d': [published: [date('2016-09-01T00:00:00Z'), date('2016-10-06T00:00:00Z')] as Calendar[],
+                rank: [10L, -1L] as Long[]],
+            '/news/e': [rank: 'abc'],
+            '/news/g': [rank: 3L, title: 'a'],
+            '/other/f': [published: date('2016-10-04T00:00:00Z'), rank: 7L]])
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString(),
+            range_indexes: ['published', 'rank'] as String[]]))
+        assert IndexManager.awaitBuilt(10, TimeUnit.SECONDS)
+        queryProvider = new FileSystemProviderQueryLanguageProvider(new FileSystemProvider())
+    }
+
+    def cleanupSpec() {
+        Util.init(slingSettings, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    static Calendar date(String iso) {
+        return ValueConversion.convert(iso, Calendar)
+    }
+
+    ResolveContext<FileSystemProviderState> newContext() {
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+        return resolveContext
+    }
+
+    List<String> find(String query) {
+        return queryProvider.findResources(newContext(), query, FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP)
+            .collect { it.path }
+    }
+
+    Map<String, Object> explain(String query) {
+        return queryProvider.queryResources(newContext(), 'EXPLAIN ' + query,
+            FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP).next()
+    }
+
+    List<String> candidates(String query) {
+        return IndexManager.candidates(QueryParser.parse(query, FileSystemProviderQueryLanguageProvider.LANGUAGE_FSP).condition, '/')
+    }
+
+    def 'test range keys sort as their values'() {
+        setup:
+        List<Double> numbers = [Double.NEGATIVE_INFINITY, -1e300d, -1.5d, -1d, 0d, Double.MIN_VALUE, 1d, 1.5d, 1e300d,
+            Double.POSITIVE_INFINITY, Double.NaN]
+
+        expect:
+        numbers.collect { IndexManager.rangeKey(it) } == numbers.collect { IndexManager.rangeKey(it) }.sort()
+        numbers.collect { IndexManager.rangeKey(it) }.toSet().size() == numbers.size()
+        IndexManager.rangeKeysOf(5L) == [IndexManager.rangeKey(5)] as Set
+        IndexManager.rangeKeysOf([2L, 1.5d] as Object[]) == [IndexManager.rangeKey(2), IndexManager.rangeKey(1.5d)] as Set
+        IndexManager.rangeKeysOf(date('2016-10-01T00:00:00Z')).contains(IndexManager.rangeKey(1475280000000d))
+        IndexManager.rangeKeysOf('abc').isEmpty()
+        IndexManager.orderingKeyOf('2.5') == IndexManager.rangeKey(2.5d)
+        IndexManager.orderingKeyOf('2016-10-01T02:00:00+02:00') == IndexManager.rangeKey(1475280000000d)
+        IndexManager.orderingKeyOf(true) == null
+    }
+
+    @Unroll
+    def 'test range candidates of #query'() {
+        expect:
+        IndexManager.isRangeIndexed('published')
+        candidates(query) == expected
+
+        where:
+        query                                                                     | expected
+        "@published >= xs:dateTime('2016-10-03T00:00:00Z')"                       | ['/news/b', '/news/c', '/news/d', '/other/f']
+        "@published < xs:dateTime('2016-10-03T00:00:00+02:00')"                   | ['/news/a', '/news/d']
+        "@published > xs:dateTime('2016-10-02T00:00:00Z') AND @published < xs:dateTime('2016-10-05T00:00:00Z')" |
+            ['/news/b', '/news/c', '/other/f']
+        "@published = xs:dateTime('2016-10-06T02:00:00+02:00')"                   | ['/news/d']
+        '@rank > 2'                                                               | ['/news/a', '/news/c', '/news/d', '/news/g',
+                                                                                     '/other/f']
+        '@rank >= 1 AND @rank <= 2.5'                                             | ['/news/b', '/news/c']
+        '@rank > 5 AND @rank < 1'                                                 | []
+        "@rank != 3"                                                              | null
+        "@rank > '2'"                                                             | null
+    }
+
+    @Unroll
+    def 'test range query #query'() {
+        expect:
+        find(query) == expected
+
+        where:
+        query                                                                     | expected
+        "@published > xs:dateTime('2016-10-02T00:00:00Z') AND @published < xs:dateTime('2016-10-05T00:00:00Z')" |
+            ['/news/c', '/other/f']
+        "path:/news/* AND @published <= xs:dateTime('2016-10-01T00:00:00Z')"      | ['/news/a', '/news/d']
+        "path:/news/* ORDER BY @published DESCENDING LIMIT 3"                     | ['/news/b', '/news/c', '/news/a']
+        "path:/news/* ORDER BY @published LIMIT 10"                               | ['/news/d', '/news/a', '/news/c', '/news/b',
+                                                                                     '/news/e', '/news/g']
+        "path:/news/* ORDER BY @rank, @title LIMIT 10"                            | ['/news/b', '/news/c', '/news/g', '/news/a',
+                                                                                     '/news/d', '/news/e']
+        "path:/news/* ORDER BY @rank DESCENDING, @title DESCENDING LIMIT 3"       | ['/news/d', '/news/a', '/news/g']
+        "path:/news/* AND @rank >= 2 ORDER BY @rank LIMIT 2"                      | ['/news/c', '/news/a']
+        "type:none ORDER BY @rank LIMIT 2"                                        | []
+        "path:/news/* LIMIT 2"                                                    | ['/news/a', '/news/b']
+    }
+
+    def 'test ordered queries with a limit read the range index in order'() {
+        when:
+        Map<String, Object> explained = explain(
+            "@published >= xs:dateTime('2016-10-02T00:00:00Z') ORDER BY @rank DESCENDING LIMIT 2")
+
+        then:
+        explained.plan == 'ORDERED_INDEX'
+        explained.indexCandidates == 4L
+        explained.limit == 2L
+        explained.estimatedCost == 2L * QueryPlan.INDEX_READ_COST
+        explained.resourcesRead == 2L
+        explained.results == 2L
+        find("@published >= xs:dateTime('2016-10-02T00:00:00Z') ORDER BY @rank DESCENDING LIMIT 2") == ['/news/d', '/other/f']
+
+        and: 'without a limit every match is read and sorted'
+        explain("@published >= xs:dateTime('2016-10-02T00:00:00Z') ORDER BY @rank DESCENDING").plan == 'INDEX'
+    }
+
+    def 'test range indexes are updated on commit'() {
+        when:
+        IndexManagerSpec.commit(['/news/b': [published: date('2016-10-07T00:00:00Z'), rank: 1L],
+            '/news/e': [published: date('2016-08-01T00:00:00Z'), rank: 'abc']])
+
+        then:
+        find('path:/news/* ORDER BY @published DESCENDING LIMIT 2') == ['/news/b', '/news/c']
+        find('path:/news/* ORDER BY @published LIMIT 1') == ['/news/e']
+        candidates("@published >= xs:dateTime('2016-10-07T00:00:00Z')") == ['/news/b']
+    }
+}
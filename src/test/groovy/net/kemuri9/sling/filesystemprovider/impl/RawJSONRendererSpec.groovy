@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.text.SimpleDateFormat
+
+import org.apache.sling.settings.SlingSettingsService
+import org.apache.sling.spi.resource.provider.ResolveContext
+import org.apache.sling.spi.resource.provider.ResourceContext
+import org.json.JSONObject
+
+import net.kemuri9.sling.filesystemprovider.Binary
+import net.kemuri9.sling.filesystemprovider.JSONRenderer
+import spock.lang.Shared
+import spock.lang.Specification
+
+@spock.lang.Subject(RawJSONRenderer)
+class RawJSONRendererSpec extends Specification {
+
+    @Shared
+    Path root
+
+    @Shared
+    SlingSettingsService slingSettings
+
+    def setupSpec() {
+        root = Files.createTempDirectory('render')
+        slingSettings = Mock(SlingSettingsService)
+        slingSettings.slingHomePath >> new File('.').canonicalPath
+        slingSettings.getAbsolutePathWithinSlingHome(_ as String) >> { String relPath ->
+            new File(relPath).absolutePath
+        }
+        Util.init(slingSettings, TestUtil.newConfig([repository_root: root.toString()]))
+    }
+
+    def cleanupSpec() {
+        Util.init(slingSettings, TestUtil.newConfig())
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    static JSONObject properties(Map<String, Object> values) {
+        JSONObject props = new JSONObject()
+        values.each { String key, Object value -> props.put(key, PersistenceHelper.createJSONPropertyObject(value)) }
+        return props
+    }
+
+    String render(int depth) {
+        ResolveContext<FileSystemProviderState> resolveContext = Mock(ResolveContext)
+        resolveContext.providerState >> new FileSystemProviderState()
+        FileSystemProviderResource resource = new FileSystemProvider().getResource(resolveContext, '/',
+            ResourceContext.EMPTY_CONTEXT, null)
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        resource.adaptTo(JSONRenderer).render(output, depth)
+        return output.toString('UTF-8')
+    }
+
+    def 'test render subtree from persisted properties'() {
+        setup:
+        Calendar created = new GregorianCalendar(TimeZone.getTimeZone('GMT+02:00'))
+        created.setTimeInMillis(1500000000000L)
+        PersistenceHelper.writeProperties(root, properties([title: 'root']))
+        Path a = Files.createDirectories(root.resolve('a'))
+        a.resolve('_sling_fsp_large.bin').bytes = new byte[10000]
+        JSONObject aProps = properties([title: 'a "quoted"', count: 5, tags: ['x', 'y'] as String[], created: created,
+            data: new MemoryBinary([1, 2, 3, 4] as byte[])])
+        JSONObject large = new JSONObject()
+        large.put(FSPConstants.JSON_KEY_TYPE, Binary.class.name)
+        large.put(FSPConstants.JSON_KEY_BINARY, true)
+        large.put(FSPConstants.JSON_KEY_VALUE, '_sling_fsp_large.bin')
+        aProps.put('large', large)
+        PersistenceHelper.writeProperties(a, aProps)
+        Files.createDirectories(root.resolve('a/b'))
+        SimpleDateFormat ecma = new SimpleDateFormat("EEE MMM dd yyyy HH:mm:ss 'GMT'Z", Locale.ENGLISH)
+        ecma.timeZone = created.timeZone
+
+        when:
+        JSONObject rendered = new JSONObject(render(JSONRenderer.INFINITY))
+
+        then:
+        rendered.getString('title') == 'root'
+        rendered.getJSONObject('a').getString('title') == 'a "quoted"'
+        rendered.getJSONObject('a').getInt('count') == 5
+        rendered.getJSONObject('a').getJSONArray('tags').join(',') == '"x","y"'
+        rendered.getJSONObject('a').getString('created') == ecma.format(created.time)
+        rendered.getJSONObject('a').getLong(':data') == 4
+        rendered.getJSONObject('a').getLong(':large') == 10000
+        !rendered.getJSONObject('a').has('data')
+        rendered.getJSONObject('a').getJSONObject('b').length() == 0
+        // internal directories of the provider are not resources
+        rendered.keys().findAll { !it.equals('title') && !it.equals('a') }.isEmpty()
+
+        when:
+        JSONObject shallow = new JSONObject(render(1))
+
+        then:
+        shallow.getJSONObject('a').getInt('count') == 5
+        !shallow.getJSONObject('a').has('b')
+        !new JSONObject(render(0)).has('a')
+    }
+}
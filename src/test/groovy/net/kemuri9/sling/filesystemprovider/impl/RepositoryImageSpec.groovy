@@ -0,0 +1,133 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import org.json.JSONObject
+
+import net.kemuri9.sling.filesystemprovider.Binary
+import spock.lang.Specification
+
+@spock.lang.Subject(RepositoryImage)
+class RepositoryImageSpec extends Specification {
+
+    Path root
+
+    def setup() {
+        root = Files.createTempDirectory('image')
+    }
+
+    def cleanup() {
+        Files.walk(root).sorted(Comparator.reverseOrder()).each { Files.delete(it) }
+    }
+
+    static JSONObject properties(String value) {
+        JSONObject props = new JSONObject()
+        props.put('title', PersistenceHelper.createJSONPropertyObject(value))
+        return props
+    }
+
+    static JSONObject binaryProperty(String fileName) {
+        JSONObject prop = new JSONObject()
+        prop.put(FSPConstants.JSON_KEY_TYPE, Binary.class.name)
+        prop.put(FSPConstants.JSON_KEY_BINARY, true)
+        prop.put(FSPConstants.JSON_KEY_VALUE, fileName)
+        return prop
+    }
+
+    def 'test compile and serve subtree'() {
+        setup:
+        Path source = Files.createDirectories(root.resolve('source'))
+        PersistenceHelper.writeProperties(source, properties('root'))
+        for (String dir : ['b', 'a', 'a/c', 'a/B']) {
+            PersistenceHelper.writeProperties(Files.createDirectories(source.resolve(dir)), properties(dir))
+        }
+        Path leaf = source.resolve('a/c')
+        leaf.resolve('_sling_fsp_small.bin').bytes = [1, 2, 3] as byte[]
+        leaf.resolve('_sling_fsp_large.bin').bytes = (0..<10000).collect { it as byte } as byte[]
+        JSONObject leafProps = properties('a/c')
+        leafProps.put('small', binaryProperty('_sling_fsp_small.bin'))
+        leafProps.put('large', binaryProperty('_sling_fsp_large.bin'))
+        PersistenceHelper.writeProperties(leaf, leafProps)
+        Path imageFile = root.resolve(FSPConstants.FILENAME_REPOSITORY_IMAGE)
+
+        when:
+        int count = RepositoryImage.compile(source, imageFile, 1024)
+        RepositoryImage image = RepositoryImage.open(imageFile, '/apps')
+
+        then:
+        count == 5
+        image.nodeCount == 5
+        image.find('/apps').readProperties().toString() == properties('root').toString()
+        image.find('/apps').childNames == ['a', 'b']
+        image.find('/apps/a').childNames == ['B', 'c']
+        image.find('/apps/a/B').readProperties().toString() == properties('a/B').toString()
+        image.find('/apps/a/missing') == null
+        image.find('/application') == null
+        image.find('/libs/a') == null
+
+        when:
+        RepositoryImage.Node node = image.find('/apps/a/c')
+        JSONObject props = node.readProperties()
+        Binary large = node.readBinary(props.getJSONObject('large').getString(FSPConstants.JSON_KEY_VALUE))
+
+        then: 'small binaries are inline, and large ones are read out of the image'
+        props.getJSONObject('small').getBoolean(FSPConstants.JSON_KEY_INLINE)
+        Base64.decoder.decode(props.getJSONObject('small').getString(FSPConstants.JSON_KEY_VALUE)) == [1, 2, 3] as byte[]
+        !props.getJSONObject('large').optBoolean(FSPConstants.JSON_KEY_INLINE)
+        large.length == 10000
+        large.stream.bytes == leaf.resolve('_sling_fsp_large.bin').bytes
+    }
+
+    def 'test swapping the image keeps the mapped image intact'() {
+        setup:
+        Path source = Files.createDirectories(root.resolve('source'))
+        PersistenceHelper.writeProperties(Files.createDirectories(source.resolve('a')), properties('v1'))
+        Path imageFile = root.resolve(FSPConstants.FILENAME_REPOSITORY_IMAGE)
+        RepositoryImage.compile(source, imageFile, 1024)
+        RepositoryImage previous = RepositoryImage.open(imageFile, '/')
+
+        when:
+        PersistenceHelper.writeProperties(source.resolve('a'), properties('v2'))
+        PersistenceHelper.writeProperties(Files.createDirectories(source.resolve('b')), properties('v2'))
+        RepositoryImage.compile(source, imageFile, 1024)
+        RepositoryImage current = RepositoryImage.open(imageFile, '/')
+
+        then:
+        previous.find('/a').readProperties().toString() == properties('v1').toString()
+        previous.find('/b') == null
+        current.find('/a').readProperties().toString() == properties('v2').toString()
+        current.find('/b') != null
+        Files.list(root).count() == 2
+    }
+
+    def 'test compile refuses packed subtrees'() {
+        setup:
+        Path source = Files.createDirectories(root.resolve('source'))
+        Files.createDirectories(source.resolve('a')).resolve(FSPConstants.FILENAME_SEGMENT_PACK).bytes = [0] as byte[]
+        Path imageFile = root.resolve(FSPConstants.FILENAME_REPOSITORY_IMAGE)
+
+        when:
+        RepositoryImage.compile(source, imageFile, 1024)
+
+        then:
+        thrown(IOException)
+        !Files.exists(imageFile)
+        Files.list(root).count() == 1
+    }
+}
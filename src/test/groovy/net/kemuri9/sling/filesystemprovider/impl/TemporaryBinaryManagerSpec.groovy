@@ -0,0 +1,175 @@
+/**
+ * Copyright 2016 Steven Walters
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kemuri9.sling.filesystemprovider.impl
+
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+import net.kemuri9.sling.filesystemprovider.BinaryUpload
+import spock.lang.Specification
+
+@spock.lang.Subject(TemporaryBinaryManager)
+class TemporaryBinaryManagerSpec extends Specification {
+
+    def setupSpec() {
+        // unconfigured, so that uploads are kept in the temporary directory
+        Util.init(null, TestUtil.newConfig())
+    }
+
+    def cleanup() {
+        TemporaryBinaryManager.destroy()
+    }
+
+    def 'test outstanding bytes are tracked until dispose'() {
+        setup:
+        long before = TemporaryBinaryManager.outstandingBytes
+        int count = TemporaryBinaryManager.outstandingCount
+
+        when:
+        FileBinary binary = new FileBinary(new ByteArrayInputStream(new byte[1000]))
+
+        then:
+        TemporaryBinaryManager.outstandingCount == count + 1
+        TemporaryBinaryManager.outstandingBytes == before + 1000
+
+        when:
+        binary.dispose()
+
+        then:
+        !Files.exists(Util.temporaryDirectory.resolve(binary.name))
+        TemporaryBinaryManager.outstandingCount == count
+        TemporaryBinaryManager.outstandingBytes == before
+    }
+
+    def 'test quota is enforced'() {
+        setup:
+        TemporaryBinaryManager.init(TestUtil.newConfig([temporary_binary_quota: 1500L]))
+        FileBinary first = new FileBinary(new ByteArrayInputStream(new byte[1000]))
+
+        when:
+        FileBinary second = new FileBinary(new ByteArrayInputStream(new byte[1000]))
+        new FileBinary(new ByteArrayInputStream(new byte[1000]))
+
+        then:
+        thrown(IOException)
+
+        cleanup:
+        first?.dispose()
+        second?.dispose()
+    }
+
+    def 'test quota is enforced as the data is written'() {
+        setup:
+        TemporaryBinaryManager.init(TestUtil.newConfig([temporary_binary_quota: 1500L]))
+        long before = TemporaryBinaryManager.outstandingBytes
+        int count = TemporaryBinaryManager.outstandingCount
+
+        when: 'a single binary is larger than the quota'
+        new FileBinary(new ByteArrayInputStream(new byte[2000]))
+
+        then:
+        thrown(IOException)
+        TemporaryBinaryManager.outstandingCount == count
+        TemporaryBinaryManager.outstandingBytes == before
+    }
+
+    def 'test uploads count toward the quota'() {
+        setup:
+        TemporaryBinaryManager.init(TestUtil.newConfig([temporary_binary_quota: 1500L]))
+        long before = TemporaryBinaryManager.outstandingBytes
+        FileBinaryUpload upload = FileBinaryUpload.create(BinaryUpload.LENGTH_UNKNOWN)
+
+        when:
+        upload.write(0, ByteBuffer.wrap(new byte[1000]))
+
+        then:
+        TemporaryBinaryManager.outstandingBytes == before + 1000
+        new TemporaryBinaryStatistics().outstandingBytes == before + 1000
+        new TemporaryBinaryStatistics().quota == 1500L
+
+        when:
+        upload.write(1000, new ByteArrayInputStream(new byte[1000]))
+
+        then:
+        thrown(IOException)
+        upload.contiguousLength == 1000
+
+        when:
+        upload.abort()
+
+        then:
+        TemporaryBinaryManager.outstandingBytes == before
+    }
+
+    def 'test orphaned files past the ttl are reaped'() {
+        setup:
+        Path orphan = Files.createTempFile(Util.temporaryDirectory, FSPConstants.FILENAME_PREFIX_TEMPORARY_BINARY,
+            FSPConstants.FILENAME_EXTENSION_BINARY)
+        Files.setLastModifiedTime(orphan, FileTime.fromMillis(System.currentTimeMillis() - 7200000))
+        Path other = Files.createTempFile(Util.temporaryDirectory, FSPConstants.FILENAME_PREFIX_FSP, FSPConstants.FILENAME_EXTENSION_BINARY)
+        Files.setLastModifiedTime(other, FileTime.fromMillis(System.currentTimeMillis() - 7200000))
+        FileBinary tracked = new FileBinary(new ByteArrayInputStream(new byte[10]))
+        Files.setLastModifiedTime(Util.temporaryDirectory.resolve(tracked.name), FileTime.fromMillis(System.currentTimeMillis() - 7200000))
+        long reaped = TemporaryBinaryManager.reapedCount
+
+        when:
+        TemporaryBinaryManager.reap()
+
+        then:
+        !Files.exists(orphan)
+        Files.exists(other)
+        Files.exists(Util.temporaryDirectory.resolve(tracked.name))
+        TemporaryBinaryManager.reapedCount == reaped + 1
+
+        cleanup:
+        tracked?.dispose()
+        Files.deleteIfExists(other)
+    }
+
+    def 'test binaries of existing temporary files do not take over their tracking'() {
+        setup:
+        Path file = Files.createTempFile(Util.temporaryDirectory, FSPConstants.FILENAME_PREFIX_FSP, FSPConstants.FILENAME_FRAGMENT_TEMPORARY)
+        int count = TemporaryBinaryManager.outstandingCount
+
+        when:
+        FileBinary binary = new FileBinary(file)
+
+        then:
+        binary.temporary
+        TemporaryBinaryManager.outstandingCount == count
+
+        cleanup:
+        Files.deleteIfExists(file)
+    }
+
+    def 'test binaries can be created after the provider is destroyed and reinitialized'() {
+        setup:
+        Util.destroy()
+
+        when:
+        Util.init(null, TestUtil.newConfig())
+        FileBinary binary = new FileBinary(new ByteArrayInputStream(new byte[10]))
+
+        then:
+        Files.isDirectory(Util.temporaryDirectory)
+        Files.exists(Util.temporaryDirectory.resolve(binary.name))
+
+        cleanup:
+        binary?.dispose()
+    }
+}
@@ -25,21 +25,48 @@ class TestUtil {
 
     static FileSystemProviderConfig newConfig(final String rootPath, final String providerRoot,
             final JSONCompression jsonCompression, final boolean jsonPrettyPrint) {
+        return newConfig([repository_root: rootPath, provider_root: providerRoot,
+            json_property_compression: jsonCompression, json_property_pretty_print: jsonPrettyPrint])
+    }
+
+    /**
+     * Create a configuration, with the specified attributes overriding the test defaults
+     * @param overrides attribute names to their values
+     * @return the configuration
+     */
+    static FileSystemProviderConfig newConfig(final Map<String, Object> overrides) {
+        final Map<String, Object> attrs = [repository_root: '.', provider_root: '/',
+            property_format: PropertyFormat.JSON, json_property_compression: JSONCompression.NONE, json_property_pretty_print: false,
+            json_property_compression_level: -1, json_property_buffer_size: 8192, json_property_compression_dictionary: false,
+            json_property_compression_adaptive: false, json_property_compression_min_size: 1024, json_property_compression_max_ratio: 0.8d,
+            migration_parallelism: 0, migration_io_budget: 0L, pack_compaction_threshold: 0.5d, type_dictionary: false,
+            property_indexes: [] as String[], range_indexes: [] as String[], resource_type_index: false, traversal_parallelism: 0,
+            fulltext_properties: [] as String[], fulltext_max_results: 1000,
+            image_mounts: [] as String[], image_inline_threshold: 4096,
+            temporary_binary_quota: 0L, temporary_binary_reap_interval: 0L, temporary_binary_ttl: 3600L,
+            binary_compression: BinaryCompression.NONE, binary_compression_min_size: 4096, binary_compression_max_ratio: 0.9d,
+            serializable_inline_threshold: 4096, serializable_cache_size: 0L, serializable_cache_mode: SerializableCacheMode.READ_ONLY,
+            query_cache_size: 0, query_cache_ttl: 60L] + overrides
         new FileSystemProviderConfig() {
 
             @Override
             public String repository_root() {
-                return rootPath
+                return attrs.repository_root
             }
 
             @Override
             public String provider_root() {
-                return providerRoot
+                return attrs.provider_root
+            }
+
+            @Override
+            PropertyFormat property_format() {
+                return attrs.property_format
             }
 
             @Override
             public JSONCompression json_property_compression() {
-                return jsonCompression
+                return attrs.json_property_compression
             }
 
             @Override
@@ -47,6 +74,151 @@ class TestUtil {
                 return false
             }
 
+            @Override
+            int json_property_compression_level() {
+                return attrs.json_property_compression_level
+            }
+
+            @Override
+            int json_property_buffer_size() {
+                return attrs.json_property_buffer_size
+            }
+
+            @Override
+            boolean json_property_compression_dictionary() {
+                return attrs.json_property_compression_dictionary
+            }
+
+            @Override
+            boolean json_property_compression_adaptive() {
+                return attrs.json_property_compression_adaptive
+            }
+
+            @Override
+            int json_property_compression_min_size() {
+                return attrs.json_property_compression_min_size
+            }
+
+            @Override
+            double json_property_compression_max_ratio() {
+                return attrs.json_property_compression_max_ratio
+            }
+
+            @Override
+            int migration_parallelism() {
+                return attrs.migration_parallelism
+            }
+
+            @Override
+            long migration_io_budget() {
+                return attrs.migration_io_budget
+            }
+
+            @Override
+            double pack_compaction_threshold() {
+                return attrs.pack_compaction_threshold
+            }
+
+            @Override
+            String[] image_mounts() {
+                return attrs.image_mounts
+            }
+
+            @Override
+            int image_inline_threshold() {
+                return attrs.image_inline_threshold
+            }
+
+            @Override
+            String[] property_indexes() {
+                return attrs.property_indexes
+            }
+
+            @Override
+            String[] range_indexes() {
+                return attrs.range_indexes
+            }
+
+            @Override
+            boolean resource_type_index() {
+                return attrs.resource_type_index
+            }
+
+            @Override
+            String[] fulltext_properties() {
+                return attrs.fulltext_properties
+            }
+
+            @Override
+            int fulltext_max_results() {
+                return attrs.fulltext_max_results
+            }
+
+            @Override
+            int traversal_parallelism() {
+                return attrs.traversal_parallelism
+            }
+
+            @Override
+            boolean type_dictionary() {
+                return attrs.type_dictionary
+            }
+
+            @Override
+            long temporary_binary_quota() {
+                return attrs.temporary_binary_quota
+            }
+
+            @Override
+            long temporary_binary_reap_interval() {
+                return attrs.temporary_binary_reap_interval
+            }
+
+            @Override
+            long temporary_binary_ttl() {
+                return attrs.temporary_binary_ttl
+            }
+
+            @Override
+            BinaryCompression binary_compression() {
+                return attrs.binary_compression
+            }
+
+            @Override
+            int binary_compression_min_size() {
+                return attrs.binary_compression_min_size
+            }
+
+            @Override
+            double binary_compression_max_ratio() {
+                return attrs.binary_compression_max_ratio
+            }
+
+            @Override
+            int serializable_inline_threshold() {
+                return attrs.serializable_inline_threshold
+            }
+
+            @Override
+            long serializable_cache_size() {
+                return attrs.serializable_cache_size
+            }
+
+            @Override
+            SerializableCacheMode serializable_cache_mode() {
+                return attrs.serializable_cache_mode
+            }
+
+            @Override
+            int query_cache_size() {
+                return attrs.query_cache_size
+            }
+
+            @Override
+            long query_cache_ttl() {
+                return attrs.query_cache_ttl
+            }
+
             @Override
             Class<? extends Annotation> annotationType() {
                 return FileSystemProviderConfig.class;
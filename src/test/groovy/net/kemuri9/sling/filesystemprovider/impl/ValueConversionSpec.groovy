@@ -15,11 +15,16 @@
  */
 package net.kemuri9.sling.filesystemprovider.impl
 
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
 import java.time.ZonedDateTime
 import java.time.format.DateTimeFormatter
+import java.util.concurrent.ConcurrentHashMap
 
 import spock.lang.Shared
 import spock.lang.Specification
+import spock.lang.Unroll
 
 @spock.lang.Subject(ValueConversion)
 class ValueConversionSpec extends Specification {
@@ -176,4 +181,64 @@ class ValueConversionSpec extends Specification {
         cal3 instanceof Calendar
         cal3 == cal
     }
+
+    @Unroll
+    def 'test cached deserialization of binary in #mode mode'() {
+        setup:
+        SerializableCache.init(TestUtil.newConfig([serializable_cache_size: 4096L, serializable_cache_mode: mode]))
+        FileBinary binary = new FileBinary(Paths.get(getClass().getResource('_sling_fsp_externalHashMap_1465296780859.bin').toURI()))
+
+        when:
+        Object first = ValueConversion.convert(binary, type)
+        Object second = ValueConversion.convert(binary, type)
+
+        then:
+        first == ['1':1, '2':4, '3':9]
+        second == first
+        first.is(second) == shared
+
+        when:
+        boolean modified = true
+        try {
+            first.put('4', 16)
+        } catch (UnsupportedOperationException e) {
+            modified = false
+        }
+
+        then:
+        modified == mutable
+        // only the shared instance reflects the modification back into the cache
+        ValueConversion.convert(binary, type).size() == (shared ? 4 : 3)
+
+        cleanup:
+        SerializableCache.destroy()
+
+        where:
+        mode                            | type              | shared | mutable
+        SerializableCacheMode.SHARED    | Serializable      | true   | true
+        SerializableCacheMode.READ_ONLY | Serializable      | false  | false
+        // the read-only views do not extend concrete classes, so those are handed out as a copy
+        SerializableCacheMode.READ_ONLY | ConcurrentHashMap | false  | true
+        SerializableCacheMode.COPY      | Serializable      | false  | true
+    }
+
+    def 'test arrays are copied in read only mode'() {
+        setup:
+        SerializableCache.init(TestUtil.newConfig([serializable_cache_size: 4096L, serializable_cache_mode: SerializableCacheMode.READ_ONLY]))
+        Path file = Files.createTempFile(FSPConstants.FILENAME_PREFIX_FSP, FSPConstants.FILENAME_EXTENSION_BINARY)
+        new ObjectOutputStream(Files.newOutputStream(file)).withCloseable { it.writeObject([1, 2, 3] as int[]) }
+        FileBinary binary = new FileBinary(file)
+
+        when:
+        int[] first = ValueConversion.convert(binary, Serializable)
+        first[0] = 100
+
+        then: 'the modification does not reach the cached array'
+        ValueConversion.convert(binary, Serializable) == [1, 2, 3] as int[]
+        !ValueConversion.convert(binary, Serializable).is(ValueConversion.convert(binary, Serializable))
+
+        cleanup:
+        SerializableCache.destroy()
+        Files.deleteIfExists(file)
+    }
 }